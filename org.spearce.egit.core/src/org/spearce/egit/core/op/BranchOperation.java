@@ -130,8 +130,10 @@ private void writeIndex() throws TeamException {
 
 	private void checkoutTree() throws TeamException {
 		try {
-			new WorkDirCheckout(repository, repository.getWorkDir(), oldTree,
-					index, newTree).checkout();
+			final WorkDirCheckout co = new WorkDirCheckout(repository,
+					repository.getWorkDir(), oldTree, index, newTree);
+			co.setThreads(0);
+			co.checkout();
 		} catch (CheckoutConflictException e) {
 			TeamException teamException = new TeamException(e.getMessage());
 			throw teamException;
@@ -190,6 +190,7 @@ private void doCheckout(final IProgressMonitor monitor) throws IOException {
 
 		monitor.setTaskName("Checking out files");
 		co = new WorkDirCheckout(local, local.getWorkDir(), index, tree);
+		co.setThreads(0);
 		co.checkout();
 		monitor.setTaskName("Writing index");
 		index.write();
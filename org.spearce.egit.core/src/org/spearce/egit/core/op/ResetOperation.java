@@ -212,6 +212,7 @@ private void checkoutIndex() throws TeamException {
 			WorkDirCheckout workDirCheckout = 
 				new WorkDirCheckout(repository, parentFile, index, newTree);
 			workDirCheckout.setFailOnConflict(false);
+			workDirCheckout.setThreads(0);
 			workDirCheckout.checkout();
 		} catch (IOException e) {
 			throw new TeamException("mapping tree for commit", e);
@@ -34,13 +34,14 @@
 import org.spearce.jgit.lib.Commit;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.GitIndex;
-import org.spearce.jgit.lib.IndexDiff;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectWriter;
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.RefUpdate;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.RepositoryConfig;
+import org.spearce.jgit.lib.StatusListener;
+import org.spearce.jgit.lib.StatusScanner;
 import org.spearce.jgit.lib.Tree;
 import org.spearce.jgit.lib.TreeEntry;
 import org.spearce.jgit.lib.GitIndex.Entry;
@@ -329,16 +330,36 @@ private void buildIndexHeadDiffList() throws IOException {
 			RepositoryMapping repositoryMapping = RepositoryMapping.getMapping(project);
 			assert repositoryMapping != null;
 			Repository repository = repositoryMapping.getRepository();
-			Tree head = repository.mapTree(Constants.HEAD);
-			GitIndex index = repository.getIndex();
-			IndexDiff indexDiff = new IndexDiff(head, index);
-			indexDiff.diff();
-
-			includeList(project, indexDiff.getAdded(), indexChanges);
-			includeList(project, indexDiff.getChanged(), indexChanges);
-			includeList(project, indexDiff.getRemoved(), indexChanges);
-			includeList(project, indexDiff.getMissing(), notIndexed);
-			includeList(project, indexDiff.getModified(), notIndexed);
+			final HashSet<String> staged = new HashSet<String>();
+			final HashSet<String> unstaged = new HashSet<String>();
+			new StatusScanner(repository).scan(new StatusListener() {
+				public void added(String path) {
+					staged.add(path);
+				}
+
+				public void changed(String path) {
+					staged.add(path);
+				}
+
+				public void removed(String path) {
+					staged.add(path);
+				}
+
+				public void missing(String path) {
+					unstaged.add(path);
+				}
+
+				public void modified(String path) {
+					unstaged.add(path);
+				}
+
+				public void untracked(String path) {
+					// Untracked files are not offered for commit.
+				}
+			});
+
+			includeList(project, staged, indexChanges);
+			includeList(project, unstaged, notIndexed);
 		}
 	}
 
@@ -333,13 +333,15 @@ private TreeWalk createThreeWayTreeWalk() throws IOException {
 		IWorkspaceRoot workspaceRoot = resource.getWorkspace().getRoot();
 		File repoRoot = repository.getWorkDir();
 
+		final WorkingTreeIterator workspace;
 		if (repoRoot.equals(project.getLocation().toFile()))
-			treeWalk.addTree(new ContainerTreeIterator(project));
+			workspace = new ContainerTreeIterator(project);
 		else if (repoRoot.equals(workspaceRoot.getLocation().toFile()))
-			treeWalk.addTree(new ContainerTreeIterator(workspaceRoot));
+			workspace = new ContainerTreeIterator(workspaceRoot);
 		else
-			treeWalk.addTree(new AdaptableFileTreeIterator(repoRoot,
-					workspaceRoot));
+			workspace = new AdaptableFileTreeIterator(repoRoot, workspaceRoot);
+		workspace.setDirCacheIterator(treeWalk, T_INDEX);
+		treeWalk.addTree(workspace);
 
 		return treeWalk;
 	}
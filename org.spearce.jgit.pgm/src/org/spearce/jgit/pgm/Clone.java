@@ -69,6 +69,9 @@ class Clone extends AbstractFetchCommand {
 	@Option(name = "--origin", aliases = { "-o" }, metaVar = "name", usage = "use <name> instead of 'origin' to track upstream")
 	private String remoteName = "origin";
 
+	@Option(name = "--depth", metaVar = "n", usage = "create a shallow clone of the last n commits")
+	private int depth;
+
 	@Argument(index = 0, required = true, metaVar = "uri-ish")
 	private String sourceUri;
 
@@ -129,6 +132,7 @@ private void saveRemote(final URIish uri) throws URISyntaxException,
 	private FetchResult runFetch() throws NotSupportedException,
 			URISyntaxException, TransportException {
 		final Transport tn = Transport.open(db, remoteName);
+		tn.setDepth(depth);
 		final FetchResult r;
 		try {
 			r = tn.fetch(new TextProgressMonitor(), null);
@@ -175,6 +179,7 @@ private void doCheckout(final Ref branch) throws IOException {
 		final WorkDirCheckout co;
 
 		co = new WorkDirCheckout(db, db.getWorkDir(), index, tree);
+		co.setThreads(0);
 		co.checkout();
 		index.write();
 	}
@@ -54,6 +54,15 @@ class Daemon extends TextBuiltin {
 	@Option(name = "--listen", metaVar = "HOSTNAME", usage = "hostname (or ip) to listen on")
 	String host;
 
+	@Option(name = "--max-connections", metaVar = "N", usage = "maximum number of clients served at once")
+	int maxConnections = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_CONNECTIONS;
+
+	@Option(name = "--max-queued", metaVar = "N", usage = "maximum number of clients waiting to be served")
+	int maxQueued = org.spearce.jgit.transport.Daemon.DEFAULT_MAX_QUEUED_CONNECTIONS;
+
+	@Option(name = "--init-timeout", metaVar = "SECONDS", usage = "seconds a client has to send its request")
+	int initTimeout;
+
 	@Option(name = "--enable", metaVar = "SERVICE", usage = "enable the service in all repositories", multiValued = true)
 	final List<String> enable = new ArrayList<String>();
 
@@ -85,6 +94,9 @@ protected void run() throws Exception {
 				host != null ? new InetSocketAddress(host, port)
 						: new InetSocketAddress(port));
 		d.setExportAll(exportAll);
+		d.setMaxConnections(maxConnections);
+		d.setMaxQueuedConnections(maxQueued);
+		d.setInitTimeout(initTimeout);
 
 		for (final String n : enable)
 			service(d, n).setEnabled(true);
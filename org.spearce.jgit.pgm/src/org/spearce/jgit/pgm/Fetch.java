@@ -70,6 +70,9 @@ void nothin(final boolean ignored) {
 		thin = Boolean.FALSE;
 	}
 
+	@Option(name = "--depth", metaVar = "n", usage = "deepen the history of a shallow repository to n commits")
+	private int depth;
+
 	@Argument(index = 0, metaVar = "uri-ish")
 	private String remote = "origin";
 
@@ -86,6 +89,7 @@ protected void run() throws Exception {
 		tn.setDryRun(dryRun);
 		if (thin != null)
 			tn.setFetchThin(thin.booleanValue());
+		tn.setDepth(depth);
 		final FetchResult r;
 		try {
 			r = tn.fetch(new TextProgressMonitor(), toget);
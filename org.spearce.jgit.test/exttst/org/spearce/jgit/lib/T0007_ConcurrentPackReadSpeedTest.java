@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.textui.TestRunner;
+
+/**
+ * Measures raw object copy throughput, as done by a server streaming a pack
+ * for a fetch, with an increasing number of threads sharing the WindowCache.
+ */
+public class T0007_ConcurrentPackReadSpeedTest extends SpeedTestBase {
+	private final List<PackFile> packs = new ArrayList<PackFile>();
+
+	private final List<ObjectId> ids = new ArrayList<ObjectId>();
+
+	private final List<PackFile> idPacks = new ArrayList<PackFile>();
+
+	protected void setUp() throws Exception {
+		prepare(new String[] { "git", "rev-list", "--objects", "--all" });
+
+		final File packDir = new File(new File(kernelrepo), "objects/pack");
+		for (final String n : packDir.list()) {
+			if (!n.endsWith(".idx"))
+				continue;
+			final String base = n.substring(0, n.length() - 4);
+			final PackFile p = new PackFile(new File(packDir, n), new File(
+					packDir, base + ".pack"));
+			packs.add(p);
+			for (final PackIndex.MutableEntry e : p) {
+				ids.add(e.toObjectId());
+				idPacks.add(p);
+			}
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		for (final PackFile p : packs)
+			p.close();
+	}
+
+	public void testConcurrentRawCopy() throws Exception {
+		WindowCache.reconfigure(256 * 1024 * 1024, 8192, false, 10 * 1024 * 1024);
+
+		// Warm up the JIT and the operating system's buffer cache.
+		//
+		copyAll(1);
+
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		long single = 0;
+		for (int threads = 1; threads <= cpus; threads *= 2) {
+			final long start = System.currentTimeMillis();
+			final long bytes = copyAll(threads);
+			final long time = Math.max(1, System.currentTimeMillis() - start);
+			if (threads == 1)
+				single = time;
+			System.out.println("threads=" + threads + " objects=" + ids.size()
+					+ " MiB=" + (bytes >> 20) + " ms=" + time + " speedup="
+					+ (single * 100 / time) / 100.0);
+		}
+		System.out.println("native rev-list --objects=" + nativeTime);
+	}
+
+	private long copyAll(final int threadCnt) throws Exception {
+		final Copier[] copiers = new Copier[threadCnt];
+		final Thread[] threads = new Thread[threadCnt];
+		for (int i = 0; i < threadCnt; i++) {
+			copiers[i] = new Copier(i, threadCnt);
+			threads[i] = new Thread(copiers[i]);
+			threads[i].start();
+		}
+
+		long bytes = 0;
+		for (int i = 0; i < threadCnt; i++) {
+			threads[i].join();
+			if (copiers[i].failure != null)
+				throw copiers[i].failure;
+			bytes += copiers[i].out.count;
+		}
+		return bytes;
+	}
+
+	private class Copier implements Runnable {
+		private final int first;
+
+		private final int stride;
+
+		final CountingNullOutputStream out = new CountingNullOutputStream();
+
+		Exception failure;
+
+		Copier(final int first, final int stride) {
+			this.first = first;
+			this.stride = stride;
+		}
+
+		public void run() {
+			final WindowCursor curs = new WindowCursor();
+			final byte[] buf = new byte[8192];
+			try {
+				for (int i = first; i < ids.size(); i += stride) {
+					final PackedObjectLoader ldr;
+					ldr = idPacks.get(i).get(curs, ids.get(i));
+					ldr.copyRawData(out, buf);
+				}
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				curs.release();
+			}
+		}
+	}
+
+	private static class CountingNullOutputStream extends OutputStream {
+		long count;
+
+		public void write(int b) {
+			count++;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0007_ConcurrentPackReadSpeedTest.class);
+	}
+}
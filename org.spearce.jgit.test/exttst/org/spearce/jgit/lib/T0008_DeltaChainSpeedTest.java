@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Measures reconstruction of objects at the end of deep delta chains, with a
+ * cold and a warm delta base cache.
+ */
+public class T0008_DeltaChainSpeedTest extends RepositoryTestCase {
+	private static final int FILES = 20;
+
+	private static final int VERSIONS = 50;
+
+	private final List<ObjectId> deepest = new ArrayList<ObjectId>();
+
+	private final List<ObjectId> all = new ArrayList<ObjectId>();
+
+	private PackFile pack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+
+		// Each file grows by a few lines per version, so the packer
+		// stores the oldest version at the bottom of a chain as deep
+		// as the version count.
+		//
+		final Random rng = new Random(getName().hashCode());
+		final ObjectWriter ow = new ObjectWriter(db);
+		final RevWalk rw = new RevWalk(db);
+		final List<RevObject> blobs = new ArrayList<RevObject>();
+		for (int f = 0; f < FILES; f++) {
+			final StringBuilder text = new StringBuilder();
+			for (int line = 0; line < 2000; line++)
+				text.append("file " + f + " line " + line + ": "
+						+ rng.nextLong() + "\n");
+			for (int v = 0; v < VERSIONS; v++) {
+				for (int line = 0; line < 5; line++)
+					text.insert(rng.nextInt(text.length()), "version " + v
+							+ ": " + rng.nextLong() + "\n");
+				final ObjectId id = ow.writeBlob(Constants.encode(text
+						.toString()));
+				blobs.add(rw.lookupAny(id, Constants.OBJ_BLOB));
+				all.add(id);
+				if (v == 0)
+					deepest.add(id);
+			}
+		}
+
+		final File packFile = new File(trash, "chain.pack");
+		final File idxFile = new File(trash, "chain.idx");
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setMaxDeltaDepth(VERSIONS);
+		pw.preparePack(blobs.iterator());
+		FileOutputStream out = new FileOutputStream(packFile);
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(idxFile);
+		try {
+			pw.writeIndex(out);
+		} finally {
+			out.close();
+		}
+		pack = new PackFile(idxFile, packFile);
+		Collections.shuffle(all, rng);
+	}
+
+	public void tearDown() throws Exception {
+		pack.close();
+		super.tearDown();
+	}
+
+	public void testDeepChains() throws Exception {
+		WindowCache.reconfigure(256 * 1024 * 1024, 8192, false,
+				64 * 1024 * 1024);
+		final WindowCursor curs = new WindowCursor();
+
+		// Warm up the JIT.
+		//
+		readAll(curs, all);
+
+		for (int run = 0; run < 3; run++) {
+			pack.close(); // empties the delta base cache
+			long start = System.currentTimeMillis();
+			long bytes = readAll(curs, deepest);
+			final long cold = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			bytes += readAll(curs, all);
+			final long warm = System.currentTimeMillis() - start;
+
+			System.out.println("chains=" + FILES + " depth=" + VERSIONS
+					+ " MiB=" + (bytes >> 20) + " cold-deepest-ms=" + cold
+					+ " random-all-ms=" + warm);
+		}
+		curs.release();
+	}
+
+	private long readAll(final WindowCursor curs, final List<ObjectId> ids)
+			throws Exception {
+		long bytes = 0;
+		for (final ObjectId id : ids)
+			bytes += pack.get(curs, id).getCachedBytes().length;
+		return bytes;
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0008_DeltaChainSpeedTest.class);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.revwalk.DateRevQueue;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Measures walking a history with 10,000 branches all marked as starting
+ * points, as a fetch does when it marks every local ref as reachable.
+ */
+public class T0009_WideHistorySpeedTest extends RepositoryTestCase {
+	private static final int BRANCHES = 10000;
+
+	private final List<ObjectId> tips = new ArrayList<ObjectId>();
+
+	public void setUp() throws Exception {
+		super.setUp();
+
+		// Every branch is one commit on top of a common root, with the
+		// commit times shuffled so the queue cannot just append.
+		//
+		final Random rng = new Random(getName().hashCode());
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId tree = ow.writeTree(new Tree(db));
+		final ObjectId root = commit(ow, tree, new ObjectId[0], 1000000000,
+				"root");
+		for (int i = 0; i < BRANCHES; i++) {
+			final ObjectId id = commit(ow, tree, new ObjectId[] { root },
+					1000000000 + 1 + rng.nextInt(BRANCHES * 10), "branch " + i);
+			final RefUpdate ru = db.updateRef("refs/heads/b" + i);
+			ru.setNewObjectId(id);
+			ru.forceUpdate();
+			tips.add(id);
+		}
+	}
+
+	private ObjectId commit(final ObjectWriter ow, final ObjectId tree,
+			final ObjectId[] parents, final int when, final String msg)
+			throws Exception {
+		final PersonIdent who = new PersonIdent(jcommitter, when * 1000L, 0);
+		final Commit c = new Commit(db);
+		c.setAuthor(who);
+		c.setCommitter(who);
+		c.setMessage(msg + "\n");
+		c.setTreeId(tree);
+		c.setParentIds(parents);
+		return ow.writeCommit(c);
+	}
+
+	public void testWideWalk() throws Exception {
+		for (int run = 0; run < 3; run++) {
+			final RevWalk rw = new RevWalk(db);
+			final List<RevCommit> starts = new ArrayList<RevCommit>();
+			for (final ObjectId id : tips)
+				starts.add(rw.parseCommit(id));
+
+			long start = System.currentTimeMillis();
+			final DateRevQueue q = new DateRevQueue();
+			for (final RevCommit c : starts)
+				q.add(c);
+			while (q.next() != null) {
+				// Drain the queue.
+			}
+			final long queue = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			rw.sort(RevSort.COMMIT_TIME_DESC);
+			rw.markStart(starts);
+			int n = 0;
+			while (rw.next() != null)
+				n++;
+			final long walk = System.currentTimeMillis() - start;
+			assertEquals(BRANCHES + 1, n);
+
+			start = System.currentTimeMillis();
+			final RevCommit base = rw.parseCommit(tips.get(0));
+			final List<RevCommit> merged = rw.selectMergedInto(starts, base);
+			final long select = System.currentTimeMillis() - start;
+			assertEquals(1, merged.size());
+
+			System.out.println("refs=" + starts.size() + " queue-ms=" + queue
+					+ " walk-ms=" + walk + " select-merged-ms=" + select);
+			rw.dispose();
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0009_WideHistorySpeedTest.class);
+	}
+}
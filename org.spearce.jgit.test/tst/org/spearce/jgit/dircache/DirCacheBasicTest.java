@@ -39,6 +39,8 @@
 
 import java.io.File;
 
+import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.RepositoryTestCase;
 
 public class DirCacheBasicTest extends RepositoryTestCase {
@@ -182,4 +184,44 @@ public void testBuildThenClear() throws Exception {
 		assertEquals(0, dc.getEntryCount());
 	}
 
+	public void testReadSmudgesRacilyClean() throws Exception {
+		final ObjectId blob = ObjectId
+				.fromString("ce013625030ba8dba906f756967f9e9ca394464a");
+		final ObjectId empty = ObjectId
+				.fromString("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+		final long future = System.currentTimeMillis() + 3600 * 1000;
+
+		final DirCache dc = DirCache.lock(db);
+		final DirCacheBuilder b = dc.builder();
+		b.add(newEntry("a", blob, 6, future));
+		b.add(newEntry("b", blob, 6, 1000));
+		b.add(newEntry("c", empty, 0, future));
+		b.finish();
+		dc.write();
+		assertTrue(dc.commit());
+
+		final DirCache rc = DirCache.read(db);
+		final DirCacheEntry a = rc.getEntry("a");
+		assertTrue(a.isSmudged());
+		assertEquals(0, a.getLength());
+		assertEquals(blob, a.getObjectId());
+
+		final DirCacheEntry bEnt = rc.getEntry("b");
+		assertFalse(bEnt.isSmudged());
+		assertEquals(6, bEnt.getLength());
+
+		final DirCacheEntry c = rc.getEntry("c");
+		assertFalse(c.isSmudged());
+		assertTrue(c.getLastModified() != future);
+	}
+
+	private static DirCacheEntry newEntry(final String path,
+			final ObjectId id, final int length, final long mtime) {
+		final DirCacheEntry e = new DirCacheEntry(path);
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setObjectId(id);
+		e.setLength(length);
+		e.setLastModified(mtime);
+		return e;
+	}
 }
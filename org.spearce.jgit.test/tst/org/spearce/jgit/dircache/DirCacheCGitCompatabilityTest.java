@@ -40,12 +40,15 @@
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.RepositoryTestCase;
@@ -92,6 +95,92 @@ public void testTreeWalk_LsFiles() throws Exception {
 		}
 	}
 
+	public void testReadMappedIndex_LsFiles() throws Exception {
+		final Map<String, CGitIndexRecord> ls = readLsFiles();
+		final DirCache dc = DirCache.read(index, true);
+		assertEquals(ls.size(), dc.getEntryCount());
+
+		// Decode a few entries out of order before the rest.
+		//
+		final CGitIndexRecord[] recs = ls.values().toArray(
+				new CGitIndexRecord[ls.size()]);
+		for (int i = recs.length - 1; i >= 0; i -= 97)
+			assertEqual(recs[i], dc.getEntry(recs[i].path));
+		for (int i = 0; i < recs.length; i++)
+			assertEqual(recs[i], dc.getEntry(i));
+		dc.verify();
+	}
+
+	public void testMappedTreeWalk_LsFiles() throws Exception {
+		final Map<String, CGitIndexRecord> ls = readLsFiles();
+		final DirCache dc = DirCache.read(index, true);
+		dc.startVerify();
+		final Iterator<CGitIndexRecord> rItr = ls.values().iterator();
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.setRecursive(true);
+		tw.addTree(new DirCacheIterator(dc));
+		while (rItr.hasNext()) {
+			assertTrue(tw.next());
+			final DirCacheIterator dcItr = tw.getTree(0,
+					DirCacheIterator.class);
+			assertNotNull(dcItr);
+			assertEqual(rItr.next(), dcItr.getDirCacheEntry());
+		}
+		assertFalse(tw.next());
+		dc.verify();
+	}
+
+	public void testReadMappedIndex_DirCacheTree() throws Exception {
+		final DirCache dc = DirCache.read(index, true);
+		final DirCacheTree jTree = dc.getCacheTree(false);
+		assertNotNull(jTree);
+		assertTrue(jTree.isValid());
+		assertEquals(ObjectId
+				.fromString("698dd0b8d0c299f080559a1cffc7fe029479a408"), jTree
+				.getObjectId());
+		assertEquals(dc.getEntryCount(), jTree.getEntrySpan());
+	}
+
+	public void testMappedVerifyDetectsCorruption() throws Exception {
+		final File copy = new File(trash, "index.copy");
+		final FileInputStream in = new FileInputStream(index);
+		try {
+			final FileOutputStream out = new FileOutputStream(copy);
+			try {
+				final byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0)
+					out.write(buf, 0, n);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+
+		// Change a byte of the first entry's object id.
+		//
+		final RandomAccessFile raf = new RandomAccessFile(copy, "rw");
+		try {
+			raf.seek(12 + 40);
+			final int b = raf.read();
+			raf.seek(12 + 40);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		final DirCache dc = DirCache.read(copy, true);
+		dc.startVerify();
+		try {
+			dc.verify();
+			fail("Corrupt index was verified");
+		} catch (CorruptObjectException e) {
+			// expected
+		}
+	}
+
 	private static void assertEqual(final CGitIndexRecord c,
 			final DirCacheEntry j) {
 		assertNotNull(c);
@@ -37,6 +37,7 @@
 
 package org.spearce.jgit.dircache;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.spearce.jgit.errors.CorruptObjectException;
@@ -95,6 +96,14 @@ private void testLongPath(final int len) throws CorruptObjectException,
 			assertNotSame(shortEnt, dc2.getEntry(1));
 			assertEquals(shortPath, dc2.getEntry(1).getPathString());
 		}
+		{
+			final DirCache dc3 = DirCache.read(new File(db.getDirectory(),
+					"index"), true);
+			assertEquals(2, dc3.getEntryCount());
+			assertEquals(shortPath, dc3.getEntry(1).getPathString());
+			assertEquals(longPath, dc3.getEntry(0).getPathString());
+			dc3.verify();
+		}
 	}
 
 	private static String makeLongPath(final int len) {
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.transport.Daemon;
+import org.spearce.jgit.transport.IndexPack;
+import org.spearce.jgit.transport.RefSpec;
+import org.spearce.jgit.transport.Transport;
+import org.spearce.jgit.transport.URIish;
+import org.spearce.jgit.util.NB;
+
+public class CachedPackTest extends RepositoryTestCase {
+	private PackFile gcPack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		gcPack = new GC(db).gc();
+	}
+
+	public void testGcWritesTips() throws IOException {
+		final CachedPack cp = gcPack.getCachedPack();
+		assertNotNull(cp);
+		assertFalse(cp.getTips().isEmpty());
+		assertEquals(gcPack.getObjectCount(), cp.getObjectCount());
+
+		final RevWalk rw = new RevWalk(db);
+		final ObjectId master = db.resolve("refs/heads/master");
+		boolean covered = cp.getTips().contains(master);
+		for (final ObjectId a : cp.getTips()) {
+			assertTrue(cp.hasObject(a));
+			for (final ObjectId b : cp.getTips()) {
+				if (!a.equals(b))
+					assertFalse(rw.isMergedInto(rw.parseCommit(a), rw
+							.parseCommit(b)));
+			}
+			if (!covered)
+				covered = rw.isMergedInto(rw.parseCommit(master), rw
+						.parseCommit(a));
+		}
+		assertTrue(covered);
+	}
+
+	public void testSendVerbatim() throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setUseCachedPacks(true);
+		pw.preparePack(allRefs(), Collections.<ObjectId> emptySet(), false,
+				true);
+		assertEquals(0, pw.getObjectsNumber());
+		assertTrue(pw.willInclude(db.resolve("refs/heads/master")));
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pw.writePack(out);
+		assertTrue(Arrays.equals(read(gcPack.getPackFile()), out
+				.toByteArray()));
+	}
+
+	public void testSendVerbatimToFile() throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setUseCachedPacks(true);
+		pw.preparePack(allRefs(), Collections.<ObjectId> emptySet(), false,
+				true);
+
+		final File copy = new File(trash, "copy.pack");
+		final FileOutputStream out = new FileOutputStream(copy);
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		assertTrue(Arrays.equals(read(gcPack.getPackFile()), read(copy)));
+	}
+
+	public void testNotUsedWithoutOffsetDeltas() throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(false);
+		pw.setUseCachedPacks(true);
+		pw.preparePack(allRefs(), Collections.<ObjectId> emptySet(), false,
+				true);
+		assertEquals(gcPack.getObjectCount(), pw.getObjectsNumber());
+	}
+
+	public void testAppendNewObjects() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final Tree t = new Tree(db);
+		t.addFile("new").setId(ow.writeBlob(Constants.encode("new file\n")));
+		final Commit c = new Commit(db);
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("after gc\n");
+		c.setParentIds(new ObjectId[] { db.resolve("refs/heads/master") });
+		c.setTreeId(ow.writeTree(t));
+		c.commit();
+		final RefUpdate ru = db.updateRef("refs/heads/master");
+		ru.setNewObjectId(c.getCommitId());
+		ru.forceUpdate();
+
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setUseCachedPacks(true);
+		pw.preparePack(allRefs(), Collections.<ObjectId> emptySet(), false,
+				true);
+		assertEquals(3, pw.getObjectsNumber());
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pw.writePack(out);
+		final byte[] buf = out.toByteArray();
+		assertEquals(gcPack.getObjectCount() + 3, NB.decodeUInt32(buf, 8));
+		try {
+			pw.writeIndex(new ByteArrayOutputStream());
+			fail("indexed a pack starting with a cached pack");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+
+		final File base = new File(trash, "received");
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(buf),
+				base);
+		ip.index(NullProgressMonitor.INSTANCE);
+		final PackFile received = new PackFile(new File(trash,
+				"received.idx"), new File(trash, "received.pack"));
+		assertEquals(gcPack.getObjectCount() + 3, received.getObjectCount());
+		assertTrue(received.hasObject(c.getCommitId()));
+		assertTrue(received.hasObject(c.getTreeId()));
+		for (final PackIndex.MutableEntry e : gcPack)
+			assertTrue(received.hasObject(e.toObjectId()));
+		received.close();
+	}
+
+	public void testNotUsedForIncrementalFetch() throws IOException {
+		final RevCommit master = new RevWalk(db).parseCommit(db
+				.resolve("refs/heads/master"));
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.setUseCachedPacks(true);
+		pw.preparePack(allRefs(), Collections.singleton(master.getParent(0)
+				.copy()), false, true);
+		assertFalse(pw.willInclude(master.getParent(0)));
+		pw.writePack(new ByteArrayOutputStream());
+		pw.writeIndex(new ByteArrayOutputStream());
+	}
+
+	public void testClone() throws Exception {
+		final Daemon d = new Daemon(new InetSocketAddress("127.0.0.1", 0));
+		d.exportRepository("test", db);
+		d.start();
+		try {
+			final Repository dst = createNewEmptyRepo();
+			final Transport t = Transport.open(dst, new URIish(
+					"git://127.0.0.1:" + d.getAddress().getPort() + "/test"));
+			try {
+				t.setCheckFetchedObjects(true);
+				t.fetch(NullProgressMonitor.INSTANCE, Collections
+						.singleton(new RefSpec("refs/*:refs/*")));
+			} finally {
+				t.close();
+			}
+
+			final ObjectWalk ow = new ObjectWalk(dst);
+			for (final Ref r : db.getAllRefs().values()) {
+				assertEquals(r.getObjectId(), dst.resolve(r.getName()));
+				ow.markStart(ow.parseAny(r.getObjectId()));
+			}
+			ow.checkConnectivity();
+		} finally {
+			d.stop();
+		}
+	}
+
+	private List<ObjectId> allRefs() {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (final Ref ref : db.getAllRefs().values())
+			r.add(ref.getObjectId());
+		return r;
+	}
+
+	private static byte[] read(final File f) throws IOException {
+		final byte[] r = new byte[(int) f.length()];
+		final FileInputStream in = new FileInputStream(f);
+		try {
+			int p = 0;
+			while (p < r.length) {
+				final int n = in.read(r, p, r.length - p);
+				if (n < 0)
+					throw new IOException("Short read of " + f);
+				p += n;
+			}
+		} finally {
+			in.close();
+		}
+		return r;
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.RevWalkException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class CommitGraphTest extends RepositoryTestCase {
+	public void testNoGraphByDefault() {
+		assertNull(db.getCommitGraph());
+	}
+
+	public void testWriteAndRead() throws IOException {
+		final Map<ObjectId, RevCommit> expect = walkAll(false);
+		final int cnt = new CommitGraphWriter(db).write();
+		assertEquals(expect.size(), cnt);
+
+		final CommitGraph graph = db.getCommitGraph();
+		assertNotNull(graph);
+		assertEquals(cnt, graph.getCommitCount());
+
+		final MutableObjectId id = new MutableObjectId();
+		for (int pos = 0; pos < cnt; pos++) {
+			graph.copyObjectId(pos, id);
+			final RevCommit c = expect.get(id.toObjectId());
+			assertNotNull(c);
+			assertEquals(pos, graph.findPosition(c));
+
+			graph.copyTreeId(pos, id);
+			assertEquals(c.getTree().copy(), id.toObjectId());
+			assertEquals(c.getCommitTime(), graph.getCommitTime(pos));
+			assertEquals(c.getParentCount(), graph.getParentCount(pos));
+
+			int max = 0;
+			for (int n = 0; n < c.getParentCount(); n++) {
+				final int p = graph.getParent(pos, n);
+				graph.copyObjectId(p, id);
+				assertEquals(c.getParent(n).copy(), id.toObjectId());
+				max = Math.max(max, graph.getGeneration(p));
+			}
+			assertEquals(max + 1, graph.getGeneration(pos));
+		}
+	}
+
+	public void testWalkMatchesWithoutGraph() throws IOException {
+		final Map<ObjectId, RevCommit> expect = walkAll(false);
+		new CommitGraphWriter(db).write();
+		final Map<ObjectId, RevCommit> actual = walkAll(true);
+		assertEquals(expect.size(), actual.size());
+
+		for (final RevCommit e : expect.values()) {
+			final RevCommit a = actual.get(e.copy());
+			assertNotNull(a);
+			assertEquals(e.getTree().copy(), a.getTree().copy());
+			assertEquals(e.getCommitTime(), a.getCommitTime());
+			assertEquals(e.getParentCount(), a.getParentCount());
+			for (int n = 0; n < e.getParentCount(); n++)
+				assertEquals(e.getParent(n).copy(), a.getParent(n).copy());
+			assertEquals(e.getFullMessage(), a.getFullMessage());
+			assertEquals(e.getAuthorIdent(), a.getAuthorIdent());
+		}
+	}
+
+	public void testBodyIsReadLazily() throws IOException {
+		final Commit c = new Commit(db);
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("graph only\n");
+		c.setTreeId(new ObjectWriter(db).writeTree(new Tree(db)));
+		c.setParentIds(new ObjectId[] { db.resolve("refs/heads/master") });
+		c.commit();
+		final RefUpdate ru = db.updateRef("refs/heads/graph");
+		ru.setNewObjectId(c.getCommitId());
+		ru.forceUpdate();
+		new CommitGraphWriter(db).write();
+		assertTrue(db.toFile(c.getCommitId()).delete());
+
+		final RevWalk rw = new RevWalk(db);
+		final RevCommit r = rw.parseCommit(c.getCommitId());
+		assertEquals(c.getTreeId(), r.getTree().copy());
+		assertEquals(1, r.getParentCount());
+		assertEquals(c.getParentIds()[0], r.getParent(0).copy());
+		assertEquals(jcommitter.getWhen().getTime() / 1000, r
+				.getCommitTime());
+		try {
+			r.getFullMessage();
+			fail("body read from missing object");
+		} catch (RevWalkException e) {
+			assertTrue(e.getCause() instanceof MissingObjectException);
+		}
+	}
+
+	public void testOctopusMerge() throws IOException {
+		final ObjectId[] parents = new ObjectId[] {
+				db.resolve("refs/heads/a"), db.resolve("refs/heads/b"),
+				db.resolve("refs/heads/c") };
+		final Commit c = new Commit(db);
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("octopus\n");
+		c.setTreeId(new ObjectWriter(db).writeTree(new Tree(db)));
+		c.setParentIds(parents);
+		c.commit();
+		final RefUpdate ru = db.updateRef("refs/heads/octopus");
+		ru.setNewObjectId(c.getCommitId());
+		ru.forceUpdate();
+		new CommitGraphWriter(db).write();
+
+		final RevCommit r = new RevWalk(db).parseCommit(c.getCommitId());
+		assertEquals(parents.length, r.getParentCount());
+		for (int n = 0; n < parents.length; n++)
+			assertEquals(parents[n], r.getParent(n).copy());
+	}
+
+	public void testReloadAndDisable() throws IOException {
+		new CommitGraphWriter(db).write();
+		final CommitGraph first = db.getCommitGraph();
+		assertNotNull(first);
+		assertSame(first, db.getCommitGraph());
+
+		final File file = new File(db.getObjectsDirectory(),
+				CommitGraph.FILE_NAME);
+		assertTrue(file.delete());
+		assertNull(db.getCommitGraph());
+
+		new CommitGraphWriter(db).write();
+		assertNotNull(db.getCommitGraph());
+		db.getConfig().setBoolean("core", null, "commitgraph", false);
+		db.getConfig().save();
+		db.getConfig().load();
+		assertNull(db.getCommitGraph());
+	}
+
+	private Map<ObjectId, RevCommit> walkAll(final boolean useGraph)
+			throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setUseCommitGraph(useGraph);
+		for (final Ref r : db.getAllRefs().values()) {
+			try {
+				rw.markStart(rw.parseCommit(r.getObjectId()));
+			} catch (IncorrectObjectTypeException notCommit) {
+				// Skip tags pointing at trees or blobs.
+			}
+		}
+		final Map<ObjectId, RevCommit> all = new HashMap<ObjectId, RevCommit>();
+		RevCommit c;
+		while ((c = rw.next()) != null)
+			all.put(c.copy(), c);
+		return all;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class DeltaBaseCacheTest extends TestCase {
+	private WindowedFile packA;
+
+	private WindowedFile packB;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		packA = new WindowedFile(new File("a.pack"));
+		packB = new WindowedFile(new File("b.pack"));
+
+		// Drop whatever earlier tests left behind.
+		//
+		DeltaBaseCache.reconfigure(0);
+		DeltaBaseCache.reconfigure(4096);
+		assertEquals(0, DeltaBaseCache.getOpenByteCount());
+	}
+
+	protected void tearDown() throws Exception {
+		DeltaBaseCache.purge(packA);
+		DeltaBaseCache.purge(packB);
+		DeltaBaseCache.reconfigure(DeltaBaseCache.DEFAULT_LIMIT);
+		super.tearDown();
+	}
+
+	public void testStoreAndGet() {
+		final byte[] data = new byte[100];
+		final long hits = DeltaBaseCache.getHitCount();
+		final long misses = DeltaBaseCache.getMissCount();
+
+		assertNull(DeltaBaseCache.get(packA, 12));
+		DeltaBaseCache.store(packA, 12, data, Constants.OBJ_BLOB);
+		final DeltaBaseCache.Entry e = DeltaBaseCache.get(packA, 12);
+		assertNotNull(e);
+		assertSame(data, e.data);
+		assertEquals(Constants.OBJ_BLOB, e.type);
+		assertNull(DeltaBaseCache.get(packB, 12));
+		assertNull(DeltaBaseCache.get(packA, 13));
+
+		assertEquals(hits + 1, DeltaBaseCache.getHitCount());
+		assertEquals(misses + 3, DeltaBaseCache.getMissCount());
+		assertEquals(100, DeltaBaseCache.getOpenByteCount());
+	}
+
+	public void testReplace() {
+		DeltaBaseCache.store(packA, 12, new byte[100], Constants.OBJ_BLOB);
+		DeltaBaseCache.store(packA, 12, new byte[200], Constants.OBJ_TREE);
+		assertEquals(200, DeltaBaseCache.getOpenByteCount());
+		assertEquals(Constants.OBJ_TREE, DeltaBaseCache.get(packA, 12).type);
+	}
+
+	public void testTooLarge() {
+		assertTrue(DeltaBaseCache.canCache(4096));
+		assertFalse(DeltaBaseCache.canCache(4097));
+		DeltaBaseCache.store(packA, 12, new byte[4097], Constants.OBJ_BLOB);
+		assertNull(DeltaBaseCache.get(packA, 12));
+		assertEquals(0, DeltaBaseCache.getOpenByteCount());
+	}
+
+	public void testEvictsLeastRecentlyUsed() {
+		final long evicted = DeltaBaseCache.getEvictionCount();
+		DeltaBaseCache.store(packA, 1, new byte[1000], Constants.OBJ_BLOB);
+		DeltaBaseCache.store(packA, 2, new byte[1000], Constants.OBJ_BLOB);
+		DeltaBaseCache.store(packB, 3, new byte[1000], Constants.OBJ_BLOB);
+		DeltaBaseCache.store(packB, 4, new byte[1000], Constants.OBJ_BLOB);
+		assertNotNull(DeltaBaseCache.get(packA, 1));
+
+		DeltaBaseCache.store(packA, 5, new byte[1000], Constants.OBJ_BLOB);
+		assertEquals(evicted + 1, DeltaBaseCache.getEvictionCount());
+		assertEquals(4000, DeltaBaseCache.getOpenByteCount());
+		assertNull(DeltaBaseCache.get(packA, 2));
+		assertNotNull(DeltaBaseCache.get(packA, 1));
+		assertNotNull(DeltaBaseCache.get(packB, 3));
+		assertNotNull(DeltaBaseCache.get(packB, 4));
+		assertNotNull(DeltaBaseCache.get(packA, 5));
+	}
+
+	public void testPurge() {
+		for (int i = 0; i < 20; i++) {
+			DeltaBaseCache.store(packA, i, new byte[100], Constants.OBJ_BLOB);
+			DeltaBaseCache.store(packB, i, new byte[100], Constants.OBJ_BLOB);
+		}
+		DeltaBaseCache.purge(packA);
+		assertEquals(2000, DeltaBaseCache.getOpenByteCount());
+		for (int i = 0; i < 20; i++) {
+			assertNull(DeltaBaseCache.get(packA, i));
+			assertNotNull(DeltaBaseCache.get(packB, i));
+		}
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final Thread[] threads = new Thread[4];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < threads.length; t++) {
+			final WindowedFile pack = t % 2 == 0 ? packA : packB;
+			final int first = t * 1000;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 5000; i++) {
+							final long pos = first + (i % 100);
+							final DeltaBaseCache.Entry e;
+							e = DeltaBaseCache.get(pack, pos);
+							if (e == null) {
+								final byte[] d = new byte[(int) (pos % 50)];
+								DeltaBaseCache.store(pack, pos, d,
+										Constants.OBJ_BLOB);
+							} else
+								assertEquals(pos % 50, e.data.length);
+						}
+					} catch (Throwable err) {
+						synchronized (failure) {
+							failure[0] = err;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+		if (failure[0] != null)
+			throw new Exception(failure[0]);
+		assertTrue(DeltaBaseCache.getOpenByteCount() <= 4096);
+	}
+}
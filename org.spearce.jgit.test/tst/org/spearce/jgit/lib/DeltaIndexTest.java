@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DeltaIndexTest extends TestCase {
+	private Random rng;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		rng = new Random(getName().hashCode());
+	}
+
+	public void testInsertOnly() {
+		final byte[] src = bytes(64);
+		final byte[] res = bytes(300);
+		assertDelta(src, res);
+	}
+
+	public void testTinyResult() {
+		final byte[] src = bytes(64);
+		assertDelta(src, new byte[] { 1, 2, 3 });
+		assertDelta(src, new byte[0]);
+	}
+
+	public void testTinySource() {
+		assertDelta(new byte[] { 1, 2, 3 }, bytes(100));
+		assertDelta(new byte[0], bytes(100));
+	}
+
+	public void testIdentical() {
+		final byte[] src = bytes(1000);
+		final byte[] delta = assertDelta(src, src);
+		// Two header varints of 2 bytes each, plus one copy of 4 bytes.
+		assertTrue(delta.length <= 8);
+	}
+
+	public void testInsertInMiddle() {
+		final byte[] src = bytes(4096);
+		final byte[] res = concat(sub(src, 0, 1000), bytes(10), sub(
+				src, 1000, 3096));
+		final byte[] delta = assertDelta(src, res);
+		assertTrue(delta.length < 40);
+	}
+
+	public void testDeleteAndMove() {
+		final byte[] src = bytes(4096);
+		final byte[] res = concat(sub(src, 2048, 1024), sub(src, 0, 1500),
+				sub(src, 3500, 596));
+		final byte[] delta = assertDelta(src, res);
+		assertTrue(delta.length < 40);
+	}
+
+	public void testUnalignedMatch() {
+		final byte[] src = bytes(1024);
+		final byte[] res = concat(bytes(7), sub(src, 3, 1000));
+		final byte[] delta = assertDelta(src, res);
+		assertTrue(delta.length < 30);
+	}
+
+	public void testLargeCopy() {
+		final byte[] src = bytes(200 * 1024);
+		final byte[] res = concat(src, bytes(5));
+		assertDelta(src, res);
+	}
+
+	public void testRepetitiveSource() {
+		final byte[] src = new byte[8192];
+		Arrays.fill(src, (byte) 'a');
+		final byte[] res = concat(sub(src, 0, 5000), bytes(20), sub(
+				src, 0, 5000));
+		assertDelta(src, res);
+	}
+
+	public void testLimit() {
+		final byte[] src = bytes(1024);
+		final byte[] res = bytes(1024);
+		final DeltaIndex idx = new DeltaIndex(src);
+		assertNull(idx.encode(res, 100));
+		assertNotNull(idx.encode(res, 2000));
+	}
+
+	private static byte[] assertDelta(final byte[] src, final byte[] res) {
+		final byte[] delta = new DeltaIndex(src).encode(res, 0);
+		assertNotNull(delta);
+		assertTrue(Arrays.equals(res, BinaryDelta.apply(src, delta)));
+		return delta;
+	}
+
+	private byte[] bytes(final int cnt) {
+		final byte[] r = new byte[cnt];
+		rng.nextBytes(r);
+		return r;
+	}
+
+	private static byte[] sub(final byte[] b, final int off, final int len) {
+		final byte[] r = new byte[len];
+		System.arraycopy(b, off, r, 0, len);
+		return r;
+	}
+
+	private static byte[] concat(final byte[]... parts) {
+		int n = 0;
+		for (final byte[] p : parts)
+			n += p.length;
+		final byte[] r = new byte[n];
+		n = 0;
+		for (final byte[] p : parts) {
+			System.arraycopy(p, 0, r, n, p.length);
+			n += p.length;
+		}
+		return r;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.spearce.jgit.util.NB;
+
+public class EWAHTest extends TestCase {
+	public void testEmpty() throws Exception {
+		assertRoundTrip(new BitSet(), 0);
+		assertRoundTrip(new BitSet(), 1000);
+	}
+
+	public void testSingleBitLayout() throws Exception {
+		final BitSet b = new BitSet();
+		b.set(0);
+		final byte[] raw = EWAH.encode(b, 1);
+		assertEquals(4 + 4 + 2 * 8 + 4, raw.length);
+		assertEquals(1, NB.decodeInt32(raw, 0));
+		assertEquals(2, NB.decodeInt32(raw, 4));
+		assertEquals(1L << 33, NB.decodeUInt64(raw, 8));
+		assertEquals(1L, NB.decodeUInt64(raw, 16));
+		assertEquals(0, NB.decodeInt32(raw, 24));
+		assertRoundTrip(b, 1);
+	}
+
+	public void testRuns() throws Exception {
+		final BitSet b = new BitSet();
+		b.set(0, 64 * 10);
+		b.set(64 * 20 + 3);
+		b.set(64 * 30, 64 * 50 + 17);
+		assertRoundTrip(b, 64 * 60);
+
+		// Long runs must compress to a handful of words.
+		assertTrue(EWAH.encode(b, 64 * 60).length < 8 * 10);
+	}
+
+	public void testOnesToEnd() throws Exception {
+		final BitSet b = new BitSet();
+		b.set(0, 1000);
+		assertRoundTrip(b, 1000);
+	}
+
+	public void testRandom() throws Exception {
+		final Random rng = new Random(getName().hashCode());
+		for (int n = 0; n < 50; n++) {
+			final int bitCount = 1 + rng.nextInt(5000);
+			final BitSet b = new BitSet();
+			for (int i = 0; i < bitCount; i++) {
+				if (rng.nextInt(n % 5 + 2) == 0)
+					b.set(i);
+			}
+			assertRoundTrip(b, bitCount);
+		}
+	}
+
+	private static void assertRoundTrip(final BitSet b, final int bitCount)
+			throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EWAH.write(b, bitCount, out);
+		out.write(42);
+
+		final ByteArrayInputStream in = new ByteArrayInputStream(out
+				.toByteArray());
+		final byte[] raw = EWAH.read(in);
+		assertTrue(Arrays.equals(EWAH.encode(b, bitCount), raw));
+		assertEquals(42, in.read());
+		assertEquals(b, EWAH.decode(raw));
+	}
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheBuilder;
+import org.spearce.jgit.dircache.DirCacheEntry;
+
+public class GCTest extends RepositoryTestCase {
+	public void testRepackToOnePack() throws IOException {
+		final List<ObjectId> tips = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			tips.add(r.getObjectId());
+		assertTrue(db.packs().length > 1);
+
+		final PackFile pack = new GC(db).gc();
+		assertNotNull(pack);
+		assertEquals(1, db.packs().length);
+		assertSame(pack, db.packs()[0]);
+		assertNotNull(pack.getBitmapIndex());
+		assertNotNull(pack.getCachedPack());
+		for (final ObjectId id : tips)
+			assertTrue(pack.hasObject(id));
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		assertEquals(4, packDir.list().length);
+	}
+
+	public void testRepackedObjectsCanBeReused() throws IOException {
+		final PackFile pack = new GC(db).gc();
+		final byte[] buf = new byte[8192];
+		int cnt = 0;
+		for (final PackIndex.MutableEntry e : pack) {
+			final ObjectId id = e.toObjectId();
+			for (final PackedObjectLoader ldr : db.openObjectInAllPacks(id,
+					new WindowCursor())) {
+				// Checks the CRC-32 recorded in the new index.
+				ldr.copyRawData(new ByteArrayOutputStream(), buf);
+				cnt++;
+			}
+		}
+		assertEquals(pack.getObjectCount(), cnt);
+	}
+
+	public void testKeptPackSurvives() throws IOException {
+		final File victim = db.packs()[0].getPackFile();
+		final String base = victim.getPath().substring(0,
+				victim.getPath().length() - 5);
+		new File(base + ".keep").createNewFile();
+
+		new GC(db).gc();
+		assertTrue(victim.isFile());
+		assertTrue(new File(base + ".idx").isFile());
+		assertEquals(2, db.packs().length);
+	}
+
+	public void testPackRefs() throws IOException {
+		final ObjectId id = db.resolve("refs/heads/master");
+		final RefUpdate ru = db.updateRef("refs/heads/loose");
+		ru.setNewObjectId(id);
+		ru.forceUpdate();
+		final File loose = new File(trash_git, "refs/heads/loose");
+		assertTrue(loose.isFile());
+
+		final GC gc = new GC(db);
+		assertTrue(gc.getStatistics().getNumberOfLooseRefs() > 0);
+		gc.packRefs();
+		assertFalse(loose.exists());
+		assertEquals(0, gc.getStatistics().getNumberOfLooseRefs());
+		assertEquals(id, db.resolve("refs/heads/loose"));
+		assertEquals(Ref.Storage.PACKED, db.getAllRefs().get(
+				"refs/heads/loose").getStorage());
+		assertEquals("refs/heads/master", db.getFullBranch());
+	}
+
+	public void testPackRefsSkipsDeletedRef() throws IOException {
+		final RefUpdate ru = db.updateRef("refs/heads/loose");
+		ru.setNewObjectId(db.resolve("refs/heads/master"));
+		ru.forceUpdate();
+		final Ref stale = db.getAllRefs().get("refs/heads/loose");
+
+		final RefUpdate del = db.updateRef("refs/heads/loose");
+		del.setForceUpdate(true);
+		assertEquals(RefUpdate.Result.FORCED, del.delete());
+		db.getRefDatabase().pack(Collections.singletonList(stale));
+		assertNull(db.resolve("refs/heads/loose"));
+		assertNull(db.getAllRefs().get("refs/heads/loose"));
+	}
+
+	public void testPackRefsSkipsMovedRef() throws IOException {
+		final ObjectId master = db.resolve("refs/heads/master");
+		final ObjectId other = db.resolve("refs/heads/master^");
+		final RefUpdate ru = db.updateRef("refs/heads/loose");
+		ru.setNewObjectId(master);
+		ru.forceUpdate();
+		final Ref stale = db.getAllRefs().get("refs/heads/loose");
+
+		final RefUpdate mv = db.updateRef("refs/heads/loose");
+		mv.setNewObjectId(other);
+		mv.forceUpdate();
+		db.getRefDatabase().pack(Collections.singletonList(stale));
+		final File loose = new File(trash_git, "refs/heads/loose");
+		assertTrue(loose.isFile());
+		assertEquals(other, db.resolve("refs/heads/loose"));
+		assertEquals(Ref.Storage.LOOSE, db.getAllRefs().get(
+				"refs/heads/loose").getStorage());
+
+		// Nothing may have been packed for it, not even the stale value.
+		//
+		assertTrue(loose.delete());
+		final Repository fresh = new Repository(db.getDirectory());
+		try {
+			assertNull(fresh.resolve("refs/heads/loose"));
+		} finally {
+			fresh.close();
+		}
+	}
+
+	public void testPrune() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final ObjectId young = ow.writeBlob(Constants.encode("young\n"));
+		final ObjectId old = ow.writeBlob(Constants.encode("old\n"));
+		final File oldFile = db.toFile(old);
+		oldFile.setLastModified(System.currentTimeMillis()
+				- GC.DEFAULT_EXPIRE_AGE - 60 * 1000);
+
+		final Tree t = new Tree(db);
+		t.addFile("reachable").setId(
+				ow.writeBlob(Constants.encode("reachable\n")));
+		final Commit c = new Commit(db);
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("gc me\n");
+		c.setTreeId(ow.writeTree(t));
+		c.commit();
+		final RefUpdate ru = db.updateRef("refs/heads/gc");
+		ru.setNewObjectId(c.getCommitId());
+		ru.forceUpdate();
+
+		// The test packs hold unreachable objects too; age them so the
+		// repack drops those instead of writing them out loose.
+		//
+		for (final PackFile p : db.packs())
+			p.getPackFile().setLastModified(oldFile.lastModified());
+
+		final GC gc = new GC(db);
+		assertEquals(5, gc.getStatistics().getNumberOfLooseObjects());
+		gc.gc();
+		assertEquals(1, gc.getStatistics().getNumberOfLooseObjects());
+		assertTrue(db.toFile(young).isFile());
+		assertFalse(oldFile.exists());
+		assertFalse(db.hasObject(old));
+		assertTrue(db.packs()[0].hasObject(c.getCommitId()));
+		assertNotNull(db.mapCommit(c.getCommitId()));
+	}
+
+	public void testUnreachablePackedObjectsKept() throws IOException {
+		final List<ObjectId> unreachable = new ArrayList<ObjectId>();
+		final long modified = System.currentTimeMillis() - 60 * 1000;
+		for (final PackFile p : db.packs()) {
+			p.getPackFile().setLastModified(modified);
+			for (final PackIndex.MutableEntry e : p)
+				unreachable.add(e.toObjectId());
+		}
+
+		final PackFile pack = new GC(db).gc();
+		int loose = 0;
+		for (final ObjectId id : unreachable) {
+			if (pack.hasObject(id))
+				continue;
+			final File f = db.toFile(id);
+			assertTrue(f.isFile());
+			assertEquals(modified / 1000, f.lastModified() / 1000);
+			assertNotNull(db.openObject(id));
+			loose++;
+		}
+		assertTrue(loose > 0);
+	}
+
+	public void testIndexedBlobIsPacked() throws IOException {
+		final ObjectId id = new ObjectWriter(db).writeBlob(Constants
+				.encode("only in the index\n"));
+		final DirCache dc = DirCache.lock(db);
+		final DirCacheBuilder b = dc.builder();
+		final DirCacheEntry e = new DirCacheEntry("staged");
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setObjectId(id);
+		b.add(e);
+		assertTrue(b.commit());
+
+		final PackFile pack = new GC(db).gc();
+		assertTrue(pack.hasObject(id));
+		assertFalse(db.toFile(id).exists());
+		assertNotNull(db.openObject(id));
+
+		// The staged blob is reachable from no ref, so the pack must not
+		// be served to clients as the complete history of its tips.
+		//
+		assertNull(pack.getCachedPack());
+		final String base = pack.getPackFile().getPath().substring(0,
+				pack.getPackFile().getPath().length() - 5);
+		assertFalse(new File(base + ".tips").exists());
+	}
+
+	public void testReflogEntryIsPacked() throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final Tree t = new Tree(db);
+		t.addFile("dropped").setId(
+				ow.writeBlob(Constants.encode("dropped\n")));
+		final Commit c = new Commit(db);
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("reset away\n");
+		c.setTreeId(ow.writeTree(t));
+		c.commit();
+
+		final ObjectId master = db.resolve("refs/heads/master");
+		RefUpdate ru = db.updateRef("refs/heads/master");
+		ru.setNewObjectId(c.getCommitId());
+		ru.forceUpdate();
+		ru = db.updateRef("refs/heads/master");
+		ru.setNewObjectId(master);
+		ru.forceUpdate();
+
+		final GC gc = new GC(db);
+		gc.setExpireAge(0);
+		final PackFile pack = gc.gc();
+		assertTrue(pack.hasObject(c.getCommitId()));
+		assertFalse(db.toFile(c.getCommitId()).exists());
+		assertNotNull(db.mapCommit(c.getCommitId()));
+		assertNull(pack.getCachedPack());
+	}
+
+	public void testReaderSurvivesRepack() throws IOException {
+		final ObjectId id = db.resolve("refs/heads/master");
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			assertNotNull(other.openObject(id));
+			new GC(db).gc();
+
+			// Open files survive deletion; close them so the reader
+			// has to reopen a pack that is gone.
+			//
+			for (final PackFile p : other.packs())
+				p.close();
+			final ObjectLoader ldr = other.openObject(id);
+			assertNotNull(ldr);
+			assertEquals(Constants.OBJ_COMMIT, ldr.getType());
+			assertEquals(1, other.packs().length);
+		} finally {
+			other.close();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+public class LooseObjectCacheTest extends RepositoryTestCase {
+	public void testMissingRemembered() throws IOException {
+		final ObjectId id = blobId("never written\n");
+		assertFalse(db.hasObject(id));
+		assertNull(db.openObject(id));
+	}
+
+	public void testWriterClearsMissing() throws IOException {
+		final ObjectId id = blobId("written later\n");
+		assertFalse(db.hasObject(id));
+		assertEquals(id, new ObjectWriter(db).writeBlob(Constants
+				.encode("written later\n")));
+		assertTrue(db.hasObject(id));
+		assertNotNull(db.openObject(id));
+	}
+
+	public void testOtherWriterSeenAfterRescan() throws IOException {
+		final ObjectId id = blobId("from elsewhere\n");
+		assertFalse(db.hasObject(id));
+
+		final Repository other = new Repository(db.getDirectory());
+		try {
+			new ObjectWriter(other).writeBlob(Constants
+					.encode("from elsewhere\n"));
+		} finally {
+			other.close();
+		}
+		assertTrue(db.toFile(id).isFile());
+		assertFalse(db.hasObject(id));
+
+		db.rescanIfModified();
+		assertTrue(db.hasObject(id));
+	}
+
+	public void testDeletedObjectNotFound() throws IOException {
+		final ObjectId id = new ObjectWriter(db).writeBlob(Constants
+				.encode("short lived\n"));
+		assertTrue(db.hasObject(id));
+		assertTrue(db.toFile(id).delete());
+		assertFalse(db.hasObject(id));
+		assertNull(db.openObject(id));
+	}
+
+	public void testMissingBounded() {
+		final LooseObjectCache c = new LooseObjectCache(
+				new File[] { db.getObjectsDirectory() });
+		final MutableObjectId id = new MutableObjectId();
+		for (int i = 0; i < LooseObjectCache.MISSING_LIMIT; i++) {
+			id.w1 = i;
+			c.markMissing(id);
+		}
+		id.w1 = 0;
+		assertTrue(c.isMissing(id));
+
+		id.w1 = LooseObjectCache.MISSING_LIMIT;
+		c.markMissing(id);
+		assertTrue(c.isMissing(id));
+		id.w1 = 0;
+		assertFalse(c.isMissing(id));
+	}
+
+	public void testWriteForgetsOnlyThatObject() throws IOException {
+		final ObjectId a = blobId("first\n");
+		final ObjectId b = blobId("second\n");
+		final LooseObjectCache c = new LooseObjectCache(
+				new File[] { db.getObjectsDirectory() });
+		c.markMissing(a);
+		c.markMissing(b);
+		c.added(a);
+		assertFalse(c.isMissing(a));
+		assertTrue(c.isMissing(b));
+		c.markMissing(a);
+		assertTrue(c.isMissing(a));
+	}
+
+	public void testMissingExpires() throws Exception {
+		final ObjectId id = blobId("expires\n");
+		final LooseObjectCache c = new LooseObjectCache(
+				new File[] { db.getObjectsDirectory() }, 50);
+		c.markMissing(id);
+		assertTrue(c.isMissing(id));
+		Thread.sleep(100);
+		assertFalse(c.isMissing(id));
+	}
+
+	private ObjectId blobId(final String content) throws IOException {
+		final byte[] data = Constants.encode(content);
+		return new ObjectWriter(db).computeBlobSha1(data.length,
+				new ByteArrayInputStream(data));
+	}
+}
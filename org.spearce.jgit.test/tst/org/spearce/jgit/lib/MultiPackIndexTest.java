@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.transport.IndexPack;
+
+public class MultiPackIndexTest extends RepositoryTestCase {
+	private File midxFile;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		midxFile = new File(new File(db.getObjectsDirectory(), "pack"),
+				MultiPackIndex.FILE_NAME);
+	}
+
+	public void testCoversAllPacks() throws IOException {
+		db.writeMultiPackIndex();
+		final MultiPackIndex midx = MultiPackIndex.open(midxFile);
+
+		final PackFile[] packs = db.packs();
+		assertEquals(packs.length, midx.getPackCount());
+		final String[] names = midx.getPackNames().clone();
+		Arrays.sort(names);
+		assertTrue(Arrays.equals(names, midx.getPackNames()));
+
+		final Set<ObjectId> all = new HashSet<ObjectId>();
+		for (final PackFile p : packs) {
+			for (final PackIndex.MutableEntry e : p) {
+				final ObjectId id = e.toObjectId();
+				all.add(id);
+				final int pos = midx.findPosition(id);
+				assertTrue(pos >= 0);
+				assertEquals(id, midx.getObjectId(pos));
+			}
+		}
+		assertEquals(all.size(), midx.getObjectCount());
+		assertFalse(midx.hasObject(ObjectId
+				.fromString("0000000000000000000000000000000000000001")));
+	}
+
+	public void testLookupMatchesPacks() throws IOException {
+		db.writeMultiPackIndex();
+		final Repository r = new Repository(db.getDirectory());
+		try {
+			final WindowCursor curs = new WindowCursor();
+			for (final PackFile p : db.packs()) {
+				for (final PackIndex.MutableEntry e : p) {
+					final ObjectId id = e.toObjectId();
+					assertTrue(r.hasObject(id));
+					final ObjectLoader expect = p.get(curs, id);
+					final ObjectLoader actual = r.openObject(curs, id);
+					assertEquals(expect.getType(), actual.getType());
+					assertTrue(Arrays.equals(expect.getCachedBytes(), actual
+							.getCachedBytes()));
+				}
+			}
+			curs.release();
+		} finally {
+			r.close();
+		}
+	}
+
+	public void testIndexPackUpdatesIndex() throws IOException {
+		db.writeMultiPackIndex();
+		final int before = MultiPackIndex.open(midxFile).getPackCount();
+
+		final ObjectId blob = new ObjectWriter(db).writeBlob(Constants
+				.encode("not yet packed\n"));
+		final RevObject obj = new RevWalk(db).lookupAny(blob,
+				Constants.OBJ_BLOB);
+		final List<RevObject> toPack = new ArrayList<RevObject>();
+		toPack.add(obj);
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(toPack.iterator());
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		pw.writePack(buf);
+		final IndexPack ip = IndexPack.create(db, new ByteArrayInputStream(
+				buf.toByteArray()));
+		ip.index(NullProgressMonitor.INSTANCE);
+		ip.renameAndOpenPack();
+		db.toFile(blob).delete();
+
+		final MultiPackIndex midx = MultiPackIndex.open(midxFile);
+		assertEquals(before + 1, midx.getPackCount());
+		assertTrue(midx.hasObject(blob));
+		assertTrue(db.hasObject(blob));
+		assertEquals("not yet packed\n", new String(db.openObject(blob)
+				.getCachedBytes(), "UTF-8"));
+	}
+
+	public void testStaleIndexIgnored() throws IOException {
+		db.writeMultiPackIndex();
+		final PackFile victim = db.packs()[0];
+		final Set<ObjectId> gone = new HashSet<ObjectId>();
+		for (final PackIndex.MutableEntry e : victim)
+			gone.add(e.toObjectId());
+		final File packFile = victim.getPackFile();
+		final String base = packFile.getPath().substring(0,
+				packFile.getPath().length() - 5);
+		victim.close();
+		assertTrue(packFile.delete());
+		assertTrue(new File(base + ".idx").delete());
+		db.scanForPacks();
+
+		for (final PackFile p : db.packs()) {
+			for (final PackIndex.MutableEntry e : p)
+				assertTrue(db.openObject(e.toObjectId()) != null);
+		}
+
+		db.updateMultiPackIndex();
+		final MultiPackIndex midx = MultiPackIndex.open(midxFile);
+		assertEquals(db.packs().length, midx.getPackCount());
+		for (final ObjectId id : gone) {
+			boolean elsewhere = false;
+			for (final PackFile p : db.packs())
+				elsewhere |= p.hasObject(id);
+			assertEquals(elsewhere, midx.hasObject(id));
+		}
+	}
+
+	public void testLargeOffsets() throws IOException {
+		final List<PackIndex.MutableEntry> a = new ArrayList<PackIndex.MutableEntry>();
+		final List<PackIndex.MutableEntry> b = new ArrayList<PackIndex.MutableEntry>();
+		a.add(entry("0100000000000000000000000000000000000000", 12));
+		a.add(entry("8000000000000000000000000000000000000000", 0x80000000L));
+		b.add(entry("0100000000000000000000000000000000000000", 99));
+		b.add(entry("ff00000000000000000000000000000000000000", 0x123456789L));
+
+		final MultiPackIndexWriter w = new MultiPackIndexWriter();
+		w.addPack("pack-b.idx", a);
+		w.addPack("pack-a.idx", b);
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		w.write(buf);
+		final File f = new File(trash, "test-midx");
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(buf.toByteArray());
+		} finally {
+			out.close();
+		}
+
+		final MultiPackIndex midx = MultiPackIndex.open(f);
+		assertEquals(2, midx.getPackCount());
+		assertEquals("pack-a.idx", midx.getPackName(0));
+		assertEquals("pack-b.idx", midx.getPackName(1));
+		assertEquals(3, midx.getObjectCount());
+
+		int pos = find(midx, "0100000000000000000000000000000000000000");
+		assertEquals(1, midx.getPackId(pos));
+		assertEquals(12, midx.getOffset(pos));
+		pos = find(midx, "8000000000000000000000000000000000000000");
+		assertEquals(1, midx.getPackId(pos));
+		assertEquals(0x80000000L, midx.getOffset(pos));
+		pos = find(midx, "ff00000000000000000000000000000000000000");
+		assertEquals(0, midx.getPackId(pos));
+		assertEquals(0x123456789L, midx.getOffset(pos));
+	}
+
+	private static int find(final MultiPackIndex midx, final String id) {
+		final int pos = midx.findPosition(ObjectId.fromString(id));
+		assertTrue(pos >= 0);
+		return pos;
+	}
+
+	private static PackIndex.MutableEntry entry(final String id,
+			final long offset) {
+		final PackIndex.MutableEntry e = new PackIndex.MutableEntry();
+		e.idBuffer.fromString(id);
+		e.offset = offset;
+		return e;
+	}
+}
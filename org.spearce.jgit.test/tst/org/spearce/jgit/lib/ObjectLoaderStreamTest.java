@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class ObjectLoaderStreamTest extends RepositoryTestCase {
+	private Random rng;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		rng = new Random(getName().hashCode());
+	}
+
+	public void tearDown() throws Exception {
+		DeltaBaseCache.reconfigure(DeltaBaseCache.DEFAULT_LIMIT);
+		super.tearDown();
+	}
+
+	public void testLooseObject() throws Exception {
+		final byte[] data = randomLines(500);
+		final ObjectId id = new ObjectWriter(db).writeBlob(data);
+		final ObjectLoader ldr = db.openBlob(id);
+		assertEquals(Constants.OBJ_BLOB, ldr.getType());
+		assertEquals(data.length, ldr.getSize());
+		assertStream(data, ldr);
+		assertTrue(Arrays.equals(data, ldr.getCachedBytes()));
+	}
+
+	public void testLargeLooseObject() throws Exception {
+		db.getConfig().setInt("core", null, "streamfilethreshold", 1024);
+		db.getConfig().save();
+		db.getConfig().load();
+
+		final byte[] data = randomLines(2000);
+		final ObjectId id = new ObjectWriter(db).writeBlob(data);
+		final ObjectLoader ldr = db.openBlob(id);
+		assertEquals(Constants.OBJ_BLOB, ldr.getType());
+		assertEquals(data.length, ldr.getSize());
+		assertStream(data, ldr);
+		assertStream(data, ldr);
+		assertTrue(Arrays.equals(data, ldr.getCachedBytes()));
+	}
+
+	public void testLooseObjectFile() throws Exception {
+		final byte[] data = randomLines(500);
+		final ObjectId id = new ObjectWriter(db).writeBlob(data);
+		final ObjectLoader ldr = new UnpackedObjectLoader(db.toFile(id));
+		assertEquals(Constants.OBJ_BLOB, ldr.getType());
+		assertEquals(data.length, ldr.getSize());
+		assertStream(data, ldr);
+		assertTrue(Arrays.equals(data, ldr.getCachedBytes()));
+	}
+
+	public void testPackedDeltas() throws Exception {
+		final List<byte[]> versions = new ArrayList<byte[]>();
+		final List<RevObject> blobs = new ArrayList<RevObject>();
+		final PackFile pack = writeDeltaPack(versions, blobs);
+		final WindowCursor curs = new WindowCursor();
+		int deltas = 0;
+		for (int i = 0; i < blobs.size(); i++) {
+			final PackedObjectLoader ldr = pack.get(curs, blobs.get(i));
+			if (ldr.getDeltaBase() != null)
+				deltas++;
+			assertEquals(versions.get(i).length, ldr.getSize());
+			assertStream(versions.get(i), ldr);
+		}
+		curs.release();
+		pack.close();
+		assertTrue(deltas > 0);
+	}
+
+	public void testPackedDeltaTypeAndSizeWithoutInflate() throws Exception {
+		final List<byte[]> versions = new ArrayList<byte[]>();
+		final List<RevObject> blobs = new ArrayList<RevObject>();
+		final PackFile pack = writeDeltaPack(versions, blobs);
+		final WindowCursor curs = new WindowCursor();
+		int deltas = 0;
+		for (int i = blobs.size() - 1; i >= 0; i--) {
+			final PackedObjectLoader ldr = pack.get(curs, blobs.get(i));
+			if (ldr.getDeltaBase() != null)
+				deltas++;
+			assertEquals(Constants.OBJ_BLOB, ldr.getType());
+			assertEquals(versions.get(i).length, ldr.getSize());
+			assertNull(pack.readCache(ldr.getDataOffset()));
+		}
+
+		// A second pass answers from the memo, and must agree.
+		//
+		for (int i = 0; i < blobs.size(); i++) {
+			final PackedObjectLoader ldr = pack.get(curs, blobs.get(i));
+			assertEquals(Constants.OBJ_BLOB, ldr.getType());
+			assertTrue(Arrays.equals(versions.get(i), ldr.getCachedBytes()));
+		}
+		curs.release();
+		pack.close();
+		assertTrue(deltas > 0);
+	}
+
+	public void testDeepDeltaChain() throws Exception {
+		// Leave room in the delta base cache for several intermediates.
+		//
+		DeltaBaseCache.reconfigure(1024 * 1024);
+
+		final ObjectWriter ow = new ObjectWriter(db);
+		final RevWalk rw = new RevWalk(db);
+		final List<byte[]> versions = new ArrayList<byte[]>();
+		final List<RevObject> blobs = new ArrayList<RevObject>();
+		final StringBuilder text = new StringBuilder();
+		text.append(new String(randomLines(200), "UTF-8"));
+		for (int i = 0; i < 40; i++) {
+			text.append("line " + i + ": " + rng.nextLong() + "\n");
+			final byte[] data = Constants.encode(text.toString());
+			versions.add(data);
+			blobs.add(rw.lookupAny(ow.writeBlob(data), Constants.OBJ_BLOB));
+		}
+
+		final PackFile pack = writePack(blobs);
+		final WindowCursor curs = new WindowCursor();
+		final PackedObjectLoader deepest = pack.get(curs, blobs.get(0));
+		int depth = 0;
+		for (ObjectId b = deepest.getDeltaBase(); b != null; depth++)
+			b = pack.get(curs, b).getDeltaBase();
+		assertTrue(depth > DeltaPackedObjectLoader.CACHE_SPACING);
+
+		assertTrue(Arrays.equals(versions.get(0), deepest.getCachedBytes()));
+		int cached = 0;
+		for (int i = 1; i < blobs.size(); i++) {
+			final PackedObjectLoader ldr = pack.get(curs, blobs.get(i));
+			if (pack.readCache(ldr.getDataOffset()) != null)
+				cached++;
+		}
+		assertTrue(cached > 0);
+		assertTrue(cached < blobs.size() - 1);
+
+		for (int i = blobs.size() - 1; i >= 0; i--) {
+			final PackedObjectLoader ldr = pack.get(curs, blobs.get(i));
+			assertTrue(Arrays.equals(versions.get(i), ldr.getCachedBytes()));
+		}
+		curs.release();
+		pack.close();
+	}
+
+	private PackFile writeDeltaPack(final List<byte[]> versions,
+			final List<RevObject> blobs) throws IOException {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final RevWalk rw = new RevWalk(db);
+
+		// Each version swaps the halves of the previous one, so deltas
+		// copy from their base out of order.
+		//
+		byte[] data = randomLines(400);
+		for (int i = 0; i < 6; i++) {
+			versions.add(data);
+			blobs.add(rw.lookupAny(ow.writeBlob(data), Constants.OBJ_BLOB));
+
+			final byte[] next = new byte[data.length + 1];
+			final int half = data.length / 2;
+			System.arraycopy(data, half, next, 0, data.length - half);
+			next[data.length - half] = (byte) ('a' + i);
+			System.arraycopy(data, 0, next, data.length - half + 1, half);
+			data = next;
+		}
+		return writePack(blobs);
+	}
+
+	private PackFile writePack(final List<RevObject> blobs) throws IOException {
+		final File packFile = new File(trash, "stream.pack");
+		final File idxFile = new File(trash, "stream.idx");
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(blobs.iterator());
+		FileOutputStream out = new FileOutputStream(packFile);
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(idxFile);
+		try {
+			pw.writeIndex(out);
+		} finally {
+			out.close();
+		}
+		return new PackFile(idxFile, packFile);
+	}
+
+	private byte[] randomLines(final int cnt) {
+		final StringBuilder text = new StringBuilder();
+		for (int line = 0; line < cnt; line++)
+			text.append("line " + line + ": " + rng.nextLong() + "\n");
+		return Constants.encode(text.toString());
+	}
+
+	private static void assertStream(final byte[] expect, final ObjectLoader ldr)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InputStream in = ldr.openStream();
+		try {
+			final byte[] buf = new byte[1000];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				out.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		assertTrue(Arrays.equals(expect, out.toByteArray()));
+	}
+}
@@ -40,6 +40,7 @@
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -50,9 +51,12 @@
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.PackIndex.MutableEntry;
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevWalk;
 import org.spearce.jgit.transport.IndexPack;
@@ -98,6 +102,10 @@ public void testContructor() {
 		assertEquals(false, writer.isDeltaBaseAsOffset());
 		assertEquals(true, writer.isReuseDeltas());
 		assertEquals(true, writer.isReuseObjects());
+		assertEquals(true, writer.isDeltaCompress());
+		assertEquals(10, writer.getDeltaSearchWindowSize());
+		assertEquals(64 * 1024 * 1024, writer.getDeltaSearchMemoryLimit());
+		assertEquals(0, writer.getThreads());
 		assertEquals(0, writer.getObjectsNumber());
 	}
 
@@ -108,10 +116,18 @@ public void testModifySettings() {
 		writer.setDeltaBaseAsOffset(true);
 		writer.setReuseDeltas(false);
 		writer.setReuseObjects(false);
+		writer.setDeltaCompress(false);
+		writer.setDeltaSearchWindowSize(20);
+		writer.setDeltaSearchMemoryLimit(1024 * 1024);
+		writer.setThreads(3);
 
 		assertEquals(true, writer.isDeltaBaseAsOffset());
 		assertEquals(false, writer.isReuseDeltas());
 		assertEquals(false, writer.isReuseObjects());
+		assertEquals(false, writer.isDeltaCompress());
+		assertEquals(20, writer.getDeltaSearchWindowSize());
+		assertEquals(1024 * 1024, writer.getDeltaSearchMemoryLimit());
+		assertEquals(3, writer.getThreads());
 	}
 
 	/**
@@ -181,6 +197,7 @@ public void testIgnoreNonExistingObjects() throws IOException {
 	 */
 	public void testWritePack1() throws IOException {
 		writer.setReuseDeltas(false);
+		writer.setDeltaCompress(false);
 		writeVerifyPack1();
 	}
 
@@ -193,6 +210,7 @@ public void testWritePack1() throws IOException {
 	public void testWritePack1NoObjectReuse() throws IOException {
 		writer.setReuseDeltas(false);
 		writer.setReuseObjects(false);
+		writer.setDeltaCompress(false);
 		writeVerifyPack1();
 	}
 
@@ -258,6 +276,7 @@ public void testWritePack2DeltasCRC32Copy() throws IOException {
 	 */
 	public void testWritePack3() throws MissingObjectException, IOException {
 		writer.setReuseDeltas(false);
+		writer.setDeltaCompress(false);
 		final ObjectId forcedOrder[] = new ObjectId[] {
 				ObjectId.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"),
 				ObjectId.fromString("c59759f143fb1fe21c197981df75a7ee00290799"),
@@ -354,8 +373,285 @@ public void testWritePack4SizeThinVsNoThin() throws Exception {
 		assertTrue(sizePack4 > sizePack4Thin);
 	}
 
+	/**
+	 * Write loose revisions of the same file, which have no delta to reuse.
+	 * The delta search must find deltas between them, and the resulting pack
+	 * must be smaller than a pack of the whole objects.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltaCompression() throws Exception {
+		final List<RevObject> blobs = writeSimilarBlobs(8);
+		writer.setDeltaCompress(false);
+		createVerifyOpenPack(blobs.iterator());
+		final long sizeWhole = cos.getCount();
+		verifyBlobs(blobs);
+		tearDown();
+		setUp();
+
+		final List<RevObject> blobs2 = writeSimilarBlobs(8);
+		createVerifyOpenPack(blobs2.iterator());
+		final long sizeDeltas = cos.getCount();
+		verifyBlobs(blobs2);
+
+		assertTrue(sizeDeltas * 2 < sizeWhole);
+	}
+
+	/**
+	 * Delta chains computed by the search must respect the maximum depth.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltasDepth() throws Exception {
+		final List<RevObject> blobs = writeSimilarBlobs(12);
+		writer.setMaxDeltaDepth(2);
+		writer.setDeltaBaseAsOffset(true);
+		createVerifyOpenPack(blobs.iterator());
+		verifyBlobs(blobs);
+
+		int deltas = 0;
+		final WindowCursor curs = new WindowCursor();
+		for (final RevObject o : blobs) {
+			int depth = 0;
+			PackedObjectLoader ldr = pack.get(curs, o);
+			while (ldr instanceof DeltaOfsPackedObjectLoader) {
+				ldr = ((DeltaOfsPackedObjectLoader) ldr).getBaseLoader();
+				depth++;
+			}
+			assertTrue(depth <= 2);
+			if (depth > 0)
+				deltas++;
+		}
+		curs.release();
+		assertTrue(deltas > 0);
+	}
+
+	/**
+	 * The pack must not depend on the number of threads searching for deltas.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltasThreads() throws Exception {
+		final ObjectId head = writeHistory(600, 3);
+		final byte[] one = writePackWithThreads(head, 1);
+		final byte[] four = writePackWithThreads(head, 4);
+		assertTrue(Arrays.equals(one, four));
+
+		writer.setThreads(4);
+		createVerifyOpenPack(Collections.singleton(head), EMPTY_LIST_OBJECT,
+				false, false);
+		assertEquals(600 * 3 + 3 + 3, pack.getObjectCount());
+	}
+
+	/**
+	 * A small window memory limit must still produce a valid pack.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackDeltasMemoryLimit() throws Exception {
+		final List<RevObject> blobs = writeSimilarBlobs(12);
+		writer.setDeltaSearchMemoryLimit(20000);
+		createVerifyOpenPack(blobs.iterator());
+		verifyBlobs(blobs);
+	}
+
+	/**
+	 * The window memory limit must hold while the window is still filling,
+	 * including the memory used by delta indexes.
+	 *
+	 * @throws Exception
+	 */
+	public void testDeltaWindowMemoryLimit() throws Exception {
+		final List<RevObject> blobs = writeSimilarBlobs(8);
+		final ObjectToPack[] list = new ObjectToPack[blobs.size()];
+		for (int i = 0; i < list.length; i++)
+			list[i] = new ObjectToPack(blobs.get(i), Constants.OBJ_BLOB);
+
+		final long limit = 30000;
+		final WindowCursor curs = new WindowCursor();
+		final Deflater deflater = new Deflater();
+		try {
+			final DeltaWindow dw = new DeltaWindow(db, curs, deflater, 10, 50,
+					limit);
+			dw.search(new NullProgressMonitor() {
+				public void update(int completed) {
+					assertTrue(dw.getLoadedSize() <= limit);
+				}
+			}, list, 0, list.length);
+		} finally {
+			deflater.end();
+			curs.release();
+		}
+
+		int deltas = 0;
+		for (final ObjectToPack otp : list)
+			if (otp.isDeltaRepresentation())
+				deltas++;
+		assertTrue(deltas > 0);
+	}
+
+	/**
+	 * Objects above the big file threshold are streamed into the pack, and
+	 * are not delta compressed.
+	 *
+	 * @throws Exception
+	 */
+	public void testWritePackBigFileThreshold() throws Exception {
+		final List<RevObject> blobs = writeSimilarBlobs(5);
+		writer.setBigFileThreshold(1000);
+		createVerifyOpenPack(blobs.iterator());
+		verifyBlobs(blobs);
+
+		final WindowCursor curs = new WindowCursor();
+		for (final RevObject o : blobs)
+			assertEquals(Constants.OBJ_BLOB, pack.get(curs, o).getRawType());
+		curs.release();
+	}
+
+	/**
+	 * Write a bitmap index, then check that objects found through it are the
+	 * same as those found by walking the history.
+	 *
+	 * @throws Exception
+	 */
+	public void testWriteBitmapIndex() throws Exception {
+		final ObjectId head = writeHistory(20, 250);
+		writer.preparePack(Collections.singleton(head), EMPTY_LIST_OBJECT,
+				false, false);
+		writer.writePack(cos);
+
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		final String name = "pack-" + writer.computeName().name();
+		final File bitmapPack = new File(packDir, name + ".pack");
+		final File bitmapIdx = new File(packDir, name + ".idx");
+		FileOutputStream out = new FileOutputStream(bitmapPack);
+		try {
+			out.write(os.toByteArray());
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(bitmapIdx);
+		try {
+			writer.writeIndex(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(new File(packDir, name + ".bitmap"));
+		try {
+			writer.writeBitmapIndex(out);
+		} finally {
+			out.close();
+		}
+		db.openPack(bitmapPack, bitmapIdx);
+
+		final PackBitmapIndex bi = new PackFile(bitmapIdx, bitmapPack)
+				.getBitmapIndex();
+		assertNotNull(bi);
+		assertEquals(3, bi.getBitmapCount());
+		assertEquals(bi.getObjectCount(), bi.getBitmap(head).cardinality());
+		final int headPos = bi.findPosition(head);
+		assertEquals(Constants.OBJ_COMMIT, bi.getObjectType(headPos));
+		assertEquals(head, bi.getObject(headPos));
+
+		final RevWalk rw = new RevWalk(db);
+		RevCommit old = rw.parseCommit(head);
+		for (int i = 0; i < 120; i++)
+			old = rw.parseCommit(old.getParent(0));
+		assertNull(bi.getBitmap(old));
+
+		final List<ObjectId> none = EMPTY_LIST_OBJECT;
+		final List<ObjectId> heads = Collections.singletonList(head);
+		final List<ObjectId> olds = Collections.<ObjectId> singletonList(old);
+		assertBitmapsFindSameObjects(heads, none, false);
+		assertBitmapsFindSameObjects(olds, none, false);
+		assertBitmapsFindSameObjects(heads, olds, false);
+		assertBitmapsFindSameObjects(heads, olds, true);
+	}
+
 	// TODO: testWritePackDeltasCycle()
-	// TODO: testWritePackDeltasDepth()
+
+	private ObjectId writeHistory(final int files, final int revs)
+			throws Exception {
+		final ObjectWriter ow = new ObjectWriter(db);
+		ObjectId parent = null;
+		for (int r = 0; r < revs; r++) {
+			final Tree t = new Tree(db);
+			for (int f = 0; f < files; f++) {
+				final StringBuilder text = new StringBuilder();
+				for (int line = 0; line < 20; line++)
+					text.append("file " + f + " line " + line + "\n");
+				text.append("revision " + r + "\n");
+				t.addFile("file" + f).setId(
+						ow.writeBlob(Constants.encode(text.toString())));
+			}
+
+			final Commit c = new Commit(db);
+			c.setTreeId(ow.writeTree(t));
+			c.setParentIds(parent != null ? new ObjectId[] { parent }
+					: new ObjectId[0]);
+			c.setAuthor(new PersonIdent(jauthor, 1154236443000L + r, 0));
+			c.setCommitter(new PersonIdent(jcommitter, 1154236443000L + r, 0));
+			c.setMessage("revision " + r + "\n");
+			c.commit();
+			parent = c.getCommitId();
+		}
+		return parent;
+	}
+
+	private void assertBitmapsFindSameObjects(final List<ObjectId> want,
+			final List<ObjectId> have, final boolean thin) throws IOException {
+		final PackWriter walked = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		walked.setUseBitmaps(false);
+		walked.preparePack(want, have, thin, false);
+
+		final PackWriter bitmapped = new PackWriter(db,
+				NullProgressMonitor.INSTANCE);
+		bitmapped.setUseBitmaps(true);
+		bitmapped.preparePack(want, have, thin, false);
+
+		assertEquals(walked.getObjectsNumber(), bitmapped.getObjectsNumber());
+		assertEquals(walked.computeName(), bitmapped.computeName());
+	}
+
+	private byte[] writePackWithThreads(final ObjectId head, final int threads)
+			throws IOException {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setThreads(threads);
+		pw.preparePack(Collections.singleton(head), EMPTY_LIST_OBJECT, false,
+				false);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pw.writePack(out);
+		return out.toByteArray();
+	}
+
+	private List<RevObject> writeSimilarBlobs(final int cnt) throws Exception {
+		final ObjectWriter ow = new ObjectWriter(db);
+		final RevWalk rw = new RevWalk(db);
+		final List<RevObject> r = new ArrayList<RevObject>();
+		final StringBuilder text = new StringBuilder();
+		for (int line = 0; line < 200; line++)
+			text.append("line " + line + " of a file revised several times\n");
+		for (int i = 0; i < cnt; i++) {
+			text.insert(text.length() * i / cnt, "revision " + i + "\n");
+			r.add(rw.lookupAny(ow.writeBlob(Constants.encode(text.toString())),
+					Constants.OBJ_BLOB));
+		}
+		return r;
+	}
+
+	private void verifyBlobs(final List<RevObject> blobs) throws IOException {
+		final WindowCursor curs = new WindowCursor();
+		for (final RevObject o : blobs) {
+			final ObjectLoader ldr = pack.get(curs, o);
+			assertNotNull(ldr);
+			assertEquals(Constants.OBJ_BLOB, ldr.getType());
+			final ObjectId id = new ObjectWriter(db).computeBlobSha1(ldr
+					.getSize(), new ByteArrayInputStream(ldr.getCachedBytes()));
+			assertEquals(id, o.getId());
+		}
+		curs.release();
+	}
 
 	private void writeVerifyPack1() throws IOException {
 		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
@@ -381,6 +677,7 @@ private void writeVerifyPack1() throws IOException {
 
 	private void writeVerifyPack2(boolean deltaReuse) throws IOException {
 		writer.setReuseDeltas(deltaReuse);
+		writer.setDeltaCompress(deltaReuse);
 		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
 		interestings.add(ObjectId
 				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class RepositoryCacheTest extends RepositoryTestCase {
+	protected void tearDown() throws Exception {
+		RepositoryCache.clear();
+		RepositoryCache.setIdleTimeout(RepositoryCache.DEFAULT_IDLE_TIMEOUT);
+		super.tearDown();
+	}
+
+	public void testSharedInstance() throws Exception {
+		final Repository a = RepositoryCache.open(trash_git);
+		final Repository b = RepositoryCache.open(new File(trash, "./.git"));
+		assertSame(a, b);
+		assertNotSame(db, a);
+		assertEquals(3, a.getUseCount());
+		a.close();
+		b.close();
+		assertEquals(1, a.getUseCount());
+	}
+
+	public void testNotARepository() {
+		try {
+			RepositoryCache.open(new File(trash, "nothing-here"));
+			fail("opened a missing repository");
+		} catch (IOException err) {
+			// Expected.
+		}
+	}
+
+	public void testIdleRepositoryIsClosed() throws Exception {
+		RepositoryCache.setIdleTimeout(0);
+		final Repository a = RepositoryCache.open(trash_git);
+		a.close();
+		final Repository b = RepositoryCache.open(trash_git);
+		assertNotSame(a, b);
+		assertEquals(0, a.getUseCount());
+		b.close();
+	}
+
+	public void testIdleRepositoryIsClosedOnRelease() throws Exception {
+		RepositoryCache.setIdleTimeout(0);
+		final Repository a = RepositoryCache.open(trash_git);
+		assertEquals(2, a.getUseCount());
+		a.close();
+		assertEquals(0, a.getUseCount());
+	}
+
+	public void testBusyRepositoryStaysOpen() throws Exception {
+		RepositoryCache.setIdleTimeout(0);
+		final Repository a = RepositoryCache.open(trash_git);
+		final Repository b = RepositoryCache.open(trash_git);
+		assertSame(a, b);
+		a.close();
+		b.close();
+	}
+
+	public void testNewPackIsFound() throws Exception {
+		final Repository other = createNewEmptyRepo();
+		final Repository cached = RepositoryCache.open(other.getDirectory());
+		final ObjectId head = db.resolve(Constants.HEAD);
+		assertFalse(cached.hasObject(head));
+		cached.close();
+
+		final RevObject c = new RevWalk(db).parseAny(head);
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(Collections.singleton(c).iterator());
+		final File packDir = new File(other.getObjectsDirectory(), "pack");
+		final String base = "pack-" + pw.computeName().name();
+		FileOutputStream out = new FileOutputStream(new File(packDir, base
+				+ ".pack"));
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(new File(packDir, base + ".idx"));
+		try {
+			pw.writeIndex(out);
+		} finally {
+			out.close();
+		}
+
+		// Make sure the directory looks modified, even on file systems
+		// with a coarse timestamp resolution.
+		//
+		packDir.setLastModified(packDir.lastModified() + 2000);
+
+		final Repository again = RepositoryCache.open(other.getDirectory());
+		assertSame(cached, again);
+		assertTrue(again.hasObject(head));
+		again.close();
+	}
+
+	public void testConfigChangeIsLoaded() throws Exception {
+		final Repository a = RepositoryCache.open(trash_git);
+		assertEquals(0, a.getConfig().getInt("test", "value", 0));
+		a.close();
+
+		final RepositoryConfig cfg = new RepositoryConfig(null, new File(
+				trash_git, "config"));
+		cfg.load();
+		cfg.setInt("test", null, "value", 42);
+		cfg.save();
+		final File f = new File(trash_git, "config");
+		f.setLastModified(f.lastModified() + 2000);
+
+		final Repository b = RepositoryCache.open(trash_git);
+		assertSame(a, b);
+		assertEquals(42, b.getConfig().getInt("test", "value", 0));
+		b.close();
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.treewalk.TreeWalk;
+
+public class StatusScannerTest extends RepositoryTestCase {
+	private GitIndex index;
+
+	private ObjectId tree;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		index = new GitIndex(db);
+		index.add(trash, writeTrashFile("a", "a"));
+		index.add(trash, writeTrashFile("d/b", "b"));
+		index.add(trash, writeTrashFile("d/c", "c"));
+		index.add(trash, writeTrashFile("d/e/f", "f"));
+		index.add(trash, writeTrashFile("g/h", "h"));
+		index.write();
+		tree = DirCache.read(db).writeTree(new ObjectWriter(db));
+	}
+
+	public void testClean() throws IOException {
+		assertTrue(scan(4).isEmpty());
+	}
+
+	public void testAllKinds() throws IOException {
+		index.add(trash, writeTrashFile("i", "i"));
+		index.add(trash, writeTrashFile("a", "a changed"));
+		index.remove(trash, new File(trash, "d/c"));
+		assertTrue(new File(trash, "g/h").delete());
+		writeTrashFile("d/b", "b but longer");
+		writeTrashFile("new/x", "x");
+		index.write();
+
+		final Map<String, Set<String>> r = scan(4);
+		assertEquals(set("i"), r.get("added"));
+		assertEquals(set("a"), r.get("changed"));
+		assertEquals(set("d/c"), r.get("removed"));
+		assertEquals(set("g/h"), r.get("missing"));
+		assertEquals(set("d/b"), r.get("modified"));
+		assertEquals(set("d/c", "new/x"), r.get("untracked"));
+		assertEquals(6, r.size());
+		assertEquals(r, scan(1));
+	}
+
+	public void testStatChangeOnly() throws IOException {
+		final File b = new File(trash, "d/b");
+		b.setLastModified(b.lastModified() + 10000);
+		assertTrue(scan(4).isEmpty());
+
+		final File f = writeTrashFile("d/e/f", "F");
+		f.setLastModified(f.lastModified() + 10000);
+		final Map<String, Set<String>> r = scan(4);
+		assertEquals(set("d/e/f"), r.get("modified"));
+		assertEquals(1, r.size());
+	}
+
+	public void testUnchangedSubtreeIsNotRead() throws IOException {
+		// The cached trees are only valid once they have been written.
+		//
+		final DirCache dc = DirCache.read(db);
+		assertEquals(tree, dc.writeTree(new ObjectWriter(db)));
+
+		final TreeWalk tw = TreeWalk.forPath(db, "d",
+				new ObjectId[] { tree });
+		assertTrue(db.toFile(tw.getObjectId(0)).delete());
+		assertFalse(db.hasObject(tw.getObjectId(0)));
+
+		writeTrashFile("d/b", "b but longer");
+		final Map<String, Set<String>> r = new HashMap<String, Set<String>>();
+		final StatusScanner s = new StatusScanner(db, tree, dc);
+		s.setThreads(4);
+		s.scan(collect(r));
+		assertEquals(set("d/b"), r.get("modified"));
+		assertEquals(1, r.size());
+	}
+
+	public void testNoHead() throws IOException {
+		final Map<String, Set<String>> r = new HashMap<String, Set<String>>();
+		new StatusScanner(db, null, DirCache.read(db)).scan(collect(r));
+		assertEquals(set("a", "d/b", "d/c", "d/e/f", "g/h"), r.get("added"));
+		assertEquals(1, r.size());
+	}
+
+	private Map<String, Set<String>> scan(final int threads)
+			throws IOException {
+		final Map<String, Set<String>> r = new HashMap<String, Set<String>>();
+		final StatusScanner s = new StatusScanner(db, tree, DirCache.read(db));
+		s.setThreads(threads);
+		s.scan(collect(r));
+		return r;
+	}
+
+	private static StatusListener collect(final Map<String, Set<String>> r) {
+		return new StatusListener() {
+			public void added(final String path) {
+				add("added", path);
+			}
+
+			public void changed(final String path) {
+				add("changed", path);
+			}
+
+			public void removed(final String path) {
+				add("removed", path);
+			}
+
+			public void missing(final String path) {
+				add("missing", path);
+			}
+
+			public void modified(final String path) {
+				add("modified", path);
+			}
+
+			public void untracked(final String path) {
+				add("untracked", path);
+			}
+
+			private void add(final String kind, final String path) {
+				Set<String> s = r.get(kind);
+				if (s == null) {
+					s = new HashSet<String>();
+					r.put(kind, s);
+				}
+				assertTrue(s.add(path));
+			}
+		};
+	}
+
+	private static Set<String> set(final String... paths) {
+		final Set<String> s = new HashSet<String>();
+		for (final String p : paths)
+			s.add(p);
+		return s;
+	}
+}
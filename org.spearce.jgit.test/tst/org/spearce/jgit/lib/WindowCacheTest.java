@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class WindowCacheTest extends RepositoryTestCase {
+	private List<ObjectId> ids;
+
+	private List<byte[]> expect;
+
+	public void setUp() throws Exception {
+		super.setUp();
+
+		ids = new ArrayList<ObjectId>();
+		final File packDir = new File(db.getObjectsDirectory(), "pack");
+		for (final String n : packDir.list()) {
+			if (!n.endsWith(".idx"))
+				continue;
+			final String base = n.substring(0, n.length() - 4);
+			final PackFile p = new PackFile(new File(packDir, n), new File(
+					packDir, base + ".pack"));
+			for (final PackIndex.MutableEntry e : p)
+				ids.add(e.toObjectId());
+			p.close();
+		}
+
+		expect = new ArrayList<byte[]>(ids.size());
+		final WindowCursor curs = new WindowCursor();
+		for (final ObjectId id : ids)
+			expect.add(db.openObject(curs, id).getBytes());
+		curs.release();
+	}
+
+	public void testSingleThread() throws Exception {
+		// Windows are much smaller than the packs, so reading every
+		// object forces the cache to evict constantly.
+		//
+		WindowCache.reconfigure(16 * 1024, 4096, packedGitMMAP, 8192);
+		new Reader(0).run();
+	}
+
+	public void testConcurrentReaders() throws Exception {
+		WindowCache.reconfigure(16 * 1024, 4096, packedGitMMAP, 8192);
+		final Reader[] readers = new Reader[8];
+		for (int i = 0; i < readers.length; i++)
+			readers[i] = new Reader(i);
+		final Thread[] threads = new Thread[readers.length];
+		for (int i = 0; i < readers.length; i++) {
+			threads[i] = new Thread(readers[i]);
+			threads[i].start();
+		}
+		for (int i = 0; i < readers.length; i++) {
+			threads[i].join();
+			if (readers[i].failure != null)
+				throw readers[i].failure;
+		}
+	}
+
+	public void testReconfigureWhileReading() throws Exception {
+		final Reader r = new Reader(1);
+		final Thread t = new Thread(r);
+		t.start();
+		for (int i = 0; i < 10; i++) {
+			WindowCache.reconfigure(32 * 1024, (i & 1) == 0 ? 8192 : 4096,
+					packedGitMMAP, 8192);
+		}
+		t.join();
+		if (r.failure != null)
+			throw r.failure;
+	}
+
+	private class Reader implements Runnable {
+		private final int seed;
+
+		Exception failure;
+
+		Reader(final int seed) {
+			this.seed = seed;
+		}
+
+		public void run() {
+			final WindowCursor curs = new WindowCursor();
+			try {
+				for (int pass = 0; pass < 5; pass++) {
+					// Walk the objects with a different stride in each
+					// thread so they do not all want the same window.
+					//
+					final int n = ids.size();
+					for (int k = 0; k < n; k++) {
+						final int i = (k * (2 * seed + 1) + pass) % n;
+						final ObjectLoader ldr = db.openObject(curs, ids.get(i));
+						if (!Arrays.equals(expect.get(i), ldr.getBytes()))
+							throw new IOException("Wrong content for "
+									+ ids.get(i).name());
+					}
+				}
+			} catch (Exception e) {
+				failure = e;
+			} finally {
+				curs.release();
+			}
+		}
+	}
+}
@@ -124,4 +124,28 @@ public void testCheckingOutWithConflicts() throws IOException {
 		assertNull(index2.getEntry("bar/baz/qux/foo"));
 		assertNull(index2.getEntry("foo"));
 	}
+
+	public void testCheckoutWithThreads() throws IOException {
+		GitIndex index = new GitIndex(db);
+		for (int i = 0; i < 50; i++)
+			index.add(trash, writeTrashFile("d" + (i % 5) + "/f" + i, "f" + i));
+		Tree tree = db.mapTree(index.writeTree());
+		for (int i = 0; i < 5; i++)
+			recursiveDelete(new File(trash, "d" + i));
+
+		GitIndex index2 = new GitIndex(db);
+		WorkDirCheckout workDirCheckout = new WorkDirCheckout(db, trash,
+				index2, tree);
+		workDirCheckout.setThreads(4);
+		workDirCheckout.checkout();
+
+		for (int i = 0; i < 50; i++) {
+			String path = "d" + (i % 5) + "/f" + i;
+			File file = new File(trash, path);
+			assertEquals(1 + String.valueOf(i).length(), file.length());
+			GitIndex.Entry e = index2.getEntry(path);
+			assertNotNull(e);
+			assertFalse(e.isModified(trash, true));
+		}
+	}
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.MutableObjectId;
+
+public class DateRevQueueTest extends TestCase {
+	private int nextId;
+
+	public void testEmpty() {
+		final DateRevQueue q = new DateRevQueue();
+		assertNull(q.peek());
+		assertNull(q.next());
+		assertTrue(q.everbodyHasFlag(RevWalk.SEEN));
+		assertFalse(q.anybodyHasFlag(RevWalk.SEEN));
+	}
+
+	public void testSortedByTimeDescending() {
+		final Random rng = new Random(42);
+		final DateRevQueue q = new DateRevQueue();
+		final List<RevCommit> all = new ArrayList<RevCommit>();
+		for (int i = 0; i < 1000; i++) {
+			final RevCommit c = commit(rng.nextInt(100000));
+			all.add(c);
+			q.add(c);
+		}
+
+		int last = Integer.MAX_VALUE;
+		for (int i = 0; i < all.size(); i++) {
+			final RevCommit c = q.next();
+			assertNotNull(c);
+			assertTrue(c.commitTime <= last);
+			last = c.commitTime;
+		}
+		assertNull(q.next());
+	}
+
+	public void testStableForEqualTimes() {
+		final Random rng = new Random(7);
+		final DateRevQueue q = new DateRevQueue();
+		final List<RevCommit> all = new ArrayList<RevCommit>();
+		for (int i = 0; i < 500; i++) {
+			final RevCommit c = commit(rng.nextInt(10));
+			all.add(c);
+			q.add(c);
+		}
+
+		// Collections.sort is stable, so equal times keep insertion order.
+		Collections.sort(all, new Comparator<RevCommit>() {
+			public int compare(final RevCommit a, final RevCommit b) {
+				return b.commitTime - a.commitTime;
+			}
+		});
+		for (final RevCommit c : all) {
+			assertSame(c, q.peek());
+			assertSame(c, q.next());
+		}
+		assertNull(q.next());
+	}
+
+	public void testInterleavedAddAndNext() {
+		final DateRevQueue q = new DateRevQueue();
+		final RevCommit a = commit(10);
+		final RevCommit b = commit(20);
+		final RevCommit c = commit(20);
+		final RevCommit d = commit(5);
+		q.add(a);
+		q.add(b);
+		assertSame(b, q.next());
+		q.add(c);
+		q.add(d);
+		assertSame(c, q.next());
+		assertSame(a, q.next());
+		assertSame(d, q.next());
+		assertNull(q.next());
+	}
+
+	public void testFlagScans() {
+		final DateRevQueue q = new DateRevQueue();
+		final RevCommit a = commit(1);
+		final RevCommit b = commit(2);
+		q.add(a);
+		q.add(b);
+		assertFalse(q.anybodyHasFlag(RevWalk.SEEN));
+		a.flags |= RevWalk.SEEN;
+		assertTrue(q.anybodyHasFlag(RevWalk.SEEN));
+		assertFalse(q.everbodyHasFlag(RevWalk.SEEN));
+		b.flags |= RevWalk.SEEN;
+		assertTrue(q.everbodyHasFlag(RevWalk.SEEN));
+	}
+
+	public void testClear() {
+		final DateRevQueue q = new DateRevQueue();
+		for (int i = 0; i < 100; i++)
+			q.add(commit(i));
+		q.clear();
+		assertNull(q.next());
+		final RevCommit a = commit(3);
+		q.add(a);
+		assertSame(a, q.next());
+	}
+
+	private RevCommit commit(final int when) {
+		final MutableObjectId id = new MutableObjectId();
+		id.fromRaw(new int[] { nextId++, 0, 0, 0, 0 });
+		final RevCommit c = new RevCommit(id);
+		c.commitTime = when;
+		return c;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.revwalk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class RevWalkMergedIntoTest extends RepositoryTestCase {
+	public void testComputedGenerations() throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		final List<RevCommit> tips = tips(rw);
+		for (final RevCommit c : tips)
+			assertEquals(0, rw.generationOf(c));
+
+		rw.setComputeGenerations(true);
+		for (final RevCommit c : tips)
+			assertGenerations(rw, c);
+	}
+
+	public void testGraphGenerations() throws IOException {
+		new CommitGraphWriter(db).write();
+		final RevWalk rw = new RevWalk(db);
+		for (final RevCommit c : tips(rw)) {
+			assertTrue(rw.generationOf(c) > 0);
+			assertGenerations(rw, c);
+		}
+	}
+
+	public void testIsMergedIntoWithoutGenerations() throws IOException {
+		assertSameAnswers(new RevWalk(db));
+	}
+
+	public void testIsMergedIntoComputed() throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setComputeGenerations(true);
+		assertSameAnswers(rw);
+	}
+
+	public void testIsMergedIntoWithGraph() throws IOException {
+		new CommitGraphWriter(db).write();
+		assertSameAnswers(new RevWalk(db));
+	}
+
+	public void testSelectMergedInto() throws IOException {
+		new CommitGraphWriter(db).write();
+		final RevWalk rw = new RevWalk(db);
+		final List<RevCommit> tips = tips(rw);
+		for (final RevCommit tip : tips) {
+			final List<RevCommit> bases = new ArrayList<RevCommit>(tips);
+			bases.add(tips.get(0));
+
+			final List<RevCommit> expect = new ArrayList<RevCommit>();
+			for (final RevCommit b : tips) {
+				if (isAncestor(b, tip))
+					expect.add(b);
+			}
+			assertEquals(expect, rw.selectMergedInto(bases, tip));
+		}
+	}
+
+	private void assertSameAnswers(final RevWalk rw) throws IOException {
+		final List<RevCommit> tips = tips(rw);
+		for (final RevCommit base : tips) {
+			for (final RevCommit tip : tips)
+				assertEquals(base.name() + " in " + tip.name(), isAncestor(
+						base, tip), rw.isMergedInto(base, tip));
+		}
+	}
+
+	private static void assertGenerations(final RevWalk rw,
+			final RevCommit c) throws IOException {
+		int max = 0;
+		for (final RevCommit p : c.getParents()) {
+			assertGenerations(rw, p);
+			max = Math.max(max, p.generation);
+		}
+		assertEquals(max + 1, rw.generationOf(c));
+	}
+
+	private static boolean isAncestor(final RevCommit base, RevCommit tip) {
+		final List<RevCommit> todo = new ArrayList<RevCommit>();
+		todo.add(tip);
+		while (!todo.isEmpty()) {
+			final RevCommit c = todo.remove(todo.size() - 1);
+			if (c == base)
+				return true;
+			for (final RevCommit p : c.getParents())
+				todo.add(p);
+		}
+		return false;
+	}
+
+	private List<RevCommit> tips(final RevWalk rw) throws IOException {
+		final List<RevCommit> r = new ArrayList<RevCommit>();
+		for (final Ref ref : db.getAllRefs().values()) {
+			try {
+				final RevCommit c = rw.parseCommit(ref.getObjectId());
+				if (!r.contains(c))
+					r.add(c);
+			} catch (IncorrectObjectTypeException notCommit) {
+				// Skip tags pointing at trees or blobs.
+			}
+		}
+
+		// Parse the full history so the reference answers above can
+		// follow getParents() without a walk.
+		rw.markStart(r);
+		while (rw.next() != null) {
+			// Parsing as a side effect.
+		}
+		rw.reset();
+		return r;
+	}
+}
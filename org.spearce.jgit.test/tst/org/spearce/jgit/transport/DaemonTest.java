@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class DaemonTest extends RepositoryTestCase {
+	private Daemon daemon;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		daemon = new Daemon(new InetSocketAddress("127.0.0.1", 0));
+		daemon.exportRepository("test", db);
+	}
+
+	public void tearDown() throws Exception {
+		daemon.stop();
+		super.tearDown();
+	}
+
+	public void testListRefs() throws Exception {
+		daemon.start();
+		final Transport t = Transport.open(db, new URIish("git://127.0.0.1:"
+				+ daemon.getAddress().getPort() + "/test"));
+		try {
+			final FetchConnection c = t.openFetch();
+			try {
+				final Ref master = c.getRef("refs/heads/master");
+				assertNotNull(master);
+				assertEquals(db.resolve("refs/heads/master"), master
+						.getObjectId());
+			} finally {
+				c.close();
+			}
+		} finally {
+			t.close();
+		}
+	}
+
+	public void testRejectBeyondLimit() throws Exception {
+		daemon.setMaxConnections(1);
+		daemon.setMaxQueuedConnections(0);
+		daemon.start();
+
+		final Socket served = connect();
+		try {
+			sendRequest(served, "git-upload-pack /test");
+			assertTrue(served.getInputStream().read() >= 0);
+			assertEquals(1, daemon.getActiveConnections());
+
+			final Socket rejected = connect();
+			try {
+				assertEquals(-1, rejected.getInputStream().read());
+				assertEquals(1, daemon.getRejectedConnections());
+			} finally {
+				rejected.close();
+			}
+		} finally {
+			served.close();
+		}
+	}
+
+	public void testServiceLimit() throws Exception {
+		daemon.getService("upload-pack").setMaxConnections(1);
+		daemon.start();
+
+		final Socket served = connect();
+		try {
+			sendRequest(served, "git-upload-pack /test");
+			assertTrue(served.getInputStream().read() >= 0);
+
+			final Socket rejected = connect();
+			try {
+				sendRequest(rejected, "git-upload-pack /test");
+				assertEquals(-1, rejected.getInputStream().read());
+				assertEquals(1, daemon.getRejectedConnections());
+			} finally {
+				rejected.close();
+			}
+		} finally {
+			served.close();
+		}
+	}
+
+	public void testInitTimeout() throws Exception {
+		daemon.setInitTimeout(1);
+		daemon.start();
+
+		final Socket idle = connect();
+		try {
+			final InputStream in = idle.getInputStream();
+			assertEquals(-1, in.read());
+			assertEquals(0, daemon.getNegotiatingConnections());
+		} finally {
+			idle.close();
+		}
+	}
+
+	private Socket connect() throws IOException {
+		final Socket s = new Socket();
+		s.setSoTimeout(10000);
+		s.connect(daemon.getAddress());
+		return s;
+	}
+
+	private static void sendRequest(final Socket s, final String cmd)
+			throws IOException {
+		final String req = cmd + "\0host=127.0.0.1\0";
+		final String len = Integer.toHexString(req.length() + 4);
+		final OutputStream out = s.getOutputStream();
+		out.write(Constants.encode("0000".substring(len.length()) + len + req));
+		out.flush();
+	}
+}
@@ -38,16 +38,26 @@
 
 package org.spearce.jgit.transport;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.PackFile;
+import org.spearce.jgit.lib.PackWriter;
+import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.RepositoryTestCase;
 import org.spearce.jgit.lib.TextProgressMonitor;
 import org.spearce.jgit.util.JGitTestUtil;
+import org.spearce.jgit.util.NB;
 
 /**
  * Test indexing of git packs. A pack is read from a stream, copied
@@ -112,4 +122,49 @@ public void test2() throws  IOException {
 			is.close();
 		}
 	}
+
+	/**
+	 * Resolving deltas on several threads must produce the same index as
+	 * resolving them on one thread.
+	 *
+	 * @throws IOException
+	 */
+	public void testThreadsSameIndex() throws IOException {
+		final List<ObjectId> heads = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			heads.add(r.getObjectId());
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setDeltaBaseAsOffset(true);
+		pw.preparePack(heads, Collections.<ObjectId> emptyList(), false, true);
+		final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+		pw.writePack(pack);
+		final byte[] packData = pack.toByteArray();
+
+		final byte[] one = indexWithThreads(packData, 1, "tmp_one");
+		final byte[] four = indexWithThreads(packData, 4, "tmp_four");
+		assertTrue(Arrays.equals(one, four));
+
+		final PackFile file = new PackFile(new File(trash, "tmp_four.idx"),
+				new File(trash, "tmp_four.pack"));
+		for (final ObjectId id : heads)
+			assertTrue(file.hasObject(id));
+	}
+
+	private byte[] indexWithThreads(final byte[] packData, final int threads,
+			final String name) throws IOException {
+		final IndexPack ip = new IndexPack(db, new ByteArrayInputStream(
+				packData), new File(trash, name));
+		ip.setThreads(threads);
+		ip.index(NullProgressMonitor.INSTANCE);
+
+		final File idx = new File(trash, name + ".idx");
+		final byte[] r = new byte[(int) idx.length()];
+		final FileInputStream in = new FileInputStream(idx);
+		try {
+			NB.readFully(in, r, 0, r.length);
+		} finally {
+			in.close();
+		}
+		return r;
+	}
 }
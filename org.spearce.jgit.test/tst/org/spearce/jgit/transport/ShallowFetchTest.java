@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class ShallowFetchTest extends RepositoryTestCase {
+	private Daemon daemon;
+
+	private Repository dst;
+
+	private RevCommit master;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		daemon = new Daemon(new InetSocketAddress("127.0.0.1", 0));
+		daemon.exportRepository("test", db);
+		daemon.start();
+		dst = createNewEmptyRepo();
+		master = new RevWalk(db).parseCommit(db.resolve("refs/heads/master"));
+		assertTrue(master.getParentCount() > 0);
+	}
+
+	public void tearDown() throws Exception {
+		daemon.stop();
+		super.tearDown();
+	}
+
+	public void testShallowFileRoundTrip() throws Exception {
+		assertTrue(db.getShallowCommits().isEmpty());
+		final Set<ObjectId> ids = new HashSet<ObjectId>();
+		ids.add(master.copy());
+		db.setShallowCommits(ids);
+		assertEquals(ids, db.getShallowCommits());
+
+		final RevWalk rw = new RevWalk(db);
+		assertEquals(0, rw.parseCommit(master).getParentCount());
+
+		db.setShallowCommits(Collections.<ObjectId> emptySet());
+		assertFalse(new File(db.getDirectory(), Constants.SHALLOW).exists());
+		assertTrue(db.getShallowCommits().isEmpty());
+	}
+
+	public void testAssumeShallow() throws Exception {
+		final RevWalk rw = new RevWalk(db);
+		rw.assumeShallow(Collections.singleton(master.copy()));
+		final RevCommit c = rw.parseCommit(master);
+		assertEquals(0, c.getParentCount());
+		rw.markStart(c);
+		assertSame(c, rw.next());
+		assertNull(rw.next());
+	}
+
+	public void testShallowClone() throws Exception {
+		fetch(1);
+		assertEquals(master.copy(), dst.resolve("refs/heads/master"));
+		assertEquals(Collections.singleton(master.copy()), dst
+				.getShallowCommits());
+		for (final RevCommit p : master.getParents())
+			assertFalse(dst.hasObject(p));
+
+		final RevWalk rw = new RevWalk(dst);
+		rw.markStart(rw.parseCommit(master));
+		assertNotNull(rw.next());
+		assertNull(rw.next());
+		assertConnected();
+	}
+
+	public void testDeepen() throws Exception {
+		fetch(1);
+		fetch(2);
+
+		final RevWalk rw = new RevWalk(db);
+		final Set<ObjectId> parents = new HashSet<ObjectId>();
+		for (final RevCommit p : master.getParents())
+			parents.add(p.copy());
+
+		final Set<ObjectId> expect = new HashSet<ObjectId>();
+		for (final RevCommit p : master.getParents()) {
+			rw.parse(p);
+			assertTrue(dst.hasObject(p));
+			if (p.getParentCount() > 0)
+				expect.add(p.copy());
+			for (final RevCommit gp : p.getParents()) {
+				if (!parents.contains(gp.copy()))
+					assertFalse(dst.hasObject(gp));
+			}
+		}
+		assertEquals(expect, dst.getShallowCommits());
+		assertConnected();
+	}
+
+	private void fetch(final int depth) throws Exception {
+		final Transport t = Transport.open(dst, new URIish("git://127.0.0.1:"
+				+ daemon.getAddress().getPort() + "/test"));
+		try {
+			t.setDepth(depth);
+			t.setCheckFetchedObjects(true);
+			t.fetch(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RefSpec("refs/heads/master:refs/heads/master")));
+		} finally {
+			t.close();
+		}
+	}
+
+	private void assertConnected() throws Exception {
+		final ObjectWalk ow = new ObjectWalk(dst);
+		ow.markStart(ow.parseAny(master));
+		ow.checkConnectivity();
+	}
+}
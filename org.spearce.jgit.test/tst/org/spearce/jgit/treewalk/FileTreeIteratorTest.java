@@ -39,7 +39,17 @@
 
 import java.io.File;
 import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheBuilder;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.dircache.DirCacheIterator;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.ObjectId;
@@ -161,6 +171,162 @@ public void testComputeFileObjectId() throws Exception {
 		assertEquals(expect, top.getEntryObjectId());
 	}
 
+	public void testReuseDirCacheIdWhenStatClean() throws Exception {
+		// The index deliberately records an id that is not the hash of
+		// the file; it is only returned if the file was not read.
+		//
+		final ObjectId fake = ObjectId
+				.fromString("0123456789012345678901234567890123456789");
+		final DirCacheEntry e = newEntry(paths[0], fake);
+		final TreeWalk tw = newWalk(e);
+		assertTrue(tw.next());
+		assertEquals(paths[0], tw.getPathString());
+		assertTrue(tw.idEqual(0, 1));
+		assertEquals(fake, tw.getObjectId(1));
+
+		final WorkingTreeIterator f = tw.getTree(1, WorkingTreeIterator.class);
+		assertFalse(f.isModified(e, false));
+		assertTrue(f.isModified(e, true));
+	}
+
+	public void testHashFileWhenStatDiffers() throws Exception {
+		final ObjectId fake = ObjectId
+				.fromString("0123456789012345678901234567890123456789");
+		final DirCacheEntry e = newEntry(paths[0], fake);
+		e.setLastModified(mtime[0] - 5000);
+		final TreeWalk tw = newWalk(e);
+		assertTrue(tw.next());
+		assertFalse(tw.idEqual(0, 1));
+		assertEquals(blobId(paths[0]), tw.getObjectId(1));
+		assertTrue(tw.getTree(1, WorkingTreeIterator.class).isModified(e,
+				false));
+	}
+
+	public void testHashFileWhenSmudged() throws Exception {
+		final DirCacheEntry e = newEntry(paths[0], blobId(paths[0]));
+		e.setLength(0);
+		assertTrue(e.isSmudged());
+		final TreeWalk tw = newWalk(e);
+		assertTrue(tw.next());
+		assertTrue(tw.idEqual(0, 1));
+		final WorkingTreeIterator f = tw.getTree(1, WorkingTreeIterator.class);
+		assertFalse(f.isModified(e, false));
+
+		final DirCacheEntry other = newEntry(paths[0], blobId(paths[1]));
+		other.setLength(0);
+		assertTrue(f.isModified(other, false));
+	}
+
+	public void testParallelHash() throws Exception {
+		final String[] names = new String[200];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "d/f" + i;
+			writeTrashFile(names[i], "content " + i);
+		}
+
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final TreeWalk tw = new TreeWalk(db);
+			tw.reset();
+			tw.setRecursive(true);
+			tw.setContentHashExecutor(pool);
+			tw.addTree(new FileTreeIterator(trash));
+			int files = 0;
+			while (tw.next()) {
+				final String path = tw.getPathString();
+				final String content;
+				if (path.startsWith("d/"))
+					content = "content " + path.substring(3);
+				else
+					content = path;
+				assertEquals(path, blobId(content), tw.getObjectId(0));
+				files++;
+			}
+			assertEquals(paths.length + names.length, files);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testParallelHashSkipsStatCleanFiles() throws Exception {
+		final String[] names = new String[100];
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "d/f" + i;
+			writeTrashFile(names[i], "content " + i);
+			if (i % 2 == 0)
+				b.add(newEntry(names[i], blobId("content " + i)));
+		}
+		b.finish();
+
+		final AtomicInteger submitted = new AtomicInteger();
+		final ExecutorService pool = new ThreadPoolExecutor(4, 4, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			public void execute(final Runnable command) {
+				submitted.incrementAndGet();
+				super.execute(command);
+			}
+		};
+		try {
+			final TreeWalk tw = new TreeWalk(db);
+			tw.reset();
+			tw.setRecursive(true);
+			tw.setContentHashExecutor(pool);
+			tw.addTree(new DirCacheIterator(dc));
+			final FileTreeIterator f = new FileTreeIterator(trash);
+			f.setDirCacheIterator(tw, 0);
+			tw.addTree(f);
+			while (tw.next()) {
+				final String path = tw.getPathString();
+				if (path.startsWith("d/"))
+					assertEquals(path, blobId("content " + path.substring(3)),
+							tw.getObjectId(1));
+				else
+					assertEquals(path, blobId(path), tw.getObjectId(1));
+			}
+			assertTrue(submitted.get() <= names.length / 2 + paths.length);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private DirCacheEntry newEntry(final String path, final ObjectId id) {
+		final File file = new File(trash, path);
+		final DirCacheEntry e = new DirCacheEntry(path);
+		e.setFileMode(FileMode.REGULAR_FILE);
+		e.setObjectId(id);
+		e.setLength((int) file.length());
+		e.setLastModified(file.lastModified());
+		return e;
+	}
+
+	private TreeWalk newWalk(final DirCacheEntry e) throws Exception {
+		final DirCache dc = DirCache.newInCore();
+		final DirCacheBuilder b = dc.builder();
+		b.add(e);
+		b.finish();
+
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		tw.addTree(new DirCacheIterator(dc));
+		final FileTreeIterator f = new FileTreeIterator(trash);
+		f.setDirCacheIterator(tw, 0);
+		tw.addTree(f);
+		return tw;
+	}
+
+	private static ObjectId blobId(final String content) {
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encodeASCII(Constants.TYPE_BLOB));
+		md.update((byte) ' ');
+		md.update(Constants.encodeASCII(content.length()));
+		md.update((byte) 0);
+		md.update(Constants.encode(content));
+		return ObjectId.fromRaw(md.digest());
+	}
+
 	private static String nameOf(final AbstractTreeIterator i) {
 		return RawParseUtils.decode(Constants.CHARSET, i.path, 0, i.pathLen);
 	}
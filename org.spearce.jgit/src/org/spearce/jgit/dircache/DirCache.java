@@ -39,6 +39,7 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -46,9 +47,13 @@
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.UnmergedPathException;
@@ -140,7 +145,39 @@ public static DirCache newInCore() {
 	 */
 	public static DirCache read(final File indexLocation)
 			throws CorruptObjectException, IOException {
+		return read(indexLocation, false);
+	}
+
+	/**
+	 * Create a new in-core index representation and read an index from disk.
+	 * <p>
+	 * With <code>mmap</code> set the index file is mapped into memory. Only a
+	 * table of entry positions is built when the file is read; each entry is
+	 * decoded the first time it is asked for, and the cache tree extension the
+	 * first time the tree is needed. Opening a large index then costs little
+	 * more than one pass over its entry headers. The SHA-1 trailer is not
+	 * checked unless {@link #verify()} or {@link #startVerify()} is called.
+	 * The mapping is released once the cache is cleared or its entries are
+	 * replaced, and the mapping is garbage collected; until then some
+	 * platforms refuse to replace the file, so a mapped index should not be
+	 * locked and updated.
+	 *
+	 * @param indexLocation
+	 *            location of the index file on disk.
+	 * @param mmap
+	 *            true to map the file and decode entries on demand.
+	 * @return a cache representing the contents of the specified index file (if
+	 *         it exists) or an empty cache if the file does not exist.
+	 * @throws IOException
+	 *             the index file is present but could not be read.
+	 * @throws CorruptObjectException
+	 *             the index file is using a format or extension that this
+	 *             library does not support.
+	 */
+	public static DirCache read(final File indexLocation, final boolean mmap)
+			throws CorruptObjectException, IOException {
 		final DirCache c = new DirCache(indexLocation);
+		c.mmap = mmap;
 		c.read();
 		return c;
 	}
@@ -164,7 +201,8 @@ public static DirCache read(final File indexLocation)
 	 */
 	public static DirCache read(final Repository db)
 			throws CorruptObjectException, IOException {
-		return read(new File(db.getDirectory(), "index"));
+		return read(new File(db.getDirectory(), "index"), db.getConfig()
+				.getCore().isIndexMmap());
 	}
 
 	/**
@@ -246,6 +284,30 @@ public static DirCache lock(final Repository db)
 	/** Cache tree for this index; null if the cache tree is not available. */
 	private DirCacheTree tree;
 
+	/** True if {@link #read()} should map the file rather than stream it. */
+	private boolean mmap;
+
+	/** The mapped index file; null if the entries were not read by mmap. */
+	private ByteBuffer mapped;
+
+	/** Position of each entry within {@link #mapped}. */
+	private int[] entryOffsets;
+
+	/** Position of the unparsed TREE extension within {@link #mapped}. */
+	private int treeOffset = -1;
+
+	/** Length of the unparsed TREE extension. */
+	private int treeLength;
+
+	/** Seconds component of {@link #lastModified}, to smudge entries. */
+	private int smudge_s;
+
+	/** Nanoseconds component of {@link #lastModified}, to smudge entries. */
+	private int smudge_ns;
+
+	/** Check of the mapped file's SHA-1 trailer; null if not started. */
+	private FutureTask<Object> checksum;
+
 	/** Our active lock (if we hold it); null if we don't have it locked. */
 	private LockFile myLock;
 
@@ -288,6 +350,7 @@ public DirCacheEditor editor() {
 	}
 
 	void replace(final DirCacheEntry[] e, final int cnt) {
+		releaseMap();
 		sortedEntries = e;
 		entryCnt = cnt;
 		tree = null;
@@ -317,7 +380,10 @@ else if (liveFile.lastModified() != lastModified) {
 				final FileInputStream inStream = new FileInputStream(liveFile);
 				try {
 					clear();
-					readFrom(inStream);
+					if (mmap)
+						readMapped(inStream);
+					else
+						readFrom(inStream);
 				} finally {
 					try {
 						inStream.close();
@@ -340,6 +406,8 @@ public void clear() {
 		sortedEntries = NO_ENTRIES;
 		entryCnt = 0;
 		tree = null;
+		releaseMap();
+		checksum = null;
 	}
 
 	private void readFrom(final FileInputStream inStream) throws IOException,
@@ -352,14 +420,7 @@ private void readFrom(final FileInputStream inStream) throws IOException,
 		//
 		final byte[] hdr = new byte[12];
 		NB.readFully(in, hdr, 0, 12);
-		if (!is_DIRC(hdr))
-			throw new CorruptObjectException("Not a DIRC file.");
-		final int ver = NB.decodeInt32(hdr, 4);
-		if (ver != 2)
-			throw new CorruptObjectException("Unknown DIRC version " + ver);
-		entryCnt = NB.decodeInt32(hdr, 8);
-		if (entryCnt < 0)
-			throw new CorruptObjectException("DIRC has too many entries.");
+		readHeader(hdr);
 
 		// Load the individual file entries.
 		//
@@ -367,7 +428,17 @@ private void readFrom(final FileInputStream inStream) throws IOException,
 		sortedEntries = new DirCacheEntry[entryCnt];
 		for (int i = 0; i < entryCnt; i++)
 			sortedEntries[i] = new DirCacheEntry(infos, i * INFO_LEN, in);
-		lastModified = liveFile.lastModified();
+		setLastModified(liveFile.lastModified());
+
+		// An entry written at the same time as the index may have been
+		// modified again without its timestamp changing. Smudge it, so
+		// its file content gets compared.
+		//
+		for (int i = 0; i < entryCnt; i++) {
+			final DirCacheEntry e = sortedEntries[i];
+			if (e.mightBeRacilyClean(smudge_s, smudge_ns))
+				e.smudgeRacilyClean();
+		}
 
 		// After the file entries are index extensions.
 		//
@@ -392,15 +463,213 @@ private void readFrom(final FileInputStream inStream) throws IOException,
 					// _required_ to understand this index format.
 					// Since we did not trap it above we must abort.
 					//
-					throw new CorruptObjectException("DIRC extension '"
-							+ Constants.CHARSET.decode(
-									ByteBuffer.wrap(hdr, 0, 4)).toString()
-							+ "' not supported by this version.");
+					throw unsupportedExtension(hdr);
 				}
 			}
 		}
 	}
 
+	private void readMapped(final FileInputStream inStream)
+			throws IOException, CorruptObjectException {
+		final FileChannel fd = inStream.getChannel();
+		final long sizeOnDisk = fd.size();
+		if (sizeOnDisk > Integer.MAX_VALUE)
+			throw new IOException("Index file too large to map: " + liveFile);
+		if (sizeOnDisk < 12 + 20)
+			throw new EOFException("Short read of block.");
+		final ByteBuffer buf = fd.map(MapMode.READ_ONLY, 0, sizeOnDisk);
+		final int end = (int) sizeOnDisk - 20;
+
+		final byte[] hdr = new byte[12];
+		buf.get(hdr);
+		readHeader(hdr);
+
+		// Only find where each entry starts; entries are decoded by
+		// entry(int) when they are first asked for.
+		//
+		final int[] offsets = new int[entryCnt];
+		int ptr = 12;
+		try {
+			for (int i = 0; i < entryCnt; i++) {
+				offsets[i] = ptr;
+				ptr += DirCacheEntry.encodedLength(buf, ptr);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new EOFException("Short read of block.");
+		}
+		if (ptr > end)
+			throw new EOFException("Short read of block.");
+
+		// After the file entries are index extensions. The cache tree
+		// is only parsed if it is asked for.
+		//
+		while (ptr < end) {
+			if (end - ptr < 8)
+				throw new EOFException("Short read of block.");
+			buf.position(ptr);
+			buf.get(hdr, 0, 8);
+			final long len = NB.decodeUInt32(hdr, 4);
+			ptr += 8;
+			if (len > end - ptr)
+				throw new EOFException("Short read of block.");
+			switch (NB.decodeInt32(hdr, 0)) {
+			case EXT_TREE:
+				treeOffset = ptr;
+				treeLength = (int) len;
+				break;
+			default:
+				if (hdr[0] < 'A' || hdr[0] > 'Z')
+					throw unsupportedExtension(hdr);
+			}
+			ptr += (int) len;
+		}
+
+		mapped = buf;
+		entryOffsets = offsets;
+		sortedEntries = new DirCacheEntry[entryCnt];
+		setLastModified(liveFile.lastModified());
+	}
+
+	private void readHeader(final byte[] hdr) throws CorruptObjectException {
+		if (!is_DIRC(hdr))
+			throw new CorruptObjectException("Not a DIRC file.");
+		final int ver = NB.decodeInt32(hdr, 4);
+		if (ver != 2)
+			throw new CorruptObjectException("Unknown DIRC version " + ver);
+		entryCnt = NB.decodeInt32(hdr, 8);
+		if (entryCnt < 0)
+			throw new CorruptObjectException("DIRC has too many entries.");
+	}
+
+	private void setLastModified(final long t) {
+		lastModified = t;
+		smudge_s = (int) (lastModified / 1000);
+		smudge_ns = ((int) (lastModified % 1000)) * 1000000;
+	}
+
+	private static CorruptObjectException unsupportedExtension(final byte[] hdr) {
+		return new CorruptObjectException("DIRC extension '"
+				+ Constants.CHARSET.decode(ByteBuffer.wrap(hdr, 0, 4))
+						.toString() + "' not supported by this version.");
+	}
+
+	private DirCacheEntry entry(final int i) {
+		DirCacheEntry e = sortedEntries[i];
+		if (e == null) {
+			e = DirCacheEntry.decode(mapped, entryOffsets[i], smudge_s,
+					smudge_ns);
+			sortedEntries[i] = e;
+		}
+		return e;
+	}
+
+	private void loadTree() {
+		if (treeOffset < 0)
+			return;
+		final byte[] raw = new byte[treeLength];
+		final ByteBuffer b = mapped.duplicate();
+		b.position(treeOffset);
+		b.get(raw);
+		tree = new DirCacheTree(raw, new MutableInteger(), null);
+		treeOffset = -1;
+	}
+
+	private void loadAll() {
+		if (mapped == null)
+			return;
+		for (int i = 0; i < entryCnt; i++)
+			entry(i);
+		loadTree();
+	}
+
+	private void releaseMap() {
+		mapped = null;
+		entryOffsets = null;
+		treeOffset = -1;
+	}
+
+	/**
+	 * Start checking the SHA-1 trailer of the index file in the background.
+	 * <p>
+	 * Only an index read with <code>mmap</code> keeps the file content to
+	 * check; for other indexes this method does nothing.
+	 *
+	 * @see #read(File, boolean)
+	 * @see #verify()
+	 */
+	public void startVerify() {
+		if (checksum != null || mapped == null)
+			return;
+		checksum = newChecksumTask(mapped);
+		final Thread t = new Thread(checksum, "DirCache checksum "
+				+ liveFile.getPath());
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Check the SHA-1 trailer of the index file.
+	 * <p>
+	 * If {@link #startVerify()} was called this waits for the background
+	 * check to finish; otherwise the check runs on the calling thread. Only an
+	 * index read with <code>mmap</code> keeps the file content to check; for
+	 * other indexes this method does nothing.
+	 *
+	 * @throws CorruptObjectException
+	 *             the trailer does not match the index file content.
+	 * @throws IOException
+	 *             the check was interrupted.
+	 */
+	public void verify() throws CorruptObjectException, IOException {
+		if (checksum == null) {
+			if (mapped == null)
+				return;
+			checksum = newChecksumTask(mapped);
+			checksum.run();
+		}
+		try {
+			checksum.get();
+		} catch (InterruptedException e) {
+			final IOException err = new IOException(
+					"Interrupted while checking " + liveFile);
+			err.initCause(e);
+			throw err;
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			final IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	private FutureTask<Object> newChecksumTask(final ByteBuffer file) {
+		return new FutureTask<Object>(new Callable<Object>() {
+			public Object call() throws CorruptObjectException {
+				final ByteBuffer b = file.duplicate();
+				final int end = b.limit() - 20;
+				final MessageDigest md = Constants.newMessageDigest();
+				final byte[] buf = new byte[8192];
+				b.position(0);
+				while (b.position() < end) {
+					final int n = Math.min(buf.length, end - b.position());
+					b.get(buf, 0, n);
+					md.update(buf, 0, n);
+				}
+				final byte[] expect = new byte[20];
+				b.get(expect);
+				if (!MessageDigest.isEqual(expect, md.digest()))
+					throw new CorruptObjectException("DIRC checksum mismatch");
+				return null;
+			}
+		});
+	}
+
 	private static boolean is_DIRC(final byte[] hdr) {
 		if (hdr.length < SIG_DIRC.length)
 			return false;
@@ -477,14 +746,13 @@ private void writeTo(final OutputStream os) throws IOException {
 
 		// Write the individual file entries.
 		//
+		loadAll();
 		if (lastModified <= 0) {
 			// Write a new index, as no entries require smudging.
 			//
 			for (int i = 0; i < entryCnt; i++)
 				sortedEntries[i].write(dos);
 		} else {
-			final int smudge_s = (int) (lastModified / 1000);
-			final int smudge_ns = ((int) (lastModified % 1000)) * 1000000;
 			for (int i = 0; i < entryCnt; i++) {
 				final DirCacheEntry e = sortedEntries[i];
 				if (e.mightBeRacilyClean(smudge_s, smudge_ns))
@@ -525,7 +793,7 @@ public boolean commit() {
 		myLock = null;
 		if (!tmp.commit())
 			return false;
-		lastModified = tmp.getCommitLastModified();
+		setLastModified(tmp.getCommitLastModified());
 		return true;
 	}
 
@@ -578,11 +846,11 @@ int findEntry(final byte[] p, final int pLen) {
 		int high = entryCnt;
 		do {
 			int mid = (low + high) >> 1;
-			final int cmp = cmp(p, pLen, sortedEntries[mid]);
+			final int cmp = cmp(p, pLen, entry(mid));
 			if (cmp < 0)
 				high = mid;
 			else if (cmp == 0) {
-				while (mid > 0 && cmp(p, pLen, sortedEntries[mid - 1]) == 0)
+				while (mid > 0 && cmp(p, pLen, entry(mid - 1)) == 0)
 					mid--;
 				return mid;
 			} else
@@ -603,10 +871,10 @@ else if (cmp == 0) {
 	 * @return position of the next entry whose path is after the input.
 	 */
 	public int nextEntry(final int position) {
-		DirCacheEntry last = sortedEntries[position];
+		DirCacheEntry last = entry(position);
 		int nextIdx = position + 1;
 		while (nextIdx < entryCnt) {
-			final DirCacheEntry next = sortedEntries[nextIdx];
+			final DirCacheEntry next = entry(nextIdx);
 			if (cmp(last, next) != 0)
 				break;
 			last = next;
@@ -617,7 +885,7 @@ public int nextEntry(final int position) {
 
 	int nextEntry(final byte[] p, final int pLen, int nextIdx) {
 		while (nextIdx < entryCnt) {
-			final DirCacheEntry next = sortedEntries[nextIdx];
+			final DirCacheEntry next = entry(nextIdx);
 			if (!DirCacheTree.peq(p, next.path, pLen))
 				break;
 			nextIdx++;
@@ -650,7 +918,7 @@ public int getEntryCount() {
 	 * @return the entry at position <code>i</code>.
 	 */
 	public DirCacheEntry getEntry(final int i) {
-		return sortedEntries[i];
+		return entry(i);
 	}
 
 	/**
@@ -662,7 +930,7 @@ public DirCacheEntry getEntry(final int i) {
 	 */
 	public DirCacheEntry getEntry(final String path) {
 		final int i = findEntry(path);
-		return i < 0 ? null : sortedEntries[i];
+		return i < 0 ? null : entry(i);
 	}
 
 	/**
@@ -683,13 +951,14 @@ public DirCacheEntry[] getEntriesWithin(String path) {
 			eIdx = -(eIdx + 1);
 		final int lastIdx = nextEntry(p, pLen, eIdx);
 		final DirCacheEntry[] r = new DirCacheEntry[lastIdx - eIdx];
-		System.arraycopy(sortedEntries, eIdx, r, 0, r.length);
+		toArray(eIdx, r, 0, r.length);
 		return r;
 	}
 
 	void toArray(final int i, final DirCacheEntry[] dst, final int off,
 			final int cnt) {
-		System.arraycopy(sortedEntries, i, dst, off, cnt);
+		for (int k = 0; k < cnt; k++)
+			dst[off + k] = entry(i + k);
 	}
 
 	/**
@@ -705,9 +974,12 @@ void toArray(final int i, final DirCacheEntry[] dst, final int off,
 	 *         and <code>build</code> was false.
 	 */
 	public DirCacheTree getCacheTree(final boolean build) {
+		loadTree();
 		if (build) {
 			if (tree == null)
 				tree = new DirCacheTree();
+			if (tree.getEntrySpan() < 0)
+				loadAll();
 			tree.validate(sortedEntries, entryCnt, 0, 0);
 		}
 		return tree;
@@ -727,6 +999,7 @@ public DirCacheTree getCacheTree(final boolean build) {
 	 */
 	public ObjectId writeTree(final ObjectWriter ow)
 			throws UnmergedPathException, IOException {
+		loadAll();
 		return getCacheTree(true).writeTree(sortedEntries, 0, 0, ow);
 	}
 }
@@ -103,6 +103,14 @@ public class DirCacheEntry {
 
 	private static final int ASSUME_VALID = 0x80;
 
+	/** Raw id of the empty blob, the only object whose length is 0. */
+	private static final byte[] EMPTY_BLOB = new byte[Constants.OBJECT_ID_LENGTH];
+
+	static {
+		ObjectId.fromString("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391")
+				.copyRawTo(EMPTY_BLOB, 0);
+	}
+
 	/** (Possibly shared) header information storage. */
 	private final byte[] info;
 
@@ -152,6 +160,76 @@ public class DirCacheEntry {
 		NB.skipFully(in, expLen - actLen - skipped);
 	}
 
+	private DirCacheEntry(final byte[] sharedInfo, final int infoAt,
+			final byte[] pathBytes) {
+		info = sharedInfo;
+		infoOffset = infoAt;
+		path = pathBytes;
+	}
+
+	/**
+	 * Decode the entry stored at a position of a mapped index file.
+	 * <p>
+	 * A racily clean entry is smudged before the entry is constructed, so the
+	 * returned entry may be handed to other threads without locking.
+	 *
+	 * @param buf
+	 *            the index file.
+	 * @param pos
+	 *            position of the entry's header within <code>buf</code>.
+	 * @param smudge_s
+	 *            seconds component of the index's last modified time.
+	 * @param smudge_ns
+	 *            nanoseconds component of the index's last modified time.
+	 * @return the entry.
+	 */
+	static DirCacheEntry decode(final ByteBuffer buf, final int pos,
+			final int smudge_s, final int smudge_ns) {
+		final byte[] info = new byte[INFO_LEN];
+		final byte[] path = new byte[pathLength(buf, pos)];
+		final ByteBuffer b = buf.duplicate();
+		b.position(pos);
+		b.get(info);
+		b.get(path);
+
+		final DirCacheEntry e = new DirCacheEntry(info, 0, path);
+		if (!e.mightBeRacilyClean(smudge_s, smudge_ns))
+			return e;
+		e.smudgeRacilyClean();
+		return new DirCacheEntry(info, 0, path);
+	}
+
+	/**
+	 * Get the number of bytes an entry uses within an index file.
+	 *
+	 * @param buf
+	 *            the index file.
+	 * @param pos
+	 *            position of the entry's header within <code>buf</code>.
+	 * @return length of the entry, including its padding.
+	 * @throws IndexOutOfBoundsException
+	 *             the entry extends past the end of <code>buf</code>.
+	 */
+	static int encodedLength(final ByteBuffer buf, final int pos) {
+		// Same 8 byte alignment padding as read by our stream constructor.
+		//
+		final int actLen = INFO_LEN + pathLength(buf, pos);
+		final int expLen = (actLen + 8) & ~7;
+		if (pos + expLen > buf.limit())
+			throw new IndexOutOfBoundsException();
+		return expLen;
+	}
+
+	private static int pathLength(final ByteBuffer buf, final int pos) {
+		final int pathLen = buf.getShort(pos + P_FLAGS) & NAME_MASK;
+		if (pathLen < NAME_MASK)
+			return pathLen;
+		int p = pos + INFO_LEN + NAME_MASK;
+		while (buf.get(p) != 0)
+			p++;
+		return p - (pos + INFO_LEN);
+	}
+
 	/**
 	 * Create an empty entry at stage 0.
 	 *
@@ -248,7 +326,7 @@ final boolean mightBeRacilyClean(final int smudge_s, final int smudge_ns) {
 		if (smudge_s < mtime)
 			return true;
 		if (smudge_s == mtime)
-			return smudge_ns <= NB.decodeInt32(info, base + 4) / 1000000;
+			return smudge_ns <= NB.decodeInt32(info, base + 4);
 		return false;
 	}
 
@@ -260,15 +338,21 @@ final boolean mightBeRacilyClean(final int smudge_s, final int smudge_ns) {
 	 * compare the file content to ensure the file matches the working tree.
 	 */
 	final void smudgeRacilyClean() {
-		// We don't use the same approach as C Git to smudge the entry,
-		// as we cannot compare the working tree file to our SHA-1 and
-		// thus cannot use the "size to 0" trick without accidentally
-		// thinking a zero length file is clean.
-		//
-		// Instead we force the mtime to the largest possible value, so
-		// it is certainly after the index's own modification time and
-		// on a future read will cause mightBeRacilyClean to say "yes!".
-		// It is also unlikely to match with the working tree file.
+		if (!isEmptyBlob()) {
+			// Like C Git, set the size to 0. Only the empty blob has
+			// that length, so the entry is seen as smudged (see
+			// isSmudged()) and the file content must be compared.
+			//
+			setLength(0);
+			return;
+		}
+
+		// The "size to 0" trick cannot be used for an empty file, as
+		// it would still look clean. Instead we force the mtime to the
+		// largest possible value, so it is certainly after the index's
+		// own modification time and on a future read will cause
+		// mightBeRacilyClean to say "yes!". It is also unlikely to match
+		// with the working tree file.
 		//
 		// I'll see you again before Jan 19, 2038, 03:14:07 AM GMT.
 		//
@@ -276,6 +360,30 @@ final void smudgeRacilyClean() {
 		Arrays.fill(info, base, base + 8, (byte) 127);
 	}
 
+	/**
+	 * Has this entry been smudged, so its stat data cannot be trusted?
+	 * <p>
+	 * An entry that was racily clean (see {@link #isAssumeValid()} for the
+	 * other way stat data may be ignored) when the index was read or written
+	 * has its cached length set to 0. Its working tree file must have its
+	 * content compared to the entry's object, no matter what its length and
+	 * modification time are.
+	 *
+	 * @return true if the cached length is 0 but the object is not empty.
+	 */
+	public boolean isSmudged() {
+		return getLength() == 0 && !isEmptyBlob();
+	}
+
+	private boolean isEmptyBlob() {
+		final int p = idOffset();
+		for (int i = 0; i < EMPTY_BLOB.length; i++) {
+			if (info[p + i] != EMPTY_BLOB[i])
+				return false;
+		}
+		return true;
+	}
+
 	final byte[] idBuffer() {
 		return info;
 	}
@@ -220,4 +220,19 @@ private void parseEntry() {
 	public DirCacheEntry getDirCacheEntry() {
 		return currentSubtree == null ? currentEntry : null;
 	}
+
+	/**
+	 * Find the entry for any path of the cache, not just the current one.
+	 *
+	 * @param p
+	 *            buffer holding the complete path, UTF-8 encoded.
+	 * @param pLen
+	 *            number of bytes of <code>p</code> holding the path.
+	 * @return the entry for the path, at its lowest stage; null if the cache
+	 *         has no entry for it.
+	 */
+	public DirCacheEntry findEntry(final byte[] p, final int pLen) {
+		final int i = cache.findEntry(p, pLen);
+		return i >= 0 ? cache.getEntry(i) : null;
+	}
 }
@@ -47,6 +47,31 @@
  * </p>
  */
 public class BinaryDelta {
+	/**
+	 * Length of the object a delta produces, without applying it.
+	 * 
+	 * @param delta
+	 *            a git pack delta, or at least its first few bytes.
+	 * @return size of the result of the delta.
+	 */
+	public static long getResultSize(final byte[] delta) {
+		int p = 0;
+
+		// Skip the length of the base object.
+		//
+		while ((delta[p++] & 0x80) != 0) {
+			// skip
+		}
+
+		long resLen = 0;
+		int c, shift = 0;
+		do {
+			c = delta[p++] & 0xff;
+			resLen |= ((long) (c & 0x7f)) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return resLen;
+	}
 
 	/**
 	 * Apply the changes defined by delta to the data in base, yielding a new
@@ -60,18 +85,47 @@ public class BinaryDelta {
 	 * @return patched base
 	 */
 	public static final byte[] apply(final byte[] base, final byte[] delta) {
+		final byte[] result = new byte[(int) getResultSize(delta)];
+		apply(base, base.length, delta, delta.length, result);
+		return result;
+	}
+
+	/**
+	 * Apply the changes defined by delta to the data in base, writing the
+	 * result into a buffer supplied by the caller.
+	 * <p>
+	 * The buffers may be larger than their content, allowing a caller that
+	 * applies many deltas to reuse them rather than allocating new arrays
+	 * for each one.
+	 *
+	 * @param base
+	 *            some byte representing an object of some kind.
+	 * @param baseLen
+	 *            number of bytes of <code>base</code> holding the object.
+	 * @param delta
+	 *            a git pack delta defining the transform from one version to
+	 *            another.
+	 * @param deltaLen
+	 *            number of bytes of <code>delta</code> holding the delta.
+	 * @param result
+	 *            buffer to receive the patched base. Must be at least
+	 *            {@link #getResultSize(byte[])} bytes long.
+	 * @return number of bytes written to <code>result</code>.
+	 */
+	public static final int apply(final byte[] base, final int baseLen,
+			final byte[] delta, final int deltaLen, final byte[] result) {
 		int deltaPtr = 0;
 
 		// Length of the base object (a variable length int).
 		//
-		int baseLen = 0;
+		int expBaseLen = 0;
 		int c, shift = 0;
 		do {
 			c = delta[deltaPtr++] & 0xff;
-			baseLen |= (c & 0x7f) << shift;
+			expBaseLen |= (c & 0x7f) << shift;
 			shift += 7;
 		} while ((c & 0x80) != 0);
-		if (base.length != baseLen)
+		if (baseLen != expBaseLen)
 			throw new IllegalArgumentException("base length incorrect");
 
 		// Length of the resulting object (a variable length int).
@@ -84,9 +138,8 @@ public static final byte[] apply(final byte[] base, final byte[] delta) {
 			shift += 7;
 		} while ((c & 0x80) != 0);
 
-		final byte[] result = new byte[resLen];
 		int resultPtr = 0;
-		while (deltaPtr < delta.length) {
+		while (deltaPtr < deltaLen) {
 			final int cmd = delta[deltaPtr++] & 0xff;
 			if ((cmd & 0x80) != 0) {
 				// Determine the segment of the base which should
@@ -113,6 +166,11 @@ public static final byte[] apply(final byte[] base, final byte[] delta) {
 				if (copySize == 0)
 					copySize = 0x10000;
 
+				// The base buffer may be longer than the base, so
+				// the array bounds alone do not catch a bad copy.
+				//
+				if (copyOffset < 0 || baseLen - copySize < copyOffset)
+					throw new IllegalArgumentException("copy past end of base");
 				System.arraycopy(base, copyOffset, result, resultPtr, copySize);
 				resultPtr += copySize;
 			} else if (cmd != 0) {
@@ -130,6 +188,8 @@ public static final byte[] apply(final byte[] base, final byte[] delta) {
 			}
 		}
 
-		return result;
+		if (resultPtr != resLen)
+			throw new IllegalArgumentException("result length incorrect");
+		return resultPtr;
 	}
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.util.IntList;
+
+/**
+ * Computes the set of objects reachable from a set of starting points, using
+ * reachability bitmaps where they are available.
+ * <p>
+ * Commits which have a bitmap contribute their entire history in one step;
+ * only commits (and the trees and blobs they introduce) not already covered by
+ * a bitmap need to be walked. Objects that are not in the bitmapped pack are
+ * reported separately, as the bitmap has no position to record them at.
+ */
+abstract class BitmapWalker {
+	/** Objects reachable from the starting points of a walk. */
+	static class Result {
+		/** Positions of the reachable objects in the bitmapped pack. */
+		final BitSet bits;
+
+		/** Reachable objects that are not in the bitmapped pack. */
+		final List<RevObject> extra = new ArrayList<RevObject>();
+
+		/** Path hash code of each object in {@link #extra}. */
+		final IntList extraPathHash = new IntList();
+
+		private final ObjectIdSubclassMap<RevObject> extraMap = new ObjectIdSubclassMap<RevObject>();
+
+		Result(final BitSet bits) {
+			this.bits = bits;
+		}
+
+		void addExtra(final RevObject o, final int pathHash) {
+			if (extraMap.get(o) == null) {
+				extraMap.add(o);
+				extra.add(o);
+				extraPathHash.add(pathHash);
+			}
+		}
+
+		boolean containsExtra(final AnyObjectId id) {
+			return extraMap.get(id) != null;
+		}
+	}
+
+	private final Repository db;
+
+	BitmapWalker(final Repository db) {
+		this.db = db;
+	}
+
+	/**
+	 * Get the stored bitmap of a commit.
+	 * 
+	 * @param commit
+	 *            the commit to look up.
+	 * @return every object reachable from the commit, by position; null if no
+	 *         bitmap is stored for this commit. The caller must not modify
+	 *         the returned set.
+	 * @throws IOException
+	 *             the bitmap cannot be read.
+	 */
+	abstract BitSet getBitmap(AnyObjectId commit) throws IOException;
+
+	/**
+	 * Get the position of an object in the bitmapped pack.
+	 * 
+	 * @param id
+	 *            the object to look up.
+	 * @return position of the object; -1 if it is not in the pack.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	abstract int findPosition(AnyObjectId id) throws IOException;
+
+	/**
+	 * Compute everything reachable from a set of objects.
+	 * 
+	 * @param starts
+	 *            the objects to start from.
+	 * @param ignoreMissing
+	 *            true if starting points missing from the repository should
+	 *            be skipped; false to fail on them.
+	 * @return the reachable objects.
+	 * @throws MissingObjectException
+	 *             a starting point or an object reachable from it does not
+	 *             exist.
+	 * @throws IOException
+	 *             an object or bitmap could not be read.
+	 */
+	Result reach(final Collection<? extends ObjectId> starts,
+			final boolean ignoreMissing) throws MissingObjectException,
+			IOException {
+		final ObjectWalk walker = new ObjectWalk(db);
+		final RevFlag seen = walker.newFlag("BITMAP_SEEN");
+		final List<RevObject> roots = new ArrayList<RevObject>();
+		final List<RevCommit> pending = new ArrayList<RevCommit>();
+		boolean needObjectWalk = false;
+
+		for (final ObjectId id : starts) {
+			RevObject o;
+			try {
+				o = walker.parseAny(id);
+			} catch (MissingObjectException x) {
+				if (ignoreMissing)
+					continue;
+				throw x;
+			}
+			roots.add(o);
+			while (o instanceof RevTag) {
+				needObjectWalk = true;
+				o = ((RevTag) o).getObject();
+				walker.parse(o);
+			}
+			if (o instanceof RevCommit)
+				pending.add((RevCommit) o);
+			else
+				needObjectWalk = true;
+		}
+
+		// Cover as much of the commit graph as we can with stored bitmaps,
+		// remembering the commits that need to be walked by hand.
+		//
+		final Result r = new Result(new BitSet());
+		final List<RevCommit> covered = new ArrayList<RevCommit>();
+		while (!pending.isEmpty()) {
+			final RevCommit c = pending.remove(pending.size() - 1);
+			if (c.has(seen))
+				continue;
+			c.add(seen);
+
+			final int pos = findPosition(c);
+			if (0 <= pos && r.bits.get(pos)) {
+				covered.add(c);
+				continue;
+			}
+			final BitSet b = getBitmap(c);
+			if (b != null) {
+				r.bits.or(b);
+				covered.add(c);
+				continue;
+			}
+
+			needObjectWalk = true;
+			walker.parse(c);
+			for (final RevCommit p : c.getParents())
+				pending.add(p);
+		}
+		walker.disposeFlag(seen);
+		if (!needObjectWalk)
+			return r;
+
+		for (final RevObject o : roots)
+			walker.markStart(o);
+		for (final RevCommit c : covered)
+			walker.markUninteresting(c);
+
+		RevObject o;
+		while ((o = walker.next()) != null)
+			add(r, o, 0);
+		while ((o = walker.nextObject()) != null)
+			add(r, o, walker.getPathHashCode());
+		return r;
+	}
+
+	private void add(final Result r, final RevObject o, final int pathHash)
+			throws IOException {
+		if (o.has(RevFlag.UNINTERESTING))
+			return;
+		final int pos = findPosition(o);
+		if (0 <= pos)
+			r.bits.set(pos);
+		else
+			r.addExtra(o, pathHash);
+	}
+}
@@ -56,13 +56,13 @@
  *            type of object reference used to manage the window data.
  */
 abstract class ByteWindow<T> extends SoftReference<T> {
+	/** True while this window is in the cache table; guarded by its lock. */
 	boolean sizeActive = true;
 
 	ByteWindow<?> chainNext;
 
-	ByteWindow<?> lruPrev;
-
-	ByteWindow<?> lruNext;
+	/** Access tick of the most recent cache hit; guarded by its lock. */
+	long lastAccessed;
 
 	final WindowedFile provider;
 
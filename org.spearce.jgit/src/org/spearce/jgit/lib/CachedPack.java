@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * A pack that can be sent to a client exactly as it is stored.
+ * <p>
+ * A cached pack is a pack holding every object reachable from a set of tip
+ * commits, and no delta against an object outside of itself. A client asking
+ * for all of those tips (and not claiming to have any object) can be sent
+ * the pack file verbatim, followed by whatever objects it needs that are
+ * newer than the tips. The tips are recorded in a <code>.tips</code> file next
+ * to the pack's index, one object id per line; {@link GC} writes one for the
+ * pack it creates.
+ */
+public class CachedPack {
+	private static final int HEADER_SIZE = 12;
+
+	private final PackFile pack;
+
+	private final Set<ObjectId> tips;
+
+	CachedPack(final PackFile pack, final Set<ObjectId> tips) {
+		this.pack = pack;
+		this.tips = Collections.unmodifiableSet(tips);
+	}
+
+	/** @return the pack whose bytes are sent. */
+	public PackFile getPackFile() {
+		return pack;
+	}
+
+	/** @return the commits whose entire history is in the pack. */
+	public Set<ObjectId> getTips() {
+		return tips;
+	}
+
+	/**
+	 * @return number of objects in the pack.
+	 * @throws IOException
+	 *             the pack's index cannot be read.
+	 */
+	public long getObjectCount() throws IOException {
+		return pack.getObjectCount();
+	}
+
+	/**
+	 * Determine if the pack holds an object.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return true if the object is in the pack.
+	 * @throws IOException
+	 *             the pack's index cannot be read.
+	 */
+	public boolean hasObject(final AnyObjectId id) throws IOException {
+		return pack.hasObject(id);
+	}
+
+	/**
+	 * Copy the whole pack file, header and trailer included.
+	 * <p>
+	 * If <code>out</code> is a {@link FileOutputStream} the data is moved with
+	 * {@link FileChannel#transferTo} to its channel, letting the operating
+	 * system copy between the files directly. Any other stream has no channel
+	 * to transfer to, and the data is copied through a buffer.
+	 *
+	 * @param out
+	 *            stream to copy the pack to. It is not flushed.
+	 * @throws IOException
+	 *             the pack cannot be read, or the stream cannot be written.
+	 */
+	void copyAsIs(final OutputStream out) throws IOException {
+		final FileInputStream in = new FileInputStream(pack.getPackFile());
+		try {
+			final FileChannel fc = in.getChannel();
+			checkHeader(fc);
+			final WritableByteChannel dst;
+			if (out instanceof FileOutputStream)
+				dst = ((FileOutputStream) out).getChannel();
+			else
+				dst = Channels.newChannel(out);
+			final long end = fc.size();
+			long pos = 0;
+			while (pos < end)
+				pos += fc.transferTo(pos, end - pos, dst);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Copy the objects of the pack, without its header and trailer.
+	 * <p>
+	 * The caller writes its own header, counting these objects as well as the
+	 * ones it appends, and computes its own trailing checksum.
+	 *
+	 * @param out
+	 *            stream to copy the objects to.
+	 * @param buf
+	 *            temporary buffer to copy through.
+	 * @throws IOException
+	 *             the pack cannot be read, or the stream cannot be written.
+	 */
+	void copyObjects(final OutputStream out, final byte[] buf)
+			throws IOException {
+		final FileInputStream in = new FileInputStream(pack.getPackFile());
+		try {
+			final FileChannel fc = in.getChannel();
+			checkHeader(fc);
+			final ByteBuffer bb = ByteBuffer.wrap(buf);
+			long remaining = fc.size() - HEADER_SIZE
+					- Constants.OBJECT_ID_LENGTH;
+			while (remaining > 0) {
+				bb.clear();
+				if (remaining < buf.length)
+					bb.limit((int) remaining);
+				final int n = fc.read(bb);
+				if (n < 0)
+					throw new IOException("Cached pack " + pack.getPackFile()
+							+ " is truncated");
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void checkHeader(final FileChannel fc) throws IOException {
+		final byte[] hdr = new byte[HEADER_SIZE];
+		final ByteBuffer bb = ByteBuffer.wrap(hdr);
+		while (bb.hasRemaining()) {
+			if (fc.read(bb) < 0)
+				break;
+		}
+		final byte[] sig = Constants.PACK_SIGNATURE;
+		boolean ok = !bb.hasRemaining();
+		for (int k = 0; ok && k < sig.length; k++)
+			ok = hdr[k] == sig[k];
+		if (!ok || NB.decodeUInt32(hdr, 8) != getObjectCount()
+				|| fc.size() < HEADER_SIZE + Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Cached pack " + pack.getPackFile()
+					+ " does not match its index");
+	}
+
+	/**
+	 * Read a <code>.tips</code> file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the object ids listed in the file.
+	 * @throws IOException
+	 *             the file cannot be read, or holds a line that is not an
+	 *             object id.
+	 */
+	static Set<ObjectId> readTips(final File file) throws IOException {
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		final BufferedReader br = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				try {
+					r.add(ObjectId.fromString(line));
+				} catch (IllegalArgumentException notId) {
+					throw new IOException("Bad line in " + file + ": " + line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return r;
+	}
+
+	/**
+	 * Write a <code>.tips</code> file.
+	 *
+	 * @param out
+	 *            stream to write the file to. Caller is responsible for
+	 *            closing it.
+	 * @param tips
+	 *            the tips of the pack.
+	 * @throws IOException
+	 *             the stream cannot be written.
+	 */
+	static void writeTips(final OutputStream out,
+			final Collection<? extends ObjectId> tips) throws IOException {
+		final List<ObjectId> sorted = new ArrayList<ObjectId>(tips);
+		Collections.sort(sorted, new Comparator<ObjectId>() {
+			public int compare(final ObjectId a, final ObjectId b) {
+				return a.compareTo(b);
+			}
+		});
+		for (final ObjectId id : sorted) {
+			id.copyTo(out);
+			out.write('\n');
+		}
+	}
+}
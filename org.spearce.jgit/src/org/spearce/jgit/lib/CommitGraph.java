@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Stores the headers of many commits for fast history traversal.
+ * <p>
+ * For every commit it covers, a commit-graph records the tree, the parents,
+ * the commit time and the generation number. A revision walk can take these
+ * from the graph instead of inflating and parsing each commit object. The
+ * parents of a covered commit are always covered too.
+ * <p>
+ * The generation number of a commit without parents is 1. Any other commit
+ * is one more than the highest generation of its parents. A commit can
+ * therefore never reach a commit of equal or higher generation.
+ * <p>
+ * The file layout is the <code>commit-graph</code> format of C Git, without
+ * split graph chains.
+ */
+public class CommitGraph {
+	/** Location of the file, within the <code>objects</code> directory. */
+	public static final String FILE_NAME = "info/commit-graph";
+
+	/** Parent position recorded for a missing parent. */
+	static final int NO_PARENT = 0x70000000;
+
+	/** Marks an index into the extra edge list, or the last edge of a list. */
+	static final int EDGE_MASK = 0x80000000;
+
+	/** Largest generation number the file format can record. */
+	public static final int GENERATION_MAX = 0x3fffffff;
+
+	static final byte[] SIGNATURE = { 'C', 'G', 'P', 'H' };
+
+	static final int VERSION = 1;
+
+	static final int OID_VERSION_SHA1 = 1;
+
+	static final int HEADER_SIZE = 8;
+
+	static final int CHUNK_LOOKUP_WIDTH = 12;
+
+	static final int CHUNK_OIDFANOUT = 0x4f494446;
+
+	static final int CHUNK_OIDLOOKUP = 0x4f49444c;
+
+	static final int CHUNK_COMMITDATA = 0x43444154;
+
+	static final int CHUNK_EXTRAEDGES = 0x45444745;
+
+	static final int COMMIT_DATA_WIDTH = Constants.OBJECT_ID_LENGTH + 16;
+
+	/**
+	 * Read an existing commit-graph file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the graph.
+	 * @throws IOException
+	 *             the file cannot be read, or is not a supported commit-graph.
+	 */
+	public static CommitGraph open(final File file) throws IOException {
+		try {
+			final long len = file.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Commit-graph is too large for jgit");
+			final byte[] buf = new byte[(int) len];
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				NB.readFully(in, buf, 0, buf.length);
+			} finally {
+				in.close();
+			}
+			return new CommitGraph(buf);
+		} catch (IOException ioe) {
+			final IOException err;
+			err = new IOException("Unreadable commit-graph: "
+					+ file.getAbsolutePath());
+			err.initCause(ioe);
+			throw err;
+		}
+	}
+
+	private final byte[] data;
+
+	private final int[] fanoutTable;
+
+	private final int commitCnt;
+
+	private final int oidLookup;
+
+	private final int commitData;
+
+	private final int extraEdges;
+
+	private CommitGraph(final byte[] buf) throws IOException {
+		data = buf;
+		if (buf.length < HEADER_SIZE + CHUNK_LOOKUP_WIDTH
+				+ Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Commit-graph is truncated");
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (buf[i] != SIGNATURE[i])
+				throw new IOException("Not a commit-graph");
+		}
+		if (buf[4] != VERSION)
+			throw new IOException("Unsupported commit-graph version " + buf[4]);
+		if (buf[5] != OID_VERSION_SHA1)
+			throw new IOException("Unsupported object id version " + buf[5]);
+		if (buf[7] != 0)
+			throw new IOException("Commit-graph chains are not supported");
+		final int chunkCnt = buf[6] & 0xff;
+		final int end = buf.length - Constants.OBJECT_ID_LENGTH;
+
+		int fanout = -1;
+		int lookup = -1;
+		int cdat = -1;
+		int edges = -1;
+		int p = HEADER_SIZE;
+		for (int i = 0; i < chunkCnt; i++, p += CHUNK_LOOKUP_WIDTH) {
+			if (p + 2 * CHUNK_LOOKUP_WIDTH > end)
+				throw new IOException("Commit-graph is truncated");
+			final int id = NB.decodeInt32(buf, p);
+			final long start = NB.decodeUInt64(buf, p + 4);
+			final long next = NB.decodeUInt64(buf, p + 4 + CHUNK_LOOKUP_WIDTH);
+			if (start < 0 || next < start || end < next)
+				throw new IOException("Commit-graph has a bad chunk table");
+			switch (id) {
+			case CHUNK_OIDFANOUT:
+				fanout = (int) start;
+				break;
+			case CHUNK_OIDLOOKUP:
+				lookup = (int) start;
+				break;
+			case CHUNK_COMMITDATA:
+				cdat = (int) start;
+				break;
+			case CHUNK_EXTRAEDGES:
+				edges = (int) start;
+				break;
+			default:
+				// Chunks we do not understand are optional; skip them.
+				break;
+			}
+		}
+		if (fanout < 0 || lookup < 0 || cdat < 0)
+			throw new IOException("Commit-graph is missing a chunk");
+
+		fanoutTable = new int[256];
+		for (int k = 0; k < 256; k++)
+			fanoutTable[k] = NB.decodeInt32(buf, fanout + 4 * k);
+		commitCnt = fanoutTable[255];
+		if (commitCnt < 0
+				|| lookup + (long) commitCnt * Constants.OBJECT_ID_LENGTH > end
+				|| cdat + (long) commitCnt * COMMIT_DATA_WIDTH > end)
+			throw new IOException("Commit-graph is truncated");
+		oidLookup = lookup;
+		commitData = cdat;
+		extraEdges = edges;
+	}
+
+	/** @return number of commits in the graph. */
+	public int getCommitCount() {
+		return commitCnt;
+	}
+
+	/**
+	 * Find a commit in the graph.
+	 *
+	 * @param id
+	 *            the commit to look for.
+	 * @return position of the commit in the graph; -1 if it is not covered.
+	 */
+	public int findPosition(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne > 0 ? fanoutTable[levelOne - 1] : 0;
+		int high = fanoutTable[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(data, oidLookup + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @param dst
+	 *            receives the name of the commit.
+	 */
+	public void copyObjectId(final int pos, final MutableObjectId dst) {
+		dst.fromRaw(data, oidLookup + pos * Constants.OBJECT_ID_LENGTH);
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @param dst
+	 *            receives the name of the commit's tree.
+	 */
+	public void copyTreeId(final int pos, final MutableObjectId dst) {
+		dst.fromRaw(data, commitData + pos * COMMIT_DATA_WIDTH);
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @return number of parents of the commit.
+	 */
+	public int getParentCount(final int pos) {
+		final int p = commitData + pos * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH;
+		if (NB.decodeInt32(data, p) == NO_PARENT)
+			return 0;
+		final int second = NB.decodeInt32(data, p + 4);
+		if (second == NO_PARENT)
+			return 1;
+		if ((second & EDGE_MASK) == 0)
+			return 2;
+		int e = extraEdges + 4 * (second & ~EDGE_MASK);
+		int n = 2;
+		while ((NB.decodeInt32(data, e) & EDGE_MASK) == 0) {
+			e += 4;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @param nth
+	 *            which parent, starting from 0.
+	 * @return position of the parent in the graph.
+	 */
+	public int getParent(final int pos, final int nth) {
+		final int p = commitData + pos * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH;
+		if (nth == 0)
+			return NB.decodeInt32(data, p);
+		final int second = NB.decodeInt32(data, p + 4);
+		if ((second & EDGE_MASK) == 0)
+			return second;
+		return NB.decodeInt32(data, extraEdges + 4
+				* ((second & ~EDGE_MASK) + nth - 1))
+				& ~EDGE_MASK;
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @return generation number of the commit.
+	 */
+	public int getGeneration(final int pos) {
+		final int p = commitData + pos * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH + 8;
+		return NB.decodeInt32(data, p) >>> 2;
+	}
+
+	/**
+	 * @param pos
+	 *            position of a commit in the graph.
+	 * @return committer time of the commit, in seconds since the epoch.
+	 */
+	public long getCommitTime(final int pos) {
+		final int p = commitData + pos * COMMIT_DATA_WIDTH
+				+ Constants.OBJECT_ID_LENGTH + 8;
+		final long high = NB.decodeInt32(data, p) & 0x3;
+		return (high << 32) | NB.decodeUInt32(data, p + 4);
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.IntList;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates a {@link CommitGraph} of every commit reachable from a ref.
+ */
+public class CommitGraphWriter {
+	/** Title of the progress task finding the commits to store. */
+	public static final String FINDING_COMMITS_PROGRESS = "Finding commits";
+
+	/** Title of the progress task writing the commit data. */
+	public static final String WRITING_GRAPH_PROGRESS = "Writing commit-graph";
+
+	private final Repository repo;
+
+	private ProgressMonitor pm = NullProgressMonitor.INSTANCE;
+
+	/**
+	 * Create a writer for a repository's commit-graph.
+	 *
+	 * @param repo
+	 *            the repository to describe.
+	 */
+	public CommitGraphWriter(final Repository repo) {
+		this.repo = repo;
+	}
+
+	/**
+	 * @param pm
+	 *            monitor to report progress to; null for none.
+	 */
+	public void setProgressMonitor(final ProgressMonitor pm) {
+		this.pm = pm != null ? pm : NullProgressMonitor.INSTANCE;
+	}
+
+	/**
+	 * Write the repository's <code>objects/info/commit-graph</code> file.
+	 *
+	 * @return number of commits stored in the graph.
+	 * @throws IOException
+	 *             a commit could not be read, or the file could not be
+	 *             written.
+	 */
+	public int write() throws IOException {
+		final File file = new File(repo.getObjectsDirectory(),
+				CommitGraph.FILE_NAME);
+		file.getParentFile().mkdirs();
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + file);
+		final int cnt;
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				cnt = write(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + file);
+		return cnt;
+	}
+
+	/**
+	 * Write a commit-graph of every commit reachable from a ref.
+	 * <p>
+	 * After writing the stream is flushed but remains open. Callers are
+	 * always responsible for closing the output stream.
+	 *
+	 * @param dst
+	 *            the stream the graph will be written to. If not already
+	 *            buffered it will be automatically wrapped in a buffered
+	 *            stream.
+	 * @return number of commits stored in the graph.
+	 * @throws IOException
+	 *             a commit could not be read, the stream could not be written
+	 *             to, or the repository is shallow. The graph would record
+	 *             the shallow commits as roots, hiding history fetched later.
+	 */
+	public int write(final OutputStream dst) throws IOException {
+		if (!repo.getShallowCommits().isEmpty())
+			throw new IOException("Cannot write a commit-graph"
+					+ " in a shallow repository");
+		final RevWalk rw = new RevWalk(repo);
+		try {
+			final List<RevCommit> commits = findCommits(rw);
+			write(dst, commits, computeGenerations(commits));
+			return commits.size();
+		} finally {
+			rw.dispose();
+		}
+	}
+
+	private List<RevCommit> findCommits(final RevWalk rw) throws IOException {
+		pm.beginTask(FINDING_COMMITS_PROGRESS, ProgressMonitor.UNKNOWN);
+		for (final Ref r : repo.getAllRefs().values()) {
+			if (r.getObjectId() == null)
+				continue;
+			try {
+				rw.markStart(rw.parseCommit(r.getObjectId()));
+			} catch (IncorrectObjectTypeException notCommit) {
+				// Refs may name trees or blobs; these have no history.
+				continue;
+			} catch (MissingObjectException broken) {
+				continue;
+			}
+		}
+		final List<RevCommit> commits = new ArrayList<RevCommit>();
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			commits.add(c);
+			pm.update(1);
+		}
+		Collections.sort(commits, new Comparator<RevCommit>() {
+			public int compare(final RevCommit a, final RevCommit b) {
+				return a.compareTo(b);
+			}
+		});
+		pm.endTask();
+		return commits;
+	}
+
+	private static int[] computeGenerations(final List<RevCommit> commits) {
+		final int[] gen = new int[commits.size()];
+		int[] stack = new int[64];
+		for (int i = 0; i < gen.length; i++) {
+			if (gen[i] != 0)
+				continue;
+			int top = 0;
+			stack[top++] = i;
+			while (top > 0) {
+				final int c = stack[top - 1];
+				if (gen[c] != 0) {
+					top--;
+					continue;
+				}
+				int max = 0;
+				boolean ready = true;
+				for (final RevCommit p : commits.get(c).getParents()) {
+					final int pos = position(commits, p);
+					if (gen[pos] == 0) {
+						if (top == stack.length) {
+							final int[] n = new int[2 * stack.length];
+							System.arraycopy(stack, 0, n, 0, top);
+							stack = n;
+						}
+						stack[top++] = pos;
+						ready = false;
+					} else if (max < gen[pos])
+						max = gen[pos];
+				}
+				if (ready) {
+					gen[c] = Math.min(max + 1, CommitGraph.GENERATION_MAX);
+					top--;
+				}
+			}
+		}
+		return gen;
+	}
+
+	private static int position(final List<RevCommit> commits,
+			final RevCommit c) {
+		int low = 0;
+		int high = commits.size();
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = c.compareTo(commits.get(mid));
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		throw new IllegalStateException("Parent " + c.name()
+				+ " was not walked");
+	}
+
+	private void write(final OutputStream dst, final List<RevCommit> commits,
+			final int[] gen) throws IOException {
+		final int cnt = commits.size();
+		final IntList edges = new IntList();
+		final int[] fanout = new int[256];
+		for (final RevCommit c : commits)
+			fanout[c.getFirstByte()]++;
+		for (final RevCommit c : commits) {
+			if (c.getParentCount() > 2) {
+				for (int i = 1; i < c.getParentCount(); i++) {
+					int pos = position(commits, c.getParent(i));
+					if (i == c.getParentCount() - 1)
+						pos |= CommitGraph.EDGE_MASK;
+					edges.add(pos);
+				}
+			}
+		}
+
+		final int chunkCnt = edges.size() > 0 ? 4 : 3;
+		final long[] chunkStart = new long[chunkCnt + 1];
+		chunkStart[0] = CommitGraph.HEADER_SIZE + (chunkCnt + 1)
+				* CommitGraph.CHUNK_LOOKUP_WIDTH;
+		chunkStart[1] = chunkStart[0] + 256 * 4;
+		chunkStart[2] = chunkStart[1] + (long) cnt * Constants.OBJECT_ID_LENGTH;
+		chunkStart[3] = chunkStart[2] + (long) cnt
+				* CommitGraph.COMMIT_DATA_WIDTH;
+		if (edges.size() > 0)
+			chunkStart[4] = chunkStart[3] + 4L * edges.size();
+		final int[] chunkIds = { CommitGraph.CHUNK_OIDFANOUT,
+				CommitGraph.CHUNK_OIDLOOKUP, CommitGraph.CHUNK_COMMITDATA,
+				CommitGraph.CHUNK_EXTRAEDGES };
+
+		final DigestOutputStream out = new DigestOutputStream(
+				dst instanceof BufferedOutputStream ? dst
+						: new BufferedOutputStream(dst), Constants
+						.newMessageDigest());
+		final byte[] tmp = new byte[CommitGraph.COMMIT_DATA_WIDTH];
+
+		out.write(CommitGraph.SIGNATURE);
+		out.write(CommitGraph.VERSION);
+		out.write(CommitGraph.OID_VERSION_SHA1);
+		out.write(chunkCnt);
+		out.write(0);
+		for (int i = 0; i <= chunkCnt; i++) {
+			NB.encodeInt32(tmp, 0, i < chunkCnt ? chunkIds[i] : 0);
+			NB.encodeInt64(tmp, 4, chunkStart[i]);
+			out.write(tmp, 0, CommitGraph.CHUNK_LOOKUP_WIDTH);
+		}
+
+		int total = 0;
+		for (int k = 0; k < 256; k++) {
+			total += fanout[k];
+			NB.encodeInt32(tmp, 0, total);
+			out.write(tmp, 0, 4);
+		}
+
+		pm.beginTask(WRITING_GRAPH_PROGRESS, cnt);
+		for (final RevCommit c : commits) {
+			c.copyRawTo(tmp, 0);
+			out.write(tmp, 0, Constants.OBJECT_ID_LENGTH);
+		}
+
+		int nextEdge = 0;
+		for (int i = 0; i < cnt; i++) {
+			final RevCommit c = commits.get(i);
+			c.getTree().copyRawTo(tmp, 0);
+			int p = Constants.OBJECT_ID_LENGTH;
+			final int n = c.getParentCount();
+			NB.encodeInt32(tmp, p, n > 0 ? position(commits, c.getParent(0))
+					: CommitGraph.NO_PARENT);
+			if (n == 2)
+				NB.encodeInt32(tmp, p + 4, position(commits, c.getParent(1)));
+			else if (n > 2) {
+				NB.encodeInt32(tmp, p + 4, CommitGraph.EDGE_MASK | nextEdge);
+				nextEdge += n - 1;
+			} else
+				NB.encodeInt32(tmp, p + 4, CommitGraph.NO_PARENT);
+
+			final long time = c.getCommitTime() & 0xffffffffL;
+			NB.encodeInt32(tmp, p + 8, gen[i] << 2 | (int) (time >>> 32));
+			NB.encodeInt32(tmp, p + 12, (int) time);
+			out.write(tmp, 0, CommitGraph.COMMIT_DATA_WIDTH);
+			pm.update(1);
+		}
+
+		for (int i = 0; i < edges.size(); i++) {
+			NB.encodeInt32(tmp, 0, edges.get(i));
+			out.write(tmp, 0, 4);
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+		pm.endTask();
+	}
+}
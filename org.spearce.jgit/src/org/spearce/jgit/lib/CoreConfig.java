@@ -46,14 +46,31 @@
 public class CoreConfig {
 	private static final int DEFAULT_COMPRESSION = Deflater.DEFAULT_COMPRESSION;
 	private static final int DEFAULT_INDEXVERSION = 2;
+	private static final int DEFAULT_STREAM_FILE_THRESHOLD = 50 * 1024 * 1024;
 
 	private final int compression;
 
 	private final int packIndexVersion;
 
+	private final int streamFileThreshold;
+
+	private final boolean packedIndexMmap;
+
+	private final boolean indexMmap;
+
+	private final boolean multiPackIndex;
+
+	private final boolean commitGraph;
+
 	CoreConfig(final RepositoryConfig rc) {
 		compression = rc.getInt("core", "compression", DEFAULT_COMPRESSION);
 		packIndexVersion = rc.getInt("pack", "indexversion", DEFAULT_INDEXVERSION);
+		streamFileThreshold = rc.getInt("core", "streamfilethreshold",
+				DEFAULT_STREAM_FILE_THRESHOLD);
+		packedIndexMmap = rc.getBoolean("core", "packedindexmmap", false);
+		indexMmap = rc.getBoolean("core", "indexmmap", false);
+		multiPackIndex = rc.getBoolean("core", "multipackindex", true);
+		commitGraph = rc.getBoolean("core", "commitgraph", true);
 	}
 
 	/**
@@ -71,4 +88,49 @@ public int getCompression() {
 	public int getPackIndexVersion() {
 		return packIndexVersion;
 	}
+
+	/**
+	 * @return objects larger than this many bytes are streamed rather than
+	 *         loaded into memory as a whole, and are not delta compressed.
+	 * @see ObjectLoader#openStream()
+	 */
+	public int getStreamFileThreshold() {
+		return streamFileThreshold;
+	}
+
+	/**
+	 * @return true if pack indexes should be memory mapped and searched in
+	 *         place, rather than read onto the heap.
+	 * @see PackIndex#open(java.io.File, boolean)
+	 */
+	public boolean isPackedIndexMmap() {
+		return packedIndexMmap;
+	}
+
+	/**
+	 * @return true if the index file should be memory mapped, with its
+	 *         entries decoded only when they are asked for.
+	 * @see org.spearce.jgit.dircache.DirCache#read(java.io.File, boolean)
+	 */
+	public boolean isIndexMmap() {
+		return indexMmap;
+	}
+
+	/**
+	 * @return true if a multi-pack index, when present, should be used to
+	 *         locate objects instead of searching each pack index.
+	 * @see MultiPackIndex
+	 */
+	public boolean isMultiPackIndex() {
+		return multiPackIndex;
+	}
+
+	/**
+	 * @return true if a commit-graph, when present, should be used to parse
+	 *         commits instead of reading the commit objects.
+	 * @see CommitGraph
+	 */
+	public boolean isCommitGraph() {
+		return commitGraph;
+	}
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches recently inflated objects of pack files, so deltas based on them can
+ * be applied without inflating the base again.
+ * <p>
+ * Entries are chained in a hash table striped across a fixed set of locks,
+ * letting threads reading different objects proceed in parallel. Once the
+ * cached objects exceed the configured number of bytes the least recently
+ * used entry among a sample of the table is evicted. Entries are also held
+ * through soft references, so the garbage collector may reclaim them early
+ * under memory pressure.
+ */
+public class DeltaBaseCache {
+	private static final int MB = 1024 * 1024;
+
+	/** Byte limit used until {@link WindowCache#reconfigure} changes it. */
+	static final int DEFAULT_LIMIT = 10 * MB;
+
+	/** Number of locks the cache table is striped across. */
+	private static final int LOCK_COUNT = 32;
+
+	/** Number of buckets in the table; a multiple of {@link #LOCK_COUNT}. */
+	private static final int TABLE_SIZE = 64 * LOCK_COUNT;
+
+	/** Minimum number of entries compared to pick an eviction victim. */
+	private static final int EVICT_SAMPLE = 16;
+
+	private static volatile int maxByteCount;
+
+	/**
+	 * Locks guarding the cache table.
+	 * <p>
+	 * Bucket <code>i</code> is guarded by <code>locks[i % LOCK_COUNT]</code>.
+	 */
+	private static final ReentrantLock[] locks;
+
+	private static final Slot[] table;
+
+	private static final AtomicInteger openByteCount;
+
+	private static final AtomicLong accessClock;
+
+	private static final AtomicInteger evictHand;
+
+	private static final AtomicLong hitCount;
+
+	private static final AtomicLong missCount;
+
+	private static final AtomicLong evictCount;
+
+	static {
+		maxByteCount = DEFAULT_LIMIT;
+		locks = new ReentrantLock[LOCK_COUNT];
+		for (int i = 0; i < LOCK_COUNT; i++)
+			locks[i] = new ReentrantLock();
+		table = new Slot[TABLE_SIZE];
+		openByteCount = new AtomicInteger();
+		accessClock = new AtomicLong();
+		evictHand = new AtomicInteger();
+		hitCount = new AtomicLong();
+		missCount = new AtomicLong();
+		evictCount = new AtomicLong();
+	}
+
+	/** @return number of lookups that found their object in the cache. */
+	public static long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** @return number of lookups that did not find their object. */
+	public static long getMissCount() {
+		return missCount.get();
+	}
+
+	/** @return number of entries removed to stay within the byte limit. */
+	public static long getEvictionCount() {
+		return evictCount.get();
+	}
+
+	/** @return number of bytes currently held by the cache. */
+	public static int getOpenByteCount() {
+		return openByteCount.get();
+	}
+
+	static void reconfigure(final int dbLimit) {
+		if (maxByteCount != dbLimit) {
+			maxByteCount = dbLimit;
+			releaseMemory();
+		}
+	}
+
+	static boolean canCache(final long size) {
+		return size <= maxByteCount;
+	}
+
+	static Entry get(final WindowedFile pack, final long position) {
+		final int h = hash(pack, position);
+		Slot dead = null;
+		Entry r = null;
+		final ReentrantLock lock = lockFor(h);
+		lock.lock();
+		try {
+			for (Slot e = table[h]; e != null; e = e.chainNext) {
+				if (e.provider == pack && e.position == position) {
+					r = e.data.get();
+					if (r != null)
+						e.lastAccessed = accessClock.incrementAndGet();
+					else {
+						unlink(h, e);
+						dead = e;
+					}
+					break;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (dead != null)
+			openByteCount.addAndGet(-dead.sz);
+		if (r != null)
+			hitCount.incrementAndGet();
+		else
+			missCount.incrementAndGet();
+		return r;
+	}
+
+	static void store(final WindowedFile pack, final long position,
+			final byte[] data, final int objectType) {
+		if (data.length > maxByteCount)
+			return; // Too large to cache.
+
+		final int h = hash(pack, position);
+		final Slot n = new Slot(pack, position, data, objectType);
+		int released = 0;
+		final ReentrantLock lock = lockFor(h);
+		lock.lock();
+		try {
+			for (Slot e = table[h]; e != null; e = e.chainNext) {
+				if (e.provider == pack && e.position == position) {
+					unlink(h, e);
+					released = e.sz;
+					break;
+				}
+			}
+			n.lastAccessed = accessClock.incrementAndGet();
+			n.chainNext = table[h];
+			table[h] = n;
+		} finally {
+			lock.unlock();
+		}
+		openByteCount.addAndGet(n.sz - released);
+		releaseMemory();
+	}
+
+	/**
+	 * Remove all entries of a pack.
+	 * <p>
+	 * Only one lock stripe is held at a time, so lookups in the rest of the
+	 * table continue while the pack is being purged.
+	 *
+	 * @param pack
+	 *            the pack whose entries should be removed from the cache.
+	 */
+	static void purge(final WindowedFile pack) {
+		for (int s = 0; s < LOCK_COUNT; s++) {
+			int released = 0;
+			final ReentrantLock lock = locks[s];
+			lock.lock();
+			try {
+				for (int idx = s; idx < TABLE_SIZE; idx += LOCK_COUNT) {
+					for (Slot e = table[idx], n; e != null; e = n) {
+						n = e.chainNext;
+						if (e.provider == pack) {
+							unlink(idx, e);
+							released += e.sz;
+						}
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			openByteCount.addAndGet(-released);
+		}
+	}
+
+	private static void releaseMemory() {
+		while (openByteCount.get() > maxByteCount) {
+			if (!evictOldest())
+				break;
+		}
+	}
+
+	/**
+	 * Evict the least recently used entry among a sample of the table.
+	 * <p>
+	 * Lock stripes are scanned in turn, starting where the previous eviction
+	 * stopped, until at least {@link #EVICT_SAMPLE} entries were compared or
+	 * the entire table was examined.
+	 *
+	 * @return true if the caller should continue trying to evict; false if
+	 *         the table was found to be empty.
+	 */
+	private static boolean evictOldest() {
+		Slot oldest = null;
+		int oldestIdx = 0;
+		int sampled = 0;
+		for (int k = 0; k < LOCK_COUNT && sampled < EVICT_SAMPLE; k++) {
+			final int s = (evictHand.getAndIncrement() & 0x7fffffff)
+					% LOCK_COUNT;
+			final ReentrantLock lock = locks[s];
+			lock.lock();
+			try {
+				for (int idx = s; idx < TABLE_SIZE; idx += LOCK_COUNT) {
+					for (Slot e = table[idx]; e != null; e = e.chainNext) {
+						if (oldest == null
+								|| e.lastAccessed < oldest.lastAccessed) {
+							oldest = e;
+							oldestIdx = idx;
+						}
+						sampled++;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (oldest == null)
+			return false;
+
+		final ReentrantLock lock = lockFor(oldestIdx);
+		lock.lock();
+		try {
+			if (!oldest.live)
+				return true;
+			unlink(oldestIdx, oldest);
+		} finally {
+			lock.unlock();
+		}
+		openByteCount.addAndGet(-oldest.sz);
+		evictCount.incrementAndGet();
+		return true;
+	}
+
+	/** Remove an entry from its bucket; caller must hold the bucket lock. */
+	private static void unlink(final int idx, final Slot dead) {
+		Slot e = table[idx], p = null, n;
+		for (; e != null; p = e, e = n) {
+			n = e.chainNext;
+			if (e == dead) {
+				if (p == null)
+					table[idx] = n;
+				else
+					p.chainNext = n;
+				break;
+			}
+		}
+		dead.chainNext = null;
+		dead.live = false;
+	}
+
+	private static ReentrantLock lockFor(final int idx) {
+		return locks[idx % LOCK_COUNT];
+	}
+
+	private static int hash(final WindowedFile pack, final long position) {
+		// pack.hash was already "stirred up" a bit by * 31 when
+		// it was created. Mixing in the position the same way
+		// spreads the objects of one pack across the table.
+		//
+		final int p = (int) (position ^ (position >>> 32));
+		return ((pack.hash + p * 31) >>> 1) % TABLE_SIZE;
+	}
+
+	private DeltaBaseCache() {
+		throw new UnsupportedOperationException();
+	}
+
+	static class Entry {
+		final byte[] data;
+
+		final int type;
+
+		Entry(final byte[] aData, final int aType) {
+			data = aData;
+			type = aType;
+		}
+	}
+
+	private static class Slot {
+		final WindowedFile provider;
+
+		final long position;
+
+		final int sz;
+
+		final SoftReference<Entry> data;
+
+		long lastAccessed;
+
+		Slot chainNext;
+
+		boolean live = true;
+
+		Slot(final WindowedFile pack, final long pos, final byte[] d,
+				final int type) {
+			provider = pack;
+			position = pos;
+			sz = d.length;
+			data = new SoftReference<Entry>(new Entry(d, type));
+		}
+	}
+}
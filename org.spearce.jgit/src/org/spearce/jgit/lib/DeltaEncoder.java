@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Encodes an instruction stream for {@link BinaryDelta}.
+ * <p>
+ * The encoder buffers the instructions in memory. Callers may supply a limit
+ * on the size of the delta; once an instruction would exceed it the encoder
+ * refuses further input, allowing the caller to abandon a delta that is not
+ * worth storing.
+ */
+final class DeltaEncoder {
+	/** Largest copy a single instruction produces, for old readers. */
+	private static final int MAX_COPY = 0x10000;
+
+	/** Largest number of literal bytes a single instruction carries. */
+	private static final int MAX_INSERT = 0x7f;
+
+	private final int limit;
+
+	private byte[] buf;
+
+	private int size;
+
+	/**
+	 * Create an encoder.
+	 * 
+	 * @param baseSize
+	 *            size of the base object, in bytes.
+	 * @param resultSize
+	 *            size of the resulting object, after applying this delta.
+	 * @param limit
+	 *            maximum number of bytes the delta may occupy, including its
+	 *            header; 0 for no limit.
+	 */
+	DeltaEncoder(final int baseSize, final int resultSize, final int limit) {
+		this.limit = limit;
+		buf = new byte[Math.max(64, Math.min(limit > 0 ? limit : 1024,
+				resultSize / 2))];
+		writeVarint(baseSize);
+		writeVarint(resultSize);
+	}
+
+	private void writeVarint(int value) {
+		ensure(5);
+		while (value >= 0x80) {
+			buf[size++] = (byte) (0x80 | (value & 0x7f));
+			value >>>= 7;
+		}
+		buf[size++] = (byte) value;
+	}
+
+	/**
+	 * Insert literal bytes into the result.
+	 * 
+	 * @param text
+	 *            buffer holding the literal bytes.
+	 * @param off
+	 *            first position of <code>text</code> to insert.
+	 * @param cnt
+	 *            number of bytes to insert.
+	 * @return true if the instruction fits; false if the limit was exceeded.
+	 */
+	boolean insert(final byte[] text, int off, int cnt) {
+		if (cnt <= 0)
+			return true;
+		final int need = cnt + (cnt + MAX_INSERT - 1) / MAX_INSERT;
+		if (0 < limit && limit < size + need)
+			return false;
+		ensure(need);
+		while (cnt > 0) {
+			final int n = Math.min(cnt, MAX_INSERT);
+			buf[size++] = (byte) n;
+			System.arraycopy(text, off, buf, size, n);
+			size += n;
+			off += n;
+			cnt -= n;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a region of the base object into the result.
+	 * 
+	 * @param offset
+	 *            position within the base object to copy from.
+	 * @param cnt
+	 *            number of bytes to copy.
+	 * @return true if the instruction fits; false if the limit was exceeded.
+	 */
+	boolean copy(int offset, int cnt) {
+		while (cnt > 0) {
+			final int n = Math.min(cnt, MAX_COPY);
+			if (0 < limit && limit < size + 8)
+				return false;
+			ensure(8);
+
+			final int cmdPtr = size++;
+			int cmd = 0x80;
+			if ((offset & 0xff) != 0) {
+				cmd |= 0x01;
+				buf[size++] = (byte) offset;
+			}
+			if ((offset & 0xff00) != 0) {
+				cmd |= 0x02;
+				buf[size++] = (byte) (offset >>> 8);
+			}
+			if ((offset & 0xff0000) != 0) {
+				cmd |= 0x04;
+				buf[size++] = (byte) (offset >>> 16);
+			}
+			if ((offset & 0xff000000) != 0) {
+				cmd |= 0x08;
+				buf[size++] = (byte) (offset >>> 24);
+			}
+
+			if (n != MAX_COPY) {
+				if ((n & 0xff) != 0) {
+					cmd |= 0x10;
+					buf[size++] = (byte) n;
+				}
+				if ((n & 0xff00) != 0) {
+					cmd |= 0x20;
+					buf[size++] = (byte) (n >>> 8);
+				}
+			}
+			buf[cmdPtr] = (byte) cmd;
+
+			offset += n;
+			cnt -= n;
+		}
+		return true;
+	}
+
+	/** @return current size of the delta, in bytes. */
+	int getSize() {
+		return size;
+	}
+
+	/** @return a copy of the delta instructions. */
+	byte[] toByteArray() {
+		final byte[] r = new byte[size];
+		System.arraycopy(buf, 0, r, 0, size);
+		return r;
+	}
+
+	private void ensure(final int need) {
+		if (buf.length < size + need) {
+			final byte[] n = new byte[Math.max(buf.length * 2, size + need)];
+			System.arraycopy(buf, 0, n, 0, size);
+			buf = n;
+		}
+	}
+}
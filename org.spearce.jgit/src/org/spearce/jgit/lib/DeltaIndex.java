@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Index of blocks in a source buffer, used to compute deltas against it.
+ * <p>
+ * The source is split into {@link #BLKSZ} byte blocks, each of which is
+ * hashed into a table. A result buffer is then scanned with a rolling hash of
+ * the same width; whenever a window of the result hashes to a block of the
+ * source the match is verified and extended in both directions, and a copy
+ * instruction is emitted. Bytes not covered by a match become inserts.
+ * <p>
+ * The instruction stream produced is the format read by {@link BinaryDelta}.
+ */
+final class DeltaIndex {
+	/** Number of bytes in a block of the source. */
+	static final int BLKSZ = 16;
+
+	/** Maximum number of source positions remembered per hash bucket. */
+	private static final int MAX_CHAIN_LENGTH = 64;
+
+	/** Multiplier of the polynomial rolling hash. */
+	private static final int P = 0x01000193;
+
+	/** <code>P</code> raised to <code>BLKSZ - 1</code>. */
+	private static final int P_OUT;
+
+	static {
+		int p = 1;
+		for (int i = 1; i < BLKSZ; i++)
+			p *= P;
+		P_OUT = p;
+	}
+
+	private final byte[] src;
+
+	/** Bucket head; 1 + index into the entry arrays, 0 if empty. */
+	private final int[] table;
+
+	private final int tableMask;
+
+	/** Position in {@link #src} of each indexed block. */
+	private final int[] entryOffset;
+
+	/** 1 + index of the next entry in the same bucket, 0 at end of chain. */
+	private final int[] entryNext;
+
+	/**
+	 * Index a source buffer.
+	 * 
+	 * @param source
+	 *            the base object's content. The buffer is retained by the
+	 *            index and must not be modified while the index is in use.
+	 */
+	DeltaIndex(final byte[] source) {
+		src = source;
+
+		final int blocks = src.length / BLKSZ;
+		final int sz = tableSize(blocks);
+		table = new int[sz];
+		tableMask = sz - 1;
+		entryOffset = new int[blocks];
+		entryNext = new int[blocks];
+
+		final byte[] chainLen = new byte[sz];
+		int entries = 0;
+		for (int ptr = 0; ptr + BLKSZ <= src.length; ptr += BLKSZ) {
+			final int b = bucket(hashBlock(src, ptr));
+			if (chainLen[b] == MAX_CHAIN_LENGTH)
+				continue;
+			chainLen[b]++;
+			entryOffset[entries] = ptr;
+			entryNext[entries] = table[b];
+			table[b] = ++entries;
+		}
+	}
+
+	/**
+	 * Estimate the memory an index for a source would use.
+	 * 
+	 * @param sourceLength
+	 *            length of the source buffer, in bytes.
+	 * @return the value {@link #getIndexSize()} will return once the index is
+	 *         built.
+	 */
+	static long estimateIndexSize(final int sourceLength) {
+		final int blocks = sourceLength / BLKSZ;
+		return 4L * (tableSize(blocks) + 2L * blocks);
+	}
+
+	private static int tableSize(final int blocks) {
+		int sz = 1;
+		while (sz < blocks)
+			sz <<= 1;
+		return sz;
+	}
+
+	/** @return size of the source buffer this index was built from. */
+	int getSourceSize() {
+		return src.length;
+	}
+
+	/**
+	 * @return approximate number of bytes of memory used by the index, not
+	 *         counting the source buffer itself.
+	 */
+	long getIndexSize() {
+		return 4L * (table.length + entryOffset.length + entryNext.length);
+	}
+
+	/**
+	 * Generate a delta that recreates <code>res</code> from the source.
+	 * 
+	 * @param res
+	 *            the desired result of applying the delta to the source.
+	 * @param limit
+	 *            maximum number of bytes the delta may use; 0 for no limit.
+	 * @return the delta instructions; null if the delta would exceed
+	 *         <code>limit</code>.
+	 */
+	byte[] encode(final byte[] res, final int limit) {
+		final DeltaEncoder enc = new DeltaEncoder(src.length, res.length,
+				limit);
+		if (res.length < BLKSZ || entryOffset.length == 0) {
+			if (!enc.insert(res, 0, res.length))
+				return null;
+			return enc.toByteArray();
+		}
+
+		final int end = res.length - BLKSZ;
+		int anchor = 0;
+		int ptr = 0;
+		int hash = hashBlock(res, 0);
+		for (;;) {
+			int bestOffset = 0;
+			int bestLen = 0;
+			for (int e = table[bucket(hash)]; e != 0; e = entryNext[e - 1]) {
+				final int s = entryOffset[e - 1];
+				final int len = matchLength(s, res, ptr);
+				if (bestLen < len) {
+					bestOffset = s;
+					bestLen = len;
+				}
+			}
+
+			if (BLKSZ <= bestLen) {
+				// Extend the match backwards over bytes we have not yet
+				// emitted, they are cheaper to copy than to insert.
+				//
+				while (anchor < ptr && 0 < bestOffset
+						&& src[bestOffset - 1] == res[ptr - 1]) {
+					bestOffset--;
+					ptr--;
+					bestLen++;
+				}
+				if (!enc.insert(res, anchor, ptr - anchor))
+					return null;
+				if (!enc.copy(bestOffset, bestLen))
+					return null;
+				ptr += bestLen;
+				anchor = ptr;
+				if (end < ptr)
+					break;
+				hash = hashBlock(res, ptr);
+
+			} else if (ptr < end) {
+				hash = step(hash, res[ptr], res[ptr + BLKSZ]);
+				ptr++;
+
+			} else
+				break;
+		}
+
+		if (!enc.insert(res, anchor, res.length - anchor))
+			return null;
+		return enc.toByteArray();
+	}
+
+	private int matchLength(final int s, final byte[] res, final int r) {
+		final int max = Math.min(src.length - s, res.length - r);
+		int n = 0;
+		while (n < max && src[s + n] == res[r + n])
+			n++;
+		return n;
+	}
+
+	private int bucket(final int hash) {
+		return (hash ^ (hash >>> 15)) & tableMask;
+	}
+
+	private static int hashBlock(final byte[] raw, final int ptr) {
+		int hash = 0;
+		for (int i = 0; i < BLKSZ; i++)
+			hash = hash * P + (raw[ptr + i] & 0xff);
+		return hash;
+	}
+
+	private static int step(final int hash, final byte out, final byte in) {
+		return (hash - (out & 0xff) * P_OUT) * P + (in & 0xff);
+	}
+}
@@ -38,7 +38,12 @@
 
 package org.spearce.jgit.lib;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.DataFormatException;
 
 import org.spearce.jgit.errors.CorruptObjectException;
@@ -47,31 +52,54 @@
 abstract class DeltaPackedObjectLoader extends PackedObjectLoader {
 	private static final int OBJ_COMMIT = Constants.OBJ_COMMIT;
 
-	private final int deltaSize;
+	/**
+	 * Number of deltas applied between intermediate results that are saved
+	 * into the delta base cache while reconstructing a chain.
+	 */
+	static final int CACHE_SPACING = 8;
+
+	private final long deltaSize;
 
 	DeltaPackedObjectLoader(final WindowCursor curs, final PackFile pr,
-			final long dataOffset, final long objectOffset, final int deltaSz) {
+			final long dataOffset, final long objectOffset, final long deltaSz) {
 		super(curs, pr, dataOffset, objectOffset);
 		objectType = -1;
+		objectSize = -1;
 		deltaSize = deltaSz;
 	}
 
 	public int getType() throws IOException {
-		if (objectType < 0)
-			getCachedBytes();
+		if (objectType < 0) {
+			objectType = pack.resolveType(curs, objectOffset);
+			curs.release();
+			if (objectType < 0)
+				getCachedBytes();
+		}
 		return objectType;
 	}
 
 	public long getSize() throws IOException {
-		if (objectType < 0)
-			getCachedBytes();
+		if (objectSize < 0 && objectType != OBJ_COMMIT) {
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
+			if (cache != null) {
+				objectType = cache.type;
+				objectSize = cache.data.length;
+			}
+		}
+		if (objectSize < 0) {
+			// The size of the result is in the header of the delta,
+			// so only the first few bytes need to be inflated.
+			//
+			objectSize = pack.readDeltaResultSize(curs, dataOffset);
+			curs.release();
+		}
 		return objectSize;
 	}
 
 	@Override
 	public byte[] getCachedBytes() throws IOException {
 		if (objectType != OBJ_COMMIT) {
-			final UnpackedObjectCache.Entry cache = pack.readCache(dataOffset);
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
 			if (cache != null) {
 				curs.release();
 				objectType = cache.type;
@@ -80,16 +108,78 @@ public byte[] getCachedBytes() throws IOException {
 			}
 		}
 
+		// Walk down the chain until an object we can obtain directly is
+		// found: either one in the delta base cache, or a whole object.
+		//
+		final long maxDepth = pack.getObjectCount();
+		final List<DeltaPackedObjectLoader> chain;
+		chain = new ArrayList<DeltaPackedObjectLoader>();
+		DeltaPackedObjectLoader ldr = this;
+		byte[] base;
+		int type;
+		for (;;) {
+			chain.add(ldr);
+			if (chain.size() > maxDepth)
+				throw new CorruptObjectException("Object at " + dataOffset
+						+ " in " + pack.getPackFile() + " has a delta chain loop");
+
+			final PackedObjectLoader b = ldr.getBaseLoader();
+			if (!(b instanceof DeltaPackedObjectLoader)) {
+				base = b.getCachedBytes();
+				type = b.getType();
+				break;
+			}
+			final DeltaBaseCache.Entry cache = pack.readCache(b.dataOffset);
+			if (cache != null) {
+				base = cache.data;
+				type = cache.type;
+				break;
+			}
+			ldr = (DeltaPackedObjectLoader) b;
+		}
+
+		// Apply the deltas from the bottom up. Intermediate results go to
+		// scratch buffers that are recycled, except for every few steps
+		// where a copy is kept in the cache, bounding the work needed to
+		// later rebuild any object on this chain.
+		//
+		int baseLen = base.length;
+		boolean baseShared = true;
+		byte[] spare = null;
+		byte[] delta = null;
 		try {
-			final PackedObjectLoader baseLoader = getBaseLoader();
-			final byte[] data = BinaryDelta.apply(baseLoader.getCachedBytes(),
-					pack.decompress(dataOffset, deltaSize, curs));
-			curs.release();
-			objectType = baseLoader.getType();
-			objectSize = data.length;
-			if (objectType != OBJ_COMMIT)
-				pack.saveCache(dataOffset, data, objectType);
-			return data;
+			for (int i = chain.size() - 1; i >= 0; i--) {
+				final DeltaPackedObjectLoader d = chain.get(i);
+				final int deltaLen = checkArraySize(d.deltaSize);
+				if (delta == null || delta.length < deltaLen)
+					delta = new byte[deltaLen];
+				pack.decompress(d.dataOffset, delta, deltaLen, curs);
+
+				final int resLen = checkArraySize(BinaryDelta
+						.getResultSize(delta));
+				final int applied = chain.size() - i;
+				final boolean keep = i == 0
+						|| (applied % CACHE_SPACING == 0 && type != OBJ_COMMIT);
+				final byte[] dst;
+				if (keep)
+					dst = new byte[resLen];
+				else {
+					if (spare == null || spare.length < resLen)
+						spare = new byte[resLen];
+					dst = spare;
+				}
+				BinaryDelta.apply(base, baseLen, delta, deltaLen, dst);
+
+				if (!baseShared)
+					spare = base;
+				else if (dst == spare)
+					spare = null;
+				if (keep && type != OBJ_COMMIT)
+					pack.saveCache(d.dataOffset, dst, type);
+				base = dst;
+				baseLen = resLen;
+				baseShared = keep;
+			}
 		} catch (DataFormatException dfe) {
 			final CorruptObjectException coe;
 			coe = new CorruptObjectException("Object at " + dataOffset + " in "
@@ -97,6 +187,57 @@ public byte[] getCachedBytes() throws IOException {
 			coe.initCause(dfe);
 			throw coe;
 		}
+		curs.release();
+		objectType = type;
+		objectSize = base.length;
+		return base;
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		if (objectType != OBJ_COMMIT) {
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
+			if (cache != null) {
+				objectType = cache.type;
+				objectSize = cache.data.length;
+				return new ByteArrayInputStream(cache.data);
+			}
+		}
+
+		final DeltaStream ds = openDeltaStream(getBaseLoader());
+		objectSize = ds.getResultSize();
+		return ds;
+	}
+
+	private DeltaStream openDeltaStream(final PackedObjectLoader baseLoader)
+			throws IOException {
+		final InputStream in = new BufferedInputStream(pack
+				.openInflatedStream(dataOffset, deltaSize));
+		try {
+			// A base small enough for the delta base cache is loaded
+			// (and cached) as a whole, giving the delta random access
+			// to it. Larger bases are streamed too, and reopened if the
+			// delta copies from an earlier position.
+			//
+			if (DeltaBaseCache.canCache(baseLoader.getSize())) {
+				final byte[] base = baseLoader.getCachedBytes();
+				return new DeltaStream(in) {
+					@Override
+					protected InputStream openBase() {
+						return new ByteArrayInputStream(base);
+					}
+				};
+			}
+			return new DeltaStream(in) {
+				@Override
+				protected InputStream openBase() throws IOException {
+					return baseLoader.openStream();
+				}
+			};
+		} catch (IOException err) {
+			in.close();
+			throw err;
+		}
 	}
 
 	@Override
@@ -104,6 +245,14 @@ public long getRawSize() {
 		return deltaSize;
 	}
 
+	/**
+	 * @return offset of the base object within this pack; -1 if the base is
+	 *         not stored in this pack.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	protected abstract long getBaseOffset() throws IOException;
+
 	/**
 	 * @return the object loader for the base object
 	 * @throws IOException
@@ -47,12 +47,16 @@ class DeltaRefPackedObjectLoader extends DeltaPackedObjectLoader {
 	private final ObjectId deltaBase;
 
 	DeltaRefPackedObjectLoader(final WindowCursor curs, final PackFile pr,
-			final long dataOffset, final long objectOffset, final int deltaSz,
+			final long dataOffset, final long objectOffset, final long deltaSz,
 			final ObjectId base) {
 		super(curs, pr, dataOffset, objectOffset, deltaSz);
 		deltaBase = base;
 	}
 
+	protected long getBaseOffset() throws IOException {
+		return pack.findOffset(deltaBase);
+	}
+
 	protected PackedObjectLoader getBaseLoader() throws IOException {
 		final PackedObjectLoader or = pack.get(curs, deltaBase);
 		if (or == null)
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+
+/**
+ * Applies a binary delta to a base object while both are being read.
+ * <p>
+ * The delta instructions are read sequentially from one stream. Data copied
+ * from the base is read from a second stream, which is reopened if the delta
+ * copies from an earlier position than the base stream has already passed.
+ * Deltas created by Git mostly copy in increasing order, so the base is
+ * usually read only once.
+ * 
+ * @see BinaryDelta
+ */
+abstract class DeltaStream extends InputStream {
+	private final InputStream delta;
+
+	private final long baseSize;
+
+	private final long resultSize;
+
+	private final byte[] one = new byte[1];
+
+	private InputStream base;
+
+	/** Position of {@link #base} within the base object. */
+	private long basePos;
+
+	/** Number of bytes left to produce for the current instruction. */
+	private long cmdCnt;
+
+	/** Position in the base to copy from; -1 if inserting delta data. */
+	private long copyPos;
+
+	private long produced;
+
+	/**
+	 * Start applying a delta.
+	 * 
+	 * @param deltaStream
+	 *            the inflated delta instructions. The header is read by this
+	 *            constructor. The stream is closed when this stream is.
+	 * @throws IOException
+	 *             the delta header cannot be read.
+	 */
+	DeltaStream(final InputStream deltaStream) throws IOException {
+		delta = deltaStream;
+		baseSize = readVarint();
+		resultSize = readVarint();
+	}
+
+	/**
+	 * Open the base object, positioned at its first byte.
+	 * 
+	 * @return a stream of the base object's content.
+	 * @throws IOException
+	 *             the base cannot be read.
+	 */
+	protected abstract InputStream openBase() throws IOException;
+
+	/** @return size of the object this delta produces. */
+	long getResultSize() {
+		return resultSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0)
+			return 0;
+		while (cmdCnt == 0) {
+			if (!next())
+				return -1;
+		}
+
+		final int n = (int) Math.min(len, cmdCnt);
+		final int r;
+		if (copyPos < 0) {
+			r = delta.read(b, off, n);
+			if (r <= 0)
+				throw new CorruptObjectException("Truncated delta");
+		} else {
+			seekBase(copyPos);
+			r = base.read(b, off, n);
+			if (r <= 0)
+				throw new CorruptObjectException("Delta base is shorter"
+						+ " than expected");
+			basePos += r;
+			copyPos += r;
+		}
+		cmdCnt -= r;
+		produced += r;
+		return r;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			delta.close();
+		} finally {
+			if (base != null)
+				base.close();
+		}
+	}
+
+	private boolean next() throws IOException {
+		final int cmd = delta.read();
+		if (cmd < 0) {
+			if (produced != resultSize)
+				throw new CorruptObjectException("Delta produced " + produced
+						+ " bytes, expected " + resultSize);
+			return false;
+		}
+
+		if ((cmd & 0x80) != 0) {
+			// Determine the segment of the base which should
+			// be copied into the output.
+			//
+			long off = 0;
+			for (int i = 0; i < 4; i++) {
+				if ((cmd & (1 << i)) != 0)
+					off |= (long) readByte() << (i * 8);
+			}
+			int sz = 0;
+			for (int i = 0; i < 3; i++) {
+				if ((cmd & (0x10 << i)) != 0)
+					sz |= readByte() << (i * 8);
+			}
+			if (sz == 0)
+				sz = 0x10000;
+			if (off + sz > baseSize)
+				throw new CorruptObjectException("Delta copies beyond the"
+						+ " end of its base");
+			copyPos = off;
+			cmdCnt = sz;
+
+		} else if (cmd != 0) {
+			// Anything else the data is literal within the delta
+			// itself.
+			//
+			copyPos = -1;
+			cmdCnt = cmd;
+
+		} else {
+			// cmd == 0 has been reserved for future encoding but
+			// for now its not acceptable.
+			//
+			throw new CorruptObjectException("Unsupported command 0");
+		}
+
+		if (produced + cmdCnt > resultSize)
+			throw new CorruptObjectException("Delta produces more than "
+					+ resultSize + " bytes");
+		return true;
+	}
+
+	private void seekBase(final long pos) throws IOException {
+		if (base == null || pos < basePos) {
+			if (base != null)
+				base.close();
+			base = openBase();
+			basePos = 0;
+		}
+		while (basePos < pos) {
+			final long n = base.skip(pos - basePos);
+			if (n <= 0) {
+				if (base.read() < 0)
+					throw new CorruptObjectException("Delta base is shorter"
+							+ " than expected");
+				basePos++;
+			} else
+				basePos += n;
+		}
+	}
+
+	private int readByte() throws IOException {
+		final int c = delta.read();
+		if (c < 0)
+			throw new CorruptObjectException("Truncated delta");
+		return c;
+	}
+
+	private long readVarint() throws IOException {
+		long r = 0;
+		int shift = 0;
+		int c;
+		do {
+			c = readByte();
+			r |= (long) (c & 0x7f) << shift;
+			shift += 7;
+		} while ((c & 0x80) != 0);
+		return r;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+
+/**
+ * Delta search over one partition of the sorted object list.
+ * <p>
+ * Each task owns its own window, cursor and deflater, so any number of tasks
+ * may run concurrently against the same repository.
+ */
+final class DeltaTask implements Callable<Object> {
+	private final Repository db;
+
+	private final ProgressMonitor monitor;
+
+	private final int windowSize;
+
+	private final int maxDepth;
+
+	private final long windowMemory;
+
+	private final int compressionLevel;
+
+	private final ObjectToPack[] list;
+
+	private final int off;
+
+	private final int cnt;
+
+	DeltaTask(final Repository db, final ProgressMonitor monitor,
+			final int windowSize, final int maxDepth, final long windowMemory,
+			final int compressionLevel, final ObjectToPack[] list,
+			final int off, final int cnt) {
+		this.db = db;
+		this.monitor = monitor;
+		this.windowSize = windowSize;
+		this.maxDepth = maxDepth;
+		this.windowMemory = windowMemory;
+		this.compressionLevel = compressionLevel;
+		this.list = list;
+		this.off = off;
+		this.cnt = cnt;
+	}
+
+	public Object call() throws Exception {
+		final WindowCursor curs = new WindowCursor();
+		final Deflater deflater = new Deflater(compressionLevel);
+		try {
+			final DeltaWindow dw = new DeltaWindow(db, curs, deflater,
+					windowSize, maxDepth, windowMemory);
+			dw.search(monitor, list, off, cnt);
+		} finally {
+			deflater.end();
+			curs.release();
+		}
+		return null;
+	}
+}
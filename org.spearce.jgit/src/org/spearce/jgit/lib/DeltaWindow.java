@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+
+/**
+ * Sliding window delta search over a sorted list of objects.
+ * <p>
+ * Each object is compared against the objects immediately preceding it in the
+ * list. Because the list is sorted by type, path hash and descending size,
+ * the preceding objects are usually older, larger revisions of the same file,
+ * making them good delta bases. The smallest delta found is deflated and
+ * recorded in the {@link ObjectToPack}, so the writer only has to copy it.
+ * <p>
+ * A window is not thread safe, but one window may be used per thread.
+ */
+final class DeltaWindow {
+	private final Repository db;
+
+	private final WindowCursor curs;
+
+	private final Deflater deflater;
+
+	private final int maxDepth;
+
+	private final long maxMemory;
+
+	private final ObjectToPack[] objects;
+
+	private final byte[][] buffers;
+
+	private final DeltaIndex[] indexes;
+
+	/** Slot the next object will be stored into. */
+	private int resSlot;
+
+	/** Bytes held by {@link #buffers} and {@link #indexes}. */
+	private long loaded;
+
+	DeltaWindow(final Repository db, final WindowCursor curs,
+			final Deflater deflater, final int windowSize, final int maxDepth,
+			final long maxMemory) {
+		this.db = db;
+		this.curs = curs;
+		this.deflater = deflater;
+		this.maxDepth = maxDepth;
+		this.maxMemory = maxMemory;
+		objects = new ObjectToPack[windowSize];
+		buffers = new byte[windowSize][];
+		indexes = new DeltaIndex[windowSize];
+	}
+
+	/**
+	 * Search for deltas among a range of objects.
+	 * <p>
+	 * None of the objects may already be in delta representation, and all
+	 * bases chosen are from the same range. Searching disjoint ranges from
+	 * different threads is therefore safe, and gives the same results as
+	 * searching them one after the other.
+	 * 
+	 * @param monitor
+	 *            progress monitor updated once per object.
+	 * @param toSearch
+	 *            objects, sorted for delta compression.
+	 * @param off
+	 *            first object to search.
+	 * @param cnt
+	 *            number of objects to search.
+	 * @throws IOException
+	 *             an object could not be read, or the search was cancelled.
+	 */
+	void search(final ProgressMonitor monitor, final ObjectToPack[] toSearch,
+			int off, final int cnt) throws IOException {
+		for (final int end = off + cnt; off < end; off++) {
+			if (monitor.isCancelled())
+				throw new IOException("Packing cancelled during delta search");
+
+			final ObjectToPack res = toSearch[off];
+			final byte[] resBuf = load(res);
+
+			clear(resSlot);
+			keepInLimit(resBuf.length, resSlot);
+
+			searchBase(res, resBuf);
+
+			objects[resSlot] = res;
+			buffers[resSlot] = resBuf;
+			loaded += resBuf.length;
+			resSlot = (resSlot + 1) % objects.length;
+			monitor.update(1);
+		}
+	}
+
+	/** @return bytes currently held by the window's buffers and indexes. */
+	long getLoadedSize() {
+		return loaded;
+	}
+
+	/**
+	 * Drop the oldest objects until <code>need</code> more bytes fit.
+	 * <p>
+	 * The oldest objects are the least likely to produce a good delta.
+	 * Eviction walks the ring from the oldest slot, skipping empty slots,
+	 * and stops before <code>keep</code>, so it never drops that slot or
+	 * any object newer than it.
+	 * 
+	 * @param need
+	 *            number of bytes about to be loaded.
+	 * @param keep
+	 *            slot that must be retained.
+	 * @return true if the bytes fit within the memory limit.
+	 */
+	private boolean keepInLimit(final long need, final int keep) {
+		if (maxMemory <= 0)
+			return true;
+		int slot = (resSlot + 1) % objects.length;
+		for (; slot != keep; slot = (slot + 1) % objects.length) {
+			if (loaded + need <= maxMemory)
+				return true;
+			clear(slot);
+		}
+		return loaded + need <= maxMemory;
+	}
+
+	private void clear(final int slot) {
+		if (buffers[slot] != null)
+			loaded -= buffers[slot].length;
+		if (indexes[slot] != null)
+			loaded -= indexes[slot].getIndexSize();
+		objects[slot] = null;
+		buffers[slot] = null;
+		indexes[slot] = null;
+	}
+
+	private void searchBase(final ObjectToPack res, final byte[] resBuf) {
+		final int resSize = resBuf.length;
+		int bestSize = resSize / 2 - 20;
+		ObjectToPack bestBase = null;
+		byte[] bestDelta = null;
+
+		for (int i = 1; i < objects.length; i++) {
+			final int slot = (resSlot - i + objects.length) % objects.length;
+			final ObjectToPack src = objects[slot];
+			if (src == null || src.getType() != res.getType())
+				break;
+
+			final int srcDepth = depthOf(src, res);
+			if (srcDepth < 0 || maxDepth <= srcDepth)
+				continue;
+
+			// Reduce the acceptable size as the chain gets deeper, so
+			// bases near the root are preferred over deep ones.
+			//
+			final int limit = (int) ((long) bestSize * (maxDepth - srcDepth) / maxDepth);
+			if (limit <= 0)
+				continue;
+			final int srcSize = buffers[slot].length;
+			if (resSize < srcSize / 32)
+				continue;
+			if (srcSize < resSize && limit <= resSize - srcSize)
+				continue;
+
+			if (indexes[slot] == null) {
+				// The result is not counted in loaded until it is stored,
+				// so it must fit alongside the new index. Older objects
+				// dropped here end the search once it reaches them.
+				//
+				final long need = DeltaIndex.estimateIndexSize(srcSize)
+						+ resSize;
+				if (!keepInLimit(need, slot))
+					break;
+				indexes[slot] = new DeltaIndex(buffers[slot]);
+				loaded += indexes[slot].getIndexSize();
+			}
+			final byte[] delta = indexes[slot].encode(resBuf, limit - 1);
+			if (delta != null && delta.length < bestSize) {
+				bestSize = delta.length;
+				bestBase = src;
+				bestDelta = delta;
+			}
+		}
+
+		if (bestBase != null) {
+			res.setDeltaBase(bestBase);
+			res.setDeltaData(deflate(bestDelta), bestDelta.length);
+			res.disposeLoader();
+		}
+	}
+
+	private byte[] deflate(final byte[] delta) {
+		deflater.reset();
+		deflater.setInput(delta);
+		deflater.finish();
+
+		byte[] out = new byte[Math.max(64, delta.length / 2)];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == out.length) {
+				final byte[] tmp = new byte[out.length * 2];
+				System.arraycopy(out, 0, tmp, 0, n);
+				out = tmp;
+			}
+			n += deflater.deflate(out, n, out.length - n);
+		}
+
+		final byte[] r = new byte[n];
+		System.arraycopy(out, 0, r, 0, n);
+		return r;
+	}
+
+	/**
+	 * Compute the depth of the delta chain <code>src</code> is part of.
+	 * 
+	 * @return the number of deltas that must be applied to recreate
+	 *         <code>src</code>; -1 if <code>res</code> is in the chain, and
+	 *         so using <code>src</code> as its base would create a cycle.
+	 */
+	private int depthOf(ObjectToPack src, final ObjectToPack res) {
+		int depth = 0;
+		while (src.isDeltaRepresentation()) {
+			src = src.getDeltaBase();
+			if (src == null)
+				return depth + 1;
+			if (src == res || maxDepth < ++depth)
+				return -1;
+		}
+		return depth;
+	}
+
+	private byte[] load(final ObjectToPack otp) throws IOException {
+		final ObjectLoader ldr = db.openObject(curs, otp);
+		if (ldr == null)
+			throw new MissingObjectException(otp, Constants
+					.typeString(otp.getType()));
+		return ldr.getCachedBytes();
+	}
+}
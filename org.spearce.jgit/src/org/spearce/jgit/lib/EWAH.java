@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Encoder and decoder for EWAH compressed bitmaps.
+ * <p>
+ * The stream is laid out like C Git's <code>ewah_serialize</code>: the number
+ * of bits (uint32), the number of 64 bit words (uint32), the words themselves
+ * in network byte order, and finally the position of the last marker word
+ * (uint32).
+ * <p>
+ * Every group of words starts with a marker word. Bit 0 of the marker is the
+ * value of a run of "clean" words (all bits 0, or all bits 1); bits 1-32 hold
+ * the number of clean words in that run; bits 33-63 hold the number of literal
+ * words which follow the marker, copied as-is.
+ * <p>
+ * Bitmaps are held uncompressed in memory as a {@link BitSet} while they are
+ * being combined, and only use this form while stored.
+ */
+final class EWAH {
+	private static final int RUNNING_BITS = 32;
+
+	private static final long MAX_RUN = (1L << RUNNING_BITS) - 1;
+
+	private static final long MAX_LITERALS = (1L << 31) - 1;
+
+	private EWAH() {
+		// Static utility methods only.
+	}
+
+	/**
+	 * Compress a bitmap.
+	 * 
+	 * @param bits
+	 *            the bitmap to compress.
+	 * @param bitCount
+	 *            number of bits in the bitmap; no bit at or beyond this index
+	 *            may be set.
+	 * @return the serialized, compressed bitmap.
+	 */
+	static byte[] encode(final BitSet bits, final int bitCount) {
+		final long[] words = toWords(bits, bitCount);
+		final long[] out = new long[words.length + 1];
+		int outCnt = 0;
+		int lastMarker = 0;
+
+		int i = 0;
+		while (i < words.length || outCnt == 0) {
+			long runBit = 0;
+			long run = 0;
+			if (i < words.length && isClean(words[i])) {
+				runBit = words[i] == 0 ? 0 : 1;
+				final long clean = runBit == 0 ? 0 : ~0L;
+				while (i < words.length && words[i] == clean && run < MAX_RUN) {
+					run++;
+					i++;
+				}
+			}
+
+			final int litStart = i;
+			while (i < words.length && !isClean(words[i])
+					&& i - litStart < MAX_LITERALS)
+				i++;
+			final int lit = i - litStart;
+
+			lastMarker = outCnt;
+			out[outCnt++] = runBit | (run << 1) | ((long) lit << 33);
+			System.arraycopy(words, litStart, out, outCnt, lit);
+			outCnt += lit;
+		}
+
+		final byte[] r = new byte[4 + 4 + outCnt * 8 + 4];
+		NB.encodeInt32(r, 0, bitCount);
+		NB.encodeInt32(r, 4, outCnt);
+		for (int k = 0; k < outCnt; k++)
+			NB.encodeInt64(r, 8 + k * 8, out[k]);
+		NB.encodeInt32(r, 8 + outCnt * 8, lastMarker);
+		return r;
+	}
+
+	/**
+	 * Write a compressed bitmap.
+	 * 
+	 * @param bits
+	 *            the bitmap to compress.
+	 * @param bitCount
+	 *            number of bits in the bitmap.
+	 * @param out
+	 *            stream to write the compressed bitmap to.
+	 * @throws IOException
+	 *             the stream cannot be written to.
+	 */
+	static void write(final BitSet bits, final int bitCount,
+			final OutputStream out) throws IOException {
+		out.write(encode(bits, bitCount));
+	}
+
+	/**
+	 * Read the next compressed bitmap from a stream, without decoding it.
+	 * 
+	 * @param in
+	 *            stream positioned at the start of a compressed bitmap.
+	 * @return the serialized bitmap, suitable for {@link #decode(byte[])}.
+	 * @throws IOException
+	 *             the stream is truncated or cannot be read.
+	 */
+	static byte[] read(final InputStream in) throws IOException {
+		final byte[] hdr = new byte[8];
+		NB.readFully(in, hdr, 0, 8);
+		final long words = NB.decodeUInt32(hdr, 4);
+		if (words > (Integer.MAX_VALUE - 12) / 8)
+			throw new CorruptObjectException("Bitmap is too large");
+		final byte[] r = new byte[8 + (int) words * 8 + 4];
+		System.arraycopy(hdr, 0, r, 0, 8);
+		NB.readFully(in, r, 8, r.length - 8);
+		return r;
+	}
+
+	/**
+	 * Decode a serialized bitmap.
+	 * 
+	 * @param raw
+	 *            the bitmap, as returned by {@link #encode(BitSet, int)}.
+	 * @return a new uncompressed copy of the bitmap.
+	 * @throws CorruptObjectException
+	 *             the marker words describe more data than is present.
+	 */
+	static BitSet decode(final byte[] raw) throws CorruptObjectException {
+		final int bitCount = NB.decodeInt32(raw, 0);
+		final int words = NB.decodeInt32(raw, 4);
+		final BitSet bits = new BitSet(bitCount);
+		long pos = 0;
+		int ptr = 8;
+		final int end = 8 + words * 8;
+		while (ptr < end) {
+			final long marker = NB.decodeUInt64(raw, ptr);
+			ptr += 8;
+
+			final long run = (marker >>> 1) & MAX_RUN;
+			final int lit = (int) (marker >>> 33);
+			if ((marker & 1) != 0)
+				set(bits, pos, pos + run * 64, bitCount);
+			pos += run * 64;
+
+			if (end < ptr + lit * 8L)
+				throw new CorruptObjectException("Truncated bitmap");
+			for (int k = 0; k < lit; k++) {
+				final long w = NB.decodeUInt64(raw, ptr);
+				ptr += 8;
+				for (int b = 0; b < 64; b++) {
+					if ((w & (1L << b)) != 0)
+						bits.set((int) (pos + b));
+				}
+				pos += 64;
+			}
+		}
+		return bits;
+	}
+
+	private static void set(final BitSet bits, final long from, final long to,
+			final int bitCount) {
+		final long end = Math.min(to, bitCount);
+		if (from < end)
+			bits.set((int) from, (int) end);
+	}
+
+	private static boolean isClean(final long w) {
+		return w == 0 || w == ~0L;
+	}
+
+	private static long[] toWords(final BitSet bits, final int bitCount) {
+		final long[] words = new long[(bitCount + 63) >>> 6];
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			if (i >= bitCount)
+				throw new IllegalArgumentException("Bit " + i
+						+ " beyond bitmap size " + bitCount);
+			words[i >>> 6] |= 1L << (i & 63);
+		}
+		return words;
+	}
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Compacts a repository, like <code>git gc</code>.
+ * <p>
+ * A collection runs these steps in order:
+ * <ol>
+ * <li>Loose refs are moved into the <code>packed-refs</code> file.</li>
+ * <li>Every object reachable from a ref or a reflog entry, or named by the
+ * index, is written into one new pack.</li>
+ * <li>Packs made redundant by the new pack are deleted. Their unreachable
+ * objects are first written out as loose objects, unless the pack is older
+ * than the expiration period.</li>
+ * <li>Loose objects now in a pack are deleted, as are unreachable loose
+ * objects not modified within the expiration period.</li>
+ * <li>An existing commit-graph is rewritten, so it no longer lists pruned
+ * commits and covers the new history.</li>
+ * </ol>
+ * <p>
+ * Readers may use the repository while it is collected. The new pack is
+ * complete and visible before any old pack is removed, and an old pack's
+ * index is deleted before its data, so a reader either finds the old pack
+ * whole or does not find it at all. A {@link Repository} that loses a pack
+ * it was reading rescans the pack directory and retries the lookup.
+ */
+public class GC {
+	/** Default age of unreachable loose objects that may be pruned: 2 weeks. */
+	public static final long DEFAULT_EXPIRE_AGE = 14L * 24 * 60 * 60 * 1000;
+
+	private final Repository repo;
+
+	private ProgressMonitor pm = NullProgressMonitor.INSTANCE;
+
+	private long expireAge = DEFAULT_EXPIRE_AGE;
+
+	/**
+	 * Create a collector for a repository.
+	 *
+	 * @param repo
+	 *            the repository to collect.
+	 */
+	public GC(final Repository repo) {
+		this.repo = repo;
+	}
+
+	/**
+	 * @param pm
+	 *            monitor to report progress to; null for none.
+	 */
+	public void setProgressMonitor(final ProgressMonitor pm) {
+		this.pm = pm != null ? pm : NullProgressMonitor.INSTANCE;
+	}
+
+	/**
+	 * Set how old an unreachable loose object must be to be pruned.
+	 * <p>
+	 * The grace period protects objects another process has just written but
+	 * not yet referenced, such as the blobs and trees of a commit in progress.
+	 *
+	 * @param millis
+	 *            minimum age, in milliseconds. 0 prunes every unreachable loose
+	 *            object, which is only safe when nothing else is writing to the
+	 *            repository.
+	 */
+	public void setExpireAge(final long millis) {
+		expireAge = millis;
+	}
+
+	/**
+	 * Run all steps of a collection.
+	 *
+	 * @return the new pack holding all reachable objects; null if the
+	 *         repository has no reachable objects.
+	 * @throws IOException
+	 *             the repository could not be read, or the new files could
+	 *             not be written. Nothing has been deleted that is still
+	 *             needed.
+	 */
+	public PackFile gc() throws IOException {
+		packRefs();
+		final PackFile pack = repack();
+		prune(pack);
+		if (new File(repo.getObjectsDirectory(), CommitGraph.FILE_NAME)
+				.exists()
+				&& repo.getShallowCommits().isEmpty()) {
+			final CommitGraphWriter w = new CommitGraphWriter(repo);
+			w.setProgressMonitor(pm);
+			w.write();
+		}
+		return pack;
+	}
+
+	/**
+	 * Move loose refs into the <code>packed-refs</code> file.
+	 * <p>
+	 * Symbolic refs, such as <code>HEAD</code>, stay loose. A ref deleted or
+	 * updated while the refs are packed stays as it was left.
+	 *
+	 * @throws IOException
+	 *             the packed refs file could not be written.
+	 */
+	public void packRefs() throws IOException {
+		final List<Ref> toPack = new ArrayList<Ref>();
+		for (final Ref r : repo.getAllRefs().values()) {
+			if (!r.getStorage().isLoose()
+					|| !r.getOrigName().startsWith(Constants.R_REFS)
+					|| !r.getOrigName().equals(r.getName())
+					|| r.getObjectId() == null)
+				continue;
+			toPack.add(repo.peel(r));
+		}
+		pm.beginTask("Packing refs", toPack.size());
+		if (!toPack.isEmpty())
+			repo.getRefDatabase().pack(toPack);
+		pm.update(toPack.size());
+		pm.endTask();
+	}
+
+	/**
+	 * Write every object reachable from a ref or a reflog entry, or named by
+	 * the index, into one new pack, and delete the packs it replaces.
+	 * <p>
+	 * An old pack may hold objects nothing reaches any more, such as those of
+	 * a commit in progress in another process. If the pack was modified
+	 * within the expiration period these objects are written out as loose
+	 * objects dated like the pack, so {@link #prune(PackFile)} only removes
+	 * them once the period has passed. Packs with a <code>.keep</code> file
+	 * are left alone. If the repository
+	 * has a multi-pack index it is rewritten to cover the new set of packs.
+	 * <p>
+	 * Unless the repository is shallow, or the index or a reflog names
+	 * objects no ref reaches, the new pack holds exactly the complete history of its tips,
+	 * and a <code>.tips</code> file listing them is written next to it so
+	 * that it can be served as a {@link CachedPack}.
+	 *
+	 * @return the new pack; null if no object is reachable.
+	 * @throws IOException
+	 *             the objects could not be read, or the pack could not be
+	 *             written.
+	 */
+	public PackFile repack() throws IOException {
+		final Set<ObjectId> tips = new HashSet<ObjectId>();
+		for (final Ref r : repo.getAllRefs().values()) {
+			if (r.getObjectId() != null)
+				tips.add(r.getObjectId());
+		}
+		final PackFile[] oldPacks = repo.packs();
+
+		// Objects only the index or a reflog names, such as staged but
+		// uncommitted blobs or commits dropped by a reset, must be kept,
+		// but a pack holding them is more than the history of its tips
+		// and may not be served as a cached pack.
+		//
+		PackWriter pw = newPackWriter(tips);
+		final Set<ObjectId> extra = new HashSet<ObjectId>();
+		for (final DirCacheEntry e : indexEntries()) {
+			if (!FileMode.GITLINK.equals(e.getRawMode())
+					&& !pw.willInclude(e.getObjectId()))
+				extra.add(e.getObjectId());
+		}
+		for (final ObjectId id : reflogEntries()) {
+			if (!pw.willInclude(id))
+				extra.add(id);
+		}
+		if (!extra.isEmpty()) {
+			final Set<ObjectId> roots = new HashSet<ObjectId>(tips);
+			roots.addAll(extra);
+			pw = newPackWriter(roots);
+		}
+		if (pw.getObjectsNumber() == 0)
+			return null;
+
+		final String name = "pack-" + pw.computeName().name();
+		final File packDir = new File(repo.getObjectsDirectory(), "pack");
+		final File packFile = new File(packDir, name + ".pack");
+		final File idxFile = new File(packDir, name + ".idx");
+		if (!packFile.exists()) {
+			packDir.mkdirs();
+			final File tmpPack = File.createTempFile("gc_", ".pack", packDir);
+			final File tmpBitmap = new File(packDir, tmpPack.getName()
+					+ ".bitmap");
+			final File tmpIdx = new File(packDir, tmpPack.getName() + ".idx");
+			final File tmpTips = new File(packDir, tmpPack.getName()
+					+ ".tips");
+			final Set<ObjectId> packTips;
+			if (extra.isEmpty() && repo.getShallowCommits().isEmpty())
+				packTips = findPackTips(tips);
+			else
+				packTips = Collections.emptySet();
+			try {
+				OutputStream out = new FileOutputStream(tmpPack);
+				try {
+					pw.writePack(out);
+				} finally {
+					out.close();
+				}
+				out = new FileOutputStream(tmpBitmap);
+				try {
+					pw.writeBitmapIndex(out);
+				} finally {
+					out.close();
+				}
+				if (!packTips.isEmpty()) {
+					out = new FileOutputStream(tmpTips);
+					try {
+						CachedPack.writeTips(out, packTips);
+					} finally {
+						out.close();
+					}
+				}
+				out = new FileOutputStream(tmpIdx);
+				try {
+					pw.writeIndex(out);
+				} finally {
+					out.close();
+				}
+
+				// The index is renamed last: a pack only becomes visible
+				// to a directory scan once its index exists.
+				//
+				rename(tmpPack, packFile);
+				rename(tmpBitmap, new File(packDir, name + ".bitmap"));
+				if (!packTips.isEmpty())
+					rename(tmpTips, new File(packDir, name + ".tips"));
+				rename(tmpIdx, idxFile);
+			} finally {
+				tmpPack.delete();
+				tmpBitmap.delete();
+				tmpTips.delete();
+				tmpIdx.delete();
+			}
+			repo.openPack(packFile, idxFile);
+		}
+
+		final List<PackFile> kept = new ArrayList<PackFile>();
+		final List<PackFile> replaced = new ArrayList<PackFile>();
+		for (final PackFile p : oldPacks) {
+			final File f = p.getPackFile();
+			if (f.equals(packFile))
+				continue;
+			final String base = f.getName().substring(0,
+					f.getName().length() - 5);
+			if (!packDir.equals(f.getParentFile())
+					|| new File(packDir, base + ".keep").exists())
+				kept.add(p);
+			else
+				replaced.add(p);
+		}
+
+		final long expire = System.currentTimeMillis() - expireAge;
+		final List<File> remove = new ArrayList<File>();
+		for (final PackFile p : replaced) {
+			loosenUnreachable(p, pw, kept, expire);
+			remove.add(p.getPackFile());
+		}
+
+		for (final File f : remove) {
+			final String base = f.getName().substring(0,
+					f.getName().length() - 5);
+			new File(packDir, base + ".idx").delete();
+			new File(packDir, base + ".bitmap").delete();
+			new File(packDir, base + ".tips").delete();
+			f.delete();
+		}
+		repo.scanForPacks();
+
+		// Until it is rewritten the multi-pack index names packs that
+		// are gone, so readers ignore it and search the packs directly.
+		//
+		if (!remove.isEmpty()
+				&& new File(packDir, MultiPackIndex.FILE_NAME).exists())
+			repo.writeMultiPackIndex();
+
+		for (final PackFile p : repo.packs()) {
+			if (p.getPackFile().equals(packFile))
+				return p;
+		}
+		throw new IOException("New pack " + packFile + " disappeared");
+	}
+
+	private PackWriter newPackWriter(final Set<ObjectId> roots)
+			throws IOException {
+		final PackWriter pw = new PackWriter(repo, pm);
+		pw.setDeltaBaseAsOffset(true);
+		pw.preparePack(roots, Collections.<ObjectId> emptySet(), false, true);
+		return pw;
+	}
+
+	/**
+	 * Write the objects of a pack about to be deleted that are in neither the
+	 * new pack nor a kept pack as loose objects, dated like the pack. Nothing
+	 * is written for a pack older than the expiration age, as its objects
+	 * would be pruned straight away.
+	 */
+	private void loosenUnreachable(final PackFile old, final PackWriter pw,
+			final List<PackFile> kept, final long expire) throws IOException {
+		final long modified = old.getPackFile().lastModified();
+		if (modified < expire)
+			return;
+
+		final ObjectWriter ow = new ObjectWriter(repo);
+		final WindowCursor curs = new WindowCursor();
+		try {
+			for (final PackIndex.MutableEntry e : old) {
+				final ObjectId id = e.toObjectId();
+				if (pw.willInclude(id) || inPack(kept, id))
+					continue;
+				final File f = repo.toFile(id);
+				if (f.isFile())
+					continue;
+				final PackedObjectLoader ldr = old.get(curs, id);
+				final InputStream in = ldr.openStream();
+				try {
+					ow.writeLooseObject(ldr.getType(), ldr.getSize(), in);
+				} finally {
+					in.close();
+				}
+				f.setLastModified(modified);
+			}
+		} finally {
+			curs.release();
+		}
+	}
+
+	/**
+	 * Find the commits whose histories make up the new pack: the peeled ref
+	 * tips that are not an ancestor of another tip.
+	 */
+	private Set<ObjectId> findPackTips(final Set<ObjectId> tips)
+			throws IOException {
+		final RevWalk rw = new RevWalk(repo);
+		final RevFlag reachable = rw.newFlag("REACHABLE");
+		final List<RevCommit> heads = new ArrayList<RevCommit>();
+		for (final ObjectId id : tips) {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parse(o);
+			}
+			if (o instanceof RevCommit) {
+				heads.add((RevCommit) o);
+				rw.markStart((RevCommit) o);
+			}
+		}
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			for (final RevCommit p : c.getParents())
+				p.add(reachable);
+		}
+
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		for (final RevCommit h : heads) {
+			if (!h.has(reachable))
+				r.add(h.copy());
+		}
+		return r;
+	}
+
+	/**
+	 * Delete loose objects that are no longer needed.
+	 * <p>
+	 * A loose object is deleted if it is also stored in a pack, or if it is
+	 * older than the expiration age and is not in the pack of reachable
+	 * objects. Objects named by the index are never deleted for their age.
+	 *
+	 * @param reachable
+	 *            the pack holding every reachable object, as returned by
+	 *            {@link #repack()}. If null only the loose objects already in
+	 *            a pack are deleted.
+	 * @throws IOException
+	 *             the index or a pack index could not be read.
+	 */
+	public void prune(final PackFile reachable) throws IOException {
+		final Set<ObjectId> indexed = new HashSet<ObjectId>();
+		for (final DirCacheEntry e : indexEntries())
+			indexed.add(e.getObjectId());
+
+		final long expire = System.currentTimeMillis() - expireAge;
+		final File objects = repo.getObjectsDirectory();
+		pm.beginTask("Pruning loose objects", 256);
+		for (int fanout = 0; fanout < 256; fanout++) {
+			final String d = toHex(fanout);
+			final File dir = new File(objects, d);
+			final String[] names = dir.list();
+			if (names != null) {
+				for (final String n : names) {
+					final File f = new File(dir, n);
+					if (!ObjectId.isId(d + n)) {
+						// Temporary files left by a crashed writer.
+						if (n.startsWith("noz") && f.lastModified() < expire)
+							f.delete();
+						continue;
+					}
+					final ObjectId id = ObjectId.fromString(d + n);
+					if (inPack(id)) {
+						f.delete();
+						continue;
+					}
+					if (indexed.contains(id))
+						continue;
+					if (reachable != null && f.lastModified() < expire)
+						f.delete();
+				}
+				dir.delete(); // only succeeds if the directory is empty
+			}
+			pm.update(1);
+		}
+		pm.endTask();
+	}
+
+	/**
+	 * @return the old and new values of every reflog entry that still exist
+	 *         in the repository.
+	 */
+	private Set<ObjectId> reflogEntries() throws IOException {
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		readReflogs(new File(repo.getDirectory(), Constants.LOGS), r);
+		return r;
+	}
+
+	private void readReflogs(final File f, final Set<ObjectId> r)
+			throws IOException {
+		final File[] entries = f.listFiles();
+		if (entries != null) {
+			for (final File e : entries)
+				readReflogs(e, r);
+			return;
+		}
+		if (!f.isFile())
+			return;
+
+		final BufferedReader br = new BufferedReader(new InputStreamReader(
+				new FileInputStream(f), Constants.CHARSET));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (line.length() < 81)
+					continue;
+				addReflogId(line.substring(0, 40), r);
+				addReflogId(line.substring(41, 81), r);
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	private void addReflogId(final String s, final Set<ObjectId> r) {
+		if (!ObjectId.isId(s))
+			return;
+		final ObjectId id = ObjectId.fromString(s);
+		if (!ObjectId.zeroId().equals(id) && repo.hasObject(id))
+			r.add(id);
+	}
+
+	private List<DirCacheEntry> indexEntries() throws IOException {
+		final List<DirCacheEntry> r = new ArrayList<DirCacheEntry>();
+		if (new File(repo.getDirectory(), "index").exists()) {
+			final DirCache dc = DirCache.read(repo);
+			for (int i = 0; i < dc.getEntryCount(); i++)
+				r.add(dc.getEntry(i));
+		}
+		return r;
+	}
+
+	private boolean inPack(final ObjectId id) throws IOException {
+		for (final PackFile p : repo.packs()) {
+			if (p.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean inPack(final List<PackFile> packs,
+			final AnyObjectId id) throws IOException {
+		for (final PackFile p : packs) {
+			if (p.hasObject(id))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Count the objects and refs of the repository.
+	 *
+	 * @return a snapshot of the repository's size.
+	 * @throws IOException
+	 *             a pack index could not be read.
+	 */
+	public RepoStatistics getStatistics() throws IOException {
+		final RepoStatistics s = new RepoStatistics();
+		for (final PackFile p : repo.packs()) {
+			s.numberOfPackFiles++;
+			s.numberOfPackedObjects += p.getObjectCount();
+			s.sizeOfPackedObjects += p.getPackFile().length();
+		}
+		final File objects = repo.getObjectsDirectory();
+		for (int fanout = 0; fanout < 256; fanout++) {
+			final String d = toHex(fanout);
+			final File[] files = new File(objects, d).listFiles();
+			if (files == null)
+				continue;
+			for (final File f : files) {
+				if (ObjectId.isId(d + f.getName())) {
+					s.numberOfLooseObjects++;
+					s.sizeOfLooseObjects += f.length();
+				}
+			}
+		}
+		for (final Ref r : repo.getAllRefs().values()) {
+			if (!r.getOrigName().equals(r.getName()))
+				continue;
+			if (r.getStorage().isLoose())
+				s.numberOfLooseRefs++;
+			else if (r.getStorage().isPacked())
+				s.numberOfPackedRefs++;
+		}
+		return s;
+	}
+
+	/** Sizes of a repository's object and ref stores. */
+	public static class RepoStatistics {
+		long numberOfPackedObjects;
+
+		long numberOfPackFiles;
+
+		long sizeOfPackedObjects;
+
+		long numberOfLooseObjects;
+
+		long sizeOfLooseObjects;
+
+		long numberOfLooseRefs;
+
+		long numberOfPackedRefs;
+
+		/** @return number of objects stored in packs, with duplicates. */
+		public long getNumberOfPackedObjects() {
+			return numberOfPackedObjects;
+		}
+
+		/** @return number of pack files. */
+		public long getNumberOfPackFiles() {
+			return numberOfPackFiles;
+		}
+
+		/** @return total size of the pack files, in bytes. */
+		public long getSizeOfPackedObjects() {
+			return sizeOfPackedObjects;
+		}
+
+		/** @return number of loose objects. */
+		public long getNumberOfLooseObjects() {
+			return numberOfLooseObjects;
+		}
+
+		/** @return total size of the loose object files, in bytes. */
+		public long getSizeOfLooseObjects() {
+			return sizeOfLooseObjects;
+		}
+
+		/** @return number of refs stored in their own file. */
+		public long getNumberOfLooseRefs() {
+			return numberOfLooseRefs;
+		}
+
+		/** @return number of refs only stored in the packed refs file. */
+		public long getNumberOfPackedRefs() {
+			return numberOfPackedRefs;
+		}
+
+		public String toString() {
+			final StringBuilder b = new StringBuilder();
+			b.append("packs: ").append(numberOfPackFiles);
+			b.append(", packed objects: ").append(numberOfPackedObjects);
+			b.append(" (").append(sizeOfPackedObjects).append(" bytes)");
+			b.append(", loose objects: ").append(numberOfLooseObjects);
+			b.append(" (").append(sizeOfLooseObjects).append(" bytes)");
+			b.append(", loose refs: ").append(numberOfLooseRefs);
+			b.append(", packed refs: ").append(numberOfPackedRefs);
+			return b.toString();
+		}
+	}
+
+	private static void rename(final File src, final File dst)
+			throws IOException {
+		if (!src.renameTo(dst))
+			throw new ObjectWritingException("Unable to create " + dst);
+	}
+
+	private static String toHex(final int b) {
+		final char[] r = new char[2];
+		r[0] = Character.forDigit(b >>> 4, 16);
+		r[1] = Character.forDigit(b & 0xf, 16);
+		return new String(r);
+	}
+}
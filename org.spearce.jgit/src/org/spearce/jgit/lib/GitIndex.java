@@ -769,19 +769,57 @@ public void checkout(File wd) throws IOException {
 	 * @throws IOException
 	 */
 	public void checkoutEntry(File wd, Entry e) throws IOException {
-		ObjectLoader ol = db.openBlob(e.sha1);
-		byte[] bytes = ol.getBytes();
 		File file = new File(wd, e.getName());
 		file.delete();
 		file.getParentFile().mkdirs();
-		FileChannel channel = new FileOutputStream(file).getChannel();
-		ByteBuffer buffer = ByteBuffer.wrap(bytes);
-		int j = channel.write(buffer);
-		if (j != bytes.length)
-			throw new IOException("Could not write file " + file);
-		channel.close();
+		setCheckedOut(e, checkoutFile(file, e.sha1, e.mode));
+	}
+
+	/**
+	 * Write a blob to a file whose directory already exists.
+	 * <p>
+	 * This only reads the repository, so it may be called by several threads
+	 * at once, as long as they write different files.
+	 *
+	 * @param file
+	 *            the file to (re)create.
+	 * @param id
+	 *            the blob to write.
+	 * @param mode
+	 *            raw mode of the index entry; sets the execute bit.
+	 * @return last modified time of the written file.
+	 * @throws IOException
+	 */
+	long checkoutFile(File file, ObjectId id, int mode) throws IOException {
+		ObjectLoader ol = db.openBlob(id);
+		file.delete();
+		if (ol.getSize() > db.getConfig().getCore().getStreamFileThreshold()) {
+			// Too large to hold in memory; copy it through a small buffer.
+			InputStream in = ol.openStream();
+			try {
+				FileOutputStream out = new FileOutputStream(file);
+				try {
+					byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0)
+						out.write(buf, 0, n);
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			byte[] bytes = ol.getCachedBytes();
+			FileChannel channel = new FileOutputStream(file).getChannel();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int j = channel.write(buffer);
+			if (j != bytes.length)
+				throw new IOException("Could not write file " + file);
+			channel.close();
+		}
 		if (config_filemode() && File_hasExecute()) {
-			if (FileMode.EXECUTABLE_FILE.equals(e.mode)) {
+			if (FileMode.EXECUTABLE_FILE.equals(mode)) {
 				if (!File_canExecute(file))
 					File_setExecute(file, true);
 			} else {
@@ -789,7 +827,11 @@ public void checkoutEntry(File wd, Entry e) throws IOException {
 					File_setExecute(file, false);
 			}
 		}
-		e.mtime = file.lastModified() * 1000000L;
+		return file.lastModified();
+	}
+
+	void setCheckedOut(Entry e, long lastModified) {
+		e.mtime = lastModified * 1000000L;
 		e.ctime = e.mtime;
 	}
 
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+
+/**
+ * Inflates a zlib stream which must produce an exact number of bytes.
+ * <p>
+ * Only a small buffer of compressed input is held at any time, so objects of
+ * any size can be read. Subclasses supply the compressed data.
+ */
+abstract class InflatingStream extends InputStream {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final byte[] in = new byte[BUFFER_SIZE];
+
+	private final byte[] one = new byte[1];
+
+	private Inflater inf;
+
+	private long remaining;
+
+	/**
+	 * Create a stream producing an exact number of bytes.
+	 * 
+	 * @param size
+	 *            number of bytes the zlib stream must inflate to.
+	 */
+	InflatingStream(final long size) {
+		inf = InflaterCache.get();
+		remaining = size;
+	}
+
+	/**
+	 * Read the next block of compressed data.
+	 * 
+	 * @param buf
+	 *            buffer to fill.
+	 * @return number of bytes stored in <code>buf</code>; 0 or -1 if there is
+	 *         no more data.
+	 * @throws IOException
+	 *             the data cannot be read.
+	 */
+	protected abstract int fill(byte[] buf) throws IOException;
+
+	/**
+	 * Describe a problem with the compressed data.
+	 * 
+	 * @param why
+	 *            the problem found.
+	 * @return an exception naming the object being read.
+	 */
+	protected abstract CorruptObjectException corrupt(String why);
+
+	/**
+	 * Release the source of compressed data.
+	 * 
+	 * @throws IOException
+	 *             the source cannot be closed.
+	 */
+	protected void onClose() throws IOException {
+		// Nothing to release by default.
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, int len) throws IOException {
+		if (inf == null)
+			throw new IOException("Stream closed");
+		if (len == 0)
+			return 0;
+		if (remaining == 0)
+			return -1;
+		len = (int) Math.min(len, remaining);
+		try {
+			for (;;) {
+				final int n = inf.inflate(b, off, len);
+				if (n > 0) {
+					remaining -= n;
+					return n;
+				}
+				if (inf.finished() || inf.needsDictionary())
+					throw corrupt("incorrect length");
+				if (inf.needsInput()) {
+					final int r = fill(in);
+					if (r <= 0)
+						throw corrupt("truncated stream");
+					inf.setInput(in, 0, r);
+				}
+			}
+		} catch (DataFormatException dfe) {
+			final CorruptObjectException coe = corrupt("bad stream");
+			coe.initCause(dfe);
+			throw coe;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (inf != null) {
+			InflaterCache.release(inf);
+			inf = null;
+			onClose();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+
+/**
+ * Answers "is this loose object here?" without probing the filesystem.
+ * <p>
+ * Two layers are kept for a repository's object directories:
+ * <ul>
+ * <li>A snapshot of each fan-out directory's listing. A listing is reused for
+ * as long as the directory's modification time does not change, so a lookup
+ * costs one <code>stat</code> of the directory instead of an
+ * <code>open</code> of the object file.</li>
+ * <li>A bounded set of objects recently found to be in neither a pack nor a
+ * loose file. Lookups for these cost no system call at all. Protocol
+ * negotiation probes many objects the repository does not have, and usually
+ * probes them more than once.</li>
+ * </ul>
+ * <p>
+ * The missing set does not notice objects written by other processes, so
+ * each entry is only trusted for {@link #MISSING_TTL} milliseconds after the
+ * lookup that failed. The whole set is also dropped by
+ * {@link #clearMissing()}, which the repository calls whenever it rescans its
+ * packs or is reopened from the {@link RepositoryCache}.
+ */
+class LooseObjectCache {
+	/** Number of missing objects remembered before the set is reset. */
+	static final int MISSING_LIMIT = 8192;
+
+	/** Milliseconds a missing object is believed to stay missing. */
+	static final long MISSING_TTL = 3000;
+
+	/**
+	 * A listing taken less than this long after the directory was modified
+	 * may have missed a file created in the same timestamp tick.
+	 */
+	private static final long RACY_MS = 2000;
+
+	private final File[] objectDirs;
+
+	private final Listing[][] listings;
+
+	private final ObjectIdSubclassMap<MissingId> missing;
+
+	private final long missingTtl;
+
+	LooseObjectCache(final File[] objectDirs) {
+		this(objectDirs, MISSING_TTL);
+	}
+
+	LooseObjectCache(final File[] objectDirs, final long missingTtl) {
+		this.objectDirs = objectDirs;
+		this.listings = new Listing[objectDirs.length][256];
+		this.missing = new ObjectIdSubclassMap<MissingId>();
+		this.missingTtl = missingTtl;
+	}
+
+	/**
+	 * @param id
+	 *            the object to test.
+	 * @return true if the object is known to not exist, as recorded by
+	 *         {@link #markMissing(AnyObjectId)} no more than the missing TTL
+	 *         ago.
+	 */
+	synchronized boolean isMissing(final AnyObjectId id) {
+		final MissingId m = missing.get(id);
+		return m != null && System.currentTimeMillis() < m.expires;
+	}
+
+	/**
+	 * Record that an object is in neither a pack nor a loose file.
+	 *
+	 * @param id
+	 *            the object that was not found.
+	 */
+	synchronized void markMissing(final AnyObjectId id) {
+		final long expires = System.currentTimeMillis() + missingTtl;
+		final MissingId m = missing.get(id);
+		if (m != null) {
+			m.expires = expires;
+			return;
+		}
+		if (missing.size() >= MISSING_LIMIT)
+			missing.clear();
+		missing.add(new MissingId(id, expires));
+	}
+
+	/** Forget every object recorded as missing. */
+	synchronized void clearMissing() {
+		missing.clear();
+	}
+
+	/**
+	 * Note a loose object was just written by this process.
+	 *
+	 * @param id
+	 *            the object now stored.
+	 */
+	synchronized void added(final AnyObjectId id) {
+		final MissingId m = missing.get(id);
+		if (m != null)
+			m.expires = 0;
+		final int fanout = id.getFirstByte();
+		for (int i = 0; i < listings.length; i++)
+			listings[i][fanout] = null;
+	}
+
+	/**
+	 * Determine if an object is stored as a loose file.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return true if a loose file for the object exists in one of the object
+	 *         directories.
+	 */
+	boolean has(final AnyObjectId id) {
+		final int fanout = id.getFirstByte();
+		for (int i = 0; i < objectDirs.length; i++) {
+			if (listing(i, fanout).names.get(id) != null)
+				return true;
+		}
+		return false;
+	}
+
+	private Listing listing(final int dir, final int fanout) {
+		final String d = hex(fanout);
+		final File path = new File(objectDirs[dir], d);
+		final long modified = path.lastModified();
+		synchronized (this) {
+			final Listing cur = listings[dir][fanout];
+			if (cur != null && cur.modified == modified && !cur.racy)
+				return cur;
+		}
+
+		final Listing n = new Listing(modified, System.currentTimeMillis());
+		final String[] names = path.list();
+		if (names != null) {
+			for (final String f : names) {
+				final String s = d + f;
+				if (ObjectId.isId(s))
+					n.names.add(ObjectId.fromString(s));
+			}
+		}
+		synchronized (this) {
+			listings[dir][fanout] = n;
+		}
+		return n;
+	}
+
+	private static String hex(final int b) {
+		final char[] r = new char[2];
+		r[0] = Character.forDigit(b >>> 4, 16);
+		r[1] = Character.forDigit(b & 0xf, 16);
+		return new String(r);
+	}
+
+	private static class MissingId extends ObjectId {
+		long expires;
+
+		MissingId(final AnyObjectId id, final long expires) {
+			super(id);
+			this.expires = expires;
+		}
+	}
+
+	private static class Listing {
+		final long modified;
+
+		final boolean racy;
+
+		final ObjectIdSubclassMap<ObjectId> names;
+
+		Listing(final long modified, final long listedAt) {
+			this.modified = modified;
+			this.racy = modified != 0 && listedAt - modified < RACY_MS;
+			this.names = new ObjectIdSubclassMap<ObjectId>();
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Locates objects across many packs with a single index.
+ * <p>
+ * A multi-pack index lists every object of a set of packs in one sorted
+ * table, naming the pack holding each object and its offset within that pack.
+ * Looking up an object costs one binary search no matter how many packs the
+ * index covers, where searching each {@link PackIndex} in turn costs one
+ * search per pack.
+ * <p>
+ * The file layout is the <code>multi-pack-index</code> format of C Git,
+ * using a single file without base indexes.
+ */
+public class MultiPackIndex {
+	/** Name of the index file, within the <code>objects/pack</code> directory. */
+	public static final String FILE_NAME = "multi-pack-index";
+
+	static final byte[] SIGNATURE = { 'M', 'I', 'D', 'X' };
+
+	static final int VERSION = 1;
+
+	static final int OID_VERSION_SHA1 = 1;
+
+	static final int HEADER_SIZE = 12;
+
+	static final int CHUNK_LOOKUP_WIDTH = 12;
+
+	static final int CHUNK_PACKNAMES = 0x504e414d;
+
+	static final int CHUNK_OIDFANOUT = 0x4f494446;
+
+	static final int CHUNK_OIDLOOKUP = 0x4f49444c;
+
+	static final int CHUNK_OBJECTOFFSETS = 0x4f4f4646;
+
+	static final int CHUNK_LARGEOFFSETS = 0x4c4f4646;
+
+	/** Marks an offset stored in the large offset chunk. */
+	static final long IS_LARGE_OFFSET = 1L << 31;
+
+	/**
+	 * Read an existing multi-pack index file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the index.
+	 * @throws IOException
+	 *             the file cannot be read, or is not a supported multi-pack
+	 *             index.
+	 */
+	public static MultiPackIndex open(final File file) throws IOException {
+		try {
+			final long len = file.length();
+			if (len > Integer.MAX_VALUE)
+				throw new IOException("Index file is too large for jgit");
+			final byte[] buf = new byte[(int) len];
+			final FileInputStream in = new FileInputStream(file);
+			try {
+				NB.readFully(in, buf, 0, buf.length);
+			} finally {
+				in.close();
+			}
+			return new MultiPackIndex(buf);
+		} catch (IOException ioe) {
+			final IOException err;
+			err = new IOException("Unreadable multi-pack index: "
+					+ file.getAbsolutePath());
+			err.initCause(ioe);
+			throw err;
+		}
+	}
+
+	private final byte[] data;
+
+	private final String[] packNames;
+
+	private final int[] fanoutTable;
+
+	private final int objectCnt;
+
+	private final int oidLookup;
+
+	private final int objectOffsets;
+
+	private final int largeOffsets;
+
+	private MultiPackIndex(final byte[] buf) throws IOException {
+		data = buf;
+		if (buf.length < HEADER_SIZE + CHUNK_LOOKUP_WIDTH
+				+ Constants.OBJECT_ID_LENGTH)
+			throw new IOException("Multi-pack index is truncated");
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (buf[i] != SIGNATURE[i])
+				throw new IOException("Not a multi-pack index");
+		}
+		if (buf[4] != VERSION)
+			throw new IOException("Unsupported multi-pack index version "
+					+ buf[4]);
+		if (buf[5] != OID_VERSION_SHA1)
+			throw new IOException("Unsupported object id version " + buf[5]);
+		if (buf[7] != 0)
+			throw new IOException("Multi-pack index chains are not supported");
+		final int chunkCnt = buf[6] & 0xff;
+		final int packCnt = NB.decodeInt32(buf, 8);
+		final int end = buf.length - Constants.OBJECT_ID_LENGTH;
+
+		int packNamesPos = -1;
+		int packNamesEnd = -1;
+		int fanout = -1;
+		int lookup = -1;
+		int offsets = -1;
+		int large = -1;
+		int p = HEADER_SIZE;
+		for (int i = 0; i < chunkCnt; i++, p += CHUNK_LOOKUP_WIDTH) {
+			if (p + 2 * CHUNK_LOOKUP_WIDTH > end)
+				throw new IOException("Multi-pack index is truncated");
+			final int id = NB.decodeInt32(buf, p);
+			final long start = NB.decodeUInt64(buf, p + 4);
+			final long next = NB.decodeUInt64(buf, p + 4 + CHUNK_LOOKUP_WIDTH);
+			if (start < 0 || next < start || end < next)
+				throw new IOException("Multi-pack index has a bad chunk table");
+			switch (id) {
+			case CHUNK_PACKNAMES:
+				packNamesPos = (int) start;
+				packNamesEnd = (int) next;
+				break;
+			case CHUNK_OIDFANOUT:
+				fanout = (int) start;
+				break;
+			case CHUNK_OIDLOOKUP:
+				lookup = (int) start;
+				break;
+			case CHUNK_OBJECTOFFSETS:
+				offsets = (int) start;
+				break;
+			case CHUNK_LARGEOFFSETS:
+				large = (int) start;
+				break;
+			default:
+				// Chunks we do not understand are optional; skip them.
+				break;
+			}
+		}
+		if (packNamesPos < 0 || fanout < 0 || lookup < 0 || offsets < 0)
+			throw new IOException("Multi-pack index is missing a chunk");
+
+		// Pack names are NUL terminated, possibly followed by padding.
+		//
+		packNames = new String[packCnt];
+		p = packNamesPos;
+		for (int i = 0; i < packCnt; i++) {
+			while (p < packNamesEnd && buf[p] == 0)
+				p++;
+			int e = p;
+			while (e < packNamesEnd && buf[e] != 0)
+				e++;
+			if (p == packNamesEnd || e == packNamesEnd)
+				throw new IOException("Multi-pack index has bad pack names");
+			packNames[i] = RawParseUtils.decode(Constants.CHARSET, buf, p, e);
+			p = e + 1;
+		}
+
+		fanoutTable = new int[256];
+		for (int k = 0; k < 256; k++)
+			fanoutTable[k] = NB.decodeInt32(buf, fanout + 4 * k);
+		objectCnt = fanoutTable[255];
+		if (objectCnt < 0
+				|| lookup + (long) objectCnt * Constants.OBJECT_ID_LENGTH > end
+				|| offsets + (long) objectCnt * 8 > end)
+			throw new IOException("Multi-pack index is truncated");
+		oidLookup = lookup;
+		objectOffsets = offsets;
+		largeOffsets = large;
+	}
+
+	/** @return number of packs covered by this index. */
+	public int getPackCount() {
+		return packNames.length;
+	}
+
+	/**
+	 * @param packId
+	 *            position of the pack in this index.
+	 * @return file name of the pack's <code>.idx</code> file.
+	 */
+	public String getPackName(final int packId) {
+		return packNames[packId];
+	}
+
+	/** @return file names of the covered packs' indexes, sorted. */
+	String[] getPackNames() {
+		return packNames;
+	}
+
+	/** @return number of objects described by this index. */
+	public long getObjectCount() {
+		return objectCnt;
+	}
+
+	/**
+	 * Determine if an object is contained within the covered packs.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return true if the object is listed in this index.
+	 */
+	public boolean hasObject(final AnyObjectId id) {
+		return findPosition(id) >= 0;
+	}
+
+	/**
+	 * Find an object in the sorted object table.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return position of the object in the table; -1 if it is not listed.
+	 */
+	int findPosition(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne > 0 ? fanoutTable[levelOne - 1] : 0;
+		int high = fanoutTable[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(data, oidLookup + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param nth
+	 *            position in the object table.
+	 * @return name of the object at that position.
+	 */
+	ObjectId getObjectId(final int nth) {
+		return ObjectId.fromRaw(data, oidLookup + nth
+				* Constants.OBJECT_ID_LENGTH);
+	}
+
+	void copyObjectId(final int nth, final int[] dst) {
+		final int p = oidLookup + nth * Constants.OBJECT_ID_LENGTH;
+		for (int i = 0; i < 5; i++)
+			dst[i] = NB.decodeInt32(data, p + 4 * i);
+	}
+
+	/**
+	 * @param nth
+	 *            position in the object table.
+	 * @return pack holding the object, as a position in the pack names.
+	 */
+	int getPackId(final int nth) {
+		return NB.decodeInt32(data, objectOffsets + nth * 8);
+	}
+
+	/**
+	 * @param nth
+	 *            position in the object table.
+	 * @return offset of the object within its pack.
+	 */
+	long getOffset(final int nth) {
+		final long p = NB.decodeUInt32(data, objectOffsets + nth * 8 + 4);
+		if ((p & IS_LARGE_OFFSET) == 0)
+			return p;
+		if (largeOffsets < 0)
+			throw new IllegalStateException("Multi-pack index has no large"
+					+ " offsets, but needs one");
+		return NB.decodeUInt64(data, largeOffsets + 8
+				* (int) (p & ~IS_LARGE_OFFSET));
+	}
+}
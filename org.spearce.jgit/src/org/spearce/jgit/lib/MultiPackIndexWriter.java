@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Creates a {@link MultiPackIndex} from the indexes of a set of packs.
+ * <p>
+ * Sources are merged in object name order. If an object appears in more than
+ * one source, the source added first is recorded as its location, so callers
+ * should add their preferred (usually most recent) packs first.
+ */
+public class MultiPackIndexWriter {
+	private final List<Source> sources = new ArrayList<Source>();
+
+	private final List<String> packNames = new ArrayList<String>();
+
+	/**
+	 * Add the objects of one pack.
+	 *
+	 * @param idxName
+	 *            file name of the pack's <code>.idx</code> file, without any
+	 *            directory component.
+	 * @param entries
+	 *            the pack's index entries, in object name order. A
+	 *            {@link PackFile} or {@link PackIndex} can be supplied.
+	 */
+	public void addPack(final String idxName,
+			final Iterable<PackIndex.MutableEntry> entries) {
+		if (packNames.contains(idxName))
+			return;
+		packNames.add(idxName);
+		sources.add(new PackSource(sources.size(), idxName, entries.iterator()));
+	}
+
+	/**
+	 * Add every object of an existing multi-pack index.
+	 * <p>
+	 * The packs it covers are assumed to still exist; the objects are not
+	 * rescanned from their pack indexes.
+	 *
+	 * @param midx
+	 *            the index to copy from.
+	 */
+	public void addMultiPackIndex(final MultiPackIndex midx) {
+		final String[] names = new String[midx.getPackCount()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = midx.getPackName(i);
+			if (!packNames.contains(names[i]))
+				packNames.add(names[i]);
+		}
+		sources.add(new IndexSource(sources.size(), names, midx));
+	}
+
+	/**
+	 * Write the merged index.
+	 * <p>
+	 * After writing the stream is flushed but remains open. Callers are
+	 * always responsible for closing the output stream.
+	 *
+	 * @param dst
+	 *            the stream the index data will be written to. If not already
+	 *            buffered it will be automatically wrapped in a buffered
+	 *            stream.
+	 * @throws IOException
+	 *             a source index could not be read, or the stream could not
+	 *             be written to.
+	 */
+	public void write(final OutputStream dst) throws IOException {
+		// C Git requires the pack names to be sorted, and object
+		// entries refer to a pack by its position in that order.
+		//
+		final List<String> sortedNames = new ArrayList<String>(packNames);
+		Collections.sort(sortedNames);
+		final Map<String, Integer> packIds = new HashMap<String, Integer>();
+		for (int i = 0; i < sortedNames.size(); i++)
+			packIds.put(sortedNames.get(i), Integer.valueOf(i));
+
+		final PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		for (final Source s : sources) {
+			s.mapPackIds(packIds);
+			if (s.next())
+				queue.add(s);
+		}
+
+		int cnt = 0;
+		int[] ids = new int[5 * 1024];
+		int[] packOf = new int[1024];
+		long[] offsets = new long[1024];
+		int largeCnt = 0;
+		final int[] fanout = new int[256];
+		while (!queue.isEmpty()) {
+			final Source s = queue.poll();
+			if (cnt == 0 || compare(ids, 5 * (cnt - 1), s.id) != 0) {
+				if (cnt == packOf.length) {
+					ids = grow(ids, 2 * ids.length);
+					packOf = grow(packOf, 2 * packOf.length);
+					final long[] n = new long[2 * offsets.length];
+					System.arraycopy(offsets, 0, n, 0, cnt);
+					offsets = n;
+				}
+				System.arraycopy(s.id, 0, ids, 5 * cnt, 5);
+				packOf[cnt] = s.packId;
+				offsets[cnt] = s.offset;
+				if (s.offset >= MultiPackIndex.IS_LARGE_OFFSET)
+					largeCnt++;
+				fanout[s.id[0] >>> 24]++;
+				cnt++;
+			}
+			if (s.next())
+				queue.add(s);
+		}
+
+		final byte[] names = encodeNames(sortedNames);
+		final int chunkCnt = largeCnt > 0 ? 5 : 4;
+		final long[] chunkStart = new long[chunkCnt + 1];
+		chunkStart[0] = MultiPackIndex.HEADER_SIZE + (chunkCnt + 1)
+				* MultiPackIndex.CHUNK_LOOKUP_WIDTH;
+		chunkStart[1] = chunkStart[0] + names.length;
+		chunkStart[2] = chunkStart[1] + 256 * 4;
+		chunkStart[3] = chunkStart[2] + (long) cnt
+				* Constants.OBJECT_ID_LENGTH;
+		chunkStart[4] = chunkStart[3] + (long) cnt * 8;
+		if (largeCnt > 0)
+			chunkStart[5] = chunkStart[4] + (long) largeCnt * 8;
+		final int[] chunkIds = { MultiPackIndex.CHUNK_PACKNAMES,
+				MultiPackIndex.CHUNK_OIDFANOUT, MultiPackIndex.CHUNK_OIDLOOKUP,
+				MultiPackIndex.CHUNK_OBJECTOFFSETS,
+				MultiPackIndex.CHUNK_LARGEOFFSETS };
+
+		final DigestOutputStream out = new DigestOutputStream(
+				dst instanceof BufferedOutputStream ? dst
+						: new BufferedOutputStream(dst), Constants
+						.newMessageDigest());
+		final byte[] tmp = new byte[Constants.OBJECT_ID_LENGTH];
+
+		out.write(MultiPackIndex.SIGNATURE);
+		out.write(MultiPackIndex.VERSION);
+		out.write(MultiPackIndex.OID_VERSION_SHA1);
+		out.write(chunkCnt);
+		out.write(0);
+		NB.encodeInt32(tmp, 0, sortedNames.size());
+		out.write(tmp, 0, 4);
+
+		for (int i = 0; i <= chunkCnt; i++) {
+			NB.encodeInt32(tmp, 0, i < chunkCnt ? chunkIds[i] : 0);
+			NB.encodeInt64(tmp, 4, chunkStart[i]);
+			out.write(tmp, 0, MultiPackIndex.CHUNK_LOOKUP_WIDTH);
+		}
+
+		out.write(names);
+
+		int total = 0;
+		for (int k = 0; k < 256; k++) {
+			total += fanout[k];
+			NB.encodeInt32(tmp, 0, total);
+			out.write(tmp, 0, 4);
+		}
+
+		for (int i = 0; i < 5 * cnt; i++) {
+			NB.encodeInt32(tmp, 0, ids[i]);
+			out.write(tmp, 0, 4);
+		}
+
+		int nextLarge = 0;
+		for (int i = 0; i < cnt; i++) {
+			NB.encodeInt32(tmp, 0, packOf[i]);
+			if (offsets[i] < MultiPackIndex.IS_LARGE_OFFSET)
+				NB.encodeInt32(tmp, 4, (int) offsets[i]);
+			else
+				NB.encodeInt32(tmp, 4, (int) MultiPackIndex.IS_LARGE_OFFSET
+						| nextLarge++);
+			out.write(tmp, 0, 8);
+		}
+
+		for (int i = 0; i < cnt; i++) {
+			if (offsets[i] >= MultiPackIndex.IS_LARGE_OFFSET) {
+				NB.encodeInt64(tmp, 0, offsets[i]);
+				out.write(tmp, 0, 8);
+			}
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private static byte[] encodeNames(final List<String> names) {
+		int len = 0;
+		final byte[][] raw = new byte[names.size()][];
+		for (int i = 0; i < raw.length; i++) {
+			raw[i] = Constants.encode(names.get(i));
+			len += raw[i].length + 1;
+		}
+		final byte[] r = new byte[(len + 3) & ~3];
+		int p = 0;
+		for (final byte[] b : raw) {
+			System.arraycopy(b, 0, r, p, b.length);
+			p += b.length + 1;
+		}
+		return r;
+	}
+
+	private static int[] grow(final int[] a, final int sz) {
+		final int[] n = new int[sz];
+		System.arraycopy(a, 0, n, 0, a.length);
+		return n;
+	}
+
+	private static int compare(final int[] a, final int p, final int[] b) {
+		for (int i = 0; i < 5; i++) {
+			final int cmp = NB.compareUInt32(a[p + i], b[i]);
+			if (cmp != 0)
+				return cmp;
+		}
+		return 0;
+	}
+
+	private static abstract class Source implements Comparable<Source> {
+		private final int order;
+
+		final int[] id = new int[5];
+
+		int packId;
+
+		long offset;
+
+		Source(final int order) {
+			this.order = order;
+		}
+
+		abstract void mapPackIds(Map<String, Integer> packIds);
+
+		/** @return true if the next entry was loaded; false at the end. */
+		abstract boolean next() throws IOException;
+
+		public int compareTo(final Source o) {
+			final int cmp = compare(id, 0, o.id);
+			return cmp != 0 ? cmp : order - o.order;
+		}
+	}
+
+	private static class PackSource extends Source {
+		private final String name;
+
+		private final Iterator<PackIndex.MutableEntry> entries;
+
+		PackSource(final int order, final String idxName,
+				final Iterator<PackIndex.MutableEntry> entries) {
+			super(order);
+			this.name = idxName;
+			this.entries = entries;
+		}
+
+		void mapPackIds(final Map<String, Integer> packIds) {
+			packId = packIds.get(name).intValue();
+		}
+
+		boolean next() {
+			if (!entries.hasNext())
+				return false;
+			final PackIndex.MutableEntry e = entries.next();
+			e.ensureId();
+			id[0] = e.idBuffer.w1;
+			id[1] = e.idBuffer.w2;
+			id[2] = e.idBuffer.w3;
+			id[3] = e.idBuffer.w4;
+			id[4] = e.idBuffer.w5;
+			offset = e.getOffset();
+			return true;
+		}
+	}
+
+	private static class IndexSource extends Source {
+		private final String[] names;
+
+		private final int[] packIdMap;
+
+		private final MultiPackIndex midx;
+
+		private int nth = -1;
+
+		IndexSource(final int order, final String[] names,
+				final MultiPackIndex midx) {
+			super(order);
+			this.names = names;
+			this.packIdMap = new int[names.length];
+			this.midx = midx;
+		}
+
+		void mapPackIds(final Map<String, Integer> packIds) {
+			for (int i = 0; i < names.length; i++)
+				packIdMap[i] = packIds.get(names[i]).intValue();
+		}
+
+		boolean next() {
+			if (++nth >= midx.getObjectCount())
+				return false;
+			midx.copyObjectId(nth, id);
+			packId = packIdMap[midx.getPackId(nth)];
+			offset = midx.getOffset(nth);
+			return true;
+		}
+	}
+}
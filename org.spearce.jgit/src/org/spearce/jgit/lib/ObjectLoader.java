@@ -38,7 +38,9 @@
 
 package org.spearce.jgit.lib;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Base class for a set of loaders for different representations of Git objects.
@@ -88,6 +90,25 @@ public final byte[] getBytes() throws IOException {
 	 */
 	public abstract byte[] getCachedBytes() throws IOException;
 
+	/**
+	 * Obtain an input stream to read this object's data.
+	 * <p>
+	 * Unlike {@link #getBytes()} the object does not need to fit into memory.
+	 * Loaders which are able to inflate (and apply deltas) incrementally do
+	 * so, reading at most a small buffer ahead of the caller. Callers should
+	 * prefer this method for objects larger than
+	 * {@link CoreConfig#getStreamFileThreshold()}.
+	 * <p>
+	 * The caller must close the returned stream.
+	 * 
+	 * @return a stream returning exactly {@link #getSize()} bytes.
+	 * @throws IOException
+	 *             the object cannot be read.
+	 */
+	public InputStream openStream() throws IOException {
+		return new ByteArrayInputStream(getCachedBytes());
+	}
+
 	/**
 	 * @return raw object type from object header, as stored in storage (pack,
 	 *         loose file). This may be different from {@link #getType()} result
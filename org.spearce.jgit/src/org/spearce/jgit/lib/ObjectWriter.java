@@ -297,8 +297,31 @@ public ObjectId computeBlobSha1(final long len, final InputStream is)
 		return writeObject(Constants.OBJ_BLOB, len, is, false);
 	}
 
+	/**
+	 * Store an object as a loose file, even if a pack already holds it.
+	 *
+	 * @param type
+	 *            type code of the object.
+	 * @param len
+	 *            number of bytes to consume.
+	 * @param is
+	 *            stream to read the object's content from.
+	 * @return SHA-1 of the object written.
+	 * @throws IOException
+	 */
+	ObjectId writeLooseObject(final int type, final long len,
+			final InputStream is) throws IOException {
+		return writeObject(type, len, is, true, true);
+	}
+
 	ObjectId writeObject(final int type, long len, final InputStream is,
 			boolean store) throws IOException {
+		return writeObject(type, len, is, store, false);
+	}
+
+	private ObjectId writeObject(final int type, long len,
+			final InputStream is, boolean store, final boolean loose)
+			throws IOException {
 		final File t;
 		final DeflaterOutputStream deflateStream;
 		final FileOutputStream fileStream;
@@ -373,7 +396,7 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 		if (t == null)
 			return id;
 
-		if (r.hasObject(id)) {
+		if (loose ? r.toFile(id).isFile() : r.hasObject(id)) {
 			// Object is already in the repository so remove
 			// the temporary file.
 			//
@@ -387,6 +410,7 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 				//
 				o.getParentFile().mkdir();
 				if (!t.renameTo(o)) {
+					r.onLooseObjectWritten(id);
 					if (!r.hasObject(id)) {
 						// The object failed to be renamed into its proper
 						// location and it doesn't exist in the repository
@@ -399,6 +423,7 @@ ObjectId writeObject(final int type, long len, final InputStream is,
 					}
 				}
 			}
+			r.onLooseObjectWritten(id);
 		}
 
 		return id;
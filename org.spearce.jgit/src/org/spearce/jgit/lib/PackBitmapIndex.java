@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Reachability bitmaps stored alongside a pack file.
+ * <p>
+ * A <code>.bitmap</code> file records, for a selection of the commits in a
+ * pack, the set of every object reachable from that commit. Each object is
+ * identified by its position in the pack, in offset order. The file also
+ * holds one bitmap per object type, so the type of any object in the pack can
+ * be found without reading it.
+ * <p>
+ * The layout is the same as C Git's version 1 bitmap index: a header naming
+ * the pack it belongs to, the four type bitmaps, one entry per selected commit
+ * and an optional cache of path name hashes, followed by a SHA-1 of the file.
+ * Bitmaps are only decompressed when they are asked for.
+ */
+public class PackBitmapIndex {
+	static final byte[] SIGNATURE = { 'B', 'I', 'T', 'M' };
+
+	static final int VERSION = 1;
+
+	/** Option flag: every commit's full closure is in the pack. */
+	static final int OPT_FULL_DAG = 1;
+
+	/** Option flag: a path name hash follows for each object. */
+	static final int OPT_HASH_CACHE = 4;
+
+	/**
+	 * Open a bitmap index file.
+	 * 
+	 * @param bitmapFile
+	 *            the <code>.bitmap</code> file to read.
+	 * @param pack
+	 *            the pack the bitmaps describe.
+	 * @param idx
+	 *            index of <code>pack</code>.
+	 * @return the bitmap index; null if the file uses a version or options
+	 *         this implementation does not understand, or was written for a
+	 *         different pack.
+	 * @throws IOException
+	 *             the file cannot be read, or is corrupt.
+	 */
+	static PackBitmapIndex open(final File bitmapFile, final PackFile pack,
+			final PackIndex idx) throws IOException {
+		final FileInputStream fd = new FileInputStream(bitmapFile);
+		try {
+			return read(new BufferedInputStream(fd), pack, idx);
+		} finally {
+			fd.close();
+		}
+	}
+
+	private static PackBitmapIndex read(final InputStream fd,
+			final PackFile pack, final PackIndex idx) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		final DigestInputStream in = new DigestInputStream(fd, md);
+
+		final byte[] hdr = new byte[32];
+		NB.readFully(in, hdr, 0, hdr.length);
+		for (int k = 0; k < SIGNATURE.length; k++) {
+			if (hdr[k] != SIGNATURE[k])
+				throw new CorruptObjectException("Not a bitmap index file");
+		}
+		final int version = NB.decodeUInt16(hdr, 4);
+		final int options = NB.decodeUInt16(hdr, 6);
+		if (version != VERSION
+				|| (options & ~(OPT_FULL_DAG | OPT_HASH_CACHE)) != 0)
+			return null;
+		final byte[] packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(hdr, 12, packChecksum, 0, packChecksum.length);
+		if (!Arrays.equals(packChecksum, idx.packChecksum))
+			return null;
+
+		final long objectCount = idx.getObjectCount();
+		final long entryCount = NB.decodeUInt32(hdr, 8);
+		if (entryCount > objectCount)
+			throw new CorruptObjectException("Bitmap index lists "
+					+ entryCount + " commits, pack has only " + objectCount
+					+ " objects");
+
+		final PackBitmapIndex r = new PackBitmapIndex(pack, (int) objectCount);
+		r.commits = EWAH.decode(EWAH.read(in));
+		r.trees = EWAH.decode(EWAH.read(in));
+		r.blobs = EWAH.decode(EWAH.read(in));
+		r.tags = EWAH.decode(EWAH.read(in));
+
+		final StoredBitmap[] entries = new StoredBitmap[(int) entryCount];
+		final byte[] ent = new byte[6];
+		for (int i = 0; i < entries.length; i++) {
+			NB.readFully(in, ent, 0, ent.length);
+			final long nth = NB.decodeUInt32(ent, 0);
+			final int xor = ent[4] & 0xff;
+			if (nth >= objectCount || xor > i)
+				throw new CorruptObjectException("Invalid bitmap entry " + i);
+			final StoredBitmap base = xor != 0 ? entries[i - xor] : null;
+			entries[i] = new StoredBitmap(idx.getObjectId(nth), EWAH.read(in),
+					base);
+			r.bitmaps.add(entries[i]);
+		}
+
+		if ((options & OPT_HASH_CACHE) != 0) {
+			final byte[] buf = new byte[4 * (int) objectCount];
+			NB.readFully(in, buf, 0, buf.length);
+			r.pathHashes = new int[(int) objectCount];
+			for (int i = 0; i < r.pathHashes.length; i++)
+				r.pathHashes[i] = NB.decodeInt32(buf, i * 4);
+		}
+
+		in.on(false);
+		final byte[] trailer = new byte[Constants.OBJECT_ID_LENGTH];
+		NB.readFully(in, trailer, 0, trailer.length);
+		if (!Arrays.equals(trailer, md.digest()))
+			throw new CorruptObjectException("Bitmap index checksum mismatch");
+		return r;
+	}
+
+	private final PackFile pack;
+
+	private final int objectCount;
+
+	private final ObjectIdSubclassMap<StoredBitmap> bitmaps;
+
+	private BitSet commits;
+
+	private BitSet trees;
+
+	private BitSet blobs;
+
+	private BitSet tags;
+
+	/** Path hash of each object, in index (SHA-1) order; null if absent. */
+	private int[] pathHashes;
+
+	private PackBitmapIndex(final PackFile pack, final int objectCount) {
+		this.pack = pack;
+		this.objectCount = objectCount;
+		this.bitmaps = new ObjectIdSubclassMap<StoredBitmap>();
+	}
+
+	/** @return number of objects in the pack, and bits in each bitmap. */
+	public int getObjectCount() {
+		return objectCount;
+	}
+
+	/** @return number of commits which have a stored bitmap. */
+	public int getBitmapCount() {
+		return bitmaps.size();
+	}
+
+	/**
+	 * Get the set of objects reachable from a commit.
+	 * 
+	 * @param commit
+	 *            the commit to look up.
+	 * @return a new bitmap of the positions of every object reachable from
+	 *         the commit, including the commit itself; null if no bitmap is
+	 *         stored for this commit.
+	 * @throws CorruptObjectException
+	 *             the stored bitmap is invalid.
+	 */
+	public BitSet getBitmap(final AnyObjectId commit)
+			throws CorruptObjectException {
+		final StoredBitmap sb = bitmaps.get(commit);
+		return sb != null ? sb.decode() : null;
+	}
+
+	/**
+	 * Get the position of an object in the pack.
+	 * 
+	 * @param id
+	 *            the object to look up.
+	 * @return the number of objects before it in the pack; -1 if the object is
+	 *         not in the pack.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	public int findPosition(final AnyObjectId id) throws IOException {
+		return pack.findPosition(id);
+	}
+
+	/**
+	 * Get the object at a position in the pack.
+	 * 
+	 * @param position
+	 *            the number of objects before it in the pack.
+	 * @return the object's name.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	public ObjectId getObject(final int position) throws IOException {
+		return pack.findObjectByPosition(position);
+	}
+
+	/**
+	 * Get the type of the object at a position in the pack.
+	 * 
+	 * @param position
+	 *            the number of objects before it in the pack.
+	 * @return one of the {@link Constants} <code>OBJ_*</code> type codes.
+	 * @throws CorruptObjectException
+	 *             none of the type bitmaps include the position.
+	 */
+	public int getObjectType(final int position)
+			throws CorruptObjectException {
+		if (commits.get(position))
+			return Constants.OBJ_COMMIT;
+		if (trees.get(position))
+			return Constants.OBJ_TREE;
+		if (blobs.get(position))
+			return Constants.OBJ_BLOB;
+		if (tags.get(position))
+			return Constants.OBJ_TAG;
+		throw new CorruptObjectException("Bitmap index has no type for object "
+				+ position);
+	}
+
+	/**
+	 * Get the path name hash recorded for an object.
+	 * 
+	 * @param position
+	 *            the number of objects before it in the pack.
+	 * @return hash of the path the object was found at when the pack was
+	 *         written; 0 if it is unknown.
+	 * @throws IOException
+	 *             the pack index cannot be read.
+	 */
+	public int getPathHash(final int position) throws IOException {
+		if (pathHashes == null)
+			return 0;
+		return pathHashes[pack.findNth(position)];
+	}
+
+	private static class StoredBitmap extends ObjectId {
+		private final byte[] raw;
+
+		private final StoredBitmap xorBase;
+
+		StoredBitmap(final AnyObjectId id, final byte[] raw,
+				final StoredBitmap xorBase) {
+			super(id);
+			this.raw = raw;
+			this.xorBase = xorBase;
+		}
+
+		BitSet decode() throws CorruptObjectException {
+			final BitSet r = EWAH.decode(raw);
+			if (xorBase != null)
+				r.xor(xorBase.decode());
+			return r;
+		}
+	}
+}
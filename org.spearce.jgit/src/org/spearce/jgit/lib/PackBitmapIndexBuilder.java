@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.spearce.jgit.lib.PackWriter.ObjectToPack;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Computes and writes the bitmap index of a newly written pack.
+ * <p>
+ * Commits are selected for a bitmap if nothing in the pack descends from
+ * them, and otherwise every {@link #COMMIT_SPACING} commits in topological
+ * order. Bitmaps are computed oldest first, so each commit only has to walk
+ * back to the nearest commit which already has one.
+ */
+class PackBitmapIndexBuilder {
+	/** Number of commits between two commits receiving a bitmap. */
+	static final int COMMIT_SPACING = 100;
+
+	private final Repository db;
+
+	private final List<ObjectToPack> byName;
+
+	private final byte[] packChecksum;
+
+	/** Every object of the pack, with its position. */
+	private final ObjectIdSubclassMap<Entry> entries;
+
+	/** Type of each object, by position. */
+	private final byte[] types;
+
+	/** Computed bitmaps, in the order they are computed and written. */
+	private final List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+
+	private final ObjectIdSubclassMap<Bitmap> bitmapMap = new ObjectIdSubclassMap<Bitmap>();
+
+	/**
+	 * Create a builder for a pack.
+	 * 
+	 * @param db
+	 *            repository the pack's objects can be read from.
+	 * @param byName
+	 *            every object of the pack, sorted by name, with their offsets
+	 *            set.
+	 * @param packChecksum
+	 *            trailing checksum of the pack.
+	 */
+	PackBitmapIndexBuilder(final Repository db,
+			final List<ObjectToPack> byName, final byte[] packChecksum) {
+		this.db = db;
+		this.byName = byName;
+		this.packChecksum = packChecksum;
+
+		final ObjectToPack[] byOffset = byName
+				.toArray(new ObjectToPack[byName.size()]);
+		Arrays.sort(byOffset, new Comparator<ObjectToPack>() {
+			public int compare(final ObjectToPack a, final ObjectToPack b) {
+				return Long.signum(a.getOffset() - b.getOffset());
+			}
+		});
+
+		entries = new ObjectIdSubclassMap<Entry>();
+		types = new byte[byOffset.length];
+		for (int pos = 0; pos < byOffset.length; pos++) {
+			entries.add(new Entry(byOffset[pos], pos));
+			types[pos] = (byte) byOffset[pos].getType();
+		}
+		for (int nth = 0; nth < byName.size(); nth++)
+			entries.get(byName.get(nth)).nth = nth;
+	}
+
+	/**
+	 * Select the commits to store bitmaps for and compute their bitmaps.
+	 * 
+	 * @param pm
+	 *            progress of the computation.
+	 * @throws IOException
+	 *             an object of the pack could not be read.
+	 */
+	void build(final ProgressMonitor pm) throws IOException {
+		final List<RevCommit> selected = selectCommits();
+
+		final BitmapWalker bw = new BitmapWalker(db) {
+			@Override
+			BitSet getBitmap(final AnyObjectId commit) throws IOException {
+				final Bitmap b = bitmapMap.get(commit);
+				return b != null ? EWAH.decode(b.raw) : null;
+			}
+
+			@Override
+			int findPosition(final AnyObjectId id) {
+				final Entry e = entries.get(id);
+				return e != null ? e.position : -1;
+			}
+		};
+
+		pm.beginTask(PackWriter.BUILDING_BITMAPS_PROGRESS, selected.size());
+		for (int i = selected.size() - 1; 0 <= i; i--) {
+			final RevCommit c = selected.get(i);
+			final BitmapWalker.Result r = bw.reach(Collections
+					.singleton(c), false);
+			if (r.extra.isEmpty()) {
+				final Bitmap b = new Bitmap(c, EWAH.encode(r.bits,
+						types.length));
+				bitmaps.add(b);
+				bitmapMap.add(b);
+			}
+			pm.update(1);
+		}
+		pm.endTask();
+	}
+
+	private List<RevCommit> selectCommits() throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		final RevFlag hasChild = rw.newFlag("HAS_CHILD");
+		rw.sort(RevSort.TOPO);
+		for (final ObjectToPack otp : byName) {
+			if (otp.getType() == Constants.OBJ_COMMIT)
+				rw.markStart(rw.parseCommit(otp));
+		}
+
+		final List<RevCommit> selected = new ArrayList<RevCommit>();
+		int sinceLast = 0;
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			if (entries.get(c) == null)
+				continue;
+			if (!c.has(hasChild) || ++sinceLast >= COMMIT_SPACING) {
+				selected.add(c);
+				sinceLast = 0;
+			}
+			for (final RevCommit p : c.getParents())
+				p.add(hasChild);
+		}
+		return selected;
+	}
+
+	/**
+	 * Write the bitmap index.
+	 * 
+	 * @param os
+	 *            stream to write the index to. Caller is responsible for
+	 *            closing this stream.
+	 * @throws IOException
+	 *             the index could not be written to the stream.
+	 */
+	void write(final OutputStream os) throws IOException {
+		final BufferedOutputStream bos = new BufferedOutputStream(os);
+		final DigestOutputStream out = new DigestOutputStream(bos, Constants
+				.newMessageDigest());
+		final int cnt = types.length;
+
+		final byte[] hdr = new byte[32];
+		System.arraycopy(PackBitmapIndex.SIGNATURE, 0, hdr, 0, 4);
+		NB.encodeInt16(hdr, 4, PackBitmapIndex.VERSION);
+		NB.encodeInt16(hdr, 6, PackBitmapIndex.OPT_FULL_DAG
+				| PackBitmapIndex.OPT_HASH_CACHE);
+		NB.encodeInt32(hdr, 8, bitmaps.size());
+		System.arraycopy(packChecksum, 0, hdr, 12, packChecksum.length);
+		out.write(hdr);
+
+		EWAH.write(typeBitmap(Constants.OBJ_COMMIT), cnt, out);
+		EWAH.write(typeBitmap(Constants.OBJ_TREE), cnt, out);
+		EWAH.write(typeBitmap(Constants.OBJ_BLOB), cnt, out);
+		EWAH.write(typeBitmap(Constants.OBJ_TAG), cnt, out);
+
+		final byte[] ent = new byte[6];
+		for (final Bitmap b : bitmaps) {
+			NB.encodeInt32(ent, 0, entries.get(b).nth);
+			ent[4] = 0; // no XOR base
+			ent[5] = 0; // no flags
+			out.write(ent);
+			out.write(b.raw);
+		}
+
+		final byte[] hash = new byte[4];
+		for (final ObjectToPack otp : byName) {
+			NB.encodeInt32(hash, 0, otp.getPathHash());
+			out.write(hash);
+		}
+
+		out.on(false);
+		out.write(out.getMessageDigest().digest());
+		out.flush();
+	}
+
+	private BitSet typeBitmap(final int type) {
+		final BitSet r = new BitSet(types.length);
+		for (int pos = 0; pos < types.length; pos++) {
+			if (types[pos] == type)
+				r.set(pos);
+		}
+		return r;
+	}
+
+	private static class Entry extends ObjectId {
+		final int position;
+
+		int nth;
+
+		Entry(final AnyObjectId id, final int position) {
+			super(id);
+			this.position = position;
+		}
+	}
+
+	private static class Bitmap extends ObjectId {
+		final byte[] raw;
+
+		Bitmap(final AnyObjectId id, final byte[] raw) {
+			super(id);
+			this.raw = raw;
+		}
+	}
+}
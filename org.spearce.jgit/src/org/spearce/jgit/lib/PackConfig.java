@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * The standard "pack" configuration parameters used by {@link PackWriter}.
+ */
+public class PackConfig {
+	private static final int DEFAULT_WINDOW = 10;
+
+	private static final int DEFAULT_DEPTH = 50;
+
+	private static final int DEFAULT_WINDOW_MEMORY = 64 * 1024 * 1024;
+
+	private final int deltaWindow;
+
+	private final int deltaDepth;
+
+	private final int threads;
+
+	private final long windowMemory;
+
+	private final boolean useBitmaps;
+
+	PackConfig(final RepositoryConfig rc) {
+		deltaWindow = rc.getInt("pack", "window", DEFAULT_WINDOW);
+		deltaDepth = rc.getInt("pack", "depth", DEFAULT_DEPTH);
+		threads = rc.getInt("pack", "threads", 0);
+		windowMemory = rc.getInt("pack", "windowmemory", DEFAULT_WINDOW_MEMORY);
+		useBitmaps = rc.getBoolean("pack", "usebitmaps", true);
+	}
+
+	/**
+	 * @return number of objects to try as delta bases for each object; 0 to
+	 *         disable delta compression.
+	 */
+	public int getDeltaWindow() {
+		return deltaWindow;
+	}
+
+	/**
+	 * @return maximum depth of a delta chain.
+	 */
+	public int getDeltaDepth() {
+		return deltaDepth;
+	}
+
+	/**
+	 * @return number of threads to use for the delta search; 0 to use one
+	 *         thread per available processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return maximum number of bytes each delta search window may hold; 0
+	 *         for no limit. Defaults to 64 MiB when not configured.
+	 */
+	public long getWindowMemory() {
+		return windowMemory;
+	}
+
+	/**
+	 * @return true if reachability bitmaps should be used to find the objects
+	 *         to pack, when a pack has them.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+}
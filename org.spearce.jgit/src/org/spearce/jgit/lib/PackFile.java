@@ -41,6 +41,7 @@
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
@@ -49,8 +50,10 @@
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.util.IntList;
 import org.spearce.jgit.util.NB;
 
 /**
@@ -68,6 +71,8 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private final File idxFile;
 
+	private final boolean mmapIndex;
+
 	private final WindowedFile pack;
 
 	private int packLastModified;
@@ -76,6 +81,17 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private boolean bitmapIdxMissing;
+
+	private CachedPack cachedPack;
+
+	private boolean cachedPackMissing;
+
+	/** Resolved object types, by position in the reverse index; 0 if unknown. */
+	private byte[] typeMemo;
+
 	/**
 	 * Construct a reader for an existing, pre-indexed packfile.
 	 * 
@@ -85,7 +101,24 @@ public int compare(final PackFile a, final PackFile b) {
 	 *            path of the <code>.pack</code> file holding the data.
 	 */
 	public PackFile(final File idxFile, final File packFile) {
+		this(idxFile, packFile, false);
+	}
+
+	/**
+	 * Construct a reader for an existing, pre-indexed packfile.
+	 *
+	 * @param idxFile
+	 *            path of the <code>.idx</code> file listing the contents.
+	 * @param packFile
+	 *            path of the <code>.pack</code> file holding the data.
+	 * @param mmapIndex
+	 *            true to memory map the index, rather than reading it.
+	 * @see PackIndex#open(File, boolean)
+	 */
+	public PackFile(final File idxFile, final File packFile,
+			final boolean mmapIndex) {
 		this.idxFile = idxFile;
+		this.mmapIndex = mmapIndex;
 		this.packLastModified = (int) (packFile.lastModified() >> 10);
 		pack = new WindowedFile(packFile) {
 			@Override
@@ -97,7 +130,7 @@ protected void onOpen() throws IOException {
 
 	private synchronized PackIndex idx() throws IOException {
 		if (loadedIdx == null) {
-			loadedIdx = PackIndex.open(idxFile);
+			loadedIdx = PackIndex.open(idxFile, mmapIndex);
 		}
 		return loadedIdx;
 	}
@@ -151,13 +184,69 @@ public PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 	 * Close the resources utilized by this repository
 	 */
 	public void close() {
-		UnpackedObjectCache.purge(pack);
+		DeltaBaseCache.purge(pack);
 		pack.close();
 		synchronized (this) {
 			loadedIdx = null;
+			bitmapIdx = null;
+			bitmapIdxMissing = false;
+			cachedPack = null;
+			cachedPackMissing = false;
+			typeMemo = null;
 		}
 	}
 
+	/**
+	 * Get the reachability bitmaps stored alongside this pack.
+	 * <p>
+	 * The bitmaps are read from the <code>.bitmap</code> file next to the
+	 * pack's index, the first time they are requested.
+	 * 
+	 * @return the bitmap index; null if the pack has no usable bitmap file.
+	 * @throws IOException
+	 *             the bitmap file exists but cannot be read.
+	 */
+	public synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		if (bitmapIdx == null && !bitmapIdxMissing) {
+			final String n = idxFile.getName();
+			if (n.endsWith(".idx")) {
+				final String base = n.substring(0, n.length() - 4);
+				final File f = new File(idxFile.getParentFile(), base
+						+ ".bitmap");
+				if (f.isFile())
+					bitmapIdx = PackBitmapIndex.open(f, this, idx());
+			}
+			bitmapIdxMissing = bitmapIdx == null;
+		}
+		return bitmapIdx;
+	}
+
+	/**
+	 * Get this pack as a pack that can be sent verbatim.
+	 * <p>
+	 * A pack can be cached if a <code>.tips</code> file next to its index
+	 * lists the commits whose history it holds in full.
+	 *
+	 * @return the cached pack; null if the pack has no <code>.tips</code>
+	 *         file.
+	 * @throws IOException
+	 *             the tips file exists but cannot be read.
+	 */
+	public synchronized CachedPack getCachedPack() throws IOException {
+		if (cachedPack == null && !cachedPackMissing) {
+			final String n = idxFile.getName();
+			if (n.endsWith(".idx")) {
+				final String base = n.substring(0, n.length() - 4);
+				final File f = new File(idxFile.getParentFile(), base
+						+ ".tips");
+				if (f.isFile())
+					cachedPack = new CachedPack(this, CachedPack.readTips(f));
+			}
+			cachedPackMissing = cachedPack == null;
+		}
+		return cachedPack;
+	}
+
 	/**
 	 * Provide iterator over entries in associated pack index, that should also
 	 * exist in this pack file. Objects returned by such iterator are mutable
@@ -204,12 +293,134 @@ ObjectId findObjectForOffset(final long offset) throws IOException {
 		return getReverseIdx().findObject(offset);
 	}
 
-	final UnpackedObjectCache.Entry readCache(final long position) {
-		return UnpackedObjectCache.get(pack, position);
+	/**
+	 * Locate an object within this pack.
+	 *
+	 * @param id
+	 *            the object to look for.
+	 * @return offset of the object's header; -1 if the object is not here.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	long findOffset(final AnyObjectId id) throws IOException {
+		return idx().findOffset(id);
+	}
+
+	/**
+	 * Determine the type of an object without inflating any of its data.
+	 * <p>
+	 * A delta has the type of the whole object at the root of its chain, so
+	 * the base pointers are followed until one is found, reading only object
+	 * headers on the way. The type is remembered for every object visited,
+	 * letting later lookups within the same chain stop early.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param objectOffset
+	 *            offset of the object's header.
+	 * @return the object type; -1 if the chain leaves this pack (a thin pack
+	 *         delta whose base is stored elsewhere).
+	 * @throws IOException
+	 *             the pack or its index cannot be read.
+	 */
+	final int resolveType(final WindowCursor curs, final long objectOffset)
+			throws IOException {
+		final PackReverseIndex ridx = getReverseIdx();
+		final byte[] memo = typeMemo();
+		final IntList chain = new IntList();
+		long ofs = objectOffset;
+		int type;
+		for (;;) {
+			final int pos = ridx.findPosition(ofs);
+			if (pos < 0)
+				throw new CorruptObjectException("Delta base at " + ofs
+						+ " in " + getPackFile() + " is not an object");
+			if (memo[pos] != 0) {
+				type = memo[pos];
+				break;
+			}
+			if (chain.size() == memo.length)
+				throw new CorruptObjectException("Object at " + objectOffset
+						+ " in " + getPackFile() + " has a delta chain loop");
+			chain.add(pos);
+
+			final PackedObjectLoader ldr = reader(curs, ofs);
+			if (!(ldr instanceof DeltaPackedObjectLoader)) {
+				type = ldr.getType();
+				break;
+			}
+			ofs = ((DeltaPackedObjectLoader) ldr).getBaseOffset();
+			if (ofs < 0)
+				return -1;
+		}
+
+		// Racing writers can only ever store the same value, so the
+		// table needs no locking once it exists.
+		//
+		for (int i = 0; i < chain.size(); i++)
+			memo[chain.get(i)] = (byte) type;
+		return type;
+	}
+
+	private synchronized byte[] typeMemo() throws IOException {
+		if (typeMemo == null)
+			typeMemo = new byte[(int) getObjectCount()];
+		return typeMemo;
+	}
+
+	/**
+	 * Read the size of a delta's result, inflating only the delta header.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param dataOffset
+	 *            offset of the delta's compressed data.
+	 * @return size of the object the delta produces.
+	 * @throws IOException
+	 *             the pack cannot be read, or the delta is corrupt.
+	 */
+	final long readDeltaResultSize(final WindowCursor curs,
+			final long dataOffset) throws IOException {
+		// Two varints of up to 10 bytes each hold the base and result sizes.
+		//
+		final byte[] hdr = new byte[20];
+		final byte[] in = new byte[64];
+		final Inflater inf = InflaterCache.get();
+		try {
+			long position = dataOffset;
+			int cnt = 0;
+			while (cnt < hdr.length && !inf.finished()) {
+				if (inf.needsInput()) {
+					final int n = pack.read(position, in, 0, in.length, curs);
+					if (n <= 0)
+						throw new EOFException();
+					inf.setInput(in, 0, n);
+					position += n;
+				}
+				final int r = inf.inflate(hdr, cnt, hdr.length - cnt);
+				if (r == 0 && (inf.needsDictionary() || !inf.needsInput()))
+					throw new CorruptObjectException("Object at " + dataOffset
+							+ " in " + getPackFile() + " has bad zlib stream");
+				cnt += r;
+			}
+			return BinaryDelta.getResultSize(hdr);
+		} catch (DataFormatException dfe) {
+			final CorruptObjectException coe;
+			coe = new CorruptObjectException("Object at " + dataOffset
+					+ " in " + getPackFile() + " has bad zlib stream");
+			coe.initCause(dfe);
+			throw coe;
+		} finally {
+			InflaterCache.release(inf);
+		}
+	}
+
+	final DeltaBaseCache.Entry readCache(final long position) {
+		return DeltaBaseCache.get(pack, position);
 	}
 
 	final void saveCache(final long position, final byte[] data, final int type) {
-		UnpackedObjectCache.store(pack, position, data, type);
+		DeltaBaseCache.store(pack, position, data, type);
 	}
 
 	final byte[] decompress(final long position, final int totalSize,
@@ -219,6 +430,51 @@ final byte[] decompress(final long position, final int totalSize,
 		return dstbuf;
 	}
 
+	final void decompress(final long position, final byte[] dstbuf,
+			final int totalSize, final WindowCursor curs)
+			throws DataFormatException, IOException {
+		if (curs.inflate(pack, position, dstbuf, 0) != totalSize)
+			throw new EOFException("Short compressed stream at " + position);
+	}
+
+	/**
+	 * Open a stream inflating data stored in the pack.
+	 * <p>
+	 * The stream uses its own window cursor, so it may be read independently
+	 * of the caller's other reads from this pack.
+	 * 
+	 * @param position
+	 *            position of the zlib stream in the pack.
+	 * @param totalSize
+	 *            number of bytes the zlib stream inflates to.
+	 * @return stream of the inflated data.
+	 */
+	final InputStream openInflatedStream(final long position,
+			final long totalSize) {
+		final WindowCursor wc = new WindowCursor();
+		return new InflatingStream(totalSize) {
+			private long ptr = position;
+
+			@Override
+			protected int fill(final byte[] buf) throws IOException {
+				final int n = pack.read(ptr, buf, 0, buf.length, wc);
+				ptr += n;
+				return n;
+			}
+
+			@Override
+			protected CorruptObjectException corrupt(final String why) {
+				return new CorruptObjectException("Object at " + position
+						+ " in " + getPackFile() + " has " + why);
+			}
+
+			@Override
+			protected void onClose() {
+				wc.release();
+			}
+		};
+	}
+
 	final void copyRawData(final PackedObjectLoader loader,
 			final OutputStream out, final byte buf[]) throws IOException {
 		final long objectOffset = loader.objectOffset;
@@ -315,7 +571,7 @@ private PackedObjectLoader reader(final WindowCursor curs,
 		int shift = 4;
 		while ((c & 0x80) != 0) {
 			c = ib[p++] & 0xff;
-			dataSize += (c & 0x7f) << shift;
+			dataSize += ((long) (c & 0x7f)) << shift;
 			shift += 7;
 		}
 		pos += p;
@@ -326,7 +582,7 @@ private PackedObjectLoader reader(final WindowCursor curs,
 		case Constants.OBJ_BLOB:
 		case Constants.OBJ_TAG:
 			return new WholePackedObjectLoader(curs, this, pos, objOffset,
-					typeCode, (int) dataSize);
+					typeCode, dataSize);
 
 		case Constants.OBJ_OFS_DELTA: {
 			pack.readFully(pos, ib, curs);
@@ -340,12 +596,12 @@ private PackedObjectLoader reader(final WindowCursor curs,
 				ofs += (c & 127);
 			}
 			return new DeltaOfsPackedObjectLoader(curs, this, pos + p,
-					objOffset, (int) dataSize, objOffset - ofs);
+					objOffset, dataSize, objOffset - ofs);
 		}
 		case Constants.OBJ_REF_DELTA: {
 			pack.readFully(pos, ib, curs);
 			return new DeltaRefPackedObjectLoader(curs, this, pos + ib.length,
-					objOffset, (int) dataSize, ObjectId.fromRaw(ib));
+					objOffset, dataSize, ObjectId.fromRaw(ib));
 		}
 		default:
 			throw new IOException("Unknown object type " + typeCode + ".");
@@ -358,6 +614,19 @@ private long findEndOffset(final long startOffset)
 		return getReverseIdx().findNextOffset(startOffset, maxOffset);
 	}
 
+	int findPosition(final AnyObjectId id) throws IOException {
+		final long offset = idx().findOffset(id);
+		return 0 < offset ? getReverseIdx().findPosition(offset) : -1;
+	}
+
+	ObjectId findObjectByPosition(final int position) throws IOException {
+		return getReverseIdx().findObjectByPosition(position);
+	}
+
+	int findNth(final int position) throws IOException {
+		return getReverseIdx().findNth(position);
+	}
+
 	private synchronized PackReverseIndex getReverseIdx() throws IOException {
 		if (reverseIdx == null)
 			reverseIdx = new PackReverseIndex(idx());
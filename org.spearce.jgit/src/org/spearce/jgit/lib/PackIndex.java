@@ -42,6 +42,7 @@
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Iterator;
 
 import org.spearce.jgit.errors.MissingObjectException;
@@ -90,11 +91,7 @@ public static PackIndex open(final File idxFile) throws IOException {
 			}
 			return new PackIndexV1(fd, hdr);
 		} catch (IOException ioe) {
-			final String path = idxFile.getAbsolutePath();
-			final IOException err;
-			err = new IOException("Unreadable pack index: " + path);
-			err.initCause(ioe);
-			throw err;
+			throw unreadable(idxFile, ioe);
 		} finally {
 			try {
 				fd.close();
@@ -104,6 +101,59 @@ public static PackIndex open(final File idxFile) throws IOException {
 		}
 	}
 
+	/**
+	 * Open an existing pack <code>.idx</code> file for reading.
+	 * <p>
+	 * With <code>mmap</code> set a version 2 index is mapped into memory and
+	 * searched in place, rather than copied onto the heap. Opening it costs
+	 * the same regardless of its size, and pages of the file are only read
+	 * as lookups touch them. The mapping is released when the returned
+	 * instance is garbage collected; until then some platforms refuse to
+	 * delete the file. Older index formats are always read into the heap.
+	 *
+	 * @param idxFile
+	 *            existing pack .idx to read.
+	 * @param mmap
+	 *            true to map a version 2 index rather than reading it.
+	 * @return access implementation for the requested file.
+	 * @throws FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read due to security errors,
+	 *             unrecognized data version, or unexpected data corruption.
+	 */
+	public static PackIndex open(final File idxFile, final boolean mmap)
+			throws IOException {
+		if (!mmap)
+			return open(idxFile);
+
+		final RandomAccessFile fd = new RandomAccessFile(idxFile, "r");
+		try {
+			final byte[] hdr = new byte[8];
+			fd.readFully(hdr);
+			if (isTOC(hdr) && NB.decodeInt32(hdr, 4) == 2)
+				return new PackIndexV2Mapped(fd.getChannel());
+		} catch (IOException ioe) {
+			throw unreadable(idxFile, ioe);
+		} finally {
+			try {
+				fd.close();
+			} catch (IOException err2) {
+				// ignore
+			}
+		}
+		return open(idxFile);
+	}
+
+	private static IOException unreadable(final File idxFile,
+			final IOException cause) {
+		final String path = idxFile.getAbsolutePath();
+		final IOException err;
+		err = new IOException("Unreadable pack index: " + path);
+		err.initCause(cause);
+		return err;
+	}
+
 	private static boolean isTOC(final byte[] h) {
 		final byte[] toc = PackIndexWriter.TOC;
 		for (int i = 0; i < toc.length; i++)
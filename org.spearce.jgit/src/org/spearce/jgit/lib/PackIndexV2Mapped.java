@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Support for the pack index v2 format, read through a memory mapping.
+ * <p>
+ * Unlike {@link PackIndexV2} only the fan-out table is copied onto the heap.
+ * Lookups search the tables of the mapped file in place, leaving it to the
+ * operating system to page in the parts that are actually used, so opening
+ * the index takes the same time regardless of the number of objects.
+ * <p>
+ * Only absolute reads are made from the buffers, so any number of threads
+ * may search the index at once.
+ */
+class PackIndexV2Mapped extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	/** Size of the signature, version and fan-out table. */
+	private static final int HEADER_SIZE = 8 + 4 * FANOUT;
+
+	private final long objectCnt;
+
+	private final long[] fanoutTable;
+
+	private final ByteBuffer names;
+
+	private final ByteBuffer crc32;
+
+	private final ByteBuffer offset32;
+
+	private final ByteBuffer offset64;
+
+	PackIndexV2Mapped(final FileChannel fc) throws IOException {
+		final long length = fc.size();
+		if (length < HEADER_SIZE + 40)
+			throw new IOException("Pack index is truncated");
+
+		final ByteBuffer hdr = map(fc, 0, HEADER_SIZE);
+		fanoutTable = new long[FANOUT];
+		for (int k = 0; k < FANOUT; k++)
+			fanoutTable[k] = hdr.getInt(8 + 4 * k) & 0xffffffffL;
+		objectCnt = fanoutTable[FANOUT - 1];
+
+		// Each table must fit into a single buffer, limiting the index
+		// to no more than 107,374,182 objects.
+		//
+		final long nameLen = objectCnt * Constants.OBJECT_ID_LENGTH;
+		if (nameLen > Integer.MAX_VALUE)
+			throw new IOException("Index file is too large for jgit");
+
+		long pos = HEADER_SIZE;
+		names = map(fc, pos, nameLen);
+		pos += nameLen;
+		crc32 = map(fc, pos, objectCnt * 4);
+		pos += objectCnt * 4;
+		offset32 = map(fc, pos, objectCnt * 4);
+		pos += objectCnt * 4;
+
+		// Whatever remains before the two trailing checksums holds
+		// the 64 bit offsets.
+		//
+		final long o64Len = length - pos - 40;
+		if (o64Len < 0 || o64Len % 8 != 0)
+			throw new IOException("Pack index has unexpected size " + length);
+		offset64 = map(fc, pos, o64Len);
+		pos += o64Len;
+
+		packChecksum = new byte[20];
+		map(fc, pos, packChecksum.length).get(packChecksum);
+	}
+
+	private static ByteBuffer map(final FileChannel fc, final long pos,
+			final long size) throws IOException {
+		return fc.map(MapMode.READ_ONLY, pos, size);
+	}
+
+	@Override
+	long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	long getOffset64Count() {
+		return offset64.capacity() / 8;
+	}
+
+	@Override
+	ObjectId getObjectId(final long nthPosition) {
+		final int p = (int) nthPosition * Constants.OBJECT_ID_LENGTH;
+		return new ObjectId(names.getInt(p), names.getInt(p + 4), names
+				.getInt(p + 8), names.getInt(p + 12), names.getInt(p + 16));
+	}
+
+	@Override
+	long findOffset(final AnyObjectId objId) {
+		final int nth = binarySearch(objId);
+		if (nth == -1)
+			return -1;
+		return getOffset(nth);
+	}
+
+	@Override
+	long findCRC32(AnyObjectId objId) throws MissingObjectException {
+		final int nth = binarySearch(objId);
+		if (nth == -1)
+			throw new MissingObjectException(objId.copy(), "unknown");
+		return crc32.getInt(nth << 2) & 0xffffffffL;
+	}
+
+	@Override
+	boolean hasCRC32Support() {
+		return true;
+	}
+
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorMapped();
+	}
+
+	private long getOffset(final int nth) {
+		final long p = offset32.getInt(nth << 2) & 0xffffffffL;
+		if ((p & IS_O64) != 0)
+			return offset64.getLong(8 * (int) (p & ~IS_O64));
+		return p;
+	}
+
+	/** @return position of the object in the name table; -1 if absent. */
+	private int binarySearch(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne > 0 ? (int) fanoutTable[levelOne - 1] : 0;
+		int high = (int) fanoutTable[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = compare(objId, mid * Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	private int compare(final AnyObjectId objId, final int p) {
+		int cmp;
+
+		cmp = NB.compareUInt32(objId.w1, names.getInt(p));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w2, names.getInt(p + 4));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w3, names.getInt(p + 8));
+		if (cmp != 0)
+			return cmp;
+
+		cmp = NB.compareUInt32(objId.w4, names.getInt(p + 12));
+		if (cmp != 0)
+			return cmp;
+
+		return NB.compareUInt32(objId.w5, names.getInt(p + 16));
+	}
+
+	private class EntriesIteratorMapped extends EntriesIterator {
+		private int nth;
+
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					final int p = (nth - 1) * Constants.OBJECT_ID_LENGTH;
+					idBuffer.w1 = names.getInt(p);
+					idBuffer.w2 = names.getInt(p + 4);
+					idBuffer.w3 = names.getInt(p + 8);
+					idBuffer.w4 = names.getInt(p + 12);
+					idBuffer.w5 = names.getInt(p + 16);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (nth >= objectCnt)
+				throw new NoSuchElementException();
+			entry.offset = getOffset(nth);
+			nth++;
+			returnedNumber++;
+			return entry;
+		}
+	}
+}
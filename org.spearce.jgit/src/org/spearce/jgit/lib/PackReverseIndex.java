@@ -140,6 +140,49 @@ ObjectId findObject(final long offset) {
 		}
 	}
 
+	/**
+	 * Determine the position of an object within the pack, in offset order.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return the number of objects stored before it in the pack; -1 if no
+	 *         object starts at this offset.
+	 */
+	int findPosition(final long offset) {
+		if (offset <= Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		} else {
+			final int i64 = Arrays.binarySearch(offsets64, offset);
+			return i64 < 0 ? -1 : offsets32.length + i64;
+		}
+	}
+
+	/**
+	 * Locate the object at a position in the pack, in offset order.
+	 *
+	 * @param position
+	 *            number of objects stored before the object in the pack.
+	 * @return object id of the object at that position.
+	 */
+	ObjectId findObjectByPosition(final int position) {
+		return index.getObjectId(findNth(position));
+	}
+
+	/**
+	 * Translate a position in offset order to a position in the forward index.
+	 *
+	 * @param position
+	 *            number of objects stored before the object in the pack.
+	 * @return position of the same object within the forward index, that is
+	 *         in SHA-1 order.
+	 */
+	int findNth(final int position) {
+		if (position < offsets32.length)
+			return nth32[position];
+		return nth64[position - offsets32.length];
+	}
+
 	/**
 	 * Search for the next offset to the specified offset in this pack (reverse)
 	 * index.
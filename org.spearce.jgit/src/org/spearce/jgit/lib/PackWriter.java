@@ -39,23 +39,38 @@
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
 import org.spearce.jgit.revwalk.RevFlag;
 import org.spearce.jgit.revwalk.RevObject;
 import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
 import org.spearce.jgit.transport.PackedObjectInfo;
 import org.spearce.jgit.util.CountingOutputStream;
 import org.spearce.jgit.util.NB;
@@ -84,8 +99,9 @@
  * <p>
  * Class provide set of configurable options and {@link ProgressMonitor}
  * support, as operations may take a long time for big repositories. Deltas
- * searching algorithm is <b>NOT IMPLEMENTED</b> yet - this implementation
- * relies only on deltas and objects reuse.
+ * and objects already stored in a pack file are reused when possible; objects
+ * which do not have a suitable delta yet are compared to similar objects in a
+ * sliding window to compute new deltas.
  * </p>
  * <p>
  * This class is not thread safe, it is intended to be used in one thread, with
@@ -111,6 +127,14 @@ public class PackWriter {
 	 */
 	public static final String SEARCHING_REUSE_PROGRESS = "Compressing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used during searching for new
+	 * deltas.
+	 *
+	 * @see #writePack(OutputStream)
+	 */
+	public static final String COMPRESSING_OBJECTS_PROGRESS = "Compressing objects";
+
 	/**
 	 * Title of {@link ProgressMonitor} task used during writing out pack
 	 * (objects)
@@ -119,6 +143,14 @@ public class PackWriter {
 	 */
 	public static final String WRITING_OBJECTS_PROGRESS = "Writing objects";
 
+	/**
+	 * Title of {@link ProgressMonitor} task used while computing the bitmaps
+	 * of a bitmap index.
+	 *
+	 * @see #writeBitmapIndex(OutputStream)
+	 */
+	public static final String BUILDING_BITMAPS_PROGRESS = "Building bitmaps";
+
 	/**
 	 * Default value of deltas reuse option.
 	 *
@@ -147,6 +179,58 @@ public class PackWriter {
 	 */
 	public static final int DEFAULT_MAX_DELTA_DEPTH = 50;
 
+	/**
+	 * Default value of delta compression option.
+	 *
+	 * @see #setDeltaCompress(boolean)
+	 */
+	public static final boolean DEFAULT_DELTA_COMPRESS = true;
+
+	/**
+	 * Default number of objects in the delta search window.
+	 *
+	 * @see #setDeltaSearchWindowSize(int)
+	 */
+	public static final int DEFAULT_DELTA_SEARCH_WINDOW_SIZE = 10;
+
+	/**
+	 * Default number of threads used by the delta search; 0 means one thread
+	 * per available processor.
+	 *
+	 * @see #setThreads(int)
+	 */
+	public static final int DEFAULT_THREADS = 0;
+
+	/**
+	 * Default memory limit of each delta search window, 64 MiB. Together with
+	 * the thread count this bounds the heap used by the delta search even when
+	 * the window holds unusually large objects.
+	 *
+	 * @see #setDeltaSearchMemoryLimit(long)
+	 */
+	public static final long DEFAULT_DELTA_SEARCH_MEMORY_LIMIT = 64 * 1024 * 1024;
+
+	/**
+	 * Default value of the use bitmaps option.
+	 *
+	 * @see #setUseBitmaps(boolean)
+	 */
+	public static final boolean DEFAULT_USE_BITMAPS = true;
+
+	/**
+	 * Default value of the use cached packs option.
+	 *
+	 * @see #setUseCachedPacks(boolean)
+	 */
+	public static final boolean DEFAULT_USE_CACHED_PACKS = false;
+
+	/**
+	 * Minimum number of objects in one delta search partition. Partitions
+	 * are independent of the thread count, so that the resulting pack is
+	 * the same no matter how many threads searched it.
+	 */
+	private static final int DELTA_PARTITION_SIZE = 1000;
+
 	private static final int PACK_VERSION_GENERATED = 2;
 
 	@SuppressWarnings("unchecked")
@@ -170,6 +254,9 @@ public class PackWriter {
 
 	private CountingOutputStream countingOut;
 
+	/** CRC-32 of the bytes written since the current object started. */
+	private final CRC32 crc32 = new CRC32();
+
 	private final Deflater deflater;
 
 	private ProgressMonitor initMonitor;
@@ -192,6 +279,29 @@ public class PackWriter {
 
 	private int maxDeltaDepth = DEFAULT_MAX_DELTA_DEPTH;
 
+	private boolean deltaCompress = DEFAULT_DELTA_COMPRESS;
+
+	private int deltaSearchWindowSize = DEFAULT_DELTA_SEARCH_WINDOW_SIZE;
+
+	private long deltaSearchMemoryLimit = DEFAULT_DELTA_SEARCH_MEMORY_LIMIT;
+
+	private int threads = DEFAULT_THREADS;
+
+	private boolean useBitmaps = DEFAULT_USE_BITMAPS;
+
+	private boolean useCachedPacks = DEFAULT_USE_CACHED_PACKS;
+
+	/** Pack sent ahead of {@link #objectsMap}'s objects; null if none. */
+	private CachedPack cachedPack;
+
+	private long bigFileThreshold;
+
+	/** Bitmap index used to find the objects to pack; null if none. */
+	private PackBitmapIndex bitmapIndex;
+
+	/** Objects the other side has, when found through {@link #bitmapIndex}. */
+	private BitmapWalker.Result haveObjects;
+
 	private int outputVersion;
 
 	private boolean thin;
@@ -238,6 +348,15 @@ public PackWriter(final Repository repo, final ProgressMonitor imonitor,
 		writeMonitor = wmonitor;
 		this.deflater = new Deflater(db.getConfig().getCore().getCompression());
 		outputVersion = repo.getConfig().getCore().getPackIndexVersion();
+
+		final PackConfig pc = repo.getConfig().getPack();
+		maxDeltaDepth = pc.getDeltaDepth();
+		deltaSearchWindowSize = pc.getDeltaWindow();
+		deltaCompress = deltaSearchWindowSize > 1;
+		deltaSearchMemoryLimit = pc.getWindowMemory();
+		threads = pc.getThreads();
+		useBitmaps = pc.isUseBitmaps();
+		bigFileThreshold = repo.getConfig().getCore().getStreamFileThreshold();
 	}
 
 	/**
@@ -367,6 +486,222 @@ public void setMaxDeltaDepth(int maxDeltaDepth) {
 		this.maxDeltaDepth = maxDeltaDepth;
 	}
 
+	/**
+	 * Check whether the writer will search for new deltas between objects.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}, unless
+	 * <code>pack.window</code> is configured to 0 or 1.
+	 * </p>
+	 *
+	 * @return true if new deltas are computed for objects which cannot reuse
+	 *         an existing delta; false otherwise.
+	 */
+	public boolean isDeltaCompress() {
+		return deltaCompress;
+	}
+
+	/**
+	 * Set whether the writer should search for new deltas between objects.
+	 * When enabled, objects not reusing a delta are compared against similar
+	 * objects (same type, similar path, similar size) within the delta search
+	 * window, and the smallest delta found is stored instead of the whole
+	 * object.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_COMPRESS}
+	 * </p>
+	 *
+	 * @param deltaCompress
+	 *            boolean indicating whether or not to compute new deltas.
+	 */
+	public void setDeltaCompress(boolean deltaCompress) {
+		this.deltaCompress = deltaCompress;
+	}
+
+	/**
+	 * Get the number of objects in the delta search window.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}
+	 * </p>
+	 *
+	 * @return number of objects held in the window; each object is compared
+	 *         against all others in the window.
+	 */
+	public int getDeltaSearchWindowSize() {
+		return deltaSearchWindowSize;
+	}
+
+	/**
+	 * Set the number of objects in the delta search window. Larger windows
+	 * find better deltas, at the expense of more CPU time and memory.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_WINDOW_SIZE}
+	 * </p>
+	 *
+	 * @param objCount
+	 *            number of objects to hold in the window. A window of 1 or
+	 *            less disables delta compression.
+	 */
+	public void setDeltaSearchWindowSize(int objCount) {
+		if (objCount <= 1)
+			setDeltaCompress(false);
+		else
+			deltaSearchWindowSize = objCount;
+	}
+
+	/**
+	 * Get the maximum number of bytes each delta search window may hold.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_MEMORY_LIMIT}, unless
+	 * <code>pack.windowmemory</code> is configured.
+	 * </p>
+	 *
+	 * @return memory limit of one window, in bytes; 0 if only the number of
+	 *         objects limits the window.
+	 */
+	public long getDeltaSearchMemoryLimit() {
+		return deltaSearchMemoryLimit;
+	}
+
+	/**
+	 * Set the maximum number of bytes each delta search window may hold.
+	 * Object contents and their indexes are counted against the limit, and
+	 * the oldest objects are dropped from the window when it is exceeded.
+	 * Peak memory usage of the search is roughly this limit times the number
+	 * of threads.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_DELTA_SEARCH_MEMORY_LIMIT}
+	 * </p>
+	 *
+	 * @param memoryLimit
+	 *            memory limit of one window, in bytes; 0 for no limit.
+	 */
+	public void setDeltaSearchMemoryLimit(long memoryLimit) {
+		deltaSearchMemoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Get the number of threads used during the delta search.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_THREADS}, unless
+	 * <code>pack.threads</code> is configured.
+	 * </p>
+	 *
+	 * @return number of threads; 0 to use one per available processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used during the delta search. The resulting
+	 * pack does not depend on the number of threads.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_THREADS}
+	 * </p>
+	 *
+	 * @param threads
+	 *            number of threads to search with; 0 to use one per available
+	 *            processor.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Check whether reachability bitmaps are used to find the objects to pack.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_BITMAPS}, unless
+	 * <code>pack.usebitmaps</code> is configured.
+	 * </p>
+	 *
+	 * @return true if a pack's bitmap index is used when one is available.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * Set whether reachability bitmaps are used to find the objects to pack.
+	 * When enabled and a pack of the repository has a bitmap index,
+	 * {@link #preparePack(Collection, Collection, boolean, boolean)} combines
+	 * the stored bitmaps rather than walking every commit and tree.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_BITMAPS}
+	 * </p>
+	 *
+	 * @param useBitmaps
+	 *            true to use bitmap indexes when they are available.
+	 */
+	public void setUseBitmaps(final boolean useBitmaps) {
+		this.useBitmaps = useBitmaps;
+	}
+
+	/**
+	 * Check whether an existing pack may be sent as it is.
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_CACHED_PACKS}
+	 * </p>
+	 *
+	 * @return true if a cached pack is used when it covers the request.
+	 */
+	public boolean isUseCachedPacks() {
+		return useCachedPacks;
+	}
+
+	/**
+	 * Set whether an existing pack may be sent as it is.
+	 * <p>
+	 * When enabled, and
+	 * {@link #preparePack(Collection, Collection, boolean, boolean)} is asked
+	 * for everything reachable from the tips of a {@link CachedPack} (and
+	 * perhaps more), with no uninteresting objects, the pack is written by
+	 * copying that pack's file, followed by only the objects that are not
+	 * already in it. The resulting stream cannot be indexed with
+	 * {@link #writeIndex(OutputStream)}, so this is only useful for transport.
+	 * {@link #getObjectsNumber()} counts just the objects written after the
+	 * cached pack.
+	 * </p>
+	 * <p>
+	 * A cached pack stores its deltas as offsets, so it is only used when
+	 * {@link #isDeltaBaseAsOffset()} is also true.
+	 * </p>
+	 * <p>
+	 * Default setting: {@value #DEFAULT_USE_CACHED_PACKS}
+	 * </p>
+	 *
+	 * @param useCachedPacks
+	 *            true to send cached packs when they cover the request.
+	 */
+	public void setUseCachedPacks(final boolean useCachedPacks) {
+		this.useCachedPacks = useCachedPacks;
+	}
+
+	/**
+	 * Get the size above which objects are streamed rather than loaded into
+	 * memory.
+	 * <p>
+	 * Default setting: <code>core.streamfilethreshold</code> of the
+	 * repository.
+	 * </p>
+	 *
+	 * @return number of bytes; larger objects are not delta compressed.
+	 */
+	public long getBigFileThreshold() {
+		return bigFileThreshold;
+	}
+
+	/**
+	 * Set the size above which objects are streamed rather than loaded into
+	 * memory. Such objects are never compared in the delta search, and are
+	 * written by inflating and deflating them through a small buffer.
+	 *
+	 * @param bigFileThreshold
+	 *            number of bytes.
+	 */
+	public void setBigFileThreshold(final long bigFileThreshold) {
+		this.bigFileThreshold = bigFileThreshold;
+	}
+
 	/**
 	 * Set the pack index file format version this instance will create.
 	 *
@@ -440,6 +775,11 @@ public void preparePack(final Iterator<RevObject> objectsSource)
 	 * Order is consistent with general git in-pack rules: sort by object type,
 	 * recency, path and delta-base first.
 	 * </p>
+	 * <p>
+	 * If a pack of the repository has a bitmap index (and bitmaps are enabled,
+	 * see {@link #setUseBitmaps(boolean)}), the stored bitmaps replace most of
+	 * the traversal, and objects are ordered as they are in that pack.
+	 * </p>
 	 *
 	 * @param interestingObjects
 	 *            collection of objects to be marked as interesting (start
@@ -466,9 +806,70 @@ public void preparePack(
 			final Collection<? extends ObjectId> uninterestingObjects,
 			final boolean thin, final boolean ignoreMissingUninteresting)
 			throws IOException {
+		final List<ObjectId> noShallow = Collections.emptyList();
+		preparePack(interestingObjects, uninterestingObjects, noShallow, thin,
+				ignoreMissingUninteresting);
+	}
+
+	/**
+	 * Prepare the list of objects to be written to a shallow pack stream.
+	 * <p>
+	 * This is {@link #preparePack(Collection, Collection, boolean, boolean)},
+	 * except that the history is cut off at the shallow commits. They are
+	 * included in the pack, but their parents (and anything only reachable
+	 * through them) are not. Reachability bitmaps describe full histories
+	 * and are not used for a shallow pack.
+	 *
+	 * @param interestingObjects
+	 *            collection of objects to be marked as interesting (start
+	 *            points of graph traversal).
+	 * @param uninterestingObjects
+	 *            collection of objects to be marked as uninteresting (end
+	 *            points of graph traversal).
+	 * @param shallowCommits
+	 *            commits whose parents must not be walked; the shallow
+	 *            boundary of the receiver.
+	 * @param thin
+	 *            a boolean indicating whether writer may pack objects with
+	 *            delta base object not within set of objects to pack, but
+	 *            belonging to party repository (uninteresting/boundary) as
+	 *            determined by set; this kind of pack is used only for
+	 *            transport; true - to produce thin pack, false - otherwise.
+	 * @param ignoreMissingUninteresting
+	 *            true if writer should ignore non existing uninteresting
+	 *            objects during construction set of objects to pack; false
+	 *            otherwise - non existing uninteresting objects may cause
+	 *            {@link MissingObjectException}
+	 * @throws IOException
+	 *             when some I/O problem occur during reading objects.
+	 */
+	public void preparePack(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects,
+			final Collection<? extends ObjectId> shallowCommits,
+			final boolean thin, final boolean ignoreMissingUninteresting)
+			throws IOException {
 		this.thin = thin;
+		if (useCachedPacks && deltaBaseAsOffset
+				&& uninterestingObjects.isEmpty() && shallowCommits.isEmpty()) {
+			for (final PackFile p : db.packs()) {
+				final CachedPack cp = p.getCachedPack();
+				if (cp != null && findObjectsToPack(cp, interestingObjects)) {
+					cachedPack = cp;
+					return;
+				}
+			}
+		}
+		if (useBitmaps && shallowCommits.isEmpty())
+			bitmapIndex = findBitmapIndex();
+		if (bitmapIndex != null) {
+			findObjectsToPack(interestingObjects, uninterestingObjects,
+					ignoreMissingUninteresting);
+			return;
+		}
 		ObjectWalk walker = setUpWalker(interestingObjects,
-				uninterestingObjects, ignoreMissingUninteresting);
+				uninterestingObjects, shallowCommits,
+				ignoreMissingUninteresting);
 		findObjectsToPack(walker);
 	}
 
@@ -478,9 +879,13 @@ public void preparePack(
 	 * @param id
 	 *            the object to test the existence of.
 	 * @return true if the object will appear in the output pack file.
+	 * @throws IOException
+	 *             the index of the cached pack being sent cannot be read.
 	 */
-	public boolean willInclude(final AnyObjectId id) {
-		return objectsMap.get(id) != null;
+	public boolean willInclude(final AnyObjectId id) throws IOException {
+		if (objectsMap.get(id) != null)
+			return true;
+		return cachedPack != null && cachedPack.hasObject(id);
 	}
 
 	/**
@@ -490,6 +895,7 @@ public boolean willInclude(final AnyObjectId id) {
 	 * @return ObjectId representing SHA-1 name of a pack that was created.
 	 */
 	public ObjectId computeName() {
+		checkNotCached();
 		final MessageDigest md = Constants.newMessageDigest();
 		for (ObjectToPack otp : sortByName()) {
 			otp.copyRawTo(buf, 0);
@@ -513,6 +919,7 @@ public ObjectId computeName() {
 	 *             the index data could not be written to the supplied stream.
 	 */
 	public void writeIndex(final OutputStream indexStream) throws IOException {
+		checkNotCached();
 		final List<ObjectToPack> list = sortByName();
 		final PackIndexWriter iw;
 		if (outputVersion <= 0)
@@ -522,6 +929,44 @@ public void writeIndex(final OutputStream indexStream) throws IOException {
 		iw.write(list, packcsum);
 	}
 
+	/**
+	 * Create a bitmap index file to match the pack file just written.
+	 * <p>
+	 * This method can only be invoked after {@link #writePack(OutputStream)}
+	 * has been invoked and completed successfully. The bitmap index should be
+	 * stored next to the pack's index, with the extension
+	 * <code>.bitmap</code>.
+	 * </p>
+	 * <p>
+	 * Bitmaps are stored for the tips of the pack's history and for commits
+	 * spaced along it. A commit only receives a bitmap if every object it
+	 * reaches is in the pack, as is the case for a full repack.
+	 * {@link ProgressMonitor} task {@value #BUILDING_BITMAPS_PROGRESS} is
+	 * updated while the bitmaps are computed.
+	 * </p>
+	 *
+	 * @param bitmapStream
+	 *            output for the bitmap data. Caller is responsible for closing
+	 *            this stream.
+	 * @throws IOException
+	 *             the objects of the pack could not be read, or the bitmap
+	 *             data could not be written to the supplied stream.
+	 */
+	public void writeBitmapIndex(final OutputStream bitmapStream)
+			throws IOException {
+		checkNotCached();
+		final PackBitmapIndexBuilder b = new PackBitmapIndexBuilder(db,
+				sortByName(), packcsum);
+		b.build(writeMonitor);
+		b.write(bitmapStream);
+	}
+
+	private void checkNotCached() {
+		if (cachedPack != null)
+			throw new IllegalStateException("Pack starts with cached pack "
+					+ cachedPack.getPackFile() + " and cannot be indexed");
+	}
+
 	private List<ObjectToPack> sortByName() {
 		if (sortedByName == null) {
 			sortedByName = new ArrayList<ObjectToPack>(objectsMap.size());
@@ -540,13 +985,20 @@ private List<ObjectToPack> sortByName() {
 	 * At first, this method collects and sorts objects to pack, then deltas
 	 * search is performed if set up accordingly, finally pack stream is
 	 * written. {@link ProgressMonitor} tasks {@value #SEARCHING_REUSE_PROGRESS}
-	 * (only if reuseDeltas or reuseObjects is enabled) and
-	 * {@value #WRITING_OBJECTS_PROGRESS} are updated during packing.
+	 * (only if reuseDeltas or reuseObjects is enabled),
+	 * {@value #COMPRESSING_OBJECTS_PROGRESS} (only if deltaCompress is enabled)
+	 * and {@value #WRITING_OBJECTS_PROGRESS} are updated during packing.
 	 * </p>
 	 * <p>
 	 * All reused objects data checksum (Adler32/CRC32) is computed and
 	 * validated against existing checksum.
 	 * </p>
+	 * <p>
+	 * If a cached pack was selected, its file is copied first. When there is
+	 * nothing to add to it, the file is copied verbatim, using
+	 * {@link java.nio.channels.FileChannel#transferTo} so that no data passes
+	 * through the Java heap if the stream does not need it to.
+	 * </p>
 	 *
 	 * @param packStream
 	 *            output stream of pack data. If the stream is not buffered it
@@ -560,14 +1012,33 @@ private List<ObjectToPack> sortByName() {
 	public void writePack(OutputStream packStream) throws IOException {
 		if (reuseDeltas || reuseObjects)
 			searchForReuse();
+		if (deltaCompress)
+			searchForDeltas();
+
+		int total = getObjectsNumber();
+		if (cachedPack != null)
+			total += (int) cachedPack.getObjectCount();
+		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, total);
+		if (cachedPack != null && getObjectsNumber() == 0) {
+			cachedPack.copyAsIs(packStream);
+			packStream.flush();
+			windowCursor.release();
+			writeMonitor.update(total);
+			writeMonitor.endTask();
+			return;
+		}
 
 		if (!(packStream instanceof BufferedOutputStream))
 			packStream = new BufferedOutputStream(packStream);
 		countingOut = new CountingOutputStream(packStream);
-		out = new DigestOutputStream(countingOut, Constants.newMessageDigest());
+		out = new DigestOutputStream(new CheckedOutputStream(countingOut,
+				crc32), Constants.newMessageDigest());
 
-		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, getObjectsNumber());
-		writeHeader();
+		writeHeader(total);
+		if (cachedPack != null) {
+			cachedPack.copyObjects(out, buf);
+			writeMonitor.update(total - getObjectsNumber());
+		}
 		writeObjects();
 		writeChecksum();
 
@@ -600,6 +1071,142 @@ private void searchForReuse() throws IOException {
 		initMonitor.endTask();
 	}
 
+	private void searchForDeltas() throws IOException {
+		final ObjectToPack[] list = new ObjectToPack[getObjectsNumber()];
+		int cnt = 0;
+		for (List<ObjectToPack> objs : objectsLists) {
+			for (ObjectToPack otp : objs) {
+				// Reused deltas are kept, and are not offered as bases.
+				// This way all chains created by the search stay within
+				// a single partition of the list.
+				//
+				if (otp.isDeltaRepresentation())
+					continue;
+				final ObjectLoader ldr = db.openObject(windowCursor, otp);
+				if (ldr == null)
+					throw new MissingObjectException(otp, Constants
+							.typeString(otp.getType()));
+				final long sz = ldr.getSize();
+				if (sz > bigFileThreshold)
+					continue;
+				otp.setWeight(sz);
+				list[cnt++] = otp;
+			}
+		}
+		if (cnt < 2)
+			return;
+
+		// Group objects of the same type and similar path together, with
+		// the largest first. The sort is stable, so objects of the same
+		// size stay in recency order.
+		//
+		Arrays.sort(list, 0, cnt, new Comparator<ObjectToPack>() {
+			public int compare(final ObjectToPack a, final ObjectToPack b) {
+				int cmp = a.getType() - b.getType();
+				if (cmp != 0)
+					return cmp;
+
+				cmp = (a.getPathHash() >>> 1) - (b.getPathHash() >>> 1);
+				if (cmp != 0)
+					return cmp;
+
+				cmp = (a.getPathHash() & 1) - (b.getPathHash() & 1);
+				if (cmp != 0)
+					return cmp;
+
+				return b.getWeight() < a.getWeight() ? -1
+						: (a.getWeight() == b.getWeight() ? 0 : 1);
+			}
+		});
+
+		final List<DeltaTask> tasks = new ArrayList<DeltaTask>();
+		final ThreadSafeProgressMonitor pm = new ThreadSafeProgressMonitor(
+				initMonitor);
+		final int level = db.getConfig().getCore().getCompression();
+		for (int off = 0; off < cnt;) {
+			// Never split a group of objects sharing a path; they are the
+			// most likely to delta against each other.
+			//
+			int end = Math.min(off + DELTA_PARTITION_SIZE, cnt);
+			while (end < cnt && sameGroup(list[end - 1], list[end]))
+				end++;
+			tasks.add(new DeltaTask(db, pm, deltaSearchWindowSize,
+					maxDeltaDepth, deltaSearchMemoryLimit, level, list, off,
+					end - off));
+			off = end;
+		}
+
+		int threadCnt = threads;
+		if (threadCnt <= 0)
+			threadCnt = Runtime.getRuntime().availableProcessors();
+		threadCnt = Math.min(threadCnt, tasks.size());
+
+		pm.beginTask(COMPRESSING_OBJECTS_PROGRESS, cnt);
+		if (threadCnt <= 1) {
+			for (final DeltaTask task : tasks) {
+				runTask(task);
+				pm.pollForUpdates();
+			}
+		} else {
+			final ExecutorService pool = Executors.newFixedThreadPool(threadCnt);
+			try {
+				final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+				for (final DeltaTask task : tasks)
+					futures.add(pool.submit(task));
+				for (final Future<Object> f : futures)
+					waitFor(f, pm);
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		pm.endTask();
+	}
+
+	private static boolean sameGroup(final ObjectToPack a, final ObjectToPack b) {
+		return a.getType() == b.getType() && a.getPathHash() == b.getPathHash();
+	}
+
+	private static void runTask(final DeltaTask task) throws IOException {
+		try {
+			task.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			final IOException err = new IOException(e.getMessage());
+			err.initCause(e);
+			throw err;
+		}
+	}
+
+	private static void waitFor(final Future<Object> f,
+			final ThreadSafeProgressMonitor pm) throws IOException {
+		for (;;) {
+			try {
+				f.get(250, TimeUnit.MILLISECONDS);
+				pm.pollForUpdates();
+				return;
+			} catch (TimeoutException e) {
+				pm.pollForUpdates();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(
+						"Interrupted during delta search");
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				final IOException err = new IOException(cause.getMessage());
+				err.initCause(cause);
+				throw err;
+			}
+		}
+	}
+
 	private void selectDeltaReuseForObject(final ObjectToPack otp,
 			final Collection<PackedObjectLoader> loaders) throws IOException {
 		PackedObjectLoader bestLoader = null;
@@ -612,7 +1219,7 @@ private void selectDeltaReuseForObject(final ObjectToPack otp,
 			ObjectToPack otpBase = objectsMap.get(idBase);
 
 			// only if base is in set of objects to write or thin-pack's edge
-			if ((otpBase != null || (thin && edgeObjects.get(idBase) != null))
+			if ((otpBase != null || (thin && isEdge(idBase)))
 			// select smallest possible delta if > 1 available
 					&& isBetterDeltaReuseLoader(bestLoader, loader)) {
 				bestLoader = loader;
@@ -648,13 +1255,13 @@ private void selectObjectReuseForObject(final ObjectToPack otp,
 		}
 	}
 
-	private void writeHeader() throws IOException {
+	private void writeHeader(final int objectCount) throws IOException {
 		out.write(Constants.PACK_SIGNATURE);
 
 		NB.encodeInt32(buf, 0, PACK_VERSION_GENERATED);
 		out.write(buf, 0, 4);
 
-		NB.encodeInt32(buf, 0, getObjectsNumber());
+		NB.encodeInt32(buf, 0, objectCount);
 		out.write(buf, 0, 4);
 	}
 
@@ -688,10 +1295,12 @@ private void writeObject(final ObjectToPack otp) throws IOException {
 		assert !otp.isWritten();
 
 		otp.setOffset(countingOut.getCount());
+		crc32.reset();
 		if (otp.isDeltaRepresentation())
 			writeDeltaObject(otp);
 		else
 			writeWholeObject(otp);
+		otp.setCRC((int) crc32.getValue());
 
 		writeMonitor.update(1);
 	}
@@ -704,11 +1313,21 @@ private void writeWholeObject(final ObjectToPack otp) throws IOException {
 			otp.disposeLoader();
 		} else {
 			final ObjectLoader loader = db.openObject(windowCursor, otp);
-			final byte[] data = loader.getCachedBytes();
+			final long size = loader.getSize();
 			final DeflaterOutputStream deflaterOut = new DeflaterOutputStream(
 					out, deflater);
-			writeObjectHeader(otp.getType(), data.length);
-			deflaterOut.write(data);
+			writeObjectHeader(otp.getType(), size);
+			if (size > bigFileThreshold) {
+				final InputStream in = loader.openStream();
+				try {
+					int n;
+					while ((n = in.read(buf)) > 0)
+						deflaterOut.write(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			} else
+				deflaterOut.write(loader.getCachedBytes());
 			deflaterOut.finish();
 			deflater.reset();
 		}
@@ -716,8 +1335,11 @@ private void writeWholeObject(final ObjectToPack otp) throws IOException {
 
 	private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 		final PackedObjectLoader loader = otp.getReuseLoader();
+		final byte[] delta = otp.getDeltaData();
+		final long rawSize = delta != null ? otp.getDeltaSize() : loader
+				.getRawSize();
 		if (deltaBaseAsOffset && otp.getDeltaBase() != null) {
-			writeObjectHeader(Constants.OBJ_OFS_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_OFS_DELTA, rawSize);
 
 			final ObjectToPack deltaBase = otp.getDeltaBase();
 			long offsetDiff = otp.getOffset() - deltaBase.getOffset();
@@ -729,12 +1351,17 @@ private void writeDeltaObject(final ObjectToPack otp) throws IOException {
 
 			out.write(buf, pos, buf.length - pos);
 		} else {
-			writeObjectHeader(Constants.OBJ_REF_DELTA, loader.getRawSize());
+			writeObjectHeader(Constants.OBJ_REF_DELTA, rawSize);
 			otp.getDeltaBaseId().copyRawTo(buf, 0);
 			out.write(buf, 0, Constants.OBJECT_ID_LENGTH);
 		}
-		loader.copyRawData(out, buf);
-		otp.disposeLoader();
+		if (delta != null) {
+			out.write(delta);
+			otp.clearDeltaData();
+		} else {
+			loader.copyRawData(out, buf);
+			otp.disposeLoader();
+		}
 	}
 
 	private void writeObjectHeader(final int objectType, long dataLength)
@@ -761,10 +1388,12 @@ private void writeChecksum() throws IOException {
 	private ObjectWalk setUpWalker(
 			final Collection<? extends ObjectId> interestingObjects,
 			final Collection<? extends ObjectId> uninterestingObjects,
+			final Collection<? extends ObjectId> shallowCommits,
 			final boolean ignoreMissingUninteresting)
 			throws MissingObjectException, IOException,
 			IncorrectObjectTypeException {
 		final ObjectWalk walker = new ObjectWalk(db);
+		walker.assumeShallow(shallowCommits);
 		walker.sort(RevSort.TOPO, true);
 		walker.sort(RevSort.COMMIT_TIME_DESC, true);
 		if (thin)
@@ -788,6 +1417,147 @@ private ObjectWalk setUpWalker(
 		return walker;
 	}
 
+	private PackBitmapIndex findBitmapIndex() throws IOException {
+		for (final PackFile p : db.packs()) {
+			final PackBitmapIndex bi = p.getBitmapIndex();
+			if (bi != null)
+				return bi;
+		}
+		return null;
+	}
+
+	private void findObjectsToPack(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects,
+			final boolean ignoreMissingUninteresting)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+				ProgressMonitor.UNKNOWN);
+		final BitmapWalker bw = new BitmapWalker(db) {
+			@Override
+			BitSet getBitmap(final AnyObjectId commit) throws IOException {
+				return bitmapIndex.getBitmap(commit);
+			}
+
+			@Override
+			int findPosition(final AnyObjectId id) throws IOException {
+				return bitmapIndex.findPosition(id);
+			}
+		};
+		final BitmapWalker.Result want = bw.reach(interestingObjects, false);
+		haveObjects = bw.reach(uninterestingObjects,
+				ignoreMissingUninteresting);
+
+		final BitSet need = want.bits;
+		need.andNot(haveObjects.bits);
+		for (int pos = need.nextSetBit(0); pos >= 0; pos = need
+				.nextSetBit(pos + 1)) {
+			final ObjectToPack otp = new ObjectToPack(bitmapIndex
+					.getObject(pos), bitmapIndex.getObjectType(pos));
+			otp.setPathHash(bitmapIndex.getPathHash(pos));
+			addObject(otp);
+			initMonitor.update(1);
+		}
+		for (int i = 0; i < want.extra.size(); i++) {
+			final RevObject o = want.extra.get(i);
+			if (!haveObjects.containsExtra(o)) {
+				addObject(o, want.extraPathHash.get(i));
+				initMonitor.update(1);
+			}
+		}
+		initMonitor.endTask();
+	}
+
+	/**
+	 * Find the objects to send after a cached pack.
+	 * <p>
+	 * The pack's tips are walked as uninteresting. The pack covers the request
+	 * only if every tip is wanted, or is a parent of a wanted commit; anything
+	 * reachable from the tips is then in the pack already.
+	 *
+	 * @return true if the pack covers the request, and the objects to send
+	 *         after it were added; false if nothing was added.
+	 */
+	private boolean findObjectsToPack(final CachedPack pack,
+			final Collection<? extends ObjectId> interestingObjects)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		final ObjectWalk walker = new ObjectWalk(db);
+		walker.sort(RevSort.TOPO, true);
+		walker.sort(RevSort.COMMIT_TIME_DESC, true);
+
+		final ObjectIdSubclassMap<ObjectId> tips = new ObjectIdSubclassMap<ObjectId>();
+		for (final ObjectId id : pack.getTips()) {
+			try {
+				walker.markUninteresting(walker.parseAny(id));
+			} catch (MissingObjectException notHere) {
+				return false;
+			}
+			tips.add(id);
+		}
+
+		final ObjectIdSubclassMap<ObjectId> reached = new ObjectIdSubclassMap<ObjectId>();
+		for (final ObjectId id : interestingObjects) {
+			RevObject o = walker.parseAny(id);
+			walker.markStart(o);
+			while (o instanceof RevTag)
+				o = ((RevTag) o).getObject();
+			reachTip(tips, reached, o);
+		}
+
+		initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+				ProgressMonitor.UNKNOWN);
+		final List<ObjectToPack> found = new ArrayList<ObjectToPack>();
+		RevCommit c;
+		while ((c = walker.next()) != null) {
+			for (final RevCommit p : c.getParents())
+				reachTip(tips, reached, p);
+			if (!pack.hasObject(c))
+				found.add(new ObjectToPack(c, c.getType()));
+			c.dispose();
+			initMonitor.update(1);
+		}
+		if (reached.size() != tips.size()) {
+			initMonitor.endTask();
+			return false;
+		}
+
+		RevObject o;
+		while ((o = walker.nextObject()) != null) {
+			if (!o.has(RevFlag.UNINTERESTING) && !pack.hasObject(o)) {
+				final ObjectToPack otp = new ObjectToPack(o, o.getType());
+				otp.setPathHash(walker.getPathHashCode());
+				found.add(otp);
+			}
+			o.dispose();
+			initMonitor.update(1);
+		}
+		initMonitor.endTask();
+
+		for (final ObjectToPack otp : found)
+			addObject(otp);
+		return true;
+	}
+
+	private static void reachTip(final ObjectIdSubclassMap<ObjectId> tips,
+			final ObjectIdSubclassMap<ObjectId> reached, final AnyObjectId id) {
+		final ObjectId tip = tips.get(id);
+		if (tip != null && reached.get(tip) == null)
+			reached.add(tip);
+	}
+
+	private boolean isEdge(final AnyObjectId id) throws IOException {
+		if (edgeObjects.get(id) != null)
+			return true;
+		if (haveObjects == null)
+			return false;
+		final int pos = bitmapIndex.findPosition(id);
+		if (0 <= pos)
+			return haveObjects.bits.get(pos);
+		return haveObjects.containsExtra(id);
+	}
+
 	private void findObjectsToPack(final ObjectWalk walker)
 			throws MissingObjectException, IncorrectObjectTypeException,
 			IOException {
@@ -801,7 +1571,7 @@ private void findObjectsToPack(final ObjectWalk walker)
 			initMonitor.update(1);
 		}
 		while ((o = walker.nextObject()) != null) {
-			addObject(o);
+			addObject(o, walker.getPathHashCode());
 			o.dispose();
 			initMonitor.update(1);
 		}
@@ -822,6 +1592,11 @@ private void findObjectsToPack(final ObjectWalk walker)
 	 */
 	public void addObject(final RevObject object)
 			throws IncorrectObjectTypeException {
+		addObject(object, 0);
+	}
+
+	private void addObject(final RevObject object, final int pathHashCode)
+			throws IncorrectObjectTypeException {
 		if (object.has(RevFlag.UNINTERESTING)) {
 			edgeObjects.add(object);
 			thin = true;
@@ -829,14 +1604,20 @@ public void addObject(final RevObject object)
 		}
 
 		final ObjectToPack otp = new ObjectToPack(object, object.getType());
+		otp.setPathHash(pathHashCode);
+		addObject(otp);
+	}
+
+	private void addObject(final ObjectToPack otp)
+			throws IncorrectObjectTypeException {
 		try {
-			objectsLists[object.getType()].add(otp);
+			objectsLists[otp.getType()].add(otp);
 		} catch (ArrayIndexOutOfBoundsException x) {
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(otp,
 					"COMMIT nor TREE nor BLOB nor TAG");
 		} catch (UnsupportedOperationException x) {
 			// index pointing to "dummy" empty list
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(otp,
 					"COMMIT nor TREE nor BLOB nor TAG");
 		}
 		objectsMap.add(otp);
@@ -853,6 +1634,14 @@ static class ObjectToPack extends PackedObjectInfo {
 
 		private PackedObjectLoader reuseLoader;
 
+		private byte[] deltaData;
+
+		private int deltaSize;
+
+		private long weight;
+
+		private int pathHash;
+
 		/**
 		 * Bit field, from bit 0 to bit 31:
 		 * <ul>
@@ -914,6 +1703,48 @@ void setDeltaBase(ObjectId deltaBase) {
 
 		void clearDeltaBase() {
 			this.deltaBase = null;
+			this.deltaData = null;
+		}
+
+		/**
+		 * @return deflated delta computed by the delta search, to be written
+		 *         instead of reusing a loader; null if no delta was computed
+		 *         for this object.
+		 */
+		byte[] getDeltaData() {
+			return deltaData;
+		}
+
+		/** @return inflated size of {@link #getDeltaData()}. */
+		int getDeltaSize() {
+			return deltaSize;
+		}
+
+		void setDeltaData(final byte[] deflated, final int inflatedSize) {
+			deltaData = deflated;
+			deltaSize = inflatedSize;
+		}
+
+		void clearDeltaData() {
+			deltaData = null;
+		}
+
+		/** @return inflated size of the object, used to sort for delta search. */
+		long getWeight() {
+			return weight;
+		}
+
+		void setWeight(final long w) {
+			weight = w;
+		}
+
+		/** @return hash code of the path the object was found at. */
+		int getPathHash() {
+			return pathHash;
+		}
+
+		void setPathHash(final int hc) {
+			pathHash = hc;
 		}
 
 		/**
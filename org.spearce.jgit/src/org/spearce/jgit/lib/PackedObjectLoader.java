@@ -41,6 +41,8 @@
 import java.io.IOException;
 import java.io.OutputStream;
 
+import org.spearce.jgit.errors.LargeObjectException;
+
 /**
  * Base class for a set of object loader classes for packed objects.
  */
@@ -55,7 +57,7 @@ abstract class PackedObjectLoader extends ObjectLoader {
 
 	protected int objectType;
 
-	protected int objectSize;
+	protected long objectSize;
 
 	PackedObjectLoader(final WindowCursor c, final PackFile pr,
 			final long dataOffset, final long objectOffset) {
@@ -110,6 +112,22 @@ public boolean supportsFastCopyRawData() throws IOException {
 		return pack.supportsFastCopyRawData();
 	}
 
+	/**
+	 * Ensure a buffer of the given size can be allocated for this object.
+	 * 
+	 * @param size
+	 *            number of bytes that must be held in one array.
+	 * @return <code>size</code>, as an int.
+	 * @throws LargeObjectException
+	 *             the size exceeds the maximum size of a Java array.
+	 */
+	final int checkArraySize(final long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new LargeObjectException(pack
+					.findObjectForOffset(objectOffset), size);
+		return (int) size;
+	}
+
 	/**
 	 * @return id of delta base object for this object representation. null if
 	 *         object is not stored as delta.
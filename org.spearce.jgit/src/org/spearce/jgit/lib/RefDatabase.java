@@ -47,7 +47,10 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.spearce.jgit.errors.ObjectWritingException;
@@ -483,6 +486,65 @@ private void lockAndWriteFile(File file, byte[] content) throws IOException {
 			throw new ObjectWritingException("Unable to write " + name);
 	}
 
+	/**
+	 * Move loose refs into the packed refs file.
+	 * <p>
+	 * Like <code>git pack-refs</code>, every loose file is locked and read
+	 * again before the packed refs file is written. Only refs whose loose file
+	 * still holds the value in <code>toPack</code> are packed, so a ref
+	 * deleted or updated in the meantime is neither resurrected nor packed
+	 * with a stale value. The packed loose files are deleted while still
+	 * locked.
+	 *
+	 * @param toPack
+	 *            the refs to pack, with their peeled values if known.
+	 * @throws IOException
+	 *             the packed refs file could not be written.
+	 */
+	synchronized void pack(final Collection<Ref> toPack) throws IOException {
+		final List<LockFile> locks = new ArrayList<LockFile>();
+		final List<Ref> packing = new ArrayList<Ref>();
+		try {
+			for (final Ref r : toPack) {
+				final File file = fileForRef(r.getName());
+				final LockFile lck = new LockFile(file);
+				if (!lck.lock())
+					continue;
+				locks.add(lck);
+				try {
+					final String line = readLine(file);
+					if (line != null && ObjectId.isId(line)
+							&& r.getObjectId().equals(
+									ObjectId.fromString(line)))
+						packing.add(r);
+				} catch (FileNotFoundException gone) {
+					// Deleted by someone else; it must not be packed.
+				}
+			}
+			if (packing.isEmpty())
+				return;
+
+			refreshPackedRefs();
+			for (final Ref r : packing) {
+				packedRefs.put(r.getName(), new Ref(Ref.Storage.PACKED, r
+						.getName(), r.getObjectId(), r.getPeeledObjectId(), r
+						.isPeeled()));
+			}
+			writePackedRefs();
+
+			for (final Ref r : packing) {
+				fileForRef(r.getName()).delete();
+				looseRefs.remove(r.getName());
+				looseRefsMTime.remove(r.getName());
+				looseSymRefs.remove(r.getName());
+			}
+			setModified();
+		} finally {
+			for (final LockFile lck : locks)
+				lck.unlock();
+		}
+	}
+
 	synchronized void removePackedRef(String name) throws IOException {
 		packedRefs.remove(name);
 		writePackedRefs();
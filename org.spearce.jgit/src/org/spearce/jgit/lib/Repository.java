@@ -45,10 +45,12 @@
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -56,8 +58,10 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.ObjectWritingException;
 import org.spearce.jgit.errors.RevisionSyntaxException;
 import org.spearce.jgit.util.FS;
 
@@ -97,6 +101,30 @@ public class Repository {
 
 	private PackFile[] packFileList;
 
+	/** Multi-pack index of the local packs; null if none is in use. */
+	private MultiPackLookup multiPack;
+
+	private final LooseObjectCache looseObjects;
+
+	private CommitGraph commitGraph;
+
+	private long commitGraphModified;
+
+	private long commitGraphLength;
+
+	private Set<ObjectId> shallowCommits = Collections.emptySet();
+
+	private long shallowModified;
+
+	private long shallowLength;
+
+	/** Modification time of each pack directory when it was last scanned. */
+	private long[] packDirModified;
+
+	private long configModified;
+
+	private final AtomicInteger useCnt = new AtomicInteger(1);
+
 	private GitIndex index;
 
 	private List<RepositoryListener> listeners = new Vector<RepositoryListener>(); // thread safe
@@ -122,12 +150,15 @@ public Repository(final File d) throws IOException {
 			ex.initCause(e);
 			throw ex;
 		}
+		looseObjects = new LooseObjectCache(objectDirectoryList);
 		refs = new RefDatabase(this);
 		packFileList = new PackFile[0];
+		packDirModified = new long[objectDirectoryList.length];
 		config = new RepositoryConfig(this);
 
 		final boolean isExisting = objectDirectoryList[0].exists();
 		if (isExisting) {
+			configModified = configFile().lastModified();
 			getConfig().load();
 			final String repositoryFormatVersion = getConfig().getString(
 					"core", null, "repositoryFormatVersion");
@@ -191,10 +222,158 @@ private synchronized File[] objectsDirs(){
 		return objectDirectoryList;
 	}
 
-	private synchronized PackFile[] packs(){
+	synchronized PackFile[] packs(){
 		return packFileList;
 	}
 
+	private synchronized MultiPackLookup multiPack() {
+		return multiPack;
+	}
+
+	RefDatabase getRefDatabase() {
+		return refs;
+	}
+
+	/**
+	 * Get the commit-graph of this repository.
+	 * <p>
+	 * The file is read again if it was modified since it was last loaded.
+	 *
+	 * @return the current commit-graph; null if the repository has none, it
+	 *         cannot be read, or its use is disabled by
+	 *         <code>core.commitgraph</code>.
+	 */
+	public synchronized CommitGraph getCommitGraph() {
+		if (!getConfig().getCore().isCommitGraph())
+			return null;
+		final File file = new File(getObjectsDirectory(),
+				CommitGraph.FILE_NAME);
+		final long modified = file.lastModified();
+		final long length = file.length();
+		if (modified != commitGraphModified || length != commitGraphLength) {
+			commitGraph = null;
+			commitGraphModified = modified;
+			commitGraphLength = length;
+			if (modified != 0) {
+				try {
+					commitGraph = CommitGraph.open(file);
+				} catch (IOException e) {
+					// Without the graph commits are read from the object
+					// store, which is slower but always correct.
+				}
+			}
+		}
+		return commitGraph;
+	}
+
+	/**
+	 * Get the commits this repository has without their parents.
+	 * <p>
+	 * A repository created by a shallow clone lists the commits at its
+	 * history boundary in <code>.git/shallow</code>. Revision walks treat
+	 * these commits as roots. The file is read again if it was modified
+	 * since it was last loaded.
+	 *
+	 * @return the shallow commits; empty if the repository is complete.
+	 * @throws IOException
+	 *             the shallow file exists but cannot be read.
+	 */
+	public synchronized Set<ObjectId> getShallowCommits() throws IOException {
+		final File file = new File(getDirectory(), Constants.SHALLOW);
+		final long modified = file.lastModified();
+		final long length = file.length();
+		if (modified != shallowModified || length != shallowLength) {
+			final Set<ObjectId> r = new HashSet<ObjectId>();
+			if (modified != 0) {
+				final BufferedReader br = new BufferedReader(new FileReader(
+						file));
+				try {
+					String line;
+					while ((line = br.readLine()) != null) {
+						try {
+							r.add(ObjectId.fromString(line));
+						} catch (IllegalArgumentException notId) {
+							throw new IOException("Bad line in " + file + ": "
+									+ line);
+						}
+					}
+				} finally {
+					br.close();
+				}
+			}
+			shallowCommits = Collections.unmodifiableSet(r);
+			shallowModified = modified;
+			shallowLength = length;
+		}
+		return shallowCommits;
+	}
+
+	/**
+	 * Replace the list of shallow commits.
+	 *
+	 * @param ids
+	 *            the commits whose parents are not in this repository. An
+	 *            empty set removes the shallow file, making the repository
+	 *            complete again.
+	 * @throws IOException
+	 *             the shallow file could not be written.
+	 * @see #getShallowCommits()
+	 */
+	public synchronized void setShallowCommits(final Set<ObjectId> ids)
+			throws IOException {
+		final File file = new File(getDirectory(), Constants.SHALLOW);
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + file);
+		if (ids.isEmpty()) {
+			lck.unlock();
+			if (file.exists() && !file.delete())
+				throw new ObjectWritingException("Unable to delete " + file);
+			return;
+		}
+
+		final List<ObjectId> sorted = new ArrayList<ObjectId>(ids);
+		Collections.sort(sorted, new Comparator<ObjectId>() {
+			public int compare(final ObjectId a, final ObjectId b) {
+				return a.compareTo(b);
+			}
+		});
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				for (final ObjectId id : sorted) {
+					id.copyTo(out);
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + file);
+	}
+
+	/**
+	 * Rescan the packs if any pack file was deleted from under us.
+	 *
+	 * @return true if a pack was found missing, and the packs were rescanned.
+	 */
+	private boolean dropVanishedPacks() {
+		for (final PackFile p : packs()) {
+			if (!p.getPackFile().isFile()) {
+				scanForPacks();
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * @return GIT_DIR
 	 */
@@ -245,20 +424,54 @@ public File toFile(final AnyObjectId objectId) {
 	 *         known shared repositories.
 	 */
 	public boolean hasObject(final AnyObjectId objectId) {
-		final PackFile[] packs = packs();
+		PackFile[] packs = packs();
+		final MultiPackLookup mp = multiPack();
+		if (mp != null) {
+			if (mp.index.hasObject(objectId))
+				return true;
+			packs = mp.others;
+		}
 		int k = packs.length;
 		while (k > 0) {
 			try {
 				if (packs[--k].hasObject(objectId))
 					return true;
 			} catch (IOException e) {
-				// Assume that means the pack is invalid, and such
-				// packs are treated as though they are empty.
+				// A pack deleted by a concurrent repack is dropped and
+				// the search started over, as its objects moved to a
+				// new pack. Otherwise assume the pack is invalid, and
+				// such packs are treated as though they are empty.
 				//
+				if (dropVanishedPacks())
+					return hasObject(objectId);
 				continue;
 			}
 		}
-		return toFile(objectId).isFile();
+		return hasLooseObject(objectId);
+	}
+
+	private boolean hasLooseObject(final AnyObjectId objectId) {
+		if (looseObjects.isMissing(objectId))
+			return false;
+		if (looseObjects.has(objectId))
+			return true;
+		looseObjects.markMissing(objectId);
+		return false;
+	}
+
+	/**
+	 * Notify the repository a loose object was written into its objects
+	 * directory.
+	 * <p>
+	 * Code that stores loose objects directly, rather than through an
+	 * {@link ObjectWriter}, must call this so lookups that previously found
+	 * the object missing will look again.
+	 *
+	 * @param id
+	 *            the object just written.
+	 */
+	public void onLooseObjectWritten(final AnyObjectId id) {
+		looseObjects.added(id);
 	}
 
 	/**
@@ -291,13 +504,36 @@ public ObjectLoader openObject(final AnyObjectId id)
 	 */
 	public ObjectLoader openObject(final WindowCursor curs, final AnyObjectId id)
 			throws IOException {
-		final PackFile[] packs = packs();
+		try {
+			return openObjectImpl(curs, id);
+		} catch (IOException e) {
+			// A concurrent repack may have deleted the pack we
+			// found the object in, after storing it in a new one.
+			//
+			if (!dropVanishedPacks())
+				throw e;
+			return openObjectImpl(curs, id);
+		}
+	}
+
+	private ObjectLoader openObjectImpl(final WindowCursor curs,
+			final AnyObjectId id) throws IOException {
+		PackFile[] packs = packs();
+		final MultiPackLookup mp = multiPack();
+		if (mp != null) {
+			final ObjectLoader ol = mp.get(curs, id);
+			if (ol != null)
+				return ol;
+			packs = mp.others;
+		}
 		int k = packs.length;
 		while (k > 0) {
 			final ObjectLoader ol = packs[--k].get(curs, id);
 			if (ol != null)
 				return ol;
 		}
+		if (!hasLooseObject(id))
+			return null;
 		try {
 			return new UnpackedObjectLoader(this, id);
 		} catch (FileNotFoundException fnfe) {
@@ -768,17 +1004,75 @@ private ObjectId resolveSimple(final String revstr) throws IOException {
 		return r != null ? r.getObjectId() : null;
 	}
 
+	/** Increment the use counter by one, requiring a matching {@link #close()}. */
+	public void incrementOpen() {
+		useCnt.incrementAndGet();
+	}
+
+	int getUseCount() {
+		return useCnt.get();
+	}
+
 	/**
-	 * Close all resources used by this repository
+	 * Decrement the use count, and maybe close resources.
+	 * <p>
+	 * A repository starts out with a use count of one. The packs are only
+	 * closed once every {@link #incrementOpen()} has been matched by a call to
+	 * this method.
 	 */
 	public void close() {
-		closePacks();
+		final int n = useCnt.decrementAndGet();
+		if (n <= 0)
+			closePacks();
+		else if (n == 1)
+			RepositoryCache.released();
+	}
+
+	/**
+	 * Reload state that other processes may have changed on disk.
+	 * <p>
+	 * The pack directories are scanned again if any of them was modified
+	 * since the last scan, and the configuration is reloaded if its file
+	 * changed. Objects remembered as missing are forgotten, as another
+	 * process may have written them. Refs need no help here, as reading a ref
+	 * already checks the loose and packed ref files for modifications.
+	 *
+	 * @throws IOException
+	 *             the configuration file cannot be read.
+	 */
+	public void rescanIfModified() throws IOException {
+		looseObjects.clearMissing();
+		final File[] dirs = objectsDirs();
+		final long[] scanned;
+		synchronized (this) {
+			scanned = packDirModified;
+		}
+		for (int i = 0; i < dirs.length; i++) {
+			if (new File(dirs[i], "pack").lastModified() != scanned[i]) {
+				scanForPacks();
+				break;
+			}
+		}
+
+		final long m = configFile().lastModified();
+		synchronized (this) {
+			if (m == configModified)
+				return;
+			configModified = m;
+		}
+		if (m != 0)
+			getConfig().load();
+	}
+
+	private File configFile() {
+		return FS.resolve(gitDir, "config");
 	}
 
 	synchronized void closePacks() {
 		for (int k = packFileList.length - 1; k >= 0; k--)
 			packFileList[k].close();
 		packFileList = new PackFile[0];
+		multiPack = null;
 	}
 
 	/**
@@ -807,25 +1101,238 @@ public void openPack(final File pack, final File idx) throws IOException {
 			final PackFile[] cur = packFileList;
 			final PackFile[] arr = new PackFile[cur.length + 1];
 			System.arraycopy(cur, 0, arr, 1, cur.length);
-			arr[0] = new PackFile(idx, pack);
+			arr[0] = new PackFile(idx, pack, getConfig().getCore()
+					.isPackedIndexMmap());
 			packFileList = arr;
+			if (multiPack != null)
+				multiPack = multiPack.withPack(arr[0]);
 		}
+		looseObjects.clearMissing();
 	}
 
 	/**
 	 * Scan the object dirs, including alternates for packs
 	 * to use.
+	 * <p>
+	 * Packs whose file was deleted since they were opened, for example by a
+	 * repack, are closed and dropped from the list.
 	 */
 	public void scanForPacks() {
 		final ArrayList<PackFile> p = new ArrayList<PackFile>();
-		p.addAll(Arrays.asList(packs()));
-		for (final File d : objectsDirs())
-			scanForPacks(new File(d, "pack"), p);
+		final ArrayList<PackFile> gone = new ArrayList<PackFile>();
+		for (final PackFile pack : packs()) {
+			if (pack.getPackFile().isFile())
+				p.add(pack);
+			else
+				gone.add(pack);
+		}
+
+		final File[] dirs = objectsDirs();
+		final long[] modified = new long[dirs.length];
+		for (int i = 0; i < dirs.length; i++) {
+			final File packDir = new File(dirs[i], "pack");
+			modified[i] = packDir.lastModified();
+			scanForPacks(packDir, p);
+		}
 		final PackFile[] arr = new PackFile[p.size()];
 		p.toArray(arr);
 		Arrays.sort(arr, PackFile.SORT);
+		final MultiPackLookup mp = loadMultiPack(arr);
 		synchronized (this) {
 			packFileList = arr;
+			packDirModified = modified;
+			multiPack = mp;
+		}
+		looseObjects.clearMissing();
+		for (final PackFile pack : gone)
+			pack.close();
+	}
+
+	private MultiPackLookup loadMultiPack(final PackFile[] packs) {
+		if (!getConfig().getCore().isMultiPackIndex())
+			return null;
+		final File packDir = new File(getObjectsDirectory(), "pack");
+		final File file = new File(packDir, MultiPackIndex.FILE_NAME);
+		final long modified = file.lastModified();
+		final long length = file.length();
+		if (modified == 0)
+			return null;
+
+		MultiPackIndex index = null;
+		final MultiPackLookup old = multiPack();
+		if (old != null && old.modified == modified && old.length == length)
+			index = old.index;
+		else {
+			try {
+				index = MultiPackIndex.open(file);
+			} catch (IOException e) {
+				// A damaged index is only an optimization we have
+				// lost; the packs can still be searched one by one.
+				//
+				return null;
+			}
+		}
+
+		final PackFile[] byId = new PackFile[index.getPackCount()];
+		final ArrayList<PackFile> others = new ArrayList<PackFile>();
+		for (final PackFile pack : packs) {
+			final File f = pack.getPackFile();
+			if (packDir.equals(f.getParentFile())) {
+				final String n = f.getName();
+				final String idxName = n.substring(0, n.length() - 5) + ".idx";
+				final int id = Arrays.binarySearch(index.getPackNames(),
+						idxName);
+				if (id >= 0) {
+					byId[id] = pack;
+					continue;
+				}
+			}
+			others.add(pack);
+		}
+		for (final PackFile pack : byId) {
+			if (pack == null) {
+				// A pack the index names is gone; it is stale.
+				return null;
+			}
+		}
+		return new MultiPackLookup(index, modified, length, byId, others
+				.toArray(new PackFile[others.size()]));
+	}
+
+	/**
+	 * Write a multi-pack index covering all packs of this repository.
+	 * <p>
+	 * Packs borrowed from alternate object directories are not included.
+	 *
+	 * @throws IOException
+	 *             a pack index cannot be read, or the multi-pack index file
+	 *             cannot be written.
+	 */
+	public void writeMultiPackIndex() throws IOException {
+		final MultiPackIndexWriter w = new MultiPackIndexWriter();
+		addLocalPacks(w);
+		saveMultiPackIndex(w);
+	}
+
+	/**
+	 * Bring an existing multi-pack index up to date with the local packs.
+	 * <p>
+	 * Entries of the current index are copied rather than reread from their
+	 * pack indexes, so adding a pack costs time in proportion to the new
+	 * pack's size plus one sequential pass over the existing index. If the
+	 * current index refers to a pack that no longer exists, it is rebuilt
+	 * from scratch. Repositories without a multi-pack index are left alone.
+	 *
+	 * @throws IOException
+	 *             a pack index cannot be read, or the multi-pack index file
+	 *             cannot be written.
+	 */
+	public void updateMultiPackIndex() throws IOException {
+		final File file = new File(new File(getObjectsDirectory(), "pack"),
+				MultiPackIndex.FILE_NAME);
+		if (!file.isFile())
+			return;
+		final MultiPackIndexWriter w = new MultiPackIndexWriter();
+		final MultiPackIndex old = MultiPackIndex.open(file);
+		if (isCurrent(old)) {
+			addLocalPacks(w, old.getPackNames());
+			w.addMultiPackIndex(old);
+		} else
+			addLocalPacks(w);
+		saveMultiPackIndex(w);
+	}
+
+	private void addLocalPacks(final MultiPackIndexWriter w) {
+		addLocalPacks(w, new String[0]);
+	}
+
+	private void addLocalPacks(final MultiPackIndexWriter w,
+			final String[] skip) {
+		final File packDir = new File(getObjectsDirectory(), "pack");
+		for (final PackFile pack : packs()) {
+			final File f = pack.getPackFile();
+			if (packDir.equals(f.getParentFile())) {
+				final String n = f.getName();
+				final String idxName = n.substring(0, n.length() - 5) + ".idx";
+				if (Arrays.binarySearch(skip, idxName) < 0)
+					w.addPack(idxName, pack);
+			}
+		}
+	}
+
+	private boolean isCurrent(final MultiPackIndex midx) {
+		final File packDir = new File(getObjectsDirectory(), "pack");
+		for (final String idxName : midx.getPackNames()) {
+			final String n = idxName.substring(0, idxName.length() - 4);
+			if (!new File(packDir, n + ".pack").isFile())
+				return false;
+		}
+		return true;
+	}
+
+	private void saveMultiPackIndex(final MultiPackIndexWriter w)
+			throws IOException {
+		final File file = new File(new File(getObjectsDirectory(), "pack"),
+				MultiPackIndex.FILE_NAME);
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + file);
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				w.write(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + file);
+		scanForPacks();
+	}
+
+	/** A multi-pack index, and the packs it resolves to. */
+	private static final class MultiPackLookup {
+		final MultiPackIndex index;
+
+		final long modified;
+
+		final long length;
+
+		private final PackFile[] byId;
+
+		/** Packs not covered by the index, searched after it. */
+		final PackFile[] others;
+
+		MultiPackLookup(final MultiPackIndex index, final long modified,
+				final long length, final PackFile[] byId,
+				final PackFile[] others) {
+			this.index = index;
+			this.modified = modified;
+			this.length = length;
+			this.byId = byId;
+			this.others = others;
+		}
+
+		PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
+				throws IOException {
+			final int pos = index.findPosition(id);
+			if (pos < 0)
+				return null;
+			return byId[index.getPackId(pos)].resolveBase(curs, index
+					.getOffset(pos));
+		}
+
+		MultiPackLookup withPack(final PackFile pack) {
+			final PackFile[] arr = new PackFile[others.length + 1];
+			System.arraycopy(others, 0, arr, 0, others.length);
+			arr[others.length] = pack;
+			return new MultiPackLookup(index, modified, length, byId, arr);
 		}
 	}
 
@@ -856,7 +1363,8 @@ public boolean accept(final File baseDir, final String n) {
 						continue SCAN;
 				}
 
-				packList.add(new PackFile(idxFile, packFile));
+				packList.add(new PackFile(idxFile, packFile, getConfig()
+						.getCore().isPackedIndexMmap()));
 			}
 		}
 	}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of open repositories.
+ * <p>
+ * Opening a repository reads its configuration and scans its pack directory,
+ * and the first access to each pack loads that pack's index into memory. A
+ * server handling many connections to the same repositories can instead
+ * borrow an already warm instance from this cache.
+ * <p>
+ * Repositories are keyed by the canonical path of their directory. Each
+ * repository obtained from {@link #open(File)} must be released by calling
+ * {@link Repository#close()} once the caller is done with it. The cache keeps
+ * a reference of its own, and only closes a repository after nobody else
+ * used it for the idle timeout. Every {@link #open(File)} also checks the
+ * repository for packs or configuration changed by other processes.
+ * <p>
+ * Idle repositories are found by a sweep that runs during
+ * {@link #open(File)} and when a caller releases a repository, at most once
+ * a second. There is no background thread, so a process that stops using the
+ * cache altogether keeps its repositories open until {@link #clear()}.
+ */
+public class RepositoryCache {
+	/** Default number of milliseconds an unused repository stays open. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private static final Map<File, Entry> cache = new HashMap<File, Entry>();
+
+	private static long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	private static long nextSweep;
+
+	/**
+	 * Open a repository, sharing the instance with other callers.
+	 *
+	 * @param gitDir
+	 *            GIT_DIR (the location of the repository metadata).
+	 * @return the repository. The caller must invoke
+	 *         {@link Repository#close()} when done with it.
+	 * @throws IOException
+	 *             the directory is not a repository, or cannot be read.
+	 */
+	public static Repository open(final File gitDir) throws IOException {
+		final File key = gitDir.getCanonicalFile();
+		final List<Repository> expired = expireIdle();
+		Repository db;
+		try {
+			db = lookup(key);
+			if (db == null) {
+				if (!new File(key, "objects").isDirectory())
+					throw new IOException("Not a git directory: " + gitDir);
+				final Repository n = new Repository(key);
+				synchronized (cache) {
+					db = lookupLocked(key);
+					if (db == null) {
+						cache.put(key, new Entry(n));
+						n.incrementOpen();
+						return n;
+					}
+				}
+				n.close();
+			}
+		} finally {
+			for (final Repository e : expired)
+				e.close();
+		}
+
+		try {
+			db.rescanIfModified();
+		} catch (IOException err) {
+			db.close();
+			throw err;
+		}
+		return db;
+	}
+
+	/** Called by {@link Repository#close()} when one use remains. */
+	static void released() {
+		for (final Repository e : expireIdle())
+			e.close();
+	}
+
+	/**
+	 * Set how long a repository may stay unused before it is closed.
+	 *
+	 * @param millis
+	 *            number of milliseconds; 0 closes a repository as soon as the
+	 *            next {@link #open(File)} notices it is unused.
+	 */
+	public static void setIdleTimeout(final long millis) {
+		synchronized (cache) {
+			idleTimeout = millis;
+			nextSweep = 0;
+		}
+	}
+
+	/** @return milliseconds a repository may stay unused before closing. */
+	public static long getIdleTimeout() {
+		synchronized (cache) {
+			return idleTimeout;
+		}
+	}
+
+	/**
+	 * Drop every repository from the cache.
+	 * <p>
+	 * Repositories still in use by a caller are closed when that caller
+	 * releases them.
+	 */
+	public static void clear() {
+		final List<Repository> all = new ArrayList<Repository>();
+		synchronized (cache) {
+			for (final Entry e : cache.values())
+				all.add(e.db);
+			cache.clear();
+		}
+		for (final Repository db : all)
+			db.close();
+	}
+
+	private static Repository lookup(final File key) {
+		synchronized (cache) {
+			return lookupLocked(key);
+		}
+	}
+
+	private static Repository lookupLocked(final File key) {
+		final Entry e = cache.get(key);
+		if (e == null)
+			return null;
+		e.db.incrementOpen();
+		e.idleSince = 0;
+		return e.db;
+	}
+
+	/**
+	 * Remove repositories nobody but the cache used for the idle timeout.
+	 * <p>
+	 * A repository is only known to be idle once a sweep sees the cache
+	 * holding its only reference, so the clock starts at that sweep.
+	 *
+	 * @return repositories removed; the caller must close them after leaving
+	 *         the cache's lock.
+	 */
+	private static List<Repository> expireIdle() {
+		final long now = System.currentTimeMillis();
+		final List<Repository> expired = new ArrayList<Repository>();
+		synchronized (cache) {
+			if (now < nextSweep)
+				return expired;
+			nextSweep = now + Math.min(idleTimeout / 4, 1000);
+
+			final Iterator<Entry> i = cache.values().iterator();
+			while (i.hasNext()) {
+				final Entry e = i.next();
+				if (e.db.getUseCount() > 1)
+					e.idleSince = 0;
+				else if (e.idleSince == 0)
+					e.idleSince = now;
+				if (e.idleSince != 0 && now - e.idleSince >= idleTimeout) {
+					i.remove();
+					expired.add(e.db);
+				}
+			}
+		}
+		return expired;
+	}
+
+	private RepositoryCache() {
+		throw new UnsupportedOperationException();
+	}
+
+	private static class Entry {
+		final Repository db;
+
+		long idleSince;
+
+		Entry(final Repository db) {
+			this.db = db;
+		}
+	}
+}
@@ -97,6 +97,8 @@ public static RepositoryConfig openUserConfig() {
 
 	private TransferConfig transfer;
 
+	private PackConfig pack;
+
 	private List<Entry> entries;
 
 	private Map<String, Object> byName;
@@ -149,6 +151,13 @@ public TransferConfig getTransfer() {
 		return transfer;
 	}
 
+	/**
+	 * @return pack file generation configuration values
+	 */
+	public PackConfig getPack() {
+		return pack;
+	}
+
 	/**
 	 * Obtain an integer value from the configuration.
 	 *
@@ -684,6 +693,7 @@ public void create() {
 
 		core = new CoreConfig(this);
 		transfer = new TransferConfig(this);
+		pack = new PackConfig(this);
 	}
 
 	/**
@@ -827,6 +837,7 @@ public void load() throws IOException {
 
 		core = new CoreConfig(this);
 		transfer = new TransferConfig(this);
+		pack = new PackConfig(this);
 	}
 
 	private void clear() {
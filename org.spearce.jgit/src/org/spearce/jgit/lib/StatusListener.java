@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Receives the paths found by a {@link StatusScanner}.
+ * <p>
+ * Paths are relative to the root of the repository, use '/' to delimit
+ * directories, and are reported in no particular order. A scanner never calls
+ * more than one method of a listener at a time, even when it scans with
+ * several threads.
+ */
+public interface StatusListener {
+	/**
+	 * Invoked for a file in the index but not in the tree.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void added(String path);
+
+	/**
+	 * Invoked for a file whose object or mode differs between the tree and
+	 * the index.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void changed(String path);
+
+	/**
+	 * Invoked for a file in the tree but not in the index.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void removed(String path);
+
+	/**
+	 * Invoked for a file in the index but not in the working directory.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void missing(String path);
+
+	/**
+	 * Invoked for a file whose content or mode in the working directory
+	 * differs from the index.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void modified(String path);
+
+	/**
+	 * Invoked for a file in the working directory but not in the index.
+	 *
+	 * @param path
+	 *            path of the file.
+	 */
+	void untracked(String path);
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.spearce.jgit.dircache.DirCache;
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.dircache.DirCacheIterator;
+import org.spearce.jgit.treewalk.EmptyTreeIterator;
+import org.spearce.jgit.treewalk.FileTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.WorkingTreeIterator;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Compares a tree, the index and the working directory, like
+ * <code>git status</code>.
+ * <p>
+ * Unlike {@link IndexDiff} the scanner walks the {@link DirCache} with a
+ * {@link TreeWalk}, and reports each difference to a {@link StatusListener} as
+ * soon as it is found. A subtree whose id is the same in the tree and in the
+ * index's cached trees is not read from the tree at all. A file in the working
+ * directory is only read if its length and modification time do not match
+ * its index entry.
+ * <p>
+ * Each top level directory is scanned as a separate task, and the tasks are
+ * spread over several threads (see {@link #setThreads(int)}).
+ * <p>
+ * An unmerged path is reported once as changed, and is not compared to the
+ * working directory.
+ */
+public class StatusScanner {
+	/** Position of the tree, when comparing it to the index. */
+	private static final int T_TREE = 0;
+
+	/** Position of the index, when comparing it to the tree. */
+	private static final int T_INDEX = 1;
+
+	/** Position of the index, when comparing it to the working directory. */
+	private static final int W_INDEX = 0;
+
+	/** Position of the working directory, when comparing it to the index. */
+	private static final int W_WORK = 1;
+
+	private final Repository db;
+
+	private final ObjectId tree;
+
+	private final DirCache cache;
+
+	private final File workDir;
+
+	private int threads;
+
+	/**
+	 * Create a scanner comparing <code>HEAD</code>, the index file and the
+	 * working directory of a repository.
+	 *
+	 * @param repo
+	 *            the repository to scan.
+	 * @throws IOException
+	 *             <code>HEAD</code> or the index file cannot be read.
+	 */
+	public StatusScanner(final Repository repo) throws IOException {
+		this(repo, repo.resolve(Constants.HEAD + "^{tree}"), DirCache
+				.read(repo));
+	}
+
+	/**
+	 * Create a scanner comparing a tree, an index and the working directory
+	 * of a repository.
+	 *
+	 * @param repo
+	 *            the repository to scan.
+	 * @param treeId
+	 *            the tree to compare the index to; null to compare to an
+	 *            empty tree, as in a repository with no commits.
+	 * @param index
+	 *            the index to compare. It must be already loaded into memory,
+	 *            and must not be modified while it is scanned.
+	 */
+	public StatusScanner(final Repository repo, final AnyObjectId treeId,
+			final DirCache index) {
+		db = repo;
+		tree = treeId != null ? treeId.copy() : null;
+		cache = index;
+		workDir = repo.getWorkDir();
+	}
+
+	/**
+	 * Get the number of threads used to scan.
+	 *
+	 * @return number of threads; 0 to use one per available processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to scan.
+	 *
+	 * @param threads
+	 *            number of threads to scan with; 0 to use one per available
+	 *            processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Scan for differences.
+	 *
+	 * @param listener
+	 *            receives every difference found.
+	 * @throws IOException
+	 *             a tree could not be read from the repository.
+	 */
+	public void scan(final StatusListener listener) throws IOException {
+		// The cached trees are built on first use. Build them now, so
+		// that the tasks only read the DirCache.
+		//
+		cache.getCacheTree(true);
+
+		final StatusListener out = new SynchronizedListener(listener);
+		final List<Task> tasks = new ArrayList<Task>();
+		tasks.add(new Task(null, out));
+		for (final byte[] dir : topLevelDirectories())
+			tasks.add(new Task(dir, out));
+
+		int threadCnt = threads;
+		if (threadCnt <= 0)
+			threadCnt = Runtime.getRuntime().availableProcessors();
+		threadCnt = Math.min(threadCnt, tasks.size());
+
+		if (threadCnt <= 1) {
+			for (final Task task : tasks)
+				task.call();
+			return;
+		}
+
+		final ExecutorService pool = Executors.newFixedThreadPool(threadCnt);
+		try {
+			final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (final Task task : tasks)
+				futures.add(pool.submit(task));
+			for (final Future<Object> f : futures)
+				waitFor(f);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private List<byte[]> topLevelDirectories() throws IOException {
+		final TreeWalk tw = newWalk(true, true, true);
+		final List<byte[]> r = new ArrayList<byte[]>();
+		while (tw.next()) {
+			if (tw.isSubtree())
+				r.add(tw.getRawPath());
+		}
+		return r;
+	}
+
+	private TreeWalk newWalk(final boolean withTree, final boolean withIndex,
+			final boolean withWork) throws IOException {
+		final TreeWalk tw = new TreeWalk(db);
+		tw.reset();
+		if (withTree) {
+			if (tree != null)
+				tw.addTree(tree);
+			else
+				tw.addTree(new EmptyTreeIterator());
+		}
+		if (withIndex)
+			tw.addTree(new DirCacheIterator(cache));
+		if (withWork) {
+			final FileTreeIterator f = new FileTreeIterator(workDir);
+			if (withIndex)
+				f.setDirCacheIterator(tw, tw.getTreeCount() - 1);
+			tw.addTree(f);
+		}
+		return tw;
+	}
+
+	private static void waitFor(final Future<Object> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted during status scan");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			final IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	private static boolean isUnmerged(final TreeWalk tw, final int nth) {
+		final DirCacheIterator i = tw.getTree(nth, DirCacheIterator.class);
+		if (i == null)
+			return false;
+		final DirCacheEntry e = i.getDirCacheEntry();
+		return e != null && e.getStage() != DirCacheEntry.STAGE_0;
+	}
+
+	/** Scans either the files at the top level, or one top level directory. */
+	private class Task implements Callable<Object> {
+		private final byte[] dir;
+
+		private final StatusListener listener;
+
+		private String lastUnmerged;
+
+		Task(final byte[] dir, final StatusListener listener) {
+			this.dir = dir;
+			this.listener = listener;
+		}
+
+		public Object call() throws IOException {
+			compareTreeToIndex();
+			compareIndexToWorkDir();
+			return null;
+		}
+
+		private void compareTreeToIndex() throws IOException {
+			final TreeWalk tw = newWalk(true, true, false);
+			tw.setFilter(new TopLevelFilter(dir));
+			while (tw.next()) {
+				final int tMode = tw.getRawMode(T_TREE);
+				final int iMode = tw.getRawMode(T_INDEX);
+				if (tw.isSubtree()) {
+					if (tMode != iMode || !tw.idEqual(T_TREE, T_INDEX))
+						tw.enterSubtree();
+					continue;
+				}
+
+				if (isUnmerged(tw, T_INDEX)) {
+					final String path = tw.getPathString();
+					if (!path.equals(lastUnmerged)) {
+						lastUnmerged = path;
+						listener.changed(path);
+					}
+				} else if (tMode == 0)
+					listener.added(tw.getPathString());
+				else if (iMode == 0)
+					listener.removed(tw.getPathString());
+				else if (tMode != iMode || !tw.idEqual(T_TREE, T_INDEX))
+					listener.changed(tw.getPathString());
+			}
+		}
+
+		private void compareIndexToWorkDir() throws IOException {
+			final TreeWalk tw = newWalk(false, true, true);
+			tw.setFilter(new TopLevelFilter(dir));
+			while (tw.next()) {
+				if (tw.isSubtree()) {
+					tw.enterSubtree();
+					continue;
+				}
+				if (isUnmerged(tw, W_INDEX))
+					continue;
+
+				final DirCacheIterator i = tw.getTree(W_INDEX,
+						DirCacheIterator.class);
+				final WorkingTreeIterator f = tw.getTree(W_WORK,
+						WorkingTreeIterator.class);
+				if (i == null)
+					listener.untracked(tw.getPathString());
+				else if (f == null)
+					listener.missing(tw.getPathString());
+				else if (f.isModified(i.getDirCacheEntry(), false))
+					listener.modified(tw.getPathString());
+			}
+		}
+	}
+
+	/** Lets the tasks report to a listener one at a time. */
+	private static class SynchronizedListener implements StatusListener {
+		private final StatusListener listener;
+
+		SynchronizedListener(final StatusListener listener) {
+			this.listener = listener;
+		}
+
+		public synchronized void added(final String path) {
+			listener.added(path);
+		}
+
+		public synchronized void changed(final String path) {
+			listener.changed(path);
+		}
+
+		public synchronized void removed(final String path) {
+			listener.removed(path);
+		}
+
+		public synchronized void missing(final String path) {
+			listener.missing(path);
+		}
+
+		public synchronized void modified(final String path) {
+			listener.modified(path);
+		}
+
+		public synchronized void untracked(final String path) {
+			listener.untracked(path);
+		}
+	}
+
+	/**
+	 * Limits a walk to one top level directory, or to the files at the top
+	 * level if the directory is null.
+	 */
+	private static class TopLevelFilter extends TreeFilter {
+		private final byte[] dir;
+
+		TopLevelFilter(final byte[] dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		public boolean include(final TreeWalk walker) {
+			if (walker.getDepth() > 0)
+				return true;
+			if (dir == null)
+				return !walker.isSubtree();
+			return walker.isSubtree() && Arrays.equals(dir, walker.getRawPath());
+		}
+
+		@Override
+		public boolean shouldBeRecursive() {
+			return false;
+		}
+
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2008, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wrapper around a {@link ProgressMonitor} allowing worker threads to report.
+ * <p>
+ * Most monitor implementations assume they are only invoked by one thread.
+ * This wrapper lets worker threads call {@link #update(int)} safely by
+ * accumulating their work in a counter. The thread which owns the underlying
+ * monitor must periodically call {@link #pollForUpdates()} to transfer the
+ * accumulated work to the real monitor.
+ * <p>
+ * Only {@link #update(int)} and {@link #isCancelled()} may be called from
+ * worker threads, all other methods must be invoked by the owning thread.
+ */
+public class ThreadSafeProgressMonitor implements ProgressMonitor {
+	private final ProgressMonitor pm;
+
+	private final AtomicInteger pendingUpdates = new AtomicInteger();
+
+	private volatile boolean cancelled;
+
+	/**
+	 * Wrap a ProgressMonitor to be thread safe.
+	 * 
+	 * @param pm
+	 *            the underlying monitor to receive events.
+	 */
+	public ThreadSafeProgressMonitor(final ProgressMonitor pm) {
+		this.pm = pm;
+	}
+
+	public void start(final int totalTasks) {
+		pm.start(totalTasks);
+	}
+
+	public void beginTask(final String title, final int totalWork) {
+		pm.beginTask(title, totalWork);
+	}
+
+	public void update(final int completed) {
+		pendingUpdates.addAndGet(completed);
+	}
+
+	/**
+	 * Transfer work reported by worker threads to the underlying monitor.
+	 * <p>
+	 * Must only be invoked by the thread which owns the underlying monitor.
+	 * This method also samples the underlying monitor's cancellation state,
+	 * making it visible to the workers through {@link #isCancelled()}.
+	 */
+	public void pollForUpdates() {
+		final int cnt = pendingUpdates.getAndSet(0);
+		if (cnt > 0)
+			pm.update(cnt);
+		if (pm.isCancelled())
+			cancelled = true;
+	}
+
+	public void endTask() {
+		pollForUpdates();
+		pm.endTask();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -38,25 +38,54 @@
 
 package org.spearce.jgit.lib;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.errors.LargeObjectException;
 import org.spearce.jgit.util.MutableInteger;
+import org.spearce.jgit.util.NB;
 import org.spearce.jgit.util.RawParseUtils;
 
 /**
  * Loose object loader. This class loads an object not stored in a pack.
+ * <p>
+ * Only the object's header is parsed when the loader is created; the content
+ * is inflated when it is first asked for. Loose objects whose file is larger
+ * than the repository's {@link CoreConfig#getStreamFileThreshold()} are not
+ * read into memory at all, and are read from the file each time.
  */
 public class UnpackedObjectLoader extends ObjectLoader {
-	private final int objectType;
+	/** Enough compressed data to hold the header of any object. */
+	private static final int HEADER_READ = 64;
 
-	private final int objectSize;
+	private final AnyObjectId id;
 
-	private final byte[] bytes;
+	/** Entire loose object file; null if it is read from {@link #path}. */
+	private final byte[] compressed;
+
+	private final File path;
+
+	private int objectType;
+
+	private long objectSize;
+
+	/** True if the whole file, header included, is one zlib stream. */
+	private boolean legacy;
+
+	/**
+	 * Legacy format: length of the inflated header. Otherwise: number of raw
+	 * header bytes before the zlib stream.
+	 */
+	private int headerLength;
+
+	private byte[] bytes;
 
 	/**
 	 * Construct an ObjectLoader for the specified SHA-1
@@ -69,12 +98,22 @@ public class UnpackedObjectLoader extends ObjectLoader {
 	 */
 	public UnpackedObjectLoader(final Repository db, final AnyObjectId id)
 			throws IOException {
-		this(readCompressed(db, id), id);
+		this.id = id;
+		final File f = db.toFile(id);
+		if (f.length() <= db.getConfig().getCore().getStreamFileThreshold()) {
+			compressed = readCompressed(f);
+			path = null;
+			readHeader(compressed, compressed.length);
+		} else {
+			compressed = null;
+			path = f;
+			readHeader(f);
+		}
 	}
 
-	private static byte[] readCompressed(final Repository db,
-			final AnyObjectId id) throws FileNotFoundException, IOException {
-		final FileInputStream objStream = new FileInputStream(db.toFile(id));
+	private static byte[] readCompressed(final File f)
+			throws FileNotFoundException, IOException {
+		final FileInputStream objStream = new FileInputStream(f);
 		final byte[] compressed;
 		try {
 			compressed = new byte[objStream.available()];
@@ -98,11 +137,48 @@ private static byte[] readCompressed(final Repository db,
 	 */
 	public UnpackedObjectLoader(final byte[] compressed)
 			throws CorruptObjectException {
-		this(compressed, null);
+		this.id = null;
+		this.compressed = compressed;
+		this.path = null;
+		readHeader(compressed, compressed.length);
+	}
+
+	/**
+	 * Construct an ObjectLoader for a loose object file, without reading the
+	 * file into memory.
+	 * <p>
+	 * The object's content is inflated from the file each time it is
+	 * requested, so the file must not be modified or removed while the loader
+	 * is in use.
+	 *
+	 * @param f
+	 *            the loose object file.
+	 * @throws IOException
+	 *             the file cannot be read, or does not match the format for a
+	 *             valid loose object.
+	 */
+	public UnpackedObjectLoader(final File f) throws IOException {
+		this.id = null;
+		this.compressed = null;
+		this.path = f;
+		readHeader(f);
 	}
 
-	private UnpackedObjectLoader(final byte[] compressed, final AnyObjectId id)
+	private void readHeader(final File f) throws IOException {
+		final byte[] hdr = new byte[HEADER_READ];
+		final FileInputStream in = new FileInputStream(f);
+		try {
+			readHeader(hdr, readSome(in, hdr));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void readHeader(final byte[] buf, final int len)
 			throws CorruptObjectException {
+		if (len < 2)
+			throw corrupt("no header");
+
 		// Try to determine if this is a legacy format loose object or
 		// a new style loose object. The legacy format was completely
 		// compressed with zlib so the first byte must be 0x78 (15-bit
@@ -110,84 +186,103 @@ private UnpackedObjectLoader(final byte[] compressed, final AnyObjectId id)
 		// evenly divisible by 31. Otherwise its a new style loose
 		// object.
 		//
-		final Inflater inflater = InflaterCache.get();
-		try {
-			final int fb = compressed[0] & 0xff;
-			if (fb == 0x78 && (((fb << 8) | compressed[1] & 0xff) % 31) == 0) {
-				inflater.setInput(compressed);
-				final byte[] hdr = new byte[64];
-				int avail = 0;
-				while (!inflater.finished() && avail < hdr.length)
-					try {
-						avail += inflater.inflate(hdr, avail, hdr.length
-								- avail);
-					} catch (DataFormatException dfe) {
-						final CorruptObjectException coe;
-						coe = new CorruptObjectException(id, "bad stream");
-						coe.initCause(dfe);
-						inflater.end();
-						throw coe;
-					}
-				if (avail < 5)
-					throw new CorruptObjectException(id, "no header");
-
-				final MutableInteger p = new MutableInteger();
-				objectType = Constants.decodeTypeString(id, hdr, (byte) ' ', p);
-				objectSize = RawParseUtils.parseBase10(hdr, p.value, p);
-				if (objectSize < 0)
-					throw new CorruptObjectException(id, "negative size");
-				if (hdr[p.value++] != 0)
-					throw new CorruptObjectException(id, "garbage after size");
-				bytes = new byte[objectSize];
-				if (p.value < avail)
-					System.arraycopy(hdr, p.value, bytes, 0, avail - p.value);
-				decompress(id, inflater, avail - p.value);
-			} else {
-				int p = 0;
-				int c = compressed[p++] & 0xff;
-				final int typeCode = (c >> 4) & 7;
-				int size = c & 15;
-				int shift = 4;
-				while ((c & 0x80) != 0) {
-					c = compressed[p++] & 0xff;
-					size += (c & 0x7f) << shift;
-					shift += 7;
-				}
-
-				switch (typeCode) {
-				case Constants.OBJ_COMMIT:
-				case Constants.OBJ_TREE:
-				case Constants.OBJ_BLOB:
-				case Constants.OBJ_TAG:
-					objectType = typeCode;
-					break;
-				default:
-					throw new CorruptObjectException(id, "invalid type");
-				}
-
-				objectSize = size;
-				bytes = new byte[objectSize];
-				inflater.setInput(compressed, p, compressed.length - p);
-				decompress(id, inflater, 0);
+		final int fb = buf[0] & 0xff;
+		if (fb == 0x78 && (((fb << 8) | buf[1] & 0xff) % 31) == 0) {
+			final Inflater inflater = InflaterCache.get();
+			final byte[] hdr = new byte[64];
+			int avail = 0;
+			try {
+				inflater.setInput(buf, 0, len);
+				while (!inflater.finished() && !inflater.needsInput()
+						&& avail < hdr.length)
+					avail += inflater.inflate(hdr, avail, hdr.length - avail);
+			} catch (DataFormatException dfe) {
+				final CorruptObjectException coe;
+				coe = corrupt("bad stream");
+				coe.initCause(dfe);
+				throw coe;
+			} finally {
+				InflaterCache.release(inflater);
 			}
-		} finally {
-			InflaterCache.release(inflater);
+			if (avail < 5)
+				throw corrupt("no header");
+
+			final MutableInteger p = new MutableInteger();
+			objectType = Constants.decodeTypeString(id, hdr, (byte) ' ', p);
+			objectSize = RawParseUtils.parseLongBase10(hdr, p.value, p);
+			if (objectSize < 0)
+				throw corrupt("negative size");
+			if (hdr[p.value++] != 0)
+				throw corrupt("garbage after size");
+			legacy = true;
+			headerLength = p.value;
+		} else {
+			int p = 0;
+			int c = buf[p++] & 0xff;
+			final int typeCode = (c >> 4) & 7;
+			long size = c & 15;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				if (p == len)
+					throw corrupt("no header");
+				c = buf[p++] & 0xff;
+				size += ((long) (c & 0x7f)) << shift;
+				shift += 7;
+			}
+
+			switch (typeCode) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				objectType = typeCode;
+				break;
+			default:
+				throw corrupt("invalid type");
+			}
+
+			objectSize = size;
+			legacy = false;
+			headerLength = p;
 		}
 	}
 
-	private void decompress(final AnyObjectId id, final Inflater inf, int p)
-			throws CorruptObjectException {
+	private void inflate() throws CorruptObjectException {
+		final int sz = (int) objectSize;
+		final Inflater inf = InflaterCache.get();
 		try {
-			while (!inf.finished())
-				p += inf.inflate(bytes, p, objectSize - p);
+			final int skip;
+			if (legacy) {
+				inf.setInput(compressed);
+				skip = headerLength;
+			} else {
+				inf.setInput(compressed, headerLength, compressed.length
+						- headerLength);
+				skip = 0;
+			}
+
+			if (skip > 0) {
+				final byte[] hdr = new byte[skip];
+				int n = 0;
+				while (n < skip && !inf.finished() && !inf.needsInput())
+					n += inf.inflate(hdr, n, skip - n);
+			}
+
+			bytes = new byte[sz];
+			int p = 0;
+			while (p < sz && !inf.finished() && !inf.needsInput())
+				p += inf.inflate(bytes, p, sz - p);
+			if (p != sz || !inf.finished()
+					&& inf.inflate(new byte[1], 0, 1) != 0)
+				throw corrupt("incorrect length");
 		} catch (DataFormatException dfe) {
 			final CorruptObjectException coe;
-			coe = new CorruptObjectException(id, "bad stream");
+			coe = corrupt("bad stream");
 			coe.initCause(dfe);
 			throw coe;
+		} finally {
+			InflaterCache.release(inf);
 		}
-		if (p != objectSize)
-			throw new CorruptObjectException(id, "incorrect length");
 	}
 
 	public int getType() {
@@ -200,9 +295,78 @@ public long getSize() {
 
 	@Override
 	public byte[] getCachedBytes() throws IOException {
+		if (bytes == null) {
+			if (objectSize > Integer.MAX_VALUE)
+				throw new LargeObjectException(id, objectSize);
+			if (compressed != null) {
+				inflate();
+				return bytes;
+			}
+			final byte[] r = new byte[(int) objectSize];
+			final InputStream in = openStream();
+			try {
+				NB.readFully(in, r, 0, r.length);
+			} finally {
+				in.close();
+			}
+			bytes = r;
+		}
 		return bytes;
 	}
 
+	@Override
+	public InputStream openStream() throws IOException {
+		if (bytes != null)
+			return new ByteArrayInputStream(bytes);
+
+		final InputStream in;
+		if (compressed != null)
+			in = new ByteArrayInputStream(compressed);
+		else
+			in = new FileInputStream(path);
+		try {
+			long skip = legacy ? 0 : headerLength;
+			while (0 < skip) {
+				final long n = in.skip(skip);
+				if (n <= 0)
+					throw corrupt("no header");
+				skip -= n;
+			}
+		} catch (IOException err) {
+			in.close();
+			throw err;
+		}
+
+		final InputStream r = new InflatingStream((legacy ? headerLength
+				: 0)
+				+ objectSize) {
+			@Override
+			protected int fill(final byte[] buf) throws IOException {
+				return in.read(buf, 0, buf.length);
+			}
+
+			@Override
+			protected CorruptObjectException corrupt(final String why) {
+				return UnpackedObjectLoader.this.corrupt(why);
+			}
+
+			@Override
+			protected void onClose() throws IOException {
+				in.close();
+			}
+		};
+		if (legacy) {
+			try {
+				final byte[] hdr = new byte[headerLength];
+				NB.readFully(r, hdr, 0, hdr.length);
+			} catch (IOException err) {
+				r.close();
+				throw err;
+			}
+		}
+		return r;
+	}
+
 	@Override
 	public int getRawType() {
 		return objectType;
@@ -212,4 +376,22 @@ public int getRawType() {
 	public long getRawSize() {
 		return objectSize;
 	}
+
+	private CorruptObjectException corrupt(final String why) {
+		if (id != null)
+			return new CorruptObjectException(id, why);
+		return new CorruptObjectException(why);
+	}
+
+	private static int readSome(final InputStream in, final byte[] buf)
+			throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			final int r = in.read(buf, n, buf.length - n);
+			if (r <= 0)
+				break;
+			n += r;
+		}
+		return n;
+	}
 }
@@ -37,7 +37,9 @@
 
 package org.spearce.jgit.lib;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.zip.DataFormatException;
 
 import org.spearce.jgit.errors.CorruptObjectException;
@@ -48,7 +50,7 @@ class WholePackedObjectLoader extends PackedObjectLoader {
 
 	WholePackedObjectLoader(final WindowCursor curs, final PackFile pr,
 			final long dataOffset, final long objectOffset, final int type,
-			final int size) {
+			final long size) {
 		super(curs, pr, dataOffset, objectOffset);
 		objectType = type;
 		objectSize = size;
@@ -57,7 +59,7 @@ class WholePackedObjectLoader extends PackedObjectLoader {
 	@Override
 	public byte[] getCachedBytes() throws IOException {
 		if (objectType != OBJ_COMMIT) {
-			final UnpackedObjectCache.Entry cache = pack.readCache(dataOffset);
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
 			if (cache != null) {
 				curs.release();
 				return cache.data;
@@ -65,7 +67,8 @@ public byte[] getCachedBytes() throws IOException {
 		}
 
 		try {
-			final byte[] data = pack.decompress(dataOffset, objectSize, curs);
+			final byte[] data = pack.decompress(dataOffset,
+					checkArraySize(objectSize), curs);
 			curs.release();
 			if (objectType != OBJ_COMMIT)
 				pack.saveCache(dataOffset, data, objectType);
@@ -79,6 +82,16 @@ public byte[] getCachedBytes() throws IOException {
 		}
 	}
 
+	@Override
+	public InputStream openStream() throws IOException {
+		if (objectType != OBJ_COMMIT) {
+			final DeltaBaseCache.Entry cache = pack.readCache(dataOffset);
+			if (cache != null)
+				return new ByteArrayInputStream(cache.data);
+		}
+		return pack.openInflatedStream(dataOffset, objectSize);
+	}
+
 	@Override
 	public int getRawType() {
 		return objectType;
@@ -40,16 +40,34 @@
 
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The WindowCache manages reusable <code>Windows</code> and inflaters used by
  * the other windowed file access classes.
+ * <p>
+ * The cache table is striped across a fixed number of locks, so threads
+ * reading different windows rarely contend with each other. Replacement is an
+ * approximate LRU: each window records a global access tick, and eviction
+ * removes the oldest window found while sweeping a small batch of buckets.
+ * The number of bytes held by the cache is tracked atomically and does not
+ * require any lock.
  */
 public class WindowCache {
 	private static final int KB = 1024;
 
 	private static final int MB = 1024 * KB;
 
+	/** Number of locks the cache table is striped across. */
+	private static final int LOCK_COUNT = 32;
+
+	/** Number of buckets examined per eviction attempt. */
+	private static final int EVICT_BATCH = 16;
+
 	private static final int bits(int newSize) {
 		if (newSize < 4096)
 			throw new IllegalArgumentException("Invalid window size");
@@ -58,35 +76,52 @@ private static final int bits(int newSize) {
 		return Integer.numberOfTrailingZeros(newSize);
 	}
 
-	private static int maxByteCount;
+	private static volatile int maxByteCount;
 
-	private static int windowSize;
+	private static volatile int windowSize;
 
-	private static int windowSizeShift;
+	private static volatile int windowSizeShift;
 
-	static boolean mmap;
+	static volatile boolean mmap;
 
 	static final ReferenceQueue<?> clearedWindowQueue;
 
-	private static ByteWindow[] cache;
+	/**
+	 * Locks guarding the cache table.
+	 * <p>
+	 * Bucket <code>i</code> is guarded by <code>locks[i % LOCK_COUNT]</code>.
+	 * The table length is always a multiple of {@link #LOCK_COUNT} so a window
+	 * stays under the same lock even when the table is resized. The table
+	 * reference itself is only replaced while holding every lock.
+	 */
+	private static final ReentrantLock[] locks;
+
+	private static ByteWindow<?>[] cache;
 
-	private static ByteWindow lruHead;
+	private static final AtomicInteger openByteCount;
 
-	private static ByteWindow lruTail;
+	private static final AtomicLong accessClock;
 
-	private static int openByteCount;
+	private static final AtomicInteger evictHand;
 
 	static {
 		maxByteCount = 10 * MB;
 		windowSizeShift = bits(8 * KB);
 		windowSize = 1 << windowSizeShift;
 		mmap = false;
-		cache = new ByteWindow[cacheTableSize()];
+		locks = new ReentrantLock[LOCK_COUNT];
+		for (int i = 0; i < LOCK_COUNT; i++)
+			locks[i] = new ReentrantLock();
+		cache = new ByteWindow<?>[cacheTableSize()];
 		clearedWindowQueue = new ReferenceQueue<Object>();
+		openByteCount = new AtomicInteger();
+		accessClock = new AtomicLong();
+		evictHand = new AtomicInteger();
 	}
 
 	private static int cacheTableSize() {
-		return 5 * (maxByteCount / windowSize) / 2;
+		final int sz = 5 * (maxByteCount / windowSize) / 2;
+		return Math.max(1, (sz + LOCK_COUNT - 1) / LOCK_COUNT) * LOCK_COUNT;
 	}
 
 	/**
@@ -109,68 +144,74 @@ public static void reconfigure(final int packedGitLimit,
 			final int packedGitWindowSize, final boolean packedGitMMAP,
 			final int deltaBaseCacheLimit) {
 		reconfigureImpl(packedGitLimit, packedGitWindowSize, packedGitMMAP);
-		UnpackedObjectCache.reconfigure(deltaBaseCacheLimit);
+		DeltaBaseCache.reconfigure(deltaBaseCacheLimit);
 	}
 
-	private static synchronized void reconfigureImpl(final int packedGitLimit,
+	private static void reconfigureImpl(final int packedGitLimit,
 			final int packedGitWindowSize, final boolean packedGitMMAP) {
+		final List<ByteWindow<?>> dead = new ArrayList<ByteWindow<?>>();
 		boolean prune = false;
 		boolean evictAll = false;
 
-		if (maxByteCount < packedGitLimit) {
-			maxByteCount = packedGitLimit;
-		} else if (maxByteCount > packedGitLimit) {
-			maxByteCount = packedGitLimit;
-			prune = true;
-		}
-
-		if (bits(packedGitWindowSize) != windowSizeShift) {
-			windowSizeShift = bits(packedGitWindowSize);
-			windowSize = 1 << windowSizeShift;
-			evictAll = true;
-		}
+		lockAll();
+		try {
+			if (maxByteCount < packedGitLimit) {
+				maxByteCount = packedGitLimit;
+			} else if (maxByteCount > packedGitLimit) {
+				maxByteCount = packedGitLimit;
+				prune = true;
+			}
 
-		if (mmap != packedGitMMAP) {
-			mmap = packedGitMMAP;
-			evictAll = true;
-		}
+			if (bits(packedGitWindowSize) != windowSizeShift) {
+				windowSizeShift = bits(packedGitWindowSize);
+				windowSize = 1 << windowSizeShift;
+				evictAll = true;
+			}
 
-		if (evictAll) {
-			// We have to throw away every window we have. None
-			// of them are suitable for the new configuration.
-			//
-			for (ByteWindow<?> e : cache) {
-				for (; e != null; e = e.chainNext)
-					clear(e);
+			if (mmap != packedGitMMAP) {
+				mmap = packedGitMMAP;
+				evictAll = true;
 			}
-			runClearedWindowQueue();
-			cache = new ByteWindow[cacheTableSize()];
 
-		} else {
-			if (prune) {
-				// We should decrease our memory usage.
+			if (evictAll) {
+				// We have to throw away every window we have. None
+				// of them are suitable for the new configuration.
 				//
-				releaseMemory();
-				runClearedWindowQueue();
-			}
+				for (ByteWindow<?> e : cache) {
+					for (; e != null; e = e.chainNext) {
+						e.sizeActive = false;
+						dead.add(e);
+					}
+				}
+				cache = new ByteWindow<?>[cacheTableSize()];
 
-			if (cache.length != cacheTableSize()) {
+			} else if (cache.length != cacheTableSize()) {
 				// The cache table should be resized.
 				// Rehash every entry.
 				//
-				final ByteWindow[] priorTable = cache;
+				final ByteWindow<?>[] priorTable = cache;
 
-				cache = new ByteWindow[cacheTableSize()];
+				cache = new ByteWindow<?>[cacheTableSize()];
 				for (ByteWindow<?> e : priorTable) {
 					for (ByteWindow<?> n; e != null; e = n) {
 						n = e.chainNext;
-						final int idx = hash(e.provider, e.id);
+						final int idx = hash(e.provider, e.id) % cache.length;
 						e.chainNext = cache[idx];
 						cache[idx] = e;
 					}
 				}
 			}
+		} finally {
+			unlockAll();
+		}
+
+		release(dead);
+		if (prune) {
+			// We should decrease our memory usage.
+			//
+			releaseMemory();
 		}
+		runClearedWindowQueue();
 	}
 
 	/**
@@ -189,87 +230,192 @@ private static synchronized void reconfigureImpl(final int packedGitLimit,
 	 *             the window was not found in the cache and the given provider
 	 *             was unable to load the window on demand.
 	 */
-	public static synchronized final void get(final WindowCursor curs,
+	public static final void get(final WindowCursor curs,
 			final WindowedFile wp, final long position) throws IOException {
-		final int id = (int) (position >> windowSizeShift);
-		final int idx = hash(wp, id);
-		for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
-			if (e.provider == wp && e.id == id) {
-				if ((curs.handle = e.get()) != null) {
-					curs.window = e;
-					makeMostRecent(e);
+		for (;;) {
+			final int shift = windowSizeShift;
+			final int id = (int) (position >> shift);
+			final int h = hash(wp, id);
+			if (lookup(curs, wp, id, h, shift))
+				return;
+
+			// Releasing cleared windows needs other providers' monitors,
+			// so a nested get made while opening a file must not do it.
+			//
+			if (!Thread.holdsLock(wp))
+				runClearedWindowQueue();
+			wp.beginWindow();
+			boolean inserted = false;
+			try {
+				// Opening the file may have loaded the window we are
+				// looking for. Retrying the search ensures that does
+				// not happen to us.
+				//
+				if (lookup(curs, wp, id, h, shift))
 					return;
-				}
 
-				clear(e);
-				break;
+				final int wsz = windowSize(wp, id, shift);
+				wp.allocWindow(curs, id, ((long) id) << shift, wsz);
+				inserted = insert(curs, h, shift);
+			} finally {
+				if (!inserted)
+					wp.endWindow();
 			}
-		}
 
-		if (wp.openCount == 0) {
-			try {
-				wp.openCount = 1;
-				wp.cacheOpen();
-			} catch (IOException ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} catch (RuntimeException ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} catch (Error ioe) {
-				wp.openCount = 0;
-				throw ioe;
-			} finally {
-				wp.openCount--;
+			if (inserted) {
+				// A window loaded while opening the file must not evict,
+				// as that needs other providers' monitors while we hold
+				// the monitor of wp. The outermost get will do it for us.
+				//
+				if (!Thread.holdsLock(wp))
+					releaseMemory();
+				return;
 			}
+			if (curs.window != null)
+				return;
+		}
+	}
 
-			// The cacheOpen may have mapped the window we are trying to
-			// map ourselves. Retrying the search ensures that does not
-			// happen to us.
-			//
-			for (ByteWindow<?> e = cache[idx]; e != null; e = e.chainNext) {
+	/**
+	 * Search the table for an existing window.
+	 * 
+	 * @return true if <code>curs</code> now holds the window; false if it
+	 *         must be loaded by the caller.
+	 */
+	private static boolean lookup(final WindowCursor curs,
+			final WindowedFile wp, final int id, final int h, final int shift) {
+		ByteWindow<?> dead = null;
+		final ReentrantLock lock = lockFor(h);
+		lock.lock();
+		try {
+			if (shift != windowSizeShift)
+				return false;
+			final ByteWindow<?>[] table = cache;
+			final int idx = h % table.length;
+			for (ByteWindow<?> e = table[idx]; e != null; e = e.chainNext) {
 				if (e.provider == wp && e.id == id) {
 					if ((curs.handle = e.get()) != null) {
 						curs.window = e;
-						makeMostRecent(e);
-						return;
+						e.lastAccessed = accessClock.incrementAndGet();
+						return true;
 					}
 
-					clear(e);
+					unlinkCache(table, idx, e);
+					dead = e;
 					break;
 				}
 			}
+		} finally {
+			lock.unlock();
 		}
+		if (dead != null)
+			release(dead);
+		return false;
+	}
 
-		final int wsz = windowSize(wp, id);
-		wp.openCount++;
-		openByteCount += wsz;
-		releaseMemory();
-		runClearedWindowQueue();
+	/**
+	 * Publish the window just allocated into <code>curs</code>.
+	 * <p>
+	 * If another thread raced with us and published the same window first,
+	 * its copy is used instead and ours is discarded.
+	 * 
+	 * @return true if the new window was added to the table; false if it was
+	 *         discarded. In the latter case <code>curs.window</code> is null
+	 *         if the caller must retry the request.
+	 */
+	private static boolean insert(final WindowCursor curs, final int h,
+			final int shift) {
+		final ByteWindow<?> n = curs.window;
+		final ReentrantLock lock = lockFor(h);
+		lock.lock();
+		try {
+			if (shift != windowSizeShift) {
+				n.sizeActive = false;
+				curs.window = null;
+				curs.handle = null;
+				return false;
+			}
 
-		wp.allocWindow(curs, id, id << windowSizeShift, wsz);
-		final ByteWindow<?> e = curs.window;
-		e.chainNext = cache[idx];
-		cache[idx] = e;
-		insertLRU(e);
-	}
+			final ByteWindow<?>[] table = cache;
+			final int idx = h % table.length;
+			for (ByteWindow<?> e = table[idx]; e != null; e = e.chainNext) {
+				if (e.provider == n.provider && e.id == n.id) {
+					final Object ref = e.get();
+					if (ref != null) {
+						n.sizeActive = false;
+						curs.window = e;
+						curs.handle = ref;
+						e.lastAccessed = accessClock.incrementAndGet();
+						return false;
+					}
+				}
+			}
 
-	private static void makeMostRecent(ByteWindow<?> e) {
-		if (lruHead != e) {
-			unlinkLRU(e);
-			insertLRU(e);
+			openByteCount.addAndGet(n.size);
+			n.lastAccessed = accessClock.incrementAndGet();
+			n.chainNext = table[idx];
+			table[idx] = n;
+			return true;
+		} finally {
+			lock.unlock();
 		}
 	}
 
 	private static void releaseMemory() {
-		ByteWindow<?> e = lruTail;
-		while (openByteCount > maxByteCount && e != null) {
-			final ByteWindow<?> p = e.lruPrev;
-			clear(e);
-			e = p;
+		while (openByteCount.get() > maxByteCount) {
+			if (!evictOldest())
+				break;
 		}
 	}
 
+	/**
+	 * Evict the least recently used window among a batch of buckets.
+	 * 
+	 * @return true if the caller should continue trying to evict; false if
+	 *         the table was found to be empty.
+	 */
+	private static boolean evictOldest() {
+		ByteWindow<?> oldest = null;
+		int scanned = 0;
+		int tableSize = Integer.MAX_VALUE;
+		while (oldest == null && scanned < tableSize) {
+			final int start = evictHand.getAndAdd(EVICT_BATCH) & 0x7fffffff;
+			for (int k = 0; k < EVICT_BATCH; k++) {
+				final int b = (start + k) & 0x7fffffff;
+				final ReentrantLock lock = locks[b % LOCK_COUNT];
+				lock.lock();
+				try {
+					final ByteWindow<?>[] table = cache;
+					tableSize = table.length;
+					for (ByteWindow<?> e = table[b % tableSize]; e != null; e = e.chainNext) {
+						if (oldest == null
+								|| e.lastAccessed < oldest.lastAccessed)
+							oldest = e;
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			scanned += EVICT_BATCH;
+		}
+		if (oldest == null)
+			return false;
+
+		final ReentrantLock lock = lockFor(hash(oldest.provider, oldest.id));
+		lock.lock();
+		try {
+			if (!oldest.sizeActive)
+				return true;
+			final ByteWindow<?>[] table = cache;
+			final int idx = hash(oldest.provider, oldest.id) % table.length;
+			unlinkCache(table, idx, oldest);
+		} finally {
+			lock.unlock();
+		}
+		release(oldest);
+		return true;
+	}
+
 	/**
 	 * Remove all windows associated with a specific provider.
 	 * <p>
@@ -282,96 +428,113 @@ private static void releaseMemory() {
 	 *            the window provider whose windows should be removed from the
 	 *            cache.
 	 */
-	public static synchronized final void purge(final WindowedFile wp) {
-		for (ByteWindow e : cache) {
-			for (; e != null; e = e.chainNext) {
-				if (e.provider == wp)
-					clear(e);
+	public static final void purge(final WindowedFile wp) {
+		final List<ByteWindow<?>> dead = new ArrayList<ByteWindow<?>>();
+		for (int s = 0; s < LOCK_COUNT; s++) {
+			final ReentrantLock lock = locks[s];
+			lock.lock();
+			try {
+				final ByteWindow<?>[] table = cache;
+				for (int idx = s; idx < table.length; idx += LOCK_COUNT) {
+					for (ByteWindow<?> e = table[idx], n; e != null; e = n) {
+						n = e.chainNext;
+						if (e.provider == wp) {
+							unlinkCache(table, idx, e);
+							dead.add(e);
+						}
+					}
+				}
+			} finally {
+				lock.unlock();
 			}
 		}
+		release(dead);
 		runClearedWindowQueue();
 	}
 
 	private static void runClearedWindowQueue() {
 		ByteWindow<?> e;
-		while ((e = (ByteWindow) clearedWindowQueue.poll()) != null) {
-			unlinkSize(e);
-			unlinkLRU(e);
-			unlinkCache(e);
-			e.chainNext = null;
-			e.lruNext = null;
-			e.lruPrev = null;
+		while ((e = (ByteWindow<?>) clearedWindowQueue.poll()) != null) {
+			final int h = hash(e.provider, e.id);
+			final ReentrantLock lock = lockFor(h);
+			boolean dead = false;
+			lock.lock();
+			try {
+				if (e.sizeActive) {
+					final ByteWindow<?>[] table = cache;
+					unlinkCache(table, h % table.length, e);
+					dead = true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (dead)
+				release(e);
 		}
 	}
 
-	private static void clear(final ByteWindow<?> e) {
-		unlinkSize(e);
-		e.clear();
-		e.enqueue();
+	private static void release(final List<ByteWindow<?>> dead) {
+		for (final ByteWindow<?> e : dead)
+			release(e);
 	}
 
-	private static void unlinkSize(final ByteWindow<?> e) {
-		if (e.sizeActive) {
-			if (--e.provider.openCount == 0) {
-				e.provider.cacheClose();
-			}
-			openByteCount -= e.size;
-			e.sizeActive = false;
-		}
+	/**
+	 * Return a window's resources after it left the table.
+	 * <p>
+	 * Must be invoked without holding any table lock, as closing the provider
+	 * requires the provider's own monitor.
+	 */
+	private static void release(final ByteWindow<?> e) {
+		e.clear();
+		openByteCount.addAndGet(-e.size);
+		e.provider.endWindow();
 	}
 
-	private static void unlinkCache(final ByteWindow dead) {
-		final int idx = hash(dead.provider, dead.id);
-		ByteWindow<?> e = cache[idx], p = null, n;
+	/** Remove a window from its bucket; caller must hold the bucket lock. */
+	private static void unlinkCache(final ByteWindow<?>[] table, final int idx,
+			final ByteWindow<?> dead) {
+		ByteWindow<?> e = table[idx], p = null, n;
 		for (; e != null; p = e, e = n) {
 			n = e.chainNext;
 			if (e == dead) {
 				if (p == null)
-					cache[idx] = n;
+					table[idx] = n;
 				else
 					p.chainNext = n;
 				break;
 			}
 		}
+		dead.chainNext = null;
+		dead.sizeActive = false;
 	}
 
-	private static void unlinkLRU(final ByteWindow e) {
-		final ByteWindow<?> prev = e.lruPrev;
-		final ByteWindow<?> next = e.lruNext;
-
-		if (prev != null)
-			prev.lruNext = next;
-		else
-			lruHead = next;
+	private static void lockAll() {
+		for (final ReentrantLock lock : locks)
+			lock.lock();
+	}
 
-		if (next != null)
-			next.lruPrev = prev;
-		else
-			lruTail = prev;
+	private static void unlockAll() {
+		for (int i = LOCK_COUNT - 1; i >= 0; i--)
+			locks[i].unlock();
 	}
 
-	private static void insertLRU(final ByteWindow<?> e) {
-		final ByteWindow h = lruHead;
-		e.lruPrev = null;
-		e.lruNext = h;
-		if (h != null)
-			h.lruPrev = e;
-		else
-			lruTail = e;
-		lruHead = e;
+	private static ReentrantLock lockFor(final int h) {
+		return locks[h % LOCK_COUNT];
 	}
 
 	private static int hash(final WindowedFile wp, final int id) {
 		// wp.hash was already "stirred up" a bit by * 31 when
 		// it was created. Its reasonable to just add here.
 		//
-		return ((wp.hash + id) >>> 1) % cache.length;
+		return (wp.hash + id) >>> 1;
 	}
 
-	private static int windowSize(final WindowedFile file, final int id) {
+	private static int windowSize(final WindowedFile file, final int id,
+			final int shift) {
 		final long len = file.length();
-		final long pos = id << windowSizeShift;
-		return len < pos + windowSize ? (int) (len - pos) : windowSize;
+		final long pos = ((long) id) << shift;
+		final int sz = 1 << shift;
+		return len < pos + sz ? (int) (len - pos) : sz;
 	}
 
 	private WindowCache() {
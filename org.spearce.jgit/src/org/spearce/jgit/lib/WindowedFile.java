@@ -42,7 +42,9 @@
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.zip.DataFormatException;
 
@@ -77,7 +79,12 @@ public class WindowedFile {
 
 	private long length;
 
-	/** Total number of windows actively in the associated cache. */
+	/**
+	 * Total number of windows actively in the associated cache.
+	 * <p>
+	 * Guarded by this object's monitor, as is opening and closing of
+	 * {@link #fd}.
+	 */
 	int openCount;
 
 	/**
@@ -279,6 +286,36 @@ public void close() {
 		WindowCache.purge(this);
 	}
 
+	/**
+	 * Reserve the file for a window about to be loaded by the cache.
+	 * <p>
+	 * The file is opened if this is the first window to be loaded. Every call
+	 * must eventually be matched by {@link #endWindow()}.
+	 * 
+	 * @throws IOException
+	 *             the file could not be opened.
+	 */
+	synchronized void beginWindow() throws IOException {
+		if (openCount == 0) {
+			// Windows loaded by onOpen() come back through here. Count
+			// ourselves as open so they do not try to open us again.
+			//
+			openCount = 1;
+			try {
+				cacheOpen();
+			} finally {
+				openCount--;
+			}
+		}
+		openCount++;
+	}
+
+	/** Release a window reserved by {@link #beginWindow()}. */
+	synchronized void endWindow() {
+		if (--openCount == 0)
+			cacheClose();
+	}
+
 	void cacheOpen() throws IOException {
 		fd = new RandomAccessFile(fPath, "r");
 		length = fd.length();
@@ -297,6 +334,8 @@ void cacheOpen() throws IOException {
 	}
 
 	void cacheClose() {
+		if (fd == null)
+			return;
 		try {
 			fd.close();
 		} catch (IOException err) {
@@ -308,7 +347,7 @@ void cacheClose() {
 	}
 
 	void allocWindow(final WindowCursor curs, final int windowId,
-			final long pos, final int size) {
+			final long pos, final int size) throws IOException {
 		if (WindowCache.mmap) {
 			MappedByteBuffer map;
 			try {
@@ -332,10 +371,7 @@ void allocWindow(final WindowCursor curs, final int windowId,
 			if (map != null) {
 				if (map.hasArray()) {
 					final byte[] b = map.array();
-					final ByteArrayWindow w;
-					w = new ByteArrayWindow(this, pos, windowId, b);
-					w.loaded = true;
-					curs.window = w;
+					curs.window = new ByteArrayWindow(this, pos, windowId, b);
 					curs.handle = b;
 				} else {
 					curs.window = new ByteBufferWindow(this, pos, windowId, map);
@@ -345,7 +381,17 @@ void allocWindow(final WindowCursor curs, final int windowId,
 			}
 		}
 
+		// Load the window before the cache publishes it. Once published
+		// other threads may use it without any further locking.
+		//
 		final byte[] b = new byte[size];
+		final ByteBuffer buf = ByteBuffer.wrap(b);
+		final FileChannel channel = fd.getChannel();
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, pos + buf.position()) < 0)
+				throw new EOFException("Short read of window at " + pos
+						+ " in " + getName());
+		}
 		curs.window = new ByteArrayWindow(this, pos, windowId, b);
 		curs.handle = b;
 	}
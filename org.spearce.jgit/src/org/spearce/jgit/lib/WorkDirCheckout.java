@@ -43,8 +43,20 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.errors.CheckoutConflictException;
 import org.spearce.jgit.lib.GitIndex.Entry;
@@ -56,6 +68,14 @@
  * Three-way merges are no performed. See {@link #setFailOnConflict(boolean)}.
  */
 public class WorkDirCheckout {
+	/**
+	 * Default number of threads writing files; 1 writes them all on the
+	 * calling thread.
+	 *
+	 * @see #setThreads(int)
+	 */
+	public static final int DEFAULT_THREADS = 1;
+
 	protected Repository repo;
 
 	protected File root;
@@ -64,6 +84,8 @@ public class WorkDirCheckout {
 	
 	private boolean failOnConflict = true;
 
+	private int threads = DEFAULT_THREADS;
+
 	protected Tree merge;
 
 	
@@ -77,6 +99,30 @@ public void setFailOnConflict(boolean failOnConflict) {
 		this.failOnConflict = failOnConflict;
 	}
 
+	/**
+	 * Get the number of threads used to write files.
+	 *
+	 * @return number of threads; 0 to use one per available processor.
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Set the number of threads used to write files.
+	 * <p>
+	 * Blobs are read in the order they are stored in their packs, and written
+	 * by that many threads. Index entries are only updated once all files have
+	 * been written.
+	 *
+	 * @param threads
+	 *            number of threads to write with; 0 to use one per available
+	 *            processor.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
 	WorkDirCheckout(Repository repo, File workDir,
 			GitIndex oldIndex, GitIndex newIndex) throws IOException {
 		this.repo = repo;
@@ -142,10 +188,10 @@ private void checkoutTwoTrees() throws FileNotFoundException, IOException {
 			index.remove(root, new File(root, path));
 		}
 		
-		for (java.util.Map.Entry<String, ObjectId> entry : updated.entrySet()) {
-			Entry newEntry = index.addEntry(merge.findBlobMember(entry.getKey()));
-			index.checkoutEntry(root, newEntry);
-		}
+		List<TreeEntry> files = new ArrayList<TreeEntry>(updated.size());
+		for (java.util.Map.Entry<String, ObjectId> entry : updated.entrySet())
+			files.add(merge.findBlobMember(entry.getKey()));
+		checkoutFiles(files);
 	}
 
 	ArrayList<String> conflicts  = new ArrayList<String>();
@@ -156,6 +202,7 @@ private void checkoutTwoTrees() throws FileNotFoundException, IOException {
 	protected HashMap<String, ObjectId> updated = new HashMap<String, ObjectId>();
 	
 	private void checkoutOutIndexNoHead() throws IOException {
+		final List<TreeEntry> files = new ArrayList<TreeEntry>();
 		new IndexTreeWalker(index, merge, root, new AbstractIndexTreeVisitor() {
 			public void visitEntry(TreeEntry m, Entry i, File f) throws IOException {
 				if (m == null) {
@@ -171,12 +218,169 @@ else if (i.getObjectId().equals(m.getId())) {
 						needsCheckout = true;
 				} else needsCheckout = true;
 				
-				if (needsCheckout) {
-					Entry newEntry = index.addEntry(m);
-					index.checkoutEntry(root, newEntry);
-				}
+				if (needsCheckout)
+					files.add(m);
 			}
 		}).walk();
+		checkoutFiles(files);
+	}
+
+	private void checkoutFiles(List<TreeEntry> files) throws IOException {
+		final FileCheckout[] todo = new FileCheckout[files.size()];
+		for (int i = 0; i < todo.length; i++)
+			todo[i] = new FileCheckout(files.get(i));
+		sortByPackOffset(todo);
+
+		// Create each directory once, so the writers never race on it.
+		//
+		final HashSet<File> dirs = new HashSet<File>();
+		for (FileCheckout f : todo) {
+			final File dir = f.file.getParentFile();
+			if (dirs.add(dir))
+				dir.mkdirs();
+		}
+
+		int threadCnt = threads;
+		if (threadCnt <= 0)
+			threadCnt = Runtime.getRuntime().availableProcessors();
+		threadCnt = Math.min(threadCnt, todo.length);
+
+		final CheckoutTask writer = new CheckoutTask(todo);
+		if (threadCnt <= 1)
+			writer.call();
+		else {
+			final ExecutorService pool = Executors.newFixedThreadPool(threadCnt);
+			boolean ok = false;
+			try {
+				final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+				for (int i = 0; i < threadCnt; i++)
+					futures.add(pool.submit(writer));
+				for (Future<Object> f : futures)
+					waitFor(f);
+				ok = true;
+			} finally {
+				// No writer may still be touching the work tree once
+				// the failure reaches our caller.
+				//
+				if (!ok)
+					writer.abort();
+				pool.shutdownNow();
+				awaitTermination(pool);
+			}
+		}
+
+		for (FileCheckout f : todo)
+			index.setCheckedOut(index.addEntry(f.entry), f.lastModified);
+	}
+
+	private void sortByPackOffset(FileCheckout[] todo) throws IOException {
+		final PackFile[] packs = repo.packs();
+		for (FileCheckout f : todo) {
+			f.pack = packs.length;
+			for (int p = 0; p < packs.length; p++) {
+				final long offset = packs[p].findOffset(f.entry.getId());
+				if (offset >= 0) {
+					f.pack = p;
+					f.offset = offset;
+					break;
+				}
+			}
+		}
+		Arrays.sort(todo, new Comparator<FileCheckout>() {
+			public int compare(FileCheckout a, FileCheckout b) {
+				if (a.pack != b.pack)
+					return a.pack < b.pack ? -1 : 1;
+				if (a.offset != b.offset)
+					return a.offset < b.offset ? -1 : 1;
+				return 0;
+			}
+		});
+	}
+
+	private static void waitFor(Future<Object> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted during checkout");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			final IOException err = new IOException(cause.getMessage());
+			err.initCause(cause);
+			throw err;
+		}
+	}
+
+	private static void awaitTermination(final ExecutorService pool) {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				if (pool.awaitTermination(1, TimeUnit.SECONDS))
+					break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/** A file to write, and where its blob is stored. */
+	private class FileCheckout {
+		final TreeEntry entry;
+
+		final File file;
+
+		int pack;
+
+		long offset;
+
+		long lastModified;
+
+		FileCheckout(TreeEntry entry) {
+			this.entry = entry;
+			this.file = new File(root, entry.getFullName());
+		}
+	}
+
+	/** Writes the next file not yet claimed by another writer. */
+	private class CheckoutTask implements Callable<Object> {
+		private final FileCheckout[] todo;
+
+		private final AtomicInteger next = new AtomicInteger();
+
+		/** Set once any writer fails; the others then stop claiming files. */
+		private volatile boolean aborted;
+
+		CheckoutTask(FileCheckout[] todo) {
+			this.todo = todo;
+		}
+
+		void abort() {
+			aborted = true;
+		}
+
+		public Object call() throws IOException {
+			boolean ok = false;
+			try {
+				int i;
+				while (!aborted && (i = next.getAndIncrement()) < todo.length) {
+					final FileCheckout f = todo[i];
+					f.lastModified = index.checkoutFile(f.file, f.entry
+							.getId(), f.entry.getMode().getBits());
+				}
+				ok = true;
+			} finally {
+				if (!ok)
+					abort();
+			}
+			return null;
+		}
 	}
 
 	private void cleanUpConflicts() throws CheckoutConflictException {
@@ -42,19 +42,35 @@
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 
-/** A queue of commits sorted by commit time order. */
+/**
+ * A queue of commits sorted by commit time order.
+ * <p>
+ * Commits are kept in a binary heap, so adding and removing a commit costs
+ * O(log n) even when thousands of branches are being walked in parallel.
+ * Commits with the same commit time come out in the order they were added.
+ */
 public class DateRevQueue extends AbstractRevQueue {
-	private Entry head;
+	private static final int INIT_SIZE = 64;
+
+	private RevCommit[] heap;
+
+	/** Insertion sequence of each heap slot, to break commit time ties. */
+	private int[] order;
+
+	private int size;
 
-	private Entry free;
+	private int sequence;
 
 	/** Create an empty date queue. */
 	public DateRevQueue() {
 		super();
+		heap = new RevCommit[INIT_SIZE];
+		order = new int[INIT_SIZE];
 	}
 
 	DateRevQueue(final Generator s) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		this();
 		for (;;) {
 			final RevCommit c = s.next();
 			if (c == null)
@@ -64,30 +80,62 @@ public DateRevQueue() {
 	}
 
 	public void add(final RevCommit c) {
-		Entry q = head;
-		final long when = c.commitTime;
-		final Entry n = newEntry(c);
-		if (q == null || when > q.commit.commitTime) {
-			n.next = q;
-			head = n;
-		} else {
-			Entry p = q.next;
-			while (p != null && p.commit.commitTime > when) {
-				q = p;
-				p = q.next;
-			}
-			n.next = q.next;
-			q.next = n;
+		if (size == heap.length)
+			grow();
+
+		// Sift the new commit up from the bottom of the heap.
+		//
+		final int when = c.commitTime;
+		final int seq = sequence++;
+		int i = size++;
+		while (i > 0) {
+			final int parent = (i - 1) >>> 1;
+			final RevCommit p = heap[parent];
+			if (p.commitTime > when
+					|| (p.commitTime == when && order[parent] < seq))
+				break;
+			heap[i] = p;
+			order[i] = order[parent];
+			i = parent;
 		}
+		heap[i] = c;
+		order[i] = seq;
 	}
 
 	public RevCommit next() {
-		final Entry q = head;
-		if (q == null)
+		if (size == 0)
 			return null;
-		head = q.next;
-		freeEntry(q);
-		return q.commit;
+		final RevCommit r = heap[0];
+		final int last = --size;
+		final RevCommit c = heap[last];
+		final int seq = order[last];
+		heap[last] = null;
+		if (last == 0) {
+			sequence = 0;
+			return r;
+		}
+
+		// Sift the former last commit down from the top of the heap.
+		//
+		final int when = c.commitTime;
+		int i = 0;
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= last)
+				break;
+			if (child + 1 < last && before(child + 1, child))
+				child++;
+			final RevCommit b = heap[child];
+			if (when > b.commitTime
+					|| (when == b.commitTime && seq < order[child]))
+				break;
+			heap[i] = b;
+			order[i] = order[child];
+			i = child;
+		}
+		heap[i] = c;
+		order[i] = seq;
+		return r;
 	}
 
 	/**
@@ -96,25 +144,29 @@ public RevCommit next() {
 	 * @return the next available commit; null if there are no commits left.
 	 */
 	public RevCommit peek() {
-		return head != null ? head.commit : null;
+		return size > 0 ? heap[0] : null;
 	}
 
 	public void clear() {
-		head = null;
-		free = null;
+		heap = new RevCommit[INIT_SIZE];
+		order = new int[INIT_SIZE];
+		size = 0;
+		sequence = 0;
 	}
 
 	boolean everbodyHasFlag(final int f) {
-		for (Entry q = head; q != null; q = q.next) {
-			if ((q.commit.flags & f) == 0)
+		final RevCommit[] h = heap;
+		for (int i = size - 1; i >= 0; i--) {
+			if ((h[i].flags & f) == 0)
 				return false;
 		}
 		return true;
 	}
 
 	boolean anybodyHasFlag(final int f) {
-		for (Entry q = head; q != null; q = q.next) {
-			if ((q.commit.flags & f) != 0)
+		final RevCommit[] h = heap;
+		for (int i = size - 1; i >= 0; i--) {
+			if ((h[i].flags & f) != 0)
 				return true;
 		}
 		return false;
@@ -126,34 +178,33 @@ int outputType() {
 	}
 
 	public String toString() {
+		final DateRevQueue q = new DateRevQueue();
+		q.heap = heap.clone();
+		q.order = order.clone();
+		q.size = size;
 		final StringBuffer s = new StringBuffer();
-		for (Entry q = head; q != null; q = q.next) {
-			s.append(q.commit.name());
+		for (RevCommit c; (c = q.next()) != null;) {
+			s.append(c.name());
 			s.append(' ');
-			s.append(q.commit.commitTime);
+			s.append(c.commitTime);
 			s.append('\n');
 		}
 		return s.toString();
 	}
 
-	private Entry newEntry(final RevCommit c) {
-		Entry r = free;
-		if (r == null)
-			r = new Entry();
-		else
-			free = r.next;
-		r.commit = c;
-		return r;
-	}
-
-	private void freeEntry(final Entry e) {
-		e.next = free;
-		free = e;
+	private boolean before(final int a, final int b) {
+		final int ta = heap[a].commitTime;
+		final int tb = heap[b].commitTime;
+		return ta > tb || (ta == tb && order[a] < order[b]);
 	}
 
-	static class Entry {
-		Entry next;
-
-		RevCommit commit;
+	private void grow() {
+		final int n = heap.length * 2;
+		final RevCommit[] h = new RevCommit[n];
+		final int[] o = new int[n];
+		System.arraycopy(heap, 0, h, 0, size);
+		System.arraycopy(order, 0, o, 0, size);
+		heap = h;
+		order = o;
 	}
 }
@@ -357,6 +357,19 @@ public String getPathString() {
 		return fromTreeWalk ? treeWalk.getEntryPathString() : null;
 	}
 
+	/**
+	 * Get the current object's path hash code.
+	 * <p>
+	 * This method computes a hash code on the fly for this path, the hash is
+	 * suitable to cluster objects that may have similar paths together.
+	 * 
+	 * @return path hash code; 0 if the current entry has no path, such as for
+	 *         annotated tags or root level trees.
+	 */
+	public int getPathHashCode() {
+		return fromTreeWalk ? treeWalk.getEntryPathHashCode() : 0;
+	}
+
 	@Override
 	public void dispose() {
 		super.dispose();
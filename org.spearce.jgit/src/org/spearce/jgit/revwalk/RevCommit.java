@@ -42,12 +42,16 @@
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.RevWalkException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectLoader;
 import org.spearce.jgit.lib.PersonIdent;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WindowCursor;
 import org.spearce.jgit.util.RawParseUtils;
 
 /** A commit reference to a commit in the DAG. */
@@ -64,8 +68,14 @@ public class RevCommit extends RevObject {
 
 	int inDegree;
 
+	/** Generation number from the commit-graph; 0 if not known. */
+	int generation;
+
 	private byte[] buffer;
 
+	/** Where to read {@link #buffer} from, if parsed without it. */
+	private Repository bodySource;
+
 	/**
 	 * Create a new commit reference.
 	 * 
@@ -79,13 +89,79 @@ protected RevCommit(final AnyObjectId id) {
 	@Override
 	void parse(final RevWalk walk) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
-		final ObjectLoader ldr = walk.db.openObject(walk.curs, this);
+		final CommitGraph graph = walk.commitGraph;
+		if (graph != null) {
+			final int pos = graph.findPosition(this);
+			if (pos >= 0) {
+				parseGraph(walk, graph, pos);
+				return;
+			}
+		}
+		parseCanonical(walk, readBody(walk.db, walk.curs));
+	}
+
+	private byte[] readBody(final Repository db, final WindowCursor curs)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		final ObjectLoader ldr = db.openObject(curs, this);
 		if (ldr == null)
 			throw new MissingObjectException(this, TYPE_COMMIT);
 		final byte[] data = ldr.getCachedBytes();
 		if (Constants.OBJ_COMMIT != ldr.getType())
 			throw new IncorrectObjectTypeException(this, TYPE_COMMIT);
-		parseCanonical(walk, data);
+		return data;
+	}
+
+	/**
+	 * Parse the headers of this commit from a commit-graph.
+	 * <p>
+	 * The commit object itself is not read. Its body is loaded on demand, by
+	 * the first accessor that needs it.
+	 */
+	void parseGraph(final RevWalk walk, final CommitGraph graph, final int pos) {
+		final MutableObjectId idBuffer = walk.idBuffer;
+		graph.copyTreeId(pos, idBuffer);
+		tree = walk.lookupTree(idBuffer);
+
+		if (parents == null && walk.shallowCommits.get(this) != null)
+			parents = NO_PARENTS;
+		if (parents == null) {
+			final int n = graph.getParentCount(pos);
+			final RevCommit[] pList = n == 0 ? NO_PARENTS : new RevCommit[n];
+			for (int i = 0; i < n; i++) {
+				graph.copyObjectId(graph.getParent(pos, i), idBuffer);
+				pList[i] = walk.lookupCommit(idBuffer);
+			}
+			parents = pList;
+		}
+
+		commitTime = (int) graph.getCommitTime(pos);
+		generation = graph.getGeneration(pos);
+		bodySource = walk.db;
+		flags |= PARSED;
+	}
+
+	void parseBody(final RevWalk walk) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (buffer == null && bodySource != null) {
+			buffer = readBody(walk.db, walk.curs);
+			bodySource = null;
+		}
+	}
+
+	private byte[] body() {
+		if (buffer == null && bodySource != null) {
+			final WindowCursor curs = new WindowCursor();
+			try {
+				buffer = readBody(bodySource, curs);
+				bodySource = null;
+			} catch (IOException e) {
+				throw new RevWalkException(e);
+			} finally {
+				curs.release();
+			}
+		}
+		return buffer;
 	}
 
 	void parseCanonical(final RevWalk walk, final byte[] raw) {
@@ -94,6 +170,8 @@ void parseCanonical(final RevWalk walk, final byte[] raw) {
 		tree = walk.lookupTree(idBuffer);
 
 		int ptr = 46;
+		if (parents == null && walk.shallowCommits.get(this) != null)
+			parents = NO_PARENTS;
 		if (parents == null) {
 			RevCommit[] pList = new RevCommit[1];
 			int nParents = 0;
@@ -202,7 +280,7 @@ public final int getCommitTime() {
 	 * @return parsed commit.
 	 */
 	public final Commit asCommit(final RevWalk walk) {
-		return new Commit(walk.db, this, buffer);
+		return new Commit(walk.db, this, body());
 	}
 
 	/**
@@ -259,12 +337,19 @@ public final RevCommit[] getParents() {
 	 * this buffer should be very careful to ensure they do not modify its
 	 * contents during their use of it.
 	 * 
+	 * <p>
+	 * A commit parsed from a commit-graph reads its body on the first call.
+	 * Use {@link RevWalk#parseBody(RevObject)} to read it with checked
+	 * exceptions instead.
+	 * 
 	 * @return the raw unparsed commit body. This is <b>NOT A COPY</b>.
 	 *         Altering the contents of this buffer may alter the walker's
 	 *         knowledge of this commit, and the results it produces.
+	 * @throws RevWalkException
+	 *             the body had to be read, and could not be.
 	 */
 	public final byte[] getRawBuffer() {
-		return buffer;
+		return body();
 	}
 
 	/**
@@ -286,7 +371,7 @@ public final byte[] getRawBuffer() {
 	 *         made by the author; null if no author line was found.
 	 */
 	public final PersonIdent getAuthorIdent() {
-		final byte[] raw = buffer;
+		final byte[] raw = body();
 		final int nameB = RawParseUtils.author(raw, 0);
 		if (nameB < 0)
 			return null;
@@ -312,7 +397,7 @@ public final PersonIdent getAuthorIdent() {
 	 *         was made by the committer; null if no committer line was found.
 	 */
 	public final PersonIdent getCommitterIdent() {
-		final byte[] raw = buffer;
+		final byte[] raw = body();
 		final int nameB = RawParseUtils.committer(raw, 0);
 		if (nameB < 0)
 			return null;
@@ -330,7 +415,7 @@ public final PersonIdent getCommitterIdent() {
 	 * @return decoded commit message as a string. Never null.
 	 */
 	public final String getFullMessage() {
-		final byte[] raw = buffer;
+		final byte[] raw = body();
 		final int msgB = RawParseUtils.commitMessage(raw, 0);
 		if (msgB < 0)
 			return "";
@@ -354,7 +439,7 @@ public final String getFullMessage() {
 	 *         spanned multiple lines. Embedded LFs are converted to spaces.
 	 */
 	public final String getShortMessage() {
-		final byte[] raw = buffer;
+		final byte[] raw = body();
 		final int msgB = RawParseUtils.commitMessage(raw, 0);
 		if (msgB < 0)
 			return "";
@@ -387,5 +472,6 @@ public void reset() {
 	public void dispose() {
 		flags &= ~PARSED;
 		buffer = null;
+		bodySource = null;
 	}
 }
@@ -40,14 +40,18 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.RevWalkException;
 import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectId;
@@ -155,6 +159,15 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	final MutableObjectId idBuffer;
 
+	/** Source of commit headers; null to always read commit objects. */
+	CommitGraph commitGraph;
+
+	/** Compute generation numbers of commits missing from the graph. */
+	private boolean computeGenerations;
+
+	/** Commits walked as roots, as their parents are not available. */
+	final ObjectIdSubclassMap<ObjectId> shallowCommits;
+
 	private final ObjectIdSubclassMap<RevObject> objects;
 
 	private int freeFlags = APP_FLAGS;
@@ -185,6 +198,7 @@ public RevWalk(final Repository repo) {
 		db = repo;
 		curs = new WindowCursor();
 		idBuffer = new MutableObjectId();
+		commitGraph = repo.getCommitGraph();
 		objects = new ObjectIdSubclassMap<RevObject>();
 		roots = new ArrayList<RevCommit>();
 		queue = new FIFORevQueue();
@@ -192,6 +206,12 @@ public RevWalk(final Repository repo) {
 		sorting = EnumSet.of(RevSort.NONE);
 		filter = RevFilter.ALL;
 		treeFilter = TreeFilter.ALL;
+		shallowCommits = new ObjectIdSubclassMap<ObjectId>();
+		try {
+			assumeShallow(repo.getShallowCommits());
+		} catch (IOException e) {
+			throw new RevWalkException(e);
+		}
 	}
 
 	/**
@@ -321,6 +341,9 @@ public void markUninteresting(final RevCommit c)
 	 * commits, and then executes a walk until an answer can be obtained.
 	 * Currently allocated RevFlags that have been added to RevCommit instances
 	 * will be retained through the reset.
+	 * <p>
+	 * If the generation number of <code>base</code> is known the walk stops
+	 * at commits of a lower generation, which cannot reach it.
 	 * 
 	 * @param base
 	 *            commit the caller thinks is reachable from <code>tip</code>.
@@ -343,6 +366,12 @@ public void markUninteresting(final RevCommit c)
 	public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 			throws MissingObjectException, IncorrectObjectTypeException,
 			IOException {
+		if (generationOf(base) != 0) {
+			final List<RevCommit> r = new ArrayList<RevCommit>(1);
+			r.add(base);
+			return !selectMergedInto(r, tip).isEmpty();
+		}
+
 		final RevFilter oldRF = filter;
 		final TreeFilter oldTF = treeFilter;
 		try {
@@ -359,6 +388,187 @@ public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 		}
 	}
 
+	/**
+	 * Determine which of several commits are reachable from another commit.
+	 * <p>
+	 * This is the batch form of {@link #isMergedInto(RevCommit, RevCommit)}.
+	 * All candidates are answered by a single walk from <code>tip</code>,
+	 * which ends as soon as every candidate was found.
+	 * <p>
+	 * If generation numbers are known (see
+	 * {@link #setComputeGenerations(boolean)}) the walk does not descend
+	 * below the lowest generation of the candidates not yet found, as no
+	 * commit there can reach them. Without generation numbers a candidate
+	 * that is not merged causes the entire history of <code>tip</code> to
+	 * be walked.
+	 * <p>
+	 * This utility function resets the walker before it starts. Currently
+	 * allocated RevFlags that have been added to RevCommit instances will be
+	 * retained through the reset.
+	 *
+	 * @param bases
+	 *            commits the caller thinks may be reachable from
+	 *            <code>tip</code>.
+	 * @param tip
+	 *            commit to start iteration from.
+	 * @return the commits of <code>bases</code> that are reachable from
+	 *         <code>tip</code>, in the order given. Duplicates are reported
+	 *         once.
+	 * @throws MissingObjectException
+	 *             one or or more of the next commit's parents are not available
+	 *             from the object database, but were thought to be candidates
+	 *             for traversal. This usually indicates a broken link.
+	 * @throws IncorrectObjectTypeException
+	 *             one or or more of the next commit's parents are not actually
+	 *             commit objects.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public List<RevCommit> selectMergedInto(final Collection<RevCommit> bases,
+			final RevCommit tip) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		finishDelayedFreeFlags();
+		reset(~freeFlags & APP_FLAGS);
+
+		final List<RevCommit> want = new ArrayList<RevCommit>(bases.size());
+		for (final RevCommit b : bases) {
+			if ((b.flags & TEMP_MARK) == 0) {
+				b.flags |= TEMP_MARK;
+				roots.add(b);
+				want.add(b);
+			}
+		}
+
+		// Candidates are found in any order, but the lowest generation
+		// still wanted bounds the walk. Unknown generations sort first
+		// and disable the bound until they are found.
+		//
+		final RevCommit[] byGen = want.toArray(new RevCommit[want.size()]);
+		for (final RevCommit b : byGen)
+			generationOf(b);
+		Arrays.sort(byGen, new Comparator<RevCommit>() {
+			public int compare(final RevCommit a, final RevCommit b) {
+				return a.generation < b.generation ? -1
+						: a.generation == b.generation ? 0 : 1;
+			}
+		});
+		int lowest = 0;
+		int remaining = byGen.length;
+
+		final DateRevQueue q = new DateRevQueue();
+		if ((tip.flags & PARSED) == 0)
+			tip.parse(this);
+		tip.flags |= SEEN;
+		roots.add(tip);
+		q.add(tip);
+
+		while (remaining > 0) {
+			final RevCommit c = q.next();
+			if (c == null)
+				break;
+
+			if ((c.flags & TEMP_MARK) != 0) {
+				c.flags |= REWRITE;
+				remaining--;
+				while (lowest < byGen.length
+						&& (byGen[lowest].flags & REWRITE) != 0)
+					lowest++;
+				if (remaining == 0)
+					break;
+			}
+
+			final int gen = generationOf(c);
+			if (gen != 0 && gen < byGen[lowest].generation)
+				continue;
+
+			for (final RevCommit p : c.parents) {
+				if ((p.flags & SEEN) != 0)
+					continue;
+				if ((p.flags & PARSED) == 0)
+					p.parse(this);
+				p.flags |= SEEN;
+				q.add(p);
+			}
+		}
+		curs.release();
+
+		final List<RevCommit> r = new ArrayList<RevCommit>();
+		for (final RevCommit b : want) {
+			if ((b.flags & REWRITE) != 0)
+				r.add(b);
+		}
+		return r;
+	}
+
+	/**
+	 * Get the generation number of a commit, computing it if necessary.
+	 * <p>
+	 * The generation of a root commit is 1, of any other commit one more than
+	 * the highest generation of its parents. Numbers are taken from the
+	 * commit-graph when it has the commit, otherwise computed from the
+	 * parents and cached in the commit.
+	 *
+	 * @param c
+	 *            the commit.
+	 * @return generation of the commit; 0 if not known, because the walker
+	 *         neither has a commit-graph nor computes generations.
+	 * @throws MissingObjectException
+	 *             an ancestor of the commit is missing.
+	 * @throws IncorrectObjectTypeException
+	 *             a parent of the commit is not actually a commit.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	int generationOf(final RevCommit c) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (c.generation != 0 || graphGeneration(c) != 0)
+			return c.generation;
+		if (commitGraph == null && !computeGenerations)
+			return 0;
+
+		RevCommit[] stack = new RevCommit[16];
+		int sp = 0;
+		stack[sp++] = c;
+		while (sp > 0) {
+			final RevCommit t = stack[sp - 1];
+			if (t.generation != 0) {
+				sp--;
+				continue;
+			}
+			if ((t.flags & PARSED) == 0)
+				t.parse(this);
+
+			int max = 0;
+			boolean ready = true;
+			for (final RevCommit p : t.parents) {
+				if (p.generation == 0 && graphGeneration(p) == 0) {
+					if (sp == stack.length) {
+						final RevCommit[] n = new RevCommit[sp * 2];
+						System.arraycopy(stack, 0, n, 0, sp);
+						stack = n;
+					}
+					stack[sp++] = p;
+					ready = false;
+				} else if (max < p.generation)
+					max = p.generation;
+			}
+			if (ready) {
+				t.generation = Math.min(max + 1, CommitGraph.GENERATION_MAX);
+				sp--;
+			}
+		}
+		return c.generation;
+	}
+
+	private int graphGeneration(final RevCommit c) {
+		if (commitGraph != null) {
+			final int pos = commitGraph.findPosition(c);
+			if (pos >= 0)
+				c.generation = commitGraph.getGeneration(pos);
+		}
+		return c.generation;
+	}
+
 	/**
 	 * Pop the next most recent commit.
 	 * 
@@ -665,8 +875,9 @@ else if (!(c instanceof RevTree))
 	 * <p>
 	 * This method only returns successfully if the object exists and was parsed
 	 * without error. Parsing an object can be expensive as the type must be
-	 * determined. For blobs this may mean the blob content was unpacked
-	 * unnecessarily, and thrown away.
+	 * determined. Only commits and tags have their content unpacked; trees
+	 * and blobs are typed from their object headers alone. Commits covered
+	 * by the commit-graph are not read at all.
 	 * 
 	 * @param id
 	 *            name of the object.
@@ -679,16 +890,24 @@ else if (!(c instanceof RevTree))
 	public RevObject parseAny(final AnyObjectId id)
 			throws MissingObjectException, IOException {
 		RevObject r = objects.get(id);
+		if (r == null && commitGraph != null) {
+			final int pos = commitGraph.findPosition(id);
+			if (pos >= 0) {
+				final RevCommit c = createCommit(id);
+				c.parseGraph(this, commitGraph, pos);
+				objects.add(c);
+				return c;
+			}
+		}
 		if (r == null) {
 			final ObjectLoader ldr = db.openObject(curs, id);
 			if (ldr == null)
 				throw new MissingObjectException(id.toObjectId(), "unknown");
-			final byte[] data = ldr.getCachedBytes();
 			final int type = ldr.getType();
 			switch (type) {
 			case Constants.OBJ_COMMIT: {
 				final RevCommit c = createCommit(id);
-				c.parseCanonical(this, data);
+				c.parseCanonical(this, ldr.getCachedBytes());
 				r = c;
 				break;
 			}
@@ -704,7 +923,7 @@ public RevObject parseAny(final AnyObjectId id)
 			}
 			case Constants.OBJ_TAG: {
 				final RevTag t = new RevTag(id);
-				t.parseCanonical(this, data);
+				t.parseCanonical(this, ldr.getCachedBytes());
 				r = t;
 				break;
 			}
@@ -737,6 +956,84 @@ public void parse(final RevObject obj) throws MissingObjectException,
 		obj.parse(this);
 	}
 
+	/**
+	 * Ensure the object's content has been parsed, including the body.
+	 * <p>
+	 * Commits parsed from the repository's commit-graph know their tree,
+	 * parents and commit time, but read their message and identities from
+	 * the object store on first use. This method reads them up front.
+	 *
+	 * @param obj
+	 *            the object the caller needs to be fully parsed.
+	 * @throws MissingObjectException
+	 *             the supplied does not exist.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void parseBody(final RevObject obj) throws MissingObjectException,
+			IOException {
+		parse(obj);
+		if (obj instanceof RevCommit)
+			((RevCommit) obj).parseBody(this);
+	}
+
+	/**
+	 * Enable or disable parsing commits from the commit-graph.
+	 * <p>
+	 * By default the repository's commit-graph is used if it has one.
+	 * Commits already parsed are not affected.
+	 *
+	 * @param use
+	 *            true to take commit headers from the commit-graph; false to
+	 *            always read the commit objects.
+	 * @see Repository#getCommitGraph()
+	 */
+	public void setUseCommitGraph(final boolean use) {
+		commitGraph = use ? db.getCommitGraph() : null;
+	}
+
+	/**
+	 * Treat commits as roots of the history, ignoring their parents.
+	 * <p>
+	 * The commits listed in the repository's shallow file are assumed to be
+	 * shallow when the walker is created. Additional commits can be cut off
+	 * here, for example to bound a pack to the history a shallow client
+	 * will have. The graft lasts for the lifetime of the walker.
+	 *
+	 * @param ids
+	 *            commits whose parents should not be walked.
+	 * @see Repository#getShallowCommits()
+	 */
+	public void assumeShallow(final Collection<? extends ObjectId> ids) {
+		for (final ObjectId id : ids) {
+			if (shallowCommits.get(id) == null)
+				shallowCommits.add(id.copy());
+			final RevObject o = objects.get(id);
+			if (o instanceof RevCommit)
+				((RevCommit) o).parents = RevCommit.NO_PARENTS;
+		}
+	}
+
+	/**
+	 * Enable or disable computing generation numbers.
+	 * <p>
+	 * Generation numbers let {@link #isMergedInto(RevCommit, RevCommit)} and
+	 * {@link #selectMergedInto(Collection, RevCommit)} stop walking early.
+	 * They are always read from the commit-graph if there is one, and
+	 * commits newer than the graph are computed from it cheaply.
+	 * <p>
+	 * Without a commit-graph a generation number can only be computed by
+	 * walking the entire history of the commit. This is worth it if many
+	 * queries are run through the same walker, as every computed number is
+	 * kept until the walker is disposed. By default it is disabled.
+	 *
+	 * @param compute
+	 *            true to compute generation numbers not in the commit-graph.
+	 */
+	public void setComputeGenerations(final boolean compute) {
+		computeGenerations = compute;
+	}
+
 	/**
 	 * Create a new flag for application use during walking.
 	 * <p>
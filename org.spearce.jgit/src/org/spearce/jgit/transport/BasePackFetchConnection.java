@@ -41,8 +41,10 @@
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
 
+import org.spearce.jgit.errors.PackProtocolException;
 import org.spearce.jgit.errors.TransportException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.MutableObjectId;
@@ -126,10 +128,19 @@ abstract class BasePackFetchConnection extends BasePackConnection implements
 
 	private boolean includeTags;
 
+	/** Number of commits to fetch from each want; 0 for all history. */
+	private final int depth;
+
+	/** Local shallow commits, updated by the peer's shallow response. */
+	private Set<ObjectId> shallowCommits;
+
+	private boolean shallowChanged;
+
 	BasePackFetchConnection(final PackTransport packTransport) {
 		super(packTransport);
 		includeTags = packTransport.getTagOpt() != TagOpt.NO_TAGS;
 		thinPack = packTransport.isFetchThin();
+		depth = packTransport.getDepth();
 
 		walk = new RevWalk(local);
 		reachableCommits = new RevCommitList<RevCommit>();
@@ -161,10 +172,13 @@ protected void doFetch(final ProgressMonitor monitor,
 			final Collection<Ref> want, final Set<ObjectId> have)
 			throws TransportException {
 		try {
+			shallowCommits = new HashSet<ObjectId>(local.getShallowCommits());
 			markRefsAdvertised();
 			markReachable(have, maxTimeWanted(want));
 
 			if (sendWants(want)) {
+				if (depth > 0)
+					readShallowUpdates();
 				negotiate(monitor);
 
 				walk.dispose();
@@ -252,7 +266,8 @@ private boolean sendWants(final Collection<Ref> want) throws IOException {
 		boolean first = true;
 		for (final Ref r : want) {
 			try {
-				if (walk.parseAny(r.getObjectId()).has(REACHABLE)) {
+				if (depth == 0
+						&& walk.parseAny(r.getObjectId()).has(REACHABLE)) {
 					// We already have this object. Asking for it is
 					// not a very good idea.
 					//
@@ -273,11 +288,36 @@ private boolean sendWants(final Collection<Ref> want) throws IOException {
 			line.append('\n');
 			pckOut.writeString(line.toString());
 		}
+		if (!first && isCapableOf(OPTION_SHALLOW)) {
+			for (final ObjectId id : shallowCommits)
+				pckOut.writeString("shallow " + id.name() + "\n");
+			if (depth > 0)
+				pckOut.writeString("deepen " + depth + "\n");
+		} else if (!first && depth > 0)
+			throw new TransportException(uri,
+					"remote does not support shallow fetch");
 		pckOut.end();
 		outNeedsEnd = false;
 		return !first;
 	}
 
+	private void readShallowUpdates() throws IOException {
+		for (;;) {
+			final String line = pckIn.readString();
+			if (line.length() == 0)
+				break;
+			if (line.startsWith("shallow ") && line.length() == 48)
+				shallowChanged |= shallowCommits.add(ObjectId
+						.fromString(line.substring(8)));
+			else if (line.startsWith("unshallow ") && line.length() == 50)
+				shallowChanged |= shallowCommits.remove(ObjectId
+						.fromString(line.substring(10)));
+			else
+				throw new PackProtocolException(uri, "expected shallow; got "
+						+ line);
+		}
+	}
+
 	private String enableCapabilities() {
 		final StringBuilder line = new StringBuilder();
 		if (includeTags)
@@ -478,6 +518,8 @@ private void receivePack(final ProgressMonitor monitor) throws IOException {
 		ip.setObjectChecking(transport.isCheckFetchedObjects());
 		ip.index(monitor);
 		ip.renameAndOpenPack();
+		if (shallowChanged)
+			local.setShallowCommits(shallowCommits);
 	}
 
 	private static class CancelledException extends Exception {
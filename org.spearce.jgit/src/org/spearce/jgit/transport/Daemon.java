@@ -42,26 +42,58 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.PersonIdent;
 import org.spearce.jgit.lib.Repository;
-
-/** Basic daemon for the anonymous <code>git://</code> transport protocol. */
+import org.spearce.jgit.lib.RepositoryCache;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Basic daemon for the anonymous <code>git://</code> transport protocol.
+ * <p>
+ * Connections are accepted on a single selector thread, which also reads each
+ * client's request line without blocking. Only once the request is complete is
+ * the connection handed to a bounded pool of worker threads to run the
+ * service. Connections beyond {@link #getMaxConnections()} active plus
+ * {@link #getMaxQueuedConnections()} waiting are closed immediately.
+ */
 public class Daemon {
 	/** 9418: IANA assigned port number for Git. */
 	public static final int DEFAULT_PORT = 9418;
 
-	private static final int BACKLOG = 5;
+	/** Default number of clients served concurrently. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+	/** Default number of clients admitted beyond the active ones. */
+	public static final int DEFAULT_MAX_QUEUED_CONNECTIONS = 128;
+
+	private static final int BACKLOG = 50;
+
+	/** Longest request line permitted by the pkt-line format. */
+	private static final int MAX_REQUEST = 65520;
 
 	private InetSocketAddress myAddress;
 
@@ -79,6 +111,27 @@ public class Daemon {
 
 	private Thread acceptThread;
 
+	private Selector selector;
+
+	private ExecutorService workers;
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	private int maxQueued = DEFAULT_MAX_QUEUED_CONNECTIONS;
+
+	private int initTimeout;
+
+	/** Connections still sending their request; selector thread only. */
+	private int negotiating;
+
+	private final AtomicInteger negotiatingCount = new AtomicInteger();
+
+	private final AtomicInteger queuedCount = new AtomicInteger();
+
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
 	/** Configure a daemon to listen on any available network port. */
 	public Daemon() {
 		this(null);
@@ -182,6 +235,92 @@ public synchronized void setExportAll(final boolean export) {
 		exportAll = export;
 	}
 
+	/** @return maximum number of clients served at the same time. */
+	public synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Set the maximum number of clients served at the same time.
+	 * <p>
+	 * This is also the number of worker threads. It must be configured before
+	 * the daemon is started.
+	 *
+	 * @param max
+	 *            number of concurrently served clients; must be at least 1.
+	 */
+	public synchronized void setMaxConnections(final int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("Invalid max connections " + max);
+		if (acceptThread != null)
+			throw new IllegalStateException("Daemon already running");
+		maxConnections = max;
+	}
+
+	/** @return maximum number of admitted clients not yet being served. */
+	public synchronized int getMaxQueuedConnections() {
+		return maxQueued;
+	}
+
+	/**
+	 * Set the maximum number of admitted clients not yet being served.
+	 * <p>
+	 * This includes clients still sending their request, as well as clients
+	 * waiting for a worker thread. Further connections are closed as soon as
+	 * they are accepted.
+	 *
+	 * @param max
+	 *            number of waiting clients; 0 to only admit clients which can
+	 *            be served immediately.
+	 */
+	public synchronized void setMaxQueuedConnections(final int max) {
+		if (max < 0)
+			throw new IllegalArgumentException("Invalid max queued " + max);
+		maxQueued = max;
+	}
+
+	/** @return seconds a client has to send its request; 0 for no limit. */
+	public synchronized int getInitTimeout() {
+		return initTimeout;
+	}
+
+	/**
+	 * Set the time a client has to send its request after connecting.
+	 *
+	 * @param seconds
+	 *            number of seconds; 0 to wait forever.
+	 */
+	public synchronized void setInitTimeout(final int seconds) {
+		initTimeout = seconds;
+	}
+
+	/** @return number of clients currently being served by a service. */
+	public int getActiveConnections() {
+		return activeCount.get();
+	}
+
+	/** @return number of clients waiting for a worker thread. */
+	public int getQueuedConnections() {
+		return queuedCount.get();
+	}
+
+	/** @return number of connected clients still sending their request. */
+	public int getNegotiatingConnections() {
+		return negotiatingCount.get();
+	}
+
+	/**
+	 * @return number of connections closed because the daemon or the
+	 *         requested service was at its connection limit.
+	 */
+	public long getRejectedConnections() {
+		return rejectedCount.get();
+	}
+
+	void rejected() {
+		rejectedCount.incrementAndGet();
+	}
+
 	/**
 	 * Add a single repository to the set that is exported by this daemon.
 	 * <p>
@@ -225,31 +364,53 @@ public synchronized void start() throws IOException {
 		if (acceptThread != null)
 			throw new IllegalStateException("Daemon already running");
 
-		final ServerSocket listenSock = new ServerSocket(
-				myAddress != null ? myAddress.getPort() : 0, BACKLOG,
-				myAddress != null ? myAddress.getAddress() : null);
-		myAddress = (InetSocketAddress) listenSock.getLocalSocketAddress();
+		final ServerSocketChannel listen = ServerSocketChannel.open();
+		try {
+			listen.socket().bind(
+					myAddress != null ? myAddress : new InetSocketAddress(0),
+					BACKLOG);
+			listen.configureBlocking(false);
+			selector = Selector.open();
+			listen.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException err) {
+			listen.close();
+			if (selector != null) {
+				selector.close();
+				selector = null;
+			}
+			throw err;
+		}
+		myAddress = (InetSocketAddress) listen.socket().getLocalSocketAddress();
+
+		final AtomicInteger workerId = new AtomicInteger();
+		workers = new ThreadPoolExecutor(maxConnections, maxConnections, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final String n = "Git-Daemon-Worker-"
+								+ workerId.incrementAndGet();
+						final Thread t = new Thread(processors, r, n);
+						t.setDaemon(true);
+						return t;
+					}
+				});
 
 		run = true;
+		final Selector sel = selector;
+		final ExecutorService pool = workers;
 		acceptThread = new Thread(processors, "Git-Daemon-Accept") {
 			public void run() {
-				while (isRunning()) {
-					try {
-						startClient(listenSock.accept());
-					} catch (InterruptedIOException e) {
-						// Test again to see if we should keep accepting.
-					} catch (IOException e) {
-						break;
-					}
-				}
-
 				try {
-					listenSock.close();
-				} catch (IOException err) {
-					//
+					selectLoop(sel, listen, pool);
 				} finally {
+					closeAll(sel, listen);
+					pool.shutdown();
 					synchronized (Daemon.this) {
 						acceptThread = null;
+						if (selector == sel)
+							selector = null;
+						if (workers == pool)
+							workers = null;
 					}
 				}
 			}
@@ -262,43 +423,253 @@ public synchronized boolean isRunning() {
 		return run;
 	}
 
-	/** Stop this daemon. */
+	/**
+	 * Stop this daemon.
+	 * <p>
+	 * No new connections are accepted. Clients already being served are
+	 * permitted to finish.
+	 */
 	public synchronized void stop() {
 		if (acceptThread != null) {
 			run = false;
-			acceptThread.interrupt();
+			selector.wakeup();
 		}
 	}
 
-	private void startClient(final Socket s) {
-		final DaemonClient dc = new DaemonClient(this);
+	private void selectLoop(final Selector sel,
+			final ServerSocketChannel listen, final ExecutorService pool) {
+		final List<PendingClient> ready = new ArrayList<PendingClient>();
+		while (isRunning()) {
+			try {
+				sel.select(1000);
+			} catch (IOException e) {
+				break;
+			}
 
+			final Iterator<SelectionKey> i = sel.selectedKeys().iterator();
+			while (i.hasNext()) {
+				final SelectionKey key = i.next();
+				i.remove();
+				if (!key.isValid())
+					continue;
+
+				if (key.isAcceptable())
+					accept(sel, listen);
+				else if (key.isReadable()) {
+					final PendingClient pc = (PendingClient) key.attachment();
+					if (pc.read()) {
+						key.cancel();
+						ready.add(pc);
+					} else if (pc.isClosed())
+						key.cancel();
+				}
+			}
+			expire(sel);
+
+			if (!ready.isEmpty()) {
+				try {
+					// Deregister the cancelled keys, so the channels can
+					// be switched back to blocking mode for the workers.
+					sel.selectNow();
+				} catch (IOException e) {
+					break;
+				}
+				for (final PendingClient pc : ready)
+					dispatch(pc, pool);
+				ready.clear();
+			}
+		}
+	}
+
+	private void accept(final Selector sel, final ServerSocketChannel listen) {
+		final SocketChannel ch;
+		try {
+			ch = listen.accept();
+		} catch (IOException e) {
+			return;
+		}
+		if (ch == null)
+			return;
+
+		final int admitted = negotiating + queuedCount.get()
+				+ activeCount.get();
+		if (getMaxConnections() + getMaxQueuedConnections() <= admitted) {
+			rejected();
+			close(ch);
+			return;
+		}
+
+		try {
+			ch.configureBlocking(false);
+			final PendingClient pc = new PendingClient(ch);
+			ch.register(sel, SelectionKey.OP_READ, pc);
+			negotiating++;
+			negotiatingCount.set(negotiating);
+		} catch (IOException e) {
+			close(ch);
+		}
+	}
+
+	private void expire(final Selector sel) {
+		final int timeout = getInitTimeout();
+		if (timeout <= 0)
+			return;
+		final long limit = System.currentTimeMillis() - timeout * 1000L;
+		for (final SelectionKey key : sel.keys()) {
+			if (key.attachment() instanceof PendingClient) {
+				final PendingClient pc = (PendingClient) key.attachment();
+				if (key.isValid() && pc.connected < limit) {
+					key.cancel();
+					pc.close();
+				}
+			}
+		}
+	}
+
+	private void dispatch(final PendingClient pc, final ExecutorService pool) {
+		final Socket s = pc.channel.socket();
+		final DaemonClient dc = new DaemonClient(this);
 		final SocketAddress peer = s.getRemoteSocketAddress();
 		if (peer instanceof InetSocketAddress)
 			dc.setRemoteAddress(((InetSocketAddress) peer).getAddress());
 
-		new Thread(processors, "Git-Daemon-Client " + peer.toString()) {
+		try {
+			pc.channel.configureBlocking(true);
+		} catch (IOException e) {
+			pc.close();
+			return;
+		}
+
+		pc.negotiated();
+		queuedCount.incrementAndGet();
+		pool.execute(new Runnable() {
 			public void run() {
+				queuedCount.decrementAndGet();
+				activeCount.incrementAndGet();
 				try {
-					dc.execute(new BufferedInputStream(s.getInputStream()),
-							new BufferedOutputStream(s.getOutputStream()));
+					dc.execute(pc.request, new BufferedInputStream(s
+							.getInputStream()), new BufferedOutputStream(s
+							.getOutputStream()));
 				} catch (IOException e) {
 					// Ignore unexpected IO exceptions from clients
 					e.printStackTrace();
 				} finally {
-					try {
-						s.getInputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
+					activeCount.decrementAndGet();
+					close(pc.channel);
+				}
+			}
+		});
+	}
+
+	private void closeAll(final Selector sel, final ServerSocketChannel listen) {
+		for (final SelectionKey key : sel.keys()) {
+			if (key.attachment() instanceof PendingClient)
+				((PendingClient) key.attachment()).close();
+		}
+		try {
+			sel.close();
+		} catch (IOException err) {
+			// Ignore close exceptions
+		}
+		close(listen);
+	}
+
+	private static void close(final java.nio.channels.Channel ch) {
+		try {
+			ch.close();
+		} catch (IOException e) {
+			// Ignore close exceptions
+		}
+	}
+
+	/**
+	 * A connected client still sending its request line.
+	 * <p>
+	 * Only the selector thread touches instances of this class.
+	 */
+	private class PendingClient {
+		final SocketChannel channel;
+
+		final long connected = System.currentTimeMillis();
+
+		private final ByteBuffer hdr = ByteBuffer.allocate(4);
+
+		private ByteBuffer body;
+
+		private boolean closed;
+
+		String request;
+
+		PendingClient(final SocketChannel ch) {
+			channel = ch;
+		}
+
+		/**
+		 * Read whatever is available of the request.
+		 *
+		 * @return true once the complete request line has been read.
+		 */
+		boolean read() {
+			try {
+				if (body == null) {
+					if (channel.read(hdr) < 0) {
+						close();
+						return false;
 					}
-					try {
-						s.getOutputStream().close();
-					} catch (IOException e) {
-						// Ignore close exceptions
+					if (hdr.hasRemaining())
+						return false;
+
+					final int len = parseLength();
+					if (len <= 4 || MAX_REQUEST < len) {
+						close();
+						return false;
 					}
+					body = ByteBuffer.allocate(len - 4);
+				}
+
+				if (channel.read(body) < 0) {
+					close();
+					return false;
 				}
+				if (body.hasRemaining())
+					return false;
+
+				request = RawParseUtils.decode(Constants.CHARSET, body.array(),
+						0, body.capacity());
+				return true;
+			} catch (IOException e) {
+				close();
+				return false;
 			}
-		}.start();
+		}
+
+		private int parseLength() {
+			int len = 0;
+			for (int i = 0; i < 4; i++) {
+				final int d = Character.digit((char) hdr.get(i), 16);
+				if (d < 0)
+					return -1;
+				len = (len << 4) | d;
+			}
+			return len;
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		void negotiated() {
+			negotiating--;
+			negotiatingCount.set(negotiating);
+		}
+
+		void close() {
+			if (!closed) {
+				closed = true;
+				negotiated();
+				Daemon.close(channel);
+			}
+		}
 	}
 
 	synchronized DaemonService matchService(final String cmd) {
@@ -335,12 +706,12 @@ Repository openRepository(String name) {
 		Repository db;
 		synchronized (exports) {
 			db = exports.get(name);
-			if (db != null)
-				return db;
-
-			db = exports.get(name + ".git");
-			if (db != null)
+			if (db == null)
+				db = exports.get(name + ".git");
+			if (db != null) {
+				db.incrementOpen();
 				return db;
+			}
 		}
 
 		final File[] search;
@@ -366,7 +737,7 @@ Repository openRepository(String name) {
 	private Repository openRepository(final File d) {
 		if (d.isDirectory() && canExport(d)) {
 			try {
-				return new Repository(d);
+				return RepositoryCache.open(d);
 			} catch (IOException err) {
 				// Ignore
 			}
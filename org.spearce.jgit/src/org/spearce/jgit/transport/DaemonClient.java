@@ -80,12 +80,11 @@ public OutputStream getOutputStream() {
 		return rawOut;
 	}
 
-	void execute(final InputStream in, final OutputStream out)
+	void execute(String cmd, final InputStream in, final OutputStream out)
 			throws IOException {
 		rawIn = in;
 		rawOut = out;
 
-		String cmd = new PacketLineIn(rawIn).readStringNoLF();
 		if (cmd == null || cmd.length() == 0)
 			return;
 
@@ -38,6 +38,7 @@
 package org.spearce.jgit.transport;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.lib.Repository;
 
@@ -51,6 +52,10 @@ public abstract class DaemonService {
 
 	private boolean overridable;
 
+	private volatile int maxConnections;
+
+	private final AtomicInteger active = new AtomicInteger();
+
 	protected DaemonService(final String cmdName, final String cfgName) {
 		command = cmdName.startsWith("git-") ? cmdName : "git-" + cmdName;
 		config = cfgName;
@@ -84,6 +89,30 @@ public void setOverridable(final boolean on) {
 		overridable = on;
 	}
 
+	/** @return maximum concurrent clients of this service; 0 if unlimited. */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Limit the number of clients using this service at the same time.
+	 * <p>
+	 * Clients requesting the service while it is at its limit are
+	 * disconnected, leaving the daemon's workers free for other services.
+	 *
+	 * @param max
+	 *            maximum number of concurrent clients; 0 for no limit beyond
+	 *            the daemon's own.
+	 */
+	public void setMaxConnections(final int max) {
+		maxConnections = max;
+	}
+
+	/** @return number of clients currently using this service. */
+	public int getActiveConnections() {
+		return active.get();
+	}
+
 	/** @return name of the command requested by clients. */
 	public String getCommandName() {
 		return command;
@@ -108,11 +137,26 @@ void execute(final DaemonClient client, final String commandLine)
 		final Repository db = client.getDaemon().openRepository(name);
 		if (db == null)
 			return;
-		boolean on = isEnabled();
-		if (isOverridable())
-			on = db.getConfig().getBoolean("daemon", config, on);
-		if (on)
-			execute(client, db);
+		try {
+			boolean on = isEnabled();
+			if (isOverridable())
+				on = db.getConfig().getBoolean("daemon", config, on);
+			if (!on)
+				return;
+
+			final int max = maxConnections;
+			final int n = active.incrementAndGet();
+			try {
+				if (0 < max && max < n)
+					client.getDaemon().rejected();
+				else
+					execute(client, db);
+			} finally {
+				active.decrementAndGet();
+			}
+		} finally {
+			db.close();
+		}
 	}
 
 	protected abstract void execute(DaemonClient client, Repository db)
@@ -118,7 +118,8 @@ else if (tagopt == TagOpt.FETCH_TAGS)
 				expandFetchTags();
 
 			final boolean includedTags;
-			if (!askFor.isEmpty() && !askForIsComplete()) {
+			if (!askFor.isEmpty()
+					&& (transport.getDepth() > 0 || !askForIsComplete())) {
 				fetchObjects(monitor);
 				includedTags = conn.didFetchIncludeTags();
 
@@ -342,9 +343,12 @@ private void want(final Ref src, final RefSpec spec)
 		if (spec.getDestination() != null) {
 			try {
 				final TrackingRefUpdate tru = createUpdate(spec, newId);
-				if (newId.equals(tru.getOldObjectId()))
-					return;
-				localUpdates.add(tru);
+				if (newId.equals(tru.getOldObjectId())) {
+					// Up to date, unless its history is to be deepened.
+					if (transport.getDepth() == 0)
+						return;
+				} else
+					localUpdates.add(tru);
 			} catch (IOException err) {
 				// Bad symbolic ref? That is the most likely cause.
 				//
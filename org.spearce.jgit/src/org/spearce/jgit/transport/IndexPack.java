@@ -43,12 +43,20 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -61,6 +69,7 @@
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.InflaterCache;
 import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectIdMap;
@@ -68,6 +77,7 @@
 import org.spearce.jgit.lib.PackIndexWriter;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.ThreadSafeProgressMonitor;
 import org.spearce.jgit.lib.WindowCursor;
 import org.spearce.jgit.util.NB;
 
@@ -90,6 +100,15 @@ public class IndexPack {
 	 */
 	public static final int BUFFER_SIZE = 8192;
 
+	/**
+	 * Maximum number of inflated bytes held on behalf of other threads.
+	 * <p>
+	 * Whole objects waiting to be hashed, and delta bases shared by sibling
+	 * deltas resolved on different threads, are charged against this limit.
+	 * Work which does not fit is done on the current thread instead.
+	 */
+	private static final long SHARED_DATA_LIMIT = 32 * 1024 * 1024;
+
 	/**
 	 * Create an index pack instance to load a new pack into a repository.
 	 * <p>
@@ -118,6 +137,7 @@ public static IndexPack create(final Repository db, final InputStream is)
 		base = new File(objdir, n.substring(0, n.length() - suffix.length()));
 		final IndexPack ip = new IndexPack(db, is, base);
 		ip.setIndexVersion(db.getConfig().getCore().getPackIndexVersion());
+		ip.setThreads(db.getConfig().getPack().getThreads());
 		return ip;
 	}
 
@@ -178,6 +198,27 @@ public static IndexPack create(final Repository db, final InputStream is)
 
 	private WindowCursor readCurs;
 
+	private int threads;
+
+	/** Pool computing object names; null when running on one thread. */
+	private ExecutorService pool;
+
+	/** Tasks submitted to {@link #pool} which have not yet finished. */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/** Inflated bytes currently held by queued or shared work. */
+	private final AtomicLong sharedBytes = new AtomicLong();
+
+	/** First error thrown by a task running in {@link #pool}. */
+	private volatile Throwable failure;
+
+	/** Guards {@link #baseById}, {@link #baseByPos} and {@link #entries}. */
+	private final Object resolveLock = new Object();
+
+	private ThreadLocal<Resolver> resolvers;
+
+	private List<Resolver> allResolvers;
+
 	/**
 	 * Create a new pack indexer utility.
 	 * 
@@ -226,6 +267,20 @@ public void setIndexVersion(final int version) {
 		outputVersion = version;
 	}
 
+	/**
+	 * Set the number of threads used to compute object names.
+	 * <p>
+	 * Whole objects are hashed in the background while the stream is still
+	 * being read, and independent delta chains are resolved concurrently. The
+	 * resulting index does not depend on the number of threads.
+	 *
+	 * @param threads
+	 *            number of threads; 0 to use one per available processor.
+	 */
+	public void setThreads(final int threads) {
+		this.threads = threads;
+	}
+
 	/**
 	 * Configure this index pack instance to make a thin pack complete.
 	 * <p>
@@ -304,6 +359,14 @@ public void index(final ProgressMonitor progress) throws IOException {
 				entries = new PackedObjectInfo[(int) objectCount];
 				baseById = new ObjectIdMap<ArrayList<UnresolvedDelta>>();
 				baseByPos = new HashMap<Long, ArrayList<UnresolvedDelta>>();
+				resolvers = new ThreadLocal<Resolver>();
+				allResolvers = new ArrayList<Resolver>();
+
+				int threadCnt = threads;
+				if (threadCnt <= 0)
+					threadCnt = Runtime.getRuntime().availableProcessors();
+				if (threadCnt > 1 && objectCount > 1)
+					pool = Executors.newFixedThreadPool(threadCnt);
 
 				progress.beginTask(PROGRESS_DOWNLOAD, (int) objectCount);
 				for (int done = 0; done < objectCount; done++) {
@@ -311,9 +374,11 @@ public void index(final ProgressMonitor progress) throws IOException {
 					progress.update(1);
 					if (progress.isCancelled())
 						throw new IOException("Download cancelled");
+					checkFailure();
 				}
 				readPackFooter();
 				endInput();
+				waitForPending(null);
 				progress.endTask();
 				if (deltaCount > 0) {
 					if (packOut == null)
@@ -345,6 +410,12 @@ public void index(final ProgressMonitor progress) throws IOException {
 					inflater = null;
 				}
 				readCurs = WindowCursor.release(readCurs);
+				if (pool != null) {
+					pool.shutdownNow();
+					awaitTermination(pool);
+					pool = null;
+				}
+				releaseResolvers();
 
 				progress.endTask();
 				if (packOut != null)
@@ -368,111 +439,487 @@ public void index(final ProgressMonitor progress) throws IOException {
 
 	private void resolveDeltas(final ProgressMonitor progress)
 			throws IOException {
-		progress.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
+		final ThreadSafeProgressMonitor pm = new ThreadSafeProgressMonitor(
+				progress);
+		pm.beginTask(PROGRESS_RESOLVE_DELTA, deltaCount);
 		final int last = entryCount;
 		for (int i = 0; i < last; i++) {
-			final int before = entryCount;
-			resolveDeltas(entries[i]);
-			progress.update(entryCount - before);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+			final PackedObjectInfo oe = entries[i];
+			final boolean hasDeltas;
+			synchronized (resolveLock) {
+				hasDeltas = baseById.containsKey(oe)
+						|| baseByPos.containsKey(new Long(oe.getOffset()));
+			}
+			if (!hasDeltas)
+				continue;
+
+			final ResolveTask task = new ResolveTask(pm, oe);
+			if (pool != null)
+				submit(task);
+			else {
+				task.run();
+				pm.pollForUpdates();
+				checkFailure();
+				if (pm.isCancelled())
+					throw new IOException("Download cancelled during indexing");
+			}
 		}
-		progress.endTask();
+		waitForPending(pm);
+		pm.endTask();
 	}
 
-	private void resolveDeltas(final PackedObjectInfo oe) throws IOException {
-		final int oldCRC = oe.getCRC();
-		if (baseById.containsKey(oe)
-				|| baseByPos.containsKey(new Long(oe.getOffset())))
-			resolveDeltas(oe.getOffset(), oldCRC, Constants.OBJ_BAD, null, oe);
+	private void submit(final Runnable task) {
+		pending.incrementAndGet();
+		pool.execute(task);
 	}
 
-	private void resolveDeltas(final long pos, final int oldCRC, int type,
-			byte[] data, PackedObjectInfo oe) throws IOException {
-		crc.reset();
-		position(pos);
-		int c = readFromFile();
-		final int typeCode = (c >> 4) & 7;
-		long sz = c & 15;
-		int shift = 4;
-		while ((c & 0x80) != 0) {
-			c = readFromFile();
-			sz += (c & 0x7f) << shift;
-			shift += 7;
+	private void taskDone() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (pending) {
+				pending.notifyAll();
+			}
 		}
+	}
 
-		switch (typeCode) {
-		case Constants.OBJ_COMMIT:
-		case Constants.OBJ_TREE:
-		case Constants.OBJ_BLOB:
-		case Constants.OBJ_TAG:
-			type = typeCode;
-			data = inflateFromFile((int) sz);
-			break;
-		case Constants.OBJ_OFS_DELTA: {
-			c = readFromFile() & 0xff;
-			while ((c & 128) != 0)
-				c = readFromFile() & 0xff;
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
+	private void waitForPending(final ThreadSafeProgressMonitor pm)
+			throws IOException {
+		synchronized (pending) {
+			while (pending.get() > 0) {
+				try {
+					pending.wait(250);
+				} catch (InterruptedException e) {
+					failure = e;
+					throw new InterruptedIOException("Interrupted while indexing");
+				}
+				if (pm != null) {
+					pm.pollForUpdates();
+					if (pm.isCancelled() && failure == null)
+						failure = new IOException(
+								"Download cancelled during indexing");
+				}
+			}
 		}
-		case Constants.OBJ_REF_DELTA: {
-			crc.update(buf, fillFromFile(20), 20);
-			use(20);
-			data = BinaryDelta.apply(data, inflateFromFile((int) sz));
-			break;
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		final Throwable err = failure;
+		if (err == null)
+			return;
+		if (err instanceof IOException)
+			throw (IOException) err;
+		if (err instanceof RuntimeException)
+			throw (RuntimeException) err;
+		if (err instanceof Error)
+			throw (Error) err;
+		final IOException e = new IOException(err.getMessage());
+		e.initCause(err);
+		throw e;
+	}
+
+	private void fail(final Throwable err) {
+		synchronized (resolveLock) {
+			if (failure == null)
+				failure = err;
 		}
-		default:
-			throw new IOException("Unknown object type " + typeCode + ".");
+	}
+
+	private boolean reserve(final long size) {
+		for (;;) {
+			final long cur = sharedBytes.get();
+			if (SHARED_DATA_LIMIT < cur + size)
+				return false;
+			if (sharedBytes.compareAndSet(cur, cur + size))
+				return true;
 		}
+	}
 
-		final int crc32 = (int) crc.getValue();
-		if (oldCRC != crc32)
-			throw new IOException("Corruption detected re-reading at " + pos);
-		if (oe == null) {
-			objectDigest.update(Constants.encodedTypeString(type));
-			objectDigest.update((byte) ' ');
-			objectDigest.update(Constants.encodeASCII(data.length));
-			objectDigest.update((byte) 0);
-			objectDigest.update(data);
-			tempObjectId.fromRaw(objectDigest.digest(), 0);
-
-			verifySafeObject(tempObjectId, type, data);
-			oe = new PackedObjectInfo(pos, crc32, tempObjectId);
+	private void unreserve(final long size) {
+		sharedBytes.addAndGet(-size);
+	}
+
+	private void addEntry(final PackedObjectInfo oe) {
+		synchronized (resolveLock) {
 			entries[entryCount++] = oe;
 		}
+	}
 
-		resolveChildDeltas(pos, type, data, oe);
+	private Resolver resolver() {
+		Resolver r = resolvers.get();
+		if (r == null) {
+			r = new Resolver();
+			resolvers.set(r);
+			synchronized (allResolvers) {
+				allResolvers.add(r);
+			}
+		}
+		return r;
 	}
 
-	private void resolveChildDeltas(final long pos, int type, byte[] data,
-			PackedObjectInfo oe) throws IOException {
-		final ArrayList<UnresolvedDelta> a = baseById.remove(oe);
-		final ArrayList<UnresolvedDelta> b = baseByPos.remove(new Long(pos));
-		int ai = 0, bi = 0;
-		if (a != null && b != null) {
-			while (ai < a.size() && bi < b.size()) {
-				final UnresolvedDelta ad = a.get(ai);
-				final UnresolvedDelta bd = b.get(bi);
-				if (ad.position < bd.position) {
-					resolveDeltas(ad.position, ad.crc, type, data, null);
-					ai++;
-				} else {
-					resolveDeltas(bd.position, bd.crc, type, data, null);
-					bi++;
+	private static void awaitTermination(final ExecutorService p) {
+		// Workers still running after a failure may be using their
+		// resolver or reading packOut, so both must outlive them.
+		//
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				if (p.awaitTermination(1, TimeUnit.SECONDS))
+					break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void releaseResolvers() {
+		if (allResolvers == null)
+			return;
+		synchronized (allResolvers) {
+			for (final Resolver r : allResolvers)
+				r.release();
+			allResolvers.clear();
+		}
+		resolvers = null;
+	}
+
+	/** A delta base shared by sibling deltas resolved on several threads. */
+	private class SharedBase {
+		final byte[] data;
+
+		private final AtomicInteger users;
+
+		SharedBase(final byte[] data, final int users) {
+			this.data = data;
+			this.users = new AtomicInteger(users);
+		}
+
+		void release() {
+			if (users.decrementAndGet() == 0)
+				unreserve(data.length);
+		}
+	}
+
+	/** Resolves one object and, recursively, all deltas based on it. */
+	private class ResolveTask implements Runnable {
+		private final ProgressMonitor pm;
+
+		private final long pos;
+
+		private final int crc32;
+
+		private final int type;
+
+		private final byte[] data;
+
+		private final PackedObjectInfo oe;
+
+		private final SharedBase shared;
+
+		ResolveTask(final ProgressMonitor pm, final long pos, final int crc32,
+				final int type, final SharedBase base) {
+			this.pm = pm;
+			this.pos = pos;
+			this.crc32 = crc32;
+			this.type = type;
+			this.data = base.data;
+			this.oe = null;
+			this.shared = base;
+		}
+
+		ResolveTask(final ProgressMonitor pm, final PackedObjectInfo oe) {
+			this.pm = pm;
+			this.pos = oe.getOffset();
+			this.crc32 = oe.getCRC();
+			this.type = Constants.OBJ_BAD;
+			this.data = null;
+			this.oe = oe;
+			this.shared = null;
+		}
+
+		public void run() {
+			try {
+				if (failure == null)
+					resolver().resolve(pm, pos, crc32, type, data, oe);
+			} catch (Throwable err) {
+				fail(err);
+			} finally {
+				if (shared != null)
+					shared.release();
+				if (pool != null)
+					taskDone();
+			}
+		}
+	}
+
+	/** Hashes a whole object read from the input stream. */
+	private class HashTask implements Runnable {
+		private final int slot;
+
+		private final long pos;
+
+		private final int crc32;
+
+		private final int type;
+
+		private final byte[] data;
+
+		HashTask(final int slot, final long pos, final int crc32,
+				final int type, final byte[] data) {
+			this.slot = slot;
+			this.pos = pos;
+			this.crc32 = crc32;
+			this.type = type;
+			this.data = data;
+		}
+
+		public void run() {
+			try {
+				if (failure == null)
+					entries[slot] = resolver().hash(pos, crc32, type, data);
+			} catch (Throwable err) {
+				fail(err);
+			} finally {
+				unreserve(data.length);
+				taskDone();
+			}
+		}
+	}
+
+	/**
+	 * Per-thread state for re-reading the pack file and naming objects.
+	 * <p>
+	 * The pack is read through positional reads on its channel, so any number
+	 * of resolvers can read from it concurrently.
+	 */
+	private class Resolver {
+		private final byte[] rbuf = new byte[BUFFER_SIZE];
+
+		private final ByteBuffer rbb = ByteBuffer.wrap(rbuf);
+
+		private long rBase;
+
+		private int rOffset;
+
+		private int rAvail;
+
+		private final CRC32 rcrc = new CRC32();
+
+		private final MessageDigest digest = Constants.newMessageDigest();
+
+		private final MutableObjectId tempId = new MutableObjectId();
+
+		private Inflater inf = InflaterCache.get();
+
+		private WindowCursor curs = new WindowCursor();
+
+		void release() {
+			InflaterCache.release(inf);
+			inf = null;
+			curs = WindowCursor.release(curs);
+		}
+
+		PackedObjectInfo hash(final long pos, final int crc32, final int type,
+				final byte[] data) throws IOException {
+			digest.update(Constants.encodedTypeString(type));
+			digest.update((byte) ' ');
+			digest.update(Constants.encodeASCII(data.length));
+			digest.update((byte) 0);
+			digest.update(data);
+			tempId.fromRaw(digest.digest(), 0);
+
+			verifySafeObject(curs, tempId, type, data);
+			return new PackedObjectInfo(pos, crc32, tempId);
+		}
+
+		void resolve(final ProgressMonitor pm, final long pos,
+				final int oldCRC, int type, byte[] data, PackedObjectInfo oe)
+				throws IOException {
+			if (pm.isCancelled())
+				throw new IOException("Download cancelled during indexing");
+
+			rcrc.reset();
+			position(pos);
+			int c = readFromFile();
+			final int typeCode = (c >> 4) & 7;
+			long sz = c & 15;
+			int shift = 4;
+			while ((c & 0x80) != 0) {
+				c = readFromFile();
+				sz += (c & 0x7f) << shift;
+				shift += 7;
+			}
+
+			switch (typeCode) {
+			case Constants.OBJ_COMMIT:
+			case Constants.OBJ_TREE:
+			case Constants.OBJ_BLOB:
+			case Constants.OBJ_TAG:
+				type = typeCode;
+				data = inflateFromFile((int) sz);
+				break;
+			case Constants.OBJ_OFS_DELTA: {
+				c = readFromFile() & 0xff;
+				while ((c & 128) != 0)
+					c = readFromFile() & 0xff;
+				data = BinaryDelta.apply(data, inflateFromFile((int) sz));
+				break;
+			}
+			case Constants.OBJ_REF_DELTA: {
+				rcrc.update(rbuf, fillFromFile(20), 20);
+				use(20);
+				data = BinaryDelta.apply(data, inflateFromFile((int) sz));
+				break;
+			}
+			default:
+				throw new IOException("Unknown object type " + typeCode + ".");
+			}
+
+			final int crc32 = (int) rcrc.getValue();
+			if (oldCRC != crc32)
+				throw new IOException("Corruption detected re-reading at "
+						+ pos);
+			if (oe == null) {
+				oe = hash(pos, crc32, type, data);
+				addEntry(oe);
+				pm.update(1);
+			}
+
+			resolveChildren(pm, pos, type, data, oe);
+		}
+
+		void resolveChildren(final ProgressMonitor pm, final long pos,
+				final int type, final byte[] data, final PackedObjectInfo oe)
+				throws IOException {
+			final ArrayList<UnresolvedDelta> a;
+			final ArrayList<UnresolvedDelta> b;
+			synchronized (resolveLock) {
+				a = baseById.remove(oe);
+				b = baseByPos.remove(new Long(pos));
+			}
+			final List<UnresolvedDelta> children = merge(a, b);
+			if (children.isEmpty())
+				return;
+
+			// Hand all but the first child to other threads, if the base
+			// can be kept in memory until they are done with it.
+			//
+			int inline = children.size();
+			if (pool != null && 1 < inline && reserve(data.length)) {
+				final SharedBase base = new SharedBase(data, inline - 1);
+				for (int i = 1; i < children.size(); i++) {
+					final UnresolvedDelta d = children.get(i);
+					submit(new ResolveTask(pm, d.position, d.crc, type, base));
 				}
+				inline = 1;
 			}
+			for (int i = 0; i < inline; i++) {
+				final UnresolvedDelta d = children.get(i);
+				resolve(pm, d.position, d.crc, type, data, null);
+			}
+		}
+
+		private void position(final long pos) {
+			rBase = pos;
+			rOffset = 0;
+			rAvail = 0;
 		}
-		if (a != null)
-			while (ai < a.size()) {
-				final UnresolvedDelta ad = a.get(ai++);
-				resolveDeltas(ad.position, ad.crc, type, data, null);
+
+		private int readFromFile() throws IOException {
+			if (rAvail == 0)
+				fillFromFile(1);
+			rAvail--;
+			final int b = rbuf[rOffset++] & 0xff;
+			rcrc.update(b);
+			return b;
+		}
+
+		private void use(final int cnt) {
+			rOffset += cnt;
+			rAvail -= cnt;
+		}
+
+		private int fillFromFile(final int need) throws IOException {
+			if (rAvail < need) {
+				if (rOffset > 0) {
+					if (rAvail > 0)
+						System.arraycopy(rbuf, rOffset, rbuf, 0, rAvail);
+					rBase += rOffset;
+					rOffset = 0;
+				}
+				while (rAvail < need) {
+					rbb.limit(rbuf.length);
+					rbb.position(rAvail);
+					final FileChannel fc = packOut.getChannel();
+					final int n = fc.read(rbb, rBase + rAvail);
+					if (n <= 0)
+						throw new EOFException("Packfile is truncated.");
+					rAvail += n;
+				}
 			}
-		if (b != null)
-			while (bi < b.size()) {
-				final UnresolvedDelta bd = b.get(bi++);
-				resolveDeltas(bd.position, bd.crc, type, data, null);
+			return rOffset;
+		}
+
+		private byte[] inflateFromFile(final int sz) throws IOException {
+			try {
+				final byte[] dst = new byte[sz];
+				int n = 0;
+				int p = -1;
+				while (!inf.finished()) {
+					if (inf.needsInput()) {
+						if (p >= 0) {
+							rcrc.update(rbuf, p, rAvail);
+							use(rAvail);
+						}
+						p = fillFromFile(1);
+						inf.setInput(rbuf, p, rAvail);
+					}
+					n += inf.inflate(dst, n, sz - n);
+				}
+				n = rAvail - inf.getRemaining();
+				if (n > 0) {
+					rcrc.update(rbuf, p, n);
+					use(n);
+				}
+				return dst;
+			} catch (DataFormatException dfe) {
+				throw corrupt(dfe);
+			} finally {
+				inf.reset();
 			}
+		}
+	}
+
+	private static List<UnresolvedDelta> merge(
+			final ArrayList<UnresolvedDelta> a,
+			final ArrayList<UnresolvedDelta> b) {
+		if (a == null && b == null)
+			return new ArrayList<UnresolvedDelta>(0);
+		if (a == null)
+			return b;
+		if (b == null)
+			return a;
+
+		final List<UnresolvedDelta> r;
+		r = new ArrayList<UnresolvedDelta>(a.size() + b.size());
+		int ai = 0, bi = 0;
+		while (ai < a.size() && bi < b.size()) {
+			final UnresolvedDelta ad = a.get(ai);
+			final UnresolvedDelta bd = b.get(bi);
+			if (ad.position < bd.position) {
+				r.add(ad);
+				ai++;
+			} else {
+				r.add(bd);
+				bi++;
+			}
+		}
+		while (ai < a.size())
+			r.add(a.get(ai++));
+		while (bi < b.size())
+			r.add(b.get(bi++));
+		return r;
 	}
 
 	private void fixThinPack(final ProgressMonitor progress) throws IOException {
@@ -481,6 +928,8 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 		packDigest.reset();
 		originalEOF = packOut.length() - 20;
 		final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+		final ThreadSafeProgressMonitor pm = new ThreadSafeProgressMonitor(
+				NullProgressMonitor.INSTANCE);
 		long end = originalEOF;
 		for (final ObjectId baseId : new ArrayList<ObjectId>(baseById.keySet())) {
 			final ObjectLoader ldr = repo.openObject(readCurs, baseId);
@@ -497,7 +946,8 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 			entries[entryCount++] = oe;
 			end = packOut.getFilePointer();
 
-			resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
+			resolver().resolveChildren(pm, oe.getOffset(), typeCode, data, oe);
+			waitForPending(pm);
 			if (progress.isCancelled())
 				throw new IOException("Download cancelled during indexing");
 		}
@@ -713,6 +1163,14 @@ private void indexOneObject() throws IOException {
 	private void whole(final int type, final long pos, final long sz)
 			throws IOException {
 		final byte[] data = inflateFromInput(sz);
+		if (pool != null && reserve(data.length)) {
+			// Hash in the background while we keep reading the stream.
+			//
+			final int crc32 = (int) crc.getValue();
+			submit(new HashTask(entryCount++, pos, crc32, type, data));
+			return;
+		}
+
 		objectDigest.update(Constants.encodedTypeString(type));
 		objectDigest.update((byte) ' ');
 		objectDigest.update(Constants.encodeASCII(sz));
@@ -720,16 +1178,19 @@ private void whole(final int type, final long pos, final long sz)
 		objectDigest.update(data);
 		tempObjectId.fromRaw(objectDigest.digest(), 0);
 
-		verifySafeObject(tempObjectId, type, data);
+		verifySafeObject(readCurs, tempObjectId, type, data);
 		final int crc32 = (int) crc.getValue();
 		entries[entryCount++] = new PackedObjectInfo(pos, crc32, tempObjectId);
 	}
 
-	private void verifySafeObject(final AnyObjectId id, final int type,
-			final byte[] data) throws IOException {
+	private void verifySafeObject(final WindowCursor curs,
+			final AnyObjectId id, final int type, final byte[] data)
+			throws IOException {
 		if (objCheck != null) {
 			try {
-				objCheck.check(type, data);
+				synchronized (objCheck) {
+					objCheck.check(type, data);
+				}
 			} catch (CorruptObjectException e) {
 				throw new IOException("Invalid "
 						+ Constants.encodedTypeString(type) + " " + id.name()
@@ -737,7 +1198,7 @@ private void verifySafeObject(final AnyObjectId id, final int type,
 			}
 		}
 
-		final ObjectLoader ldr = repo.openObject(readCurs, id);
+		final ObjectLoader ldr = repo.openObject(curs, id);
 		if (ldr != null) {
 			final byte[] existingData = ldr.getCachedBytes();
 			if (ldr.getType() != type || !Arrays.equals(data, existingData)) {
@@ -751,13 +1212,6 @@ private long position() {
 		return bBase + bOffset;
 	}
 
-	private void position(final long pos) throws IOException {
-		packOut.seek(pos);
-		bBase = pos;
-		bOffset = 0;
-		bAvail = 0;
-	}
-
 	// Consume exactly one byte from the buffer and return it.
 	private int readFromInput() throws IOException {
 		if (bAvail == 0)
@@ -768,16 +1222,6 @@ private int readFromInput() throws IOException {
 		return b;
 	}
 
-	// Consume exactly one byte from the buffer and return it.
-	private int readFromFile() throws IOException {
-		if (bAvail == 0)
-			fillFromFile(1);
-		bAvail--;
-		final int b = buf[bOffset++] & 0xff;
-		crc.update(b);
-		return b;
-	}
-
 	// Consume cnt bytes from the buffer.
 	private void use(final int cnt) {
 		bOffset += cnt;
@@ -904,36 +1348,6 @@ private byte[] inflateFromInput(final long sz) throws IOException {
 		}
 	}
 
-	private byte[] inflateFromFile(final int sz) throws IOException {
-		final Inflater inf = inflater;
-		try {
-			final byte[] dst = new byte[sz];
-			int n = 0;
-			int p = -1;
-			while (!inf.finished()) {
-				if (inf.needsInput()) {
-					if (p >= 0) {
-						crc.update(buf, p, bAvail);
-						use(bAvail);
-					}
-					p = fillFromFile(1);
-					inf.setInput(buf, p, bAvail);
-				}
-				n += inf.inflate(dst, n, sz - n);
-			}
-			n = bAvail - inf.getRemaining();
-			if (n > 0) {
-				crc.update(buf, p, n);
-				use(n);
-			}
-			return dst;
-		} catch (DataFormatException dfe) {
-			throw corrupt(dfe);
-		} finally {
-			inf.reset();
-		}
-	}
-
 	private static CorruptObjectException corrupt(final DataFormatException dfe) {
 		return new CorruptObjectException("Packfile corruption detected: "
 				+ dfe.getMessage());
@@ -1007,6 +1421,13 @@ public void renameAndOpenPack() throws IOException {
 			finalIdx.delete();
 			throw err;
 		}
+
+		try {
+			repo.updateMultiPackIndex();
+		} catch (IOException err) {
+			// The pack is usable without the multi-pack index; lookups
+			// fall back to searching the packs the index doesn't cover.
+		}
 	}
 
 	private void cleanupTemporaryFiles() {
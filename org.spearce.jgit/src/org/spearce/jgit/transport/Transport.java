@@ -355,6 +355,9 @@ private static String findTrackingRefName(final String remoteName,
 	/** Should fetch request thin-pack if remote repository can produce it. */
 	private boolean fetchThin = DEFAULT_FETCH_THIN;
 
+	/** Number of commits of history to fetch; 0 for the complete history. */
+	private int depth;
+
 	/** Name of the receive pack program, if it must be executed. */
 	private String optionReceivePack = RemoteConfig.DEFAULT_RECEIVE_PACK;
 
@@ -467,6 +470,33 @@ public void setFetchThin(final boolean fetchThin) {
 		this.fetchThin = fetchThin;
 	}
 
+	/**
+	 * @return number of commits of history a fetch obtains from each ref; 0
+	 *         if the complete history is fetched.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Limit the history obtained by fetch, creating a shallow repository.
+	 * <p>
+	 * Commits at the cut are recorded in the local repository's shallow file.
+	 * Fetching again with a larger depth deepens the history. The depth is
+	 * only honored by the native pack protocol, other transports always
+	 * fetch the complete history.
+	 *
+	 * @param depth
+	 *            number of commits to fetch from each wanted ref; 0 for the
+	 *            complete history.
+	 * @see Repository#getShallowCommits()
+	 */
+	public void setDepth(final int depth) {
+		if (depth < 0)
+			throw new IllegalArgumentException("Invalid depth: " + depth);
+		this.depth = depth;
+	}
+
 	/**
 	 * @return true if fetch will verify received objects are formatted
 	 *         correctly. Validating objects requires more CPU time on the
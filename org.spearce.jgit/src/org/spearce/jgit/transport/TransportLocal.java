@@ -49,6 +49,7 @@
 import org.spearce.jgit.errors.NotSupportedException;
 import org.spearce.jgit.errors.TransportException;
 import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryCache;
 import org.spearce.jgit.util.FS;
 
 /**
@@ -141,7 +142,7 @@ class InternalLocalFetchConnection extends BasePackFetchConnection {
 
 			final Repository dst;
 			try {
-				dst = new Repository(remoteGitDir);
+				dst = RepositoryCache.open(remoteGitDir);
 			} catch (IOException err) {
 				throw new TransportException(uri, "not a git directory");
 			}
@@ -254,7 +255,7 @@ class InternalLocalPushConnection extends BasePackPushConnection {
 
 			final Repository dst;
 			try {
-				dst = new Repository(remoteGitDir);
+				dst = RepositoryCache.open(remoteGitDir);
 			} catch (IOException err) {
 				throw new TransportException(uri, "not a git directory");
 			}
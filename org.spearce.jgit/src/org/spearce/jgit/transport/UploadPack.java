@@ -83,6 +83,8 @@ public class UploadPack {
 
 	static final String OPTION_NO_PROGRESS = BasePackFetchConnection.OPTION_NO_PROGRESS;
 
+	static final String OPTION_SHALLOW = BasePackFetchConnection.OPTION_SHALLOW;
+
 	/** Database we read the objects from. */
 	private final Repository db;
 
@@ -112,6 +114,18 @@ public class UploadPack {
 	/** Objects on both sides, these don't have to be sent. */
 	private final List<RevObject> commonBase = new ArrayList<RevObject>();
 
+	/** Commits the client has, but not their parents. */
+	private final Set<ObjectId> clientShallow = new HashSet<ObjectId>();
+
+	/** Commits whose parents must not be sent to the client. */
+	private final List<ObjectId> shallowBoundary = new ArrayList<ObjectId>();
+
+	/** Parents of commits the client no longer has shallow. */
+	private final List<ObjectId> unshallowParents = new ArrayList<ObjectId>();
+
+	/** Number of commits to send from each want; 0 for all history. */
+	private int depth;
+
 	/** Marked on objects we sent in our advertisement list. */
 	private final RevFlag ADVERTISED;
 
@@ -192,6 +206,9 @@ private void service() throws IOException {
 		recvWants();
 		if (wantAll.isEmpty())
 			return;
+		if (depth > 0)
+			sendShallowUpdates();
+		shallowBoundary.addAll(clientShallow);
 		multiAck = options.contains(OPTION_MULTI_ACK);
 		negotiate();
 		sendPack();
@@ -224,6 +241,8 @@ private void sendAdvertisedRefs() throws IOException {
 				m.append(' ');
 				m.append(OPTION_NO_PROGRESS);
 				m.append(' ');
+				m.append(OPTION_SHALLOW);
+				m.append(' ');
 				writeAdvertisedRef(m);
 				if (o instanceof RevTag)
 					writeAdvertisedTag(m, idtmp, o, r.getName());
@@ -295,6 +314,20 @@ private void recvWants() throws IOException {
 
 			if (line.length() == 0)
 				break;
+			if (line.startsWith("shallow ") && line.length() == 48) {
+				clientShallow.add(ObjectId.fromString(line.substring(8)));
+				continue;
+			}
+			if (line.startsWith("deepen ")) {
+				try {
+					depth = Integer.parseInt(line.substring(7));
+				} catch (NumberFormatException e) {
+					depth = 0;
+				}
+				if (depth <= 0)
+					throw new PackProtocolException("invalid " + line);
+				continue;
+			}
 			if (!line.startsWith("want ") || line.length() < 45)
 				throw new PackProtocolException("expected want; got " + line);
 
@@ -338,6 +371,67 @@ else if (o instanceof RevTag) {
 		}
 	}
 
+	/**
+	 * Cut the history of the wants at {@link #depth} commits.
+	 * <p>
+	 * Commits at the cut are sent to the client as new shallow commits.
+	 * Shallow commits of the client that are above the cut become complete,
+	 * and their parents are added to the pack.
+	 */
+	private void sendShallowUpdates() throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		final RevFlag seen = rw.newFlag("SEEN");
+		final List<RevCommit> boundary = new ArrayList<RevCommit>();
+		final List<RevCommit> unshallow = new ArrayList<RevCommit>();
+
+		// Walk breadth first, so a commit is first reached by its
+		// shortest path from the wants, which defines its depth.
+		//
+		List<RevCommit> level = new ArrayList<RevCommit>();
+		for (final RevCommit c : wantCommits) {
+			final RevCommit r = rw.parseCommit(c);
+			if (!r.has(seen)) {
+				r.add(seen);
+				level.add(r);
+			}
+		}
+		for (int d = 1; !level.isEmpty(); d++) {
+			final List<RevCommit> next = new ArrayList<RevCommit>();
+			for (final RevCommit c : level) {
+				if (d == depth) {
+					boundary.add(c);
+					continue;
+				}
+				if (clientShallow.contains(c.copy()))
+					unshallow.add(c);
+				for (final RevCommit p : c.getParents()) {
+					if (!p.has(seen)) {
+						rw.parse(p);
+						p.add(seen);
+						next.add(p);
+					}
+				}
+			}
+			level = next;
+		}
+
+		for (final RevCommit c : boundary) {
+			shallowBoundary.add(c.copy());
+			if (!clientShallow.contains(c.copy()))
+				pckOut.writeString("shallow " + c.name() + "\n");
+		}
+		for (final RevCommit c : unshallow) {
+			// The client still has the commit itself. Keeping it in the
+			// boundary stops its haves from hiding the parents we add.
+			//
+			for (final RevCommit p : c.getParents())
+				unshallowParents.add(p.copy());
+			pckOut.writeString("unshallow " + c.name() + "\n");
+		}
+		pckOut.end();
+		rw.dispose();
+	}
+
 	private void negotiate() throws IOException {
 		ObjectId last = ObjectId.zeroId();
 		for (;;) {
@@ -464,7 +558,14 @@ private void sendPack() throws IOException {
 		final PackWriter pw;
 		pw = new PackWriter(db, pm, NullProgressMonitor.INSTANCE);
 		pw.setDeltaBaseAsOffset(options.contains(OPTION_OFS_DELTA));
-		pw.preparePack(wantAll, commonBase, thin, true);
+		pw.setUseCachedPacks(pw.isDeltaBaseAsOffset());
+		if (shallowBoundary.isEmpty())
+			pw.preparePack(wantAll, commonBase, thin, true);
+		else {
+			final List<ObjectId> want = new ArrayList<ObjectId>(wantAll);
+			want.addAll(unshallowParents);
+			pw.preparePack(want, commonBase, shallowBoundary, thin, true);
+		}
 		if (options.contains(OPTION_INCLUDE_TAG)) {
 			for (final Ref r : refs.values()) {
 				final RevObject o;
@@ -42,6 +42,7 @@
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -538,9 +539,14 @@ private boolean downloadLooseObject(final AnyObjectId id,
 			final String looseName, final WalkRemoteObjectDatabase remote)
 			throws TransportException {
 		try {
-			final byte[] compressed = remote.open(looseName).toArray();
-			verifyLooseObject(id, compressed);
-			saveLooseObject(id, compressed);
+			final File tmp = copyLooseObject(remote.open(looseName));
+			try {
+				verifyLooseObject(id, tmp);
+			} catch (IOException e) {
+				tmp.delete();
+				throw e;
+			}
+			saveLooseObject(id, tmp);
 			return true;
 		} catch (FileNotFoundException e) {
 			// Not available in a loose format from this alternate?
@@ -553,11 +559,40 @@ private boolean downloadLooseObject(final AnyObjectId id,
 		}
 	}
 
-	private void verifyLooseObject(final AnyObjectId id, final byte[] compressed)
+	private File copyLooseObject(final WalkRemoteObjectDatabase.FileStream s)
+			throws IOException {
+		// The object is spooled to a temporary file in the objects directory
+		// rather than memory, so objects of any size can be verified by
+		// streaming them, and then renamed into place.
+		//
+		final File tmp;
+		try {
+			tmp = File.createTempFile("noz", null, local.getObjectsDirectory());
+			try {
+				final FileOutputStream out = new FileOutputStream(tmp);
+				try {
+					final byte[] buf = new byte[8192];
+					int cnt;
+					while ((cnt = s.in.read(buf)) >= 0)
+						out.write(buf, 0, cnt);
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				tmp.delete();
+				throw e;
+			}
+		} finally {
+			s.in.close();
+		}
+		return tmp;
+	}
+
+	private void verifyLooseObject(final AnyObjectId id, final File tmp)
 			throws IOException {
 		final UnpackedObjectLoader uol;
 		try {
-			uol = new UnpackedObjectLoader(compressed);
+			uol = new UnpackedObjectLoader(tmp);
 		} catch (CorruptObjectException parsingError) {
 			// Some HTTP servers send back a "200 OK" status with an HTML
 			// page that explains the requested file could not be found.
@@ -581,16 +616,27 @@ private void verifyLooseObject(final AnyObjectId id, final byte[] compressed)
 		objectDigest.update((byte) ' ');
 		objectDigest.update(Constants.encodeASCII(uol.getSize()));
 		objectDigest.update((byte) 0);
-		objectDigest.update(uol.getCachedBytes());
+		final InputStream in = uol.openStream();
+		try {
+			final byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				objectDigest.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
 		idBuffer.fromRaw(objectDigest.digest(), 0);
 
 		if (!AnyObjectId.equals(id, idBuffer)) {
 			throw new TransportException("Incorrect hash for " + id.name()
 					+ "; computed " + idBuffer.name() + " as a "
 					+ Constants.encodedTypeString(uol.getType()) + " from "
-					+ compressed.length + " bytes.");
+					+ tmp.length() + " bytes.");
 		}
-		if (objCheck != null) {
+		if (objCheck != null && uol.getType() != Constants.OBJ_BLOB) {
+			// Blobs have no structure to check, and may be too large to
+			// hold in memory.
+			//
 			try {
 				objCheck.check(uol.getType(), uol.getCachedBytes());
 			} catch (CorruptObjectException e) {
@@ -601,37 +647,28 @@ private void verifyLooseObject(final AnyObjectId id, final byte[] compressed)
 		}
 	}
 
-	private void saveLooseObject(final AnyObjectId id, final byte[] compressed)
+	private void saveLooseObject(final AnyObjectId id, final File tmp)
 			throws IOException, ObjectWritingException {
-		final File tmp;
-
-		tmp = File.createTempFile("noz", null, local.getObjectsDirectory());
-		try {
-			final FileOutputStream out = new FileOutputStream(tmp);
-			try {
-				out.write(compressed);
-			} finally {
-				out.close();
-			}
-			tmp.setReadOnly();
-		} catch (IOException e) {
-			tmp.delete();
-			throw e;
-		}
+		tmp.setReadOnly();
 
 		final File o = local.toFile(id);
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.onLooseObjectWritten(id);
 			return;
+		}
 
 		// Maybe the directory doesn't exist yet as the object
 		// directories are always lazily created. Note that we
 		// try the rename first as the directory likely does exist.
 		//
 		o.getParentFile().mkdir();
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.onLooseObjectWritten(id);
 			return;
+		}
 
 		tmp.delete();
+		local.onLooseObjectWritten(id);
 		if (local.hasObject(id))
 			return;
 		throw new ObjectWritingException("Unable to store " + id.name() + ".");
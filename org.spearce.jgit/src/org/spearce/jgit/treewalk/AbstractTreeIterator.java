@@ -358,6 +358,27 @@ public String getEntryPathString() {
 		return TreeWalk.pathOf(this);
 	}
 
+	/**
+	 * Get a hash code of the current entry's path.
+	 * <p>
+	 * The hash is computed the same way C Git computes the name hash used to
+	 * sort objects for delta compression. The last sixteen non-whitespace
+	 * characters of the path dominate the result, so files with the same name
+	 * (or the same extension) sort near each other.
+	 * 
+	 * @return hash code of the current entry's path.
+	 */
+	public int getEntryPathHashCode() {
+		int hash = 0;
+		for (int i = 0; i < pathLen; i++) {
+			final int c = path[i] & 0xff;
+			if (c == ' ' || ('\t' <= c && c <= '\r'))
+				continue;
+			hash = (hash >>> 2) + (c << 24);
+		}
+		return hash;
+	}
+
 	/**
 	 * Get the byte array buffer object IDs must be copied out of.
 	 * <p>
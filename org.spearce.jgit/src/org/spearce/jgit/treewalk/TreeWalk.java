@@ -39,6 +39,7 @@
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.concurrent.ExecutorService;
 
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
@@ -164,6 +165,8 @@ public static TreeWalk forPath(final Repository db, final String path,
 
 	private boolean postChildren;
 
+	private ExecutorService contentHashExecutor;
+
 	AbstractTreeIterator currentHead;
 
 	/**
@@ -278,6 +281,35 @@ public void setPostOrderTraversal(final boolean b) {
 		postOrderTraversal = b;
 	}
 
+	/**
+	 * Get the pool working tree iterators hash file content with.
+	 *
+	 * @return the pool; null if files are hashed on the walking thread.
+	 * @see #setContentHashExecutor(ExecutorService)
+	 */
+	public ExecutorService getContentHashExecutor() {
+		return contentHashExecutor;
+	}
+
+	/**
+	 * Hash working tree files in parallel, ahead of the walk.
+	 * <p>
+	 * Once a {@link WorkingTreeIterator} added to this walk has to compute
+	 * the object id of a file, it also submits the files following it in the
+	 * same directory to the pool, and then consumes their ids in path order.
+	 * This is only worthwhile when most files need hashing anyway, such as
+	 * the first status check after a clone. The caller owns the pool and
+	 * must shut it down after the walk; a fixed size pool bounds the number
+	 * of files read at once.
+	 *
+	 * @param pool
+	 *            the pool to hash files with; null to hash each file on the
+	 *            walking thread when its id is asked for.
+	 */
+	public void setContentHashExecutor(final ExecutorService pool) {
+		contentHashExecutor = pool;
+	}
+
 	/** Reset this walker so new tree iterators can be added to it. */
 	public void reset() {
 		trees = new AbstractTreeIterator[0];
@@ -431,6 +463,8 @@ public int addTree(final AbstractTreeIterator p)
 		newTrees[n] = p;
 		p.matches = null;
 		p.matchShift = 0;
+		if (p instanceof WorkingTreeIterator)
+			((WorkingTreeIterator) p).walk = this;
 
 		trees = newTrees;
 		return n;
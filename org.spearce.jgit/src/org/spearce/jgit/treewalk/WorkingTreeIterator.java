@@ -46,10 +46,18 @@
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.spearce.jgit.dircache.DirCacheEntry;
+import org.spearce.jgit.dircache.DirCacheIterator;
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.util.FS;
 
 /**
  * Walks a working directory tree as part of a {@link TreeWalk}.
@@ -69,6 +77,9 @@ public abstract class WorkingTreeIterator extends AbstractTreeIterator {
 	/** Size we perform file IO in if we have to read and hash a file. */
 	private static final int BUFFER_SIZE = 2048;
 
+	/** Number of files hashed ahead of the walk by the hash executor. */
+	private static final int HASH_AHEAD = 64;
+
 	/** The {@link #idBuffer()} for the current entry. */
 	private byte[] contentId;
 
@@ -93,6 +104,27 @@ public abstract class WorkingTreeIterator extends AbstractTreeIterator {
 	/** Current position within {@link #entries}. */
 	private int ptr;
 
+	/** Walk holding the index to reuse object ids from; null if none. */
+	private TreeWalk dirCacheWalk;
+
+	/** Position of the {@link DirCacheIterator} within {@link #dirCacheWalk}. */
+	private int dirCacheTree;
+
+	/** Id copied from the index when the stat data says it is current. */
+	private byte[] dirCacheId;
+
+	/** The walk we were added to; supplies the content hash executor. */
+	TreeWalk walk;
+
+	/**
+	 * Ids being computed ahead of the walk, by position in {@link #entries}.
+	 * Each future yields a <code>byte[]</code>.
+	 */
+	private Future<?>[] pendingIds;
+
+	/** Next position in {@link #entries} to submit for hashing. */
+	private int nextToHash;
+
 	/** Create a new iterator with no parent. */
 	protected WorkingTreeIterator() {
 		super();
@@ -128,6 +160,29 @@ protected WorkingTreeIterator(final String prefix) {
 	protected WorkingTreeIterator(final WorkingTreeIterator p) {
 		super(p);
 		nameEncoder = p.nameEncoder;
+		dirCacheWalk = p.dirCacheWalk;
+		dirCacheTree = p.dirCacheTree;
+		walk = p.walk;
+	}
+
+	/**
+	 * Reuse object ids recorded in the index for files that are stat clean.
+	 * <p>
+	 * When the {@link DirCacheIterator} in the walk has an entry for the
+	 * current file, and the entry's length and modification time match the
+	 * file's (and the entry was not smudged because it was racily clean),
+	 * {@link #idBuffer()} returns the entry's object id instead of reading and
+	 * hashing the file. Comparing a clean working directory to its index
+	 * then does not need to read any file content.
+	 *
+	 * @param walk
+	 *            the walk this iterator is (or will be) added to.
+	 * @param treeId
+	 *            index of the {@link DirCacheIterator} within the walk.
+	 */
+	public void setDirCacheIterator(final TreeWalk walk, final int treeId) {
+		dirCacheWalk = walk;
+		dirCacheTree = treeId;
 	}
 
 	@Override
@@ -137,7 +192,14 @@ public byte[] idBuffer() {
 		switch (mode & 0170000) {
 		case 0100000: /* normal files */
 			contentIdFromPtr = ptr;
-			return contentId = idBufferBlob(entries[ptr]);
+			final DirCacheEntry i = currentDirCacheEntry();
+			if (i != null && isStatClean(i, current())) {
+				if (dirCacheId == null)
+					dirCacheId = new byte[Constants.OBJECT_ID_LENGTH];
+				i.getObjectId().copyRawTo(dirCacheId, 0);
+				return contentId = dirCacheId;
+			}
+			return contentId = hashCurrent();
 		case 0120000: /* symbolic links */
 			// Java does not support symbolic links, so we should not
 			// have reached this particular part of the walk code.
@@ -151,6 +213,150 @@ public byte[] idBuffer() {
 		return zeroid;
 	}
 
+	/** @return the index iterator, even if it is not on the current path. */
+	private DirCacheIterator dirCacheIterator() {
+		if (dirCacheWalk == null || dirCacheTree >= dirCacheWalk.trees.length)
+			return null;
+		final AbstractTreeIterator t = dirCacheWalk.trees[dirCacheTree];
+		return t instanceof DirCacheIterator ? (DirCacheIterator) t : null;
+	}
+
+	private DirCacheEntry currentDirCacheEntry() {
+		if (dirCacheWalk == null)
+			return null;
+		final DirCacheIterator i = dirCacheWalk.getTree(dirCacheTree,
+				DirCacheIterator.class);
+		return i != null ? i.getDirCacheEntry() : null;
+	}
+
+	private static boolean isStatClean(final DirCacheEntry i, final Entry e) {
+		return !i.isSmudged() && (i.getRawMode() & 0170000) == 0100000
+				&& i.getLength() == (int) e.getLength()
+				&& i.getLastModified() == e.getLastModified();
+	}
+
+	/** Does the index say the file at a position needs no hashing? */
+	private boolean isStatClean(final DirCacheIterator dci, final int pos) {
+		final Entry e = entries[pos];
+		final int len = pathOffset + e.encodedNameLen;
+		final byte[] p = new byte[len];
+		System.arraycopy(path, 0, p, 0, pathOffset);
+		System.arraycopy(e.encodedName, 0, p, pathOffset, e.encodedNameLen);
+		final DirCacheEntry i = dci.findEntry(p, len);
+		return i != null && isStatClean(i, e);
+	}
+
+	/**
+	 * Is the current file modified relative to an index entry?
+	 * <p>
+	 * The stat data of the entry is trusted when it matches the file, unless
+	 * the entry was smudged (see {@link DirCacheEntry#isSmudged()}). Otherwise
+	 * the file content is hashed and compared to the entry's object.
+	 *
+	 * @param entry
+	 *            the index entry for the current path.
+	 * @param forceContentCheck
+	 *            true to compare the file content even when the length and
+	 *            modification time match the entry.
+	 * @return true if the file differs from the entry.
+	 */
+	public boolean isModified(final DirCacheEntry entry,
+			final boolean forceContentCheck) {
+		if (entry.isAssumeValid())
+			return false;
+		final int iMode = entry.getRawMode();
+		final int wMode = mode;
+		if (iMode == FileMode.SYMLINK.getBits()
+				|| iMode == FileMode.GITLINK.getBits()
+				|| wMode == FileMode.GITLINK.getBits()) {
+			// Java cannot read symbolic links or the HEAD of a
+			// nested repository, so we do not know if these changed.
+			//
+			return false;
+		}
+		if (iMode != wMode) {
+			if (FS.INSTANCE.supportsExecute()
+					|| (iMode & 0170000) != (wMode & 0170000))
+				return true;
+		}
+		if (wMode == FileMode.TREE.getBits())
+			return false;
+
+		final boolean smudged = entry.isSmudged();
+		if (!smudged && entry.getLength() != (int) getEntryLength())
+			return true;
+		if (!smudged && !forceContentCheck
+				&& entry.getLastModified() == getEntryLastModified())
+			return false;
+
+		if (contentIdFromPtr != ptr || contentId == dirCacheId) {
+			contentIdFromPtr = ptr;
+			contentId = hashCurrent();
+		}
+		return !entry.getObjectId().equals(ObjectId.fromRaw(contentId));
+	}
+
+	private byte[] hashCurrent() {
+		final ExecutorService pool = walk != null ? walk
+				.getContentHashExecutor() : null;
+		if (pool == null)
+			return idBufferBlob(entries[ptr]);
+
+		if (pendingIds == null)
+			pendingIds = new Future<?>[entryCnt];
+		if (nextToHash <= ptr)
+			nextToHash = ptr + 1;
+		final DirCacheIterator dci = dirCacheIterator();
+		final int end = Math.min(entryCnt, ptr + HASH_AHEAD);
+		for (; nextToHash < end; nextToHash++) {
+			final Entry e = entries[nextToHash];
+			if ((e.getMode().getBits() & 0170000) != 0100000)
+				continue;
+			// Read the length here, as Entry caches it without locking.
+			e.getLength();
+			// Files the index still describes will not be hashed.
+			if (dci != null && isStatClean(dci, nextToHash))
+				continue;
+			pendingIds[nextToHash] = pool.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return hashBlob(e, Constants.newMessageDigest(),
+							new byte[BUFFER_SIZE]);
+				}
+			});
+		}
+
+		final Future<?> f = pendingIds[ptr];
+		if (f == null)
+			return idBufferBlob(entries[ptr]);
+		pendingIds[ptr] = null;
+		try {
+			return (byte[]) f.get();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			return idBufferBlob(entries[ptr]);
+		} catch (ExecutionException err) {
+			final Throwable cause = err.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			return zeroid;
+		}
+	}
+
+	/** Cancel the hashing of entries the walk skipped or will not reach. */
+	private void cancelPending(final int from, final int to) {
+		if (pendingIds == null)
+			return;
+		for (int i = from; i < to; i++) {
+			final Future<?> f = pendingIds[i];
+			if (f != null) {
+				f.cancel(false);
+				pendingIds[i] = null;
+			}
+		}
+	}
+
 	private void initializeDigest() {
 		if (contentDigest != null)
 			return;
@@ -173,13 +379,17 @@ private void initializeDigest() {
 			.encodedTypeString(Constants.OBJ_BLOB);
 
 	private byte[] idBufferBlob(final Entry e) {
+		initializeDigest();
+		return hashBlob(e, contentDigest, contentReadBuffer);
+	}
+
+	private static byte[] hashBlob(final Entry e,
+			final MessageDigest contentDigest, final byte[] contentReadBuffer) {
 		try {
 			final InputStream is = e.openInputStream();
 			if (is == null)
 				return zeroid;
 			try {
-				initializeDigest();
-
 				contentDigest.reset();
 				contentDigest.update(hblob);
 				contentDigest.update((byte) ' ');
@@ -242,6 +452,7 @@ public boolean eof() {
 
 	@Override
 	public void next(final int delta) throws CorruptObjectException {
+		cancelPending(ptr, ptr + delta);
 		ptr += delta;
 		if (!eof())
 			parseEntry();
@@ -314,6 +525,8 @@ protected void init(final Entry[] list) {
 		// also cache the encoded forms of the path names for efficient use
 		// later on during sorting and iteration.
 		//
+		if (pendingIds != null)
+			cancelPending(0, pendingIds.length);
 		entries = list;
 		int i, o;
 
@@ -335,6 +548,8 @@ protected void init(final Entry[] list) {
 		Arrays.sort(entries, 0, entryCnt, ENTRY_CMP);
 
 		contentIdFromPtr = -1;
+		pendingIds = null;
+		nextToHash = 0;
 		ptr = 0;
 		if (!eof())
 			parseEntry();